@@ -0,0 +1,1057 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import components.map.Map;
+import components.map.MapSecondary;
+
+/**
+ * {@code Map} with a capacity limit, for memoizing results: adding an entry
+ * to a full map first evicts the least recently used one (LRU). It is
+ * represented as a fixed number of independently locked segments, each, like
+ * {@code Map4}, a hash table using chains of nodes that cache their keys'
+ * spread hash codes, with implementations of primary methods; the nodes of a
+ * segment are also linked, in order of last use, into an intrusive
+ * doubly-linked recency list, so every kernel method takes constant time.
+ * Since a segment never holds more than its share of the capacity, its table
+ * is sized once and never grows.
+ *
+ * <p>
+ * The map is safe for use by several threads at once, and has no global
+ * lock: as in {@code ConcurrentMap4}, a key's segment is chosen by its hash
+ * code, and every call locks only the segment of its key, so lookups (which
+ * update the recency list) and updates of keys in different segments never
+ * wait for each other. The price is that recency is tracked per segment: a
+ * full segment evicts its own least recently used entry, even if another
+ * segment holds an older one or has room. A map with a capacity below
+ * {@code 2 * MIN_SEGMENT_CAPACITY} has a single segment and is exactly LRU.
+ * {@code newInstance}, {@code clear}, and {@code transferFrom} must not run
+ * concurrently with other calls on the same map.
+ *
+ * <p>
+ * {@code hasKey} and {@code value} count as uses of the key: a hit moves it to
+ * the most recently used end of its segment's list. Both also keep hit and
+ * miss counts: {@code hasKey} counts a hit or a miss, and {@code value} counts
+ * a hit unless it follows a {@code hasKey} hit for the same key, so the usual
+ * {@code if (hasKey(k)) ... value(k) ... else add(k, ...)} pattern counts
+ * each lookup once. With several threads, though, another thread may evict
+ * the key between the {@code hasKey} and the {@code value}; use
+ * {@code computeIfAbsent}, which looks up and fills in an entry atomically
+ * and also counts a hit or a miss. Every eviction is reported to an optional
+ * listener.
+ * {@code removeAny} removes the least recently used entry of some segment,
+ * and the iterator goes segment by segment, from least to most recently used
+ * within each; with a single segment, both follow the exact LRU order. The
+ * iterator never fails: each segment it visits is seen as it was at some
+ * moment at or after the iterator was created.
+ *
+ * @param <K>
+ *            type of {@code Map} domain (key) entries
+ * @param <V>
+ *            type of {@code Map} range (associated value) entries
+ * @mathdefinitions <pre>
+ * HASH(
+ *   x: K
+ *  ): integer is
+ *  [computed result of Map4.Spreader.MURMUR3.spread(
+ *     [computed result of x.hashCode()])]
+ * </pre>
+ * @convention <pre>
+ * $this.capacity > 0  and
+ * [|$this.segments| is a power of 2 and at most MAX_SEGMENTS]  and
+ * 2^$this.segmentBits = |$this.segments|  and
+ * for all s: integer, n: Node
+ *     where (0 <= s  and  s < |$this.segments|  and
+ *            [n is in a chain of $this.segments[s].table])
+ *   (n.hash = HASH(n.key)  and  s = n.hash mod |$this.segments|  and
+ *    [n is in the chain at $this.segments[s].table[
+ *       (n.hash >>> $this.segmentBits) mod |$this.segments[s].table|]])  and
+ * for all s: integer
+ *     where (0 <= s  and  s < |$this.segments|)
+ *   ([|$this.segments[s].table| is a power of 2]  and
+ *    |$this.segments[s].table| >= $this.segments[s].capacity  and
+ *    [the list from $this.segments[s].eldest linked by after, and from
+ *     $this.segments[s].youngest linked by before, hold exactly the nodes
+ *     of its chains, in opposite orders]  and
+ *    $this.segments[s].count = [number of nodes in its chains]  and
+ *    $this.segments[s].count <= $this.segments[s].capacity)  and
+ * [the sum of the capacities of the segments is $this.capacity]  and
+ * [the keys of all nodes in all chains are all different]  and
+ * 0 <= $this.firstSegment < |$this.segments|  and
+ * [when no call is in progress,
+ *  $this.size.sum() = sum of $this.segments[s].count]
+ * </pre>
+ * @correspondence <pre>
+ * this = {(k, v): (K, V)
+ *          where (there exists n: Node
+ *                   ([n is in a chain of some segment]  and
+ *                    n.key = k  and  n.value = v))}
+ * </pre>
+ *
+ * @author Allen Zheng and Jared Koharik
+ *
+ */
+public class CacheMap4<K, V> extends MapSecondary<K, V> {
+
+    /*
+     * Private members --------------------------------------------------------
+     */
+
+    /**
+     * Capacity of a map made by the no-argument constructor.
+     */
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Largest number of segments, i.e., of threads that can use the map at
+     * once.
+     */
+    private static final int MAX_SEGMENTS = 16;
+
+    /**
+     * Smallest share of the capacity given to a segment; a smaller map gets
+     * fewer segments, so that per-segment eviction stays close to LRU.
+     */
+    private static final int MIN_SEGMENT_CAPACITY = 64;
+
+    /**
+     * Node of a bucket chain and of the recency list; also serves as the
+     * {@code Pair} handed out by {@code remove}, {@code removeAny}, and the
+     * iterator.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     */
+    private static final class Node<K, V> implements Pair<K, V> {
+
+        /**
+         * Spread hash code of {@code key}.
+         */
+        private final int hash;
+
+        /**
+         * The key.
+         */
+        private final K key;
+
+        /**
+         * The value; volatile so that a node handed out earlier sees it
+         * replaced.
+         */
+        private volatile V value;
+
+        /**
+         * Next node in the chain, or {@code null}.
+         */
+        private Node<K, V> next;
+
+        /**
+         * Next older node in the recency list, or {@code null}.
+         */
+        private Node<K, V> before;
+
+        /**
+         * Next younger node in the recency list, or {@code null}.
+         */
+        private Node<K, V> after;
+
+        /**
+         * Whether the last lookup of the key was a {@code hasKey} hit not yet
+         * followed by {@code value}, which then does not count it again.
+         */
+        private boolean checked;
+
+        /**
+         * Constructor from hash, key, and value.
+         *
+         * @param hash
+         *            spread hash code of key
+         * @param key
+         *            the key
+         * @param value
+         *            the value
+         */
+        Node(int hash, K key, V value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public K key() {
+            return this.key;
+        }
+
+        @Override
+        public V value() {
+            return this.value;
+        }
+
+    }
+
+    /**
+     * A segment: a small LRU hash table whose callers are serialized by its
+     * own lock.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     */
+    private static final class Segment<K, V> extends ReentrantLock {
+
+        /**
+         * Serialization version (ReentrantLock is Serializable).
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Number of low bits of the hash code that chose this segment, and
+         * are skipped when choosing a bucket.
+         */
+        private final int segmentBits;
+
+        /**
+         * Largest number of nodes held.
+         */
+        private final int capacity;
+
+        /**
+         * Buckets for hashing.
+         */
+        private final Node<K, V>[] table;
+
+        /**
+         * Least recently used node, or {@code null} if empty.
+         */
+        private Node<K, V> eldest;
+
+        /**
+         * Most recently used node, or {@code null} if empty.
+         */
+        private Node<K, V> youngest;
+
+        /**
+         * Number of nodes in this segment.
+         */
+        private int count;
+
+        /**
+         * Constructor from the number of segment bits and the capacity.
+         *
+         * @param segmentBits
+         *            number of hash code bits that choose the segment
+         * @param capacity
+         *            the largest number of nodes held
+         */
+        @SuppressWarnings("unchecked")
+        Segment(int segmentBits, int capacity) {
+            int length = 1;
+            while (length < capacity) {
+                length *= 2;
+            }
+            this.segmentBits = segmentBits;
+            this.capacity = capacity;
+            /*
+             * As in Map4, generic array creation is not allowed, so this is
+             * an unchecked conversion that cannot fail.
+             */
+            this.table = new Node[length];
+            this.eldest = null;
+            this.youngest = null;
+            this.count = 0;
+        }
+
+        /**
+         * Returns the bucket for spread hash code {@code hash}.
+         *
+         * @param hash
+         *            the spread hash code
+         * @return the bucket index
+         * @ensures indexFor = (hash >>> segmentBits) mod |table|
+         */
+        int indexFor(int hash) {
+            return (hash >>> this.segmentBits) & (this.table.length - 1);
+        }
+
+        /**
+         * Returns the node holding {@code key}, or {@code null}.
+         *
+         * @param key
+         *            the key
+         * @param hash
+         *            HASH(key)
+         * @return the node holding key, or null
+         * @requires [the lock is held]
+         * @ensures <pre>
+         * (find /= null  and  find.key = key)  or
+         * (find = null  and  [key is not in this segment])
+         * </pre>
+         */
+        Node<K, V> find(K key, int hash) {
+            Node<K, V> n = this.table[this.indexFor(hash)];
+            while (n != null && (n.hash != hash || !n.key.equals(key))) {
+                n = n.next;
+            }
+            return n;
+        }
+
+        /**
+         * Appends {@code n} to the young end of the recency list.
+         *
+         * @param n
+         *            the node
+         * @requires [the lock is held and n is not in the recency list]
+         * @ensures [n is the youngest node of the recency list]
+         */
+        void linkYoungest(Node<K, V> n) {
+            n.before = this.youngest;
+            n.after = null;
+            if (this.youngest == null) {
+                this.eldest = n;
+            } else {
+                this.youngest.after = n;
+            }
+            this.youngest = n;
+        }
+
+        /**
+         * Removes {@code n} from the recency list.
+         *
+         * @param n
+         *            the node
+         * @requires [the lock is held and n is in the recency list]
+         * @ensures [n is no longer in the recency list]
+         */
+        void unlinkRecency(Node<K, V> n) {
+            if (n.before == null) {
+                this.eldest = n.after;
+            } else {
+                n.before.after = n.after;
+            }
+            if (n.after == null) {
+                this.youngest = n.before;
+            } else {
+                n.after.before = n.before;
+            }
+            n.before = null;
+            n.after = null;
+        }
+
+        /**
+         * Records a use of {@code n}, making it the most recently used node.
+         *
+         * @param n
+         *            the node
+         * @requires [the lock is held and n is in the recency list]
+         * @ensures [n is the youngest node of the recency list]
+         */
+        void touch(Node<K, V> n) {
+            if (n != this.youngest) {
+                this.unlinkRecency(n);
+                this.linkYoungest(n);
+            }
+        }
+
+        /**
+         * Adds {@code n} to its chain and as the youngest node of the recency
+         * list.
+         *
+         * @param n
+         *            the node
+         * @requires <pre>
+         * [the lock is held and n.key is not in this segment]  and
+         * count < capacity
+         * </pre>
+         * @ensures [this segment holds its old nodes and n]
+         */
+        void insert(Node<K, V> n) {
+            int pos = this.indexFor(n.hash);
+            n.next = this.table[pos];
+            this.table[pos] = n;
+            this.linkYoungest(n);
+            this.count++;
+        }
+
+        /**
+         * Unlinks {@code n} from its chain and from the recency list.
+         *
+         * @param n
+         *            the node
+         * @requires [the lock is held and n is in this segment]
+         * @ensures [n is no longer in this segment]
+         */
+        void unlink(Node<K, V> n) {
+            int pos = this.indexFor(n.hash);
+            if (this.table[pos] == n) {
+                this.table[pos] = n.next;
+            } else {
+                Node<K, V> prev = this.table[pos];
+                while (prev.next != n) {
+                    prev = prev.next;
+                }
+                prev.next = n.next;
+            }
+            n.next = null;
+            this.unlinkRecency(n);
+            this.count--;
+        }
+
+        /**
+         * Returns the nodes of this segment, from least to most recently used.
+         *
+         * @return the nodes in recency order
+         * @ensures [snapshot holds the nodes of this segment, eldest first]
+         */
+        List<Node<K, V>> snapshot() {
+            List<Node<K, V>> result = new ArrayList<>();
+            this.lock();
+            try {
+                for (Node<K, V> n = this.eldest; n != null; n = n.after) {
+                    result.add(n);
+                }
+            } finally {
+                this.unlock();
+            }
+            return result;
+        }
+
+    }
+
+    /**
+     * The segments.
+     */
+    private Segment<K, V>[] segments;
+
+    /**
+     * Number of low bits of the hash code that choose the segment.
+     */
+    private int segmentBits;
+
+    /**
+     * Segment at which {@code removeAny} starts looking for a node. It is
+     * only a hint: a concurrent {@code add} may fill an earlier segment, so
+     * {@code removeAny} wraps around to the segments before it.
+     */
+    private volatile int firstSegment;
+
+    /**
+     * Total size of abstract {@code this}, striped to avoid contention.
+     */
+    private LongAdder size;
+
+    /**
+     * Largest number of entries held.
+     */
+    private int capacity;
+
+    /**
+     * Receiver of evicted entries, or {@code null}.
+     */
+    private final BiConsumer<? super K, ? super V> evictionListener;
+
+    /**
+     * Number of lookups that found their key.
+     */
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * Number of lookups that did not find their key.
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Number of entries evicted.
+     */
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Returns the spread hash code of {@code key}.
+     *
+     * @param key
+     *            the key
+     * @return HASH(key)
+     * @ensures hash = HASH(key)
+     */
+    private static int hash(Object key) {
+        return Map4.Spreader.MURMUR3.spread(key.hashCode());
+    }
+
+    /**
+     * Creator of initial representation.
+     *
+     * @param maxSize
+     *            the capacity
+     * @requires maxSize > 0
+     * @ensures <pre>
+     * $this.capacity = maxSize  and
+     * |$this.segments| = [largest power of 2 that is at most MAX_SEGMENTS
+     *                     and at most max(1, maxSize / MIN_SEGMENT_CAPACITY)]
+     * and
+     * [the capacities of the segments differ by at most 1]  and
+     * [every segment is empty]  and  $this.size.sum() = 0
+     * </pre>
+     */
+    @SuppressWarnings("unchecked")
+    private void createNewRep(int maxSize) {
+        int count = 1;
+        while (count < MAX_SEGMENTS
+                && 2 * count * MIN_SEGMENT_CAPACITY <= maxSize) {
+            count *= 2;
+        }
+        this.segmentBits = Integer.numberOfTrailingZeros(count);
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            int share = maxSize / count;
+            if (i < maxSize % count) {
+                share++;
+            }
+            this.segments[i] = new Segment<>(this.segmentBits, share);
+        }
+        this.firstSegment = 0;
+        this.size = new LongAdder();
+        this.capacity = maxSize;
+    }
+
+    /**
+     * Accounts for a node just added, in place of {@code victim} if that is
+     * not {@code null}, and reports {@code victim} to the eviction listener.
+     * It is called after the segment is unlocked, so that the listener does
+     * not hold up other callers using the segment.
+     *
+     * @param victim
+     *            the node evicted to make room, or null
+     * @updates $this.size, $this.evictions
+     * @ensures <pre>
+     * (victim = null  and  $this.size.sum() = #$this.size.sum() + 1)  or
+     * (victim /= null  and  $this.evictions.sum() =
+     *   #$this.evictions.sum() + 1  and  [victim was reported])
+     * </pre>
+     */
+    private void evicted(Node<K, V> victim) {
+        if (victim == null) {
+            this.size.increment();
+        } else {
+            this.evictions.increment();
+            if (this.evictionListener != null) {
+                this.evictionListener.accept(victim.key, victim.value);
+            }
+        }
+    }
+
+    /**
+     * Returns the segment responsible for spread hash code {@code hash}.
+     *
+     * @param hash
+     *            the spread hash code
+     * @return the segment for hash
+     * @ensures segmentFor = $this.segments[hash mod |$this.segments|]
+     */
+    private Segment<K, V> segmentFor(int hash) {
+        return this.segments[hash & (this.segments.length - 1)];
+    }
+
+    /*
+     * Constructors -----------------------------------------------------------
+     */
+
+    /**
+     * No-argument constructor, with capacity {@code DEFAULT_CAPACITY} and no
+     * eviction listener.
+     */
+    public CacheMap4() {
+        this(DEFAULT_CAPACITY, null);
+    }
+
+    /**
+     * Constructor resulting in a map that holds at most {@code capacity}
+     * entries, with no eviction listener.
+     *
+     * @param capacity
+     *            the largest number of entries held
+     * @requires capacity > 0
+     * @ensures this = {}
+     */
+    public CacheMap4(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * Constructor resulting in a map that holds at most {@code capacity}
+     * entries and hands each evicted entry to {@code evictionListener}.
+     *
+     * @param capacity
+     *            the largest number of entries held
+     * @param evictionListener
+     *            receiver of the key and value of each evicted entry, or
+     *            null; it may be called by several threads at once
+     * @requires capacity > 0
+     * @ensures this = {}
+     */
+    public CacheMap4(int capacity,
+            BiConsumer<? super K, ? super V> evictionListener) {
+        assert capacity > 0 : "Violation of: capacity > 0";
+
+        this.evictionListener = evictionListener;
+        this.createNewRep(capacity);
+    }
+
+    /*
+     * Standard methods -------------------------------------------------------
+     */
+
+    /**
+     * Returns a new, empty map with the same capacity and eviction listener.
+     */
+    @Override
+    public final Map<K, V> newInstance() {
+        return new CacheMap4<>(this.capacity, this.evictionListener);
+    }
+
+    @Override
+    public final void clear() {
+        this.createNewRep(this.capacity);
+    }
+
+    /**
+     * Takes the entries, recency order, and capacity of {@code source}; the
+     * eviction listener and statistics of each map stay with it.
+     */
+    @Override
+    public final void transferFrom(Map<K, V> source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+        assert source instanceof CacheMap4<?, ?> : ""
+                + "Violation of: source is of dynamic type CacheMap4<?,?>";
+        /*
+         * This cast cannot fail since the assert above would have stopped
+         * execution in that case: source must be of dynamic type
+         * CacheMap4<?,?>, and the ?,? must be K,V or the call would not have
+         * compiled.
+         */
+        CacheMap4<K, V> localSource = (CacheMap4<K, V>) source;
+        this.segments = localSource.segments;
+        this.segmentBits = localSource.segmentBits;
+        this.firstSegment = localSource.firstSegment;
+        this.size = localSource.size;
+        this.capacity = localSource.capacity;
+        localSource.createNewRep(localSource.capacity);
+    }
+
+    /*
+     * Kernel methods ---------------------------------------------------------
+     */
+
+    /**
+     * Adds the pair, first evicting the least recently used entry of the
+     * key's segment if that segment is full.
+     */
+    @Override
+    public final void add(K key, V value) {
+        assert key != null : "Violation of: key is not null";
+        assert value != null : "Violation of: value is not null";
+
+        int hash = hash(key);
+        Segment<K, V> segment = this.segmentFor(hash);
+        Node<K, V> victim = null;
+        segment.lock();
+        try {
+            assert segment.find(key, hash) == null : ""
+                    + "Violation of: key is not in DOMAIN(this)";
+            if (segment.count == segment.capacity) {
+                victim = segment.eldest;
+                segment.unlink(victim);
+            }
+            segment.insert(new Node<>(hash, key, value));
+        } finally {
+            segment.unlock();
+        }
+        this.evicted(victim);
+    }
+
+    @Override
+    public final Pair<K, V> remove(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        int hash = hash(key);
+        Segment<K, V> segment = this.segmentFor(hash);
+        Node<K, V> n;
+        segment.lock();
+        try {
+            n = segment.find(key, hash);
+            if (n != null) {
+                segment.unlink(n);
+            }
+        } finally {
+            segment.unlock();
+        }
+        assert n != null : "Violation of: key is in DOMAIN(this)";
+        this.size.decrement();
+
+        return n;
+    }
+
+    @Override
+    public final Pair<K, V> removeAny() {
+        assert this.size() > 0 : "Violation of: this /= empty_set";
+
+        /*
+         * Start at the segment where the last node was found, so that
+         * draining the map does not lock every empty segment on every call,
+         * and wrap around in case an earlier one has been filled since.
+         */
+        int start = this.firstSegment;
+        int mask = this.segments.length - 1;
+        Node<K, V> n = null;
+        for (int k = 0; n == null && k < this.segments.length; k++) {
+            int i = (start + k) & mask;
+            Segment<K, V> segment = this.segments[i];
+            segment.lock();
+            try {
+                n = segment.eldest;
+                if (n != null) {
+                    segment.unlink(n);
+                }
+            } finally {
+                segment.unlock();
+            }
+            if (n != null) {
+                this.firstSegment = i;
+            }
+        }
+        /*
+         * Another thread may have emptied the map since the size was checked.
+         */
+        if (n == null) {
+            throw new NoSuchElementException("map was emptied concurrently");
+        }
+        this.size.decrement();
+
+        return n;
+    }
+
+    /**
+     * Reports the value associated with {@code key}, making it the most
+     * recently used key of its segment and counting a hit, unless the last
+     * lookup of {@code key} was a {@code hasKey} hit, already counted.
+     */
+    @Override
+    public final V value(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        int hash = hash(key);
+        Segment<K, V> segment = this.segmentFor(hash);
+        Node<K, V> n;
+        boolean counted = false;
+        V result = null;
+        segment.lock();
+        try {
+            n = segment.find(key, hash);
+            if (n != null) {
+                counted = n.checked;
+                n.checked = false;
+                segment.touch(n);
+                result = n.value;
+            }
+        } finally {
+            segment.unlock();
+        }
+        assert n != null : "Violation of: key is in DOMAIN(this)";
+        if (!counted) {
+            this.hits.increment();
+        }
+
+        return result;
+    }
+
+    /**
+     * Reports whether there is a pair in {@code this} whose first component
+     * is {@code key}, counting a hit or a miss, and, on a hit, making
+     * {@code key} the most recently used key of its segment.
+     */
+    @Override
+    public final boolean hasKey(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        int hash = hash(key);
+        Segment<K, V> segment = this.segmentFor(hash);
+        boolean result;
+        segment.lock();
+        try {
+            Node<K, V> n = segment.find(key, hash);
+            result = n != null;
+            if (result) {
+                n.checked = true;
+                segment.touch(n);
+            }
+        } finally {
+            segment.unlock();
+        }
+        if (result) {
+            this.hits.increment();
+        } else {
+            this.misses.increment();
+        }
+
+        return result;
+    }
+
+    @Override
+    public final int size() {
+        return this.size.intValue();
+    }
+
+    @Override
+    public final Iterator<Pair<K, V>> iterator() {
+        return new CacheMap4Iterator();
+    }
+
+    /*
+     * Other methods ----------------------------------------------------------
+     */
+
+    @Override
+    public final V replaceValue(K key, V value) {
+        assert key != null : "Violation of: key is not null";
+        assert value != null : "Violation of: value is not null";
+
+        int hash = hash(key);
+        Segment<K, V> segment = this.segmentFor(hash);
+        Node<K, V> n;
+        V oldValue = null;
+        segment.lock();
+        try {
+            n = segment.find(key, hash);
+            if (n != null) {
+                oldValue = n.value;
+                n.value = value;
+                segment.touch(n);
+            }
+        } finally {
+            segment.unlock();
+        }
+        assert n != null : "Violation of: key is in DOMAIN(this)";
+
+        return oldValue;
+    }
+
+    /**
+     * Atomically reports the value associated with {@code key}, counting a
+     * hit, or, if {@code key} is not in {@code this}, adds it with the value
+     * computed by {@code loader} (evicting as {@code add} does) and counts a
+     * miss. Either way {@code key} becomes the most recently used key of its
+     * segment. For example, {@code cache.computeIfAbsent(n, this::slowF)}
+     * memoizes {@code slowF}.
+     *
+     * @param key
+     *            the key
+     * @param loader
+     *            the function computing the value of a missing key
+     * @return the value now associated with key
+     * @updates this
+     * @requires <pre>
+     * key is not null  and  loader is not null  and
+     * [loader does not return null and does not access this]
+     * </pre>
+     * @ensures <pre>
+     * (key is in DOMAIN(#this)  and  (key, computeIfAbsent) is in #this  and
+     *  this = #this)  or
+     * (key is not in DOMAIN(#this)  and
+     *  computeIfAbsent = [loader applied to key]  and
+     *  [this = #this union {(key, computeIfAbsent)}, less the entry evicted
+     *   to make room, if any])
+     * </pre>
+     */
+    public final V computeIfAbsent(K key,
+            Function<? super K, ? extends V> loader) {
+        assert key != null : "Violation of: key is not null";
+        assert loader != null : "Violation of: loader is not null";
+
+        int hash = hash(key);
+        Segment<K, V> segment = this.segmentFor(hash);
+        Node<K, V> victim = null;
+        boolean hit;
+        V result;
+        segment.lock();
+        try {
+            Node<K, V> n = segment.find(key, hash);
+            hit = n != null;
+            if (hit) {
+                n.checked = false;
+                segment.touch(n);
+                result = n.value;
+            } else {
+                result = loader.apply(key);
+                assert result != null : "Violation of: loader does not "
+                        + "return null";
+                if (segment.count == segment.capacity) {
+                    victim = segment.eldest;
+                    segment.unlink(victim);
+                }
+                segment.insert(new Node<>(hash, key, result));
+            }
+        } finally {
+            segment.unlock();
+        }
+        if (hit) {
+            this.hits.increment();
+        } else {
+            this.misses.increment();
+            this.evicted(victim);
+        }
+
+        return result;
+    }
+
+    /**
+     * Reports the largest number of entries {@code this} holds.
+     *
+     * @return the capacity
+     */
+    public final int capacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Reports the number of lookups that found their key: calls to
+     * {@code hasKey} that returned true, calls to {@code computeIfAbsent}
+     * that found their key, and calls to {@code value} that did not follow a
+     * {@code hasKey} hit for the same key.
+     *
+     * @return the number of hits
+     */
+    public final long hits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * Reports the number of lookups that did not find their key: calls to
+     * {@code hasKey} that returned false, and calls to
+     * {@code computeIfAbsent} that had to add their key.
+     *
+     * @return the number of misses
+     */
+    public final long misses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * Reports the fraction of lookups that found their key.
+     *
+     * @return hits / (hits + misses), or 0 if there were none
+     */
+    public final double hitRate() {
+        long h = this.hits.sum();
+        long lookups = h + this.misses.sum();
+        double result = 0;
+        if (lookups > 0) {
+            result = (double) h / lookups;
+        }
+        return result;
+    }
+
+    /**
+     * Reports the number of entries evicted to make room for others.
+     *
+     * @return the number of evictions
+     */
+    public final long evictions() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * Implementation of {@code Iterator} interface for {@code CacheMap4}.
+     * Walks the segments in turn, each from least to most recently used,
+     * without changing them; each segment's recency list is copied when the
+     * iterator reaches it, so that other threads may use the segment
+     * meanwhile.
+     */
+    private final class CacheMap4Iterator implements Iterator<Pair<K, V>> {
+
+        /**
+         * The segments, as they were when the iterator was created.
+         */
+        private final Segment<K, V>[] segments;
+
+        /**
+         * Next segment to be copied.
+         */
+        private int nextSegment;
+
+        /**
+         * Nodes of the segment being walked, eldest first.
+         */
+        private List<Node<K, V>> nodes;
+
+        /**
+         * Position in {@code nodes} of the node to be returned next.
+         */
+        private int position;
+
+        /**
+         * No-argument constructor.
+         */
+        CacheMap4Iterator() {
+            this.segments = CacheMap4.this.segments;
+            this.nextSegment = 0;
+            this.nodes = new ArrayList<>();
+            this.position = 0;
+            this.advance();
+        }
+
+        /**
+         * Copies later segments until one is not empty or there are none
+         * left, unless {@code nodes} still has a node to return.
+         *
+         * @updates this
+         * @ensures <pre>
+         * [position < |nodes|, or every segment has been copied]
+         * </pre>
+         */
+        private void advance() {
+            while (this.position == this.nodes.size()
+                    && this.nextSegment < this.segments.length) {
+                this.nodes = this.segments[this.nextSegment].snapshot();
+                this.nextSegment++;
+                this.position = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.position < this.nodes.size();
+        }
+
+        @Override
+        public Pair<K, V> next() {
+            assert this.hasNext() : "Violation of: ~this.unseen /= <>";
+            if (!this.hasNext()) {
+                /*
+                 * Exception is supposed to be thrown in this case, but with
+                 * assertion-checking enabled it cannot happen because of assert
+                 * above.
+                 */
+                throw new NoSuchElementException();
+            }
+            Node<K, V> result = this.nodes.get(this.position);
+            this.position++;
+            this.advance();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(
+                    "remove operation not supported");
+        }
+
+    }
+
+}
@@ -0,0 +1,110 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Conversion of values of type {@code T} to and from bytes, used by the maps
+ * that keep their entries outside the Java heap or write them to files.
+ *
+ * @param <T>
+ *            type of the values converted
+ * @mathmodel type Codec is modeled by (
+ *              ENCODING: function from T to string of byte)
+ * @constraint <pre>
+ * [ENCODING is one-to-one, and ENCODING(x) = ENCODING(y) iff x.equals(y)]
+ * </pre>
+ */
+public interface Codec<T> {
+
+    /**
+     * Returns the encoding of {@code value}.
+     *
+     * @param value
+     *            the value to be encoded
+     * @return the bytes of the encoding
+     * @requires value is not null
+     * @ensures encode = this.ENCODING(value)
+     */
+    byte[] encode(T value);
+
+    /**
+     * Returns the value whose encoding is the remaining bytes of
+     * {@code bytes}, consuming them.
+     *
+     * @param bytes
+     *            the encoding
+     * @return the decoded value
+     * @updates bytes.position
+     * @requires [the remaining bytes of bytes are this.ENCODING(x) for some x]
+     * @ensures <pre>
+     * this.ENCODING(decode) = [the remaining bytes of #bytes]  and
+     * bytes.position = bytes.limit
+     * </pre>
+     */
+    T decode(ByteBuffer bytes);
+
+    /**
+     * {@code Codec} for {@code String}s, as UTF-8.
+     */
+    Codec<String> STRING = new Codec<String>() {
+
+        @Override
+        public byte[] encode(String value) {
+            assert value != null : "Violation of: value is not null";
+
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(ByteBuffer bytes) {
+            byte[] array = new byte[bytes.remaining()];
+            bytes.get(array);
+            return new String(array, StandardCharsets.UTF_8);
+        }
+
+    };
+
+    /**
+     * {@code Codec} for {@code Integer}s, as 4 big-endian bytes.
+     */
+    Codec<Integer> INTEGER = new Codec<Integer>() {
+
+        @Override
+        public byte[] encode(Integer value) {
+            assert value != null : "Violation of: value is not null";
+
+            return ByteBuffer.allocate(Integer.BYTES).putInt(value).array();
+        }
+
+        @Override
+        public Integer decode(ByteBuffer bytes) {
+            assert bytes.remaining() == Integer.BYTES : ""
+                    + "Violation of: [bytes holds an encoded Integer]";
+
+            return bytes.getInt();
+        }
+
+    };
+
+    /**
+     * {@code Codec} for {@code Long}s, as 8 big-endian bytes.
+     */
+    Codec<Long> LONG = new Codec<Long>() {
+
+        @Override
+        public byte[] encode(Long value) {
+            assert value != null : "Violation of: value is not null";
+
+            return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+        }
+
+        @Override
+        public Long decode(ByteBuffer bytes) {
+            assert bytes.remaining() == Long.BYTES : ""
+                    + "Violation of: [bytes holds an encoded Long]";
+
+            return bytes.getLong();
+        }
+
+    };
+
+}
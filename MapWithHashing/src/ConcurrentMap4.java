@@ -0,0 +1,820 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+
+import components.map.Map;
+import components.map.MapSecondary;
+
+/**
+ * {@code Map} represented as a fixed number of independently locked segments,
+ * each a hash table using singly-linked chains of nodes for the buckets, with
+ * implementations of primary methods. Threads updating keys in different
+ * segments never wait for each other, and the size is kept in a
+ * {@code LongAdder} so that it is not a point of contention either.
+ *
+ * <p>
+ * Reads ({@code value}, {@code hasKey}, {@code hasValue}, {@code key}, and
+ * iteration) take no locks at all. Only the {@code value} of a node ever
+ * changes after it is published; its {@code hash}, {@code key}, and
+ * {@code next} are final, so a writer that removes a node copies the nodes in
+ * front of it instead of relinking them, and a resize builds a whole new table
+ * before publishing it. Bucket heads are published and read through an
+ * {@code AtomicReferenceArray}, so a reader always sees fully constructed
+ * nodes and a chain that was valid at some moment.
+ *
+ * <p>
+ * Every kernel method is atomic. Because another thread may change the map
+ * between two calls, sequences such as {@code hasKey} then {@code value} then
+ * {@code replaceValue} are not; use {@code merge} or {@code compute} to update
+ * an entry atomically. {@code newInstance}, {@code clear}, and
+ * {@code transferFrom} must not run concurrently with other calls on the same
+ * map. The iterator is weakly consistent: it never fails, and each bucket it
+ * visits is seen as it was at some moment at or after the iterator was
+ * created, but not necessarily the same moment for all buckets.
+ *
+ * @param <K>
+ *            type of {@code Map} domain (key) entries
+ * @param <V>
+ *            type of {@code Map} range (associated value) entries
+ * @mathdefinitions <pre>
+ * HASH(
+ *   x: K
+ *  ): integer is
+ *  [computed result of Map4.Spreader.MURMUR3.spread(
+ *     [computed result of x.hashCode()])]
+ * </pre>
+ * @convention <pre>
+ * |$this.segments| = SEGMENTS  and
+ * for all s: integer, n: Node
+ *     where (0 <= s  and  s < SEGMENTS  and
+ *            [n is in a chain of $this.segments[s].table])
+ *   (n.hash = HASH(n.key)  and
+ *    s = n.hash mod SEGMENTS  and
+ *    [n is in the chain at $this.segments[s].table[
+ *       (n.hash >>> SEGMENT_BITS) mod |$this.segments[s].table|]])  and
+ * for all s: integer
+ *     where (0 <= s  and  s < SEGMENTS)
+ *   ([|$this.segments[s].table| is a power of 2]  and
+ *    $this.segments[s].count = [number of nodes in its chains]  and
+ *    0 <= $this.segments[s].firstBucket <= |$this.segments[s].table|  and
+ *    [every bucket of $this.segments[s].table before
+ *     $this.segments[s].firstBucket is empty])  and
+ * 0 <= $this.firstSegment < SEGMENTS  and
+ * [the keys of all nodes in all chains are all different]  and
+ * [when no call is in progress,
+ *  $this.size.sum() = sum of $this.segments[s].count]
+ * </pre>
+ * @correspondence <pre>
+ * this = {(k, v): (K, V)
+ *          where (there exists n: Node
+ *                   ([n is in a chain of some segment]  and
+ *                    n.key = k  and  n.value = v))}
+ * </pre>
+ *
+ * @author Allen Zheng and Jared Koharik
+ *
+ */
+public class ConcurrentMap4<K, V> extends MapSecondary<K, V> {
+
+    /*
+     * Private members --------------------------------------------------------
+     */
+
+    /**
+     * Number of bits of the hash code used to choose a segment.
+     */
+    private static final int SEGMENT_BITS = 6;
+
+    /**
+     * Number of segments, i.e., the number of writers that can run at once.
+     */
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+
+    /**
+     * Mask selecting the segment bits (the lowest ones) of a hash code.
+     */
+    private static final int SEGMENT_MASK = SEGMENTS - 1;
+
+    /**
+     * Initial number of buckets in each segment.
+     */
+    private static final int INITIAL_SEGMENT_CAPACITY = 4;
+
+    /**
+     * Node of a bucket chain; also serves as the {@code Pair} handed out by
+     * {@code remove}, {@code removeAny}, and the iterator. Everything but the
+     * value is final, so a node can be read safely without a lock.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     */
+    private static final class Node<K, V> implements Pair<K, V> {
+
+        /**
+         * Spread hash code of {@code key}.
+         */
+        private final int hash;
+
+        /**
+         * The key.
+         */
+        private final K key;
+
+        /**
+         * The value; volatile so that replacing it is seen by readers.
+         */
+        private volatile V value;
+
+        /**
+         * Next node in the chain, or {@code null}.
+         */
+        private final Node<K, V> next;
+
+        /**
+         * Constructor from hash, key, value, and next node.
+         *
+         * @param hash
+         *            spread hash code of key
+         * @param key
+         *            the key
+         * @param value
+         *            the value
+         * @param next
+         *            the next node in the chain
+         */
+        Node(int hash, K key, V value, Node<K, V> next) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+            this.next = next;
+        }
+
+        @Override
+        public K key() {
+            return this.key;
+        }
+
+        @Override
+        public V value() {
+            return this.value;
+        }
+
+    }
+
+    /**
+     * A segment: a small resizable hash table whose writers are serialized by
+     * its own lock. Readers use {@code table} without the lock.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     */
+    private static final class Segment<K, V> extends ReentrantLock {
+
+        /**
+         * Serialization version (ReentrantLock is Serializable).
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Buckets for hashing; replaced as a whole when the segment grows.
+         */
+        private volatile AtomicReferenceArray<Node<K, V>> table;
+
+        /**
+         * Number of nodes in this segment; used only under the lock.
+         */
+        private int count;
+
+        /**
+         * Bucket at which {@code removeFirst} starts looking for a node; no
+         * bucket before it is occupied. Used only under the lock.
+         */
+        private int firstBucket;
+
+        /**
+         * No-argument constructor.
+         */
+        Segment() {
+            this.table = new AtomicReferenceArray<>(INITIAL_SEGMENT_CAPACITY);
+            this.count = 0;
+            this.firstBucket = INITIAL_SEGMENT_CAPACITY;
+        }
+
+        /**
+         * Returns the node holding {@code key}, or {@code null}.
+         *
+         * @param key
+         *            the key
+         * @param hash
+         *            HASH(key)
+         * @return the node holding key, or null
+         * @ensures <pre>
+         * (find /= null  and  find.key = key)  or
+         * (find = null  and  [key is not in this segment])
+         * </pre>
+         */
+        Node<K, V> find(K key, int hash) {
+            AtomicReferenceArray<Node<K, V>> t = this.table;
+            Node<K, V> n = t.get(indexFor(hash, t.length()));
+            while (n != null && (n.hash != hash || !n.key.equals(key))) {
+                n = n.next;
+            }
+            return n;
+        }
+
+        /**
+         * Adds a new node for ({@code key}, {@code value}), doubling the
+         * table first if it is full.
+         *
+         * @param key
+         *            the key
+         * @param hash
+         *            HASH(key)
+         * @param value
+         *            the value
+         * @requires [the lock is held and key is not in this segment]
+         * @ensures [this segment holds its old nodes and (key, value)]
+         */
+        void insert(K key, int hash, V value) {
+            AtomicReferenceArray<Node<K, V>> t = this.table;
+            if (this.count >= t.length()) {
+                /*
+                 * Nodes cannot be relinked, so the new table gets copies; the
+                 * old one stays intact for readers still using it.
+                 */
+                AtomicReferenceArray<Node<K, V>> newTable =
+                        new AtomicReferenceArray<>(2 * t.length());
+                this.firstBucket = newTable.length();
+                for (int i = 0; i < t.length(); i++) {
+                    for (Node<K, V> n = t.get(i); n != null; n = n.next) {
+                        int pos = indexFor(n.hash, newTable.length());
+                        newTable.set(pos, new Node<>(n.hash, n.key, n.value,
+                                newTable.get(pos)));
+                        this.firstBucket = Math.min(this.firstBucket, pos);
+                    }
+                }
+                this.table = newTable;
+                t = newTable;
+            }
+            int pos = indexFor(hash, t.length());
+            t.set(pos, new Node<>(hash, key, value, t.get(pos)));
+            this.firstBucket = Math.min(this.firstBucket, pos);
+            this.count++;
+        }
+
+        /**
+         * Unlinks and returns the node holding {@code key}, or returns
+         * {@code null} if there is none. The nodes in front of it in its chain
+         * are replaced by copies linked to the node after it.
+         *
+         * @param key
+         *            the key
+         * @param hash
+         *            HASH(key)
+         * @return the unlinked node, or null
+         * @requires [the lock is held]
+         * @ensures [key is not in this segment]
+         */
+        Node<K, V> unlink(K key, int hash) {
+            AtomicReferenceArray<Node<K, V>> t = this.table;
+            int pos = indexFor(hash, t.length());
+            Node<K, V> head = t.get(pos);
+            Node<K, V> n = head;
+            while (n != null && (n.hash != hash || !n.key.equals(key))) {
+                n = n.next;
+            }
+            if (n != null) {
+                Node<K, V> newHead = n.next;
+                for (Node<K, V> p = head; p != n; p = p.next) {
+                    newHead = new Node<>(p.hash, p.key, p.value, newHead);
+                }
+                t.set(pos, newHead);
+                this.count--;
+            }
+            return n;
+        }
+
+        /**
+         * Unlinks and returns the head of the first non-empty bucket, or
+         * returns {@code null} if this segment is empty.
+         *
+         * @return the unlinked node, or null
+         * @requires [the lock is held]
+         * @ensures <pre>
+         * (removeFirst /= null  and  [removeFirst is no longer in this
+         *  segment])  or
+         * (removeFirst = null  and  [this segment is empty])
+         * </pre>
+         */
+        Node<K, V> removeFirst() {
+            AtomicReferenceArray<Node<K, V>> t = this.table;
+            Node<K, V> n = null;
+            if (this.count > 0) {
+                /*
+                 * Every bucket before firstBucket is empty, so the scan
+                 * resumes there instead of at bucket 0.
+                 */
+                while (t.get(this.firstBucket) == null) {
+                    this.firstBucket++;
+                }
+                n = t.get(this.firstBucket);
+                t.set(this.firstBucket, n.next);
+                this.count--;
+            }
+            return n;
+        }
+
+    }
+
+    /**
+     * The segments.
+     */
+    private Segment<K, V>[] segments;
+
+    /**
+     * Segment at which {@code removeAny} starts looking for a node. It is
+     * only a hint: a concurrent {@code add} may fill an earlier segment, so
+     * {@code removeAny} wraps around to the segments before it.
+     */
+    private volatile int firstSegment;
+
+    /**
+     * Total size of abstract {@code this}, striped to avoid contention.
+     */
+    private LongAdder size;
+
+    /**
+     * Returns the bucket of a segment table of length {@code length} for
+     * spread hash code {@code hash}. The bits that chose the segment are
+     * skipped, since they are the same for every key in the segment.
+     *
+     * @param hash
+     *            the spread hash code
+     * @param length
+     *            the length of the table
+     * @return the bucket index
+     * @requires [length is a power of 2]
+     * @ensures indexFor = (hash >>> SEGMENT_BITS) mod length
+     */
+    private static int indexFor(int hash, int length) {
+        return (hash >>> SEGMENT_BITS) & (length - 1);
+    }
+
+    /**
+     * Returns the spread hash code of {@code key}.
+     *
+     * @param key
+     *            the key
+     * @return HASH(key)
+     * @ensures hash = HASH(key)
+     */
+    private static int hash(Object key) {
+        return Map4.Spreader.MURMUR3.spread(key.hashCode());
+    }
+
+    /**
+     * Creator of initial representation.
+     *
+     * @ensures <pre>
+     * |$this.segments| = SEGMENTS  and
+     * [every segment is empty]  and  $this.size.sum() = 0  and
+     * $this.firstSegment = 0
+     * </pre>
+     */
+    @SuppressWarnings("unchecked")
+    private void createNewRep() {
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment<>();
+        }
+        this.size = new LongAdder();
+        this.firstSegment = 0;
+    }
+
+    /**
+     * Returns the segment responsible for spread hash code {@code hash}.
+     *
+     * @param hash
+     *            the spread hash code
+     * @return the segment for hash
+     * @ensures segmentFor = $this.segments[hash mod SEGMENTS]
+     */
+    private Segment<K, V> segmentFor(int hash) {
+        return this.segments[hash & SEGMENT_MASK];
+    }
+
+    /*
+     * Constructors -----------------------------------------------------------
+     */
+
+    /**
+     * No-argument constructor.
+     */
+    public ConcurrentMap4() {
+        this.createNewRep();
+    }
+
+    /*
+     * Standard methods -------------------------------------------------------
+     */
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public final Map<K, V> newInstance() {
+        try {
+            return this.getClass().getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(
+                    "Cannot construct object of type " + this.getClass());
+        }
+    }
+
+    @Override
+    public final void clear() {
+        this.createNewRep();
+    }
+
+    @Override
+    public final void transferFrom(Map<K, V> source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+        assert source instanceof ConcurrentMap4<?, ?> : ""
+                + "Violation of: source is of dynamic type ConcurrentMap4<?,?>";
+        /*
+         * This cast cannot fail since the assert above would have stopped
+         * execution in that case: source must be of dynamic type
+         * ConcurrentMap4<?,?>, and the ?,? must be K,V or the call would not
+         * have compiled.
+         */
+        ConcurrentMap4<K, V> localSource = (ConcurrentMap4<K, V>) source;
+        this.segments = localSource.segments;
+        this.size = localSource.size;
+        this.firstSegment = localSource.firstSegment;
+        localSource.createNewRep();
+    }
+
+    /*
+     * Kernel methods ---------------------------------------------------------
+     */
+
+    @Override
+    public final void add(K key, V value) {
+        assert key != null : "Violation of: key is not null";
+        assert value != null : "Violation of: value is not null";
+
+        int hash = hash(key);
+        Segment<K, V> segment = this.segmentFor(hash);
+        segment.lock();
+        try {
+            assert segment.find(key, hash) == null : ""
+                    + "Violation of: key is not in DOMAIN(this)";
+            segment.insert(key, hash, value);
+        } finally {
+            segment.unlock();
+        }
+        this.size.increment();
+    }
+
+    @Override
+    public final Pair<K, V> remove(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        int hash = hash(key);
+        Segment<K, V> segment = this.segmentFor(hash);
+        Node<K, V> n;
+        segment.lock();
+        try {
+            n = segment.unlink(key, hash);
+        } finally {
+            segment.unlock();
+        }
+        assert n != null : "Violation of: key is in DOMAIN(this)";
+        this.size.decrement();
+
+        return n;
+    }
+
+    @Override
+    public final Pair<K, V> removeAny() {
+        assert this.size() > 0 : "Violation of: this /= empty_set";
+
+        /*
+         * Start at the segment where the last node was found, so that
+         * draining the map does not lock every empty segment on every call,
+         * and wrap around in case an earlier one has been filled since.
+         */
+        int start = this.firstSegment;
+        Node<K, V> n = null;
+        for (int k = 0; n == null && k < SEGMENTS; k++) {
+            int i = (start + k) & SEGMENT_MASK;
+            Segment<K, V> segment = this.segments[i];
+            segment.lock();
+            try {
+                n = segment.removeFirst();
+            } finally {
+                segment.unlock();
+            }
+            if (n != null) {
+                this.firstSegment = i;
+            }
+        }
+        /*
+         * Another thread may have emptied the map since the size was checked.
+         */
+        if (n == null) {
+            throw new NoSuchElementException("map was emptied concurrently");
+        }
+        this.size.decrement();
+
+        return n;
+    }
+
+    @Override
+    public final V value(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        int hash = hash(key);
+        Node<K, V> n = this.segmentFor(hash).find(key, hash);
+        assert n != null : "Violation of: key is in DOMAIN(this)";
+
+        return n.value;
+    }
+
+    @Override
+    public final boolean hasKey(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        int hash = hash(key);
+
+        return this.segmentFor(hash).find(key, hash) != null;
+    }
+
+    @Override
+    public final int size() {
+        return this.size.intValue();
+    }
+
+    @Override
+    public final Iterator<Pair<K, V>> iterator() {
+        return new ConcurrentMap4Iterator();
+    }
+
+    /*
+     * Secondary methods ------------------------------------------------------
+     */
+
+    @Override
+    public final V replaceValue(K key, V value) {
+        assert key != null : "Violation of: key is not null";
+        assert value != null : "Violation of: value is not null";
+
+        int hash = hash(key);
+        Segment<K, V> segment = this.segmentFor(hash);
+        Node<K, V> n;
+        V oldValue = null;
+        segment.lock();
+        try {
+            n = segment.find(key, hash);
+            if (n != null) {
+                oldValue = n.value;
+                n.value = value;
+            }
+        } finally {
+            segment.unlock();
+        }
+        assert n != null : "Violation of: key is in DOMAIN(this)";
+
+        return oldValue;
+    }
+
+    /*
+     * Other methods ----------------------------------------------------------
+     */
+
+    /**
+     * Atomically associates {@code value} with {@code key} if {@code key} is
+     * not in {@code this}, or replaces its value {@code v} with
+     * {@code combiner.apply(v, value)} if it is, and returns the new value.
+     * For example, {@code counts.merge(word, 1, Integer::sum)} counts a word.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value to add or combine
+     * @param combiner
+     *            the function combining the old value with {@code value}
+     * @return the value now associated with key
+     * @updates this
+     * @requires <pre>
+     * key is not null  and  value is not null  and  combiner is not null  and
+     * [combiner does not return null and does not access this]
+     * </pre>
+     * @ensures <pre>
+     * (key is not in DOMAIN(#this)  and  this = #this union {(key, value)}
+     *  and  merge = value)  or
+     * (there exists v: V ((key, v) is in #this  and
+     *   merge = [combiner applied to v and value]  and
+     *   this = (#this \ {(key, v)}) union {(key, merge)}))
+     * </pre>
+     */
+    public final V merge(K key, V value, BinaryOperator<V> combiner) {
+        assert key != null : "Violation of: key is not null";
+        assert value != null : "Violation of: value is not null";
+        assert combiner != null : "Violation of: combiner is not null";
+
+        int hash = hash(key);
+        Segment<K, V> segment = this.segmentFor(hash);
+        boolean added = false;
+        V result;
+        segment.lock();
+        try {
+            Node<K, V> n = segment.find(key, hash);
+            if (n == null) {
+                segment.insert(key, hash, value);
+                result = value;
+                added = true;
+            } else {
+                result = combiner.apply(n.value, value);
+                assert result != null : "Violation of: combiner does not "
+                        + "return null";
+                n.value = result;
+            }
+        } finally {
+            segment.unlock();
+        }
+        if (added) {
+            this.size.increment();
+        }
+
+        return result;
+    }
+
+    /**
+     * Atomically replaces the entry for {@code key} according to
+     * {@code remapping}, which receives the key and its current value (or
+     * {@code null} if the key is not in {@code this}) and returns the new
+     * value, or {@code null} to remove the entry. Returns the new value, or
+     * {@code null} if there is none.
+     *
+     * @param key
+     *            the key
+     * @param remapping
+     *            the function computing the new value
+     * @return the value now associated with key, or null
+     * @updates this
+     * @requires <pre>
+     * key is not null  and  remapping is not null  and
+     * [remapping does not access this]
+     * </pre>
+     * @ensures <pre>
+     * [compute = remapping applied to key and its value in #this (or null)]
+     * and
+     * this = (#this \ {(key, v): V where ((key, v) is in #this)}) union
+     *        {(key, compute)  if compute /= null}
+     * </pre>
+     */
+    public final V compute(K key,
+            BiFunction<? super K, ? super V, ? extends V> remapping) {
+        assert key != null : "Violation of: key is not null";
+        assert remapping != null : "Violation of: remapping is not null";
+
+        int hash = hash(key);
+        Segment<K, V> segment = this.segmentFor(hash);
+        int sizeChange = 0;
+        V result;
+        segment.lock();
+        try {
+            Node<K, V> n = segment.find(key, hash);
+            if (n == null) {
+                result = remapping.apply(key, null);
+                if (result != null) {
+                    segment.insert(key, hash, result);
+                    sizeChange = 1;
+                }
+            } else {
+                result = remapping.apply(key, n.value);
+                if (result == null) {
+                    segment.unlink(key, hash);
+                    sizeChange = -1;
+                } else {
+                    n.value = result;
+                }
+            }
+        } finally {
+            segment.unlock();
+        }
+        this.size.add(sizeChange);
+
+        return result;
+    }
+
+    /**
+     * Implementation of {@code Iterator} interface for
+     * {@code ConcurrentMap4}. It walks the live tables without locking, so it
+     * never fails and allocates nothing per element, but it is only weakly
+     * consistent: entries added or removed by other threads during the
+     * iteration may or may not be seen.
+     */
+    private final class ConcurrentMap4Iterator
+            implements Iterator<Pair<K, V>> {
+
+        /**
+         * Segment from which the current table comes.
+         */
+        private int currentSegment;
+
+        /**
+         * Table (as read when its segment was reached) being walked, or
+         * {@code null} before the first segment.
+         */
+        private AtomicReferenceArray<Node<K, V>> currentTable;
+
+        /**
+         * Bucket of the current table from which {@code nextNode} comes.
+         */
+        private int currentBucket;
+
+        /**
+         * Node to be returned next, or {@code null} if there is none.
+         */
+        private Node<K, V> nextNode;
+
+        /**
+         * No-argument constructor.
+         */
+        ConcurrentMap4Iterator() {
+            this.currentSegment = -1;
+            this.currentTable = null;
+            this.currentBucket = 0;
+            this.nextNode = null;
+            this.advance();
+        }
+
+        /**
+         * Moves {@code nextNode} to the next node, if any, moving on to later
+         * buckets and segments as needed.
+         *
+         * @updates this
+         * @ensures <pre>
+         * [nextNode is the next node of the traversal, or null at the end]
+         * </pre>
+         */
+        private void advance() {
+            if (this.nextNode != null) {
+                this.nextNode = this.nextNode.next;
+            }
+            Segment<K, V>[] segments = ConcurrentMap4.this.segments;
+            while (this.nextNode == null) {
+                if (this.currentTable == null
+                        || this.currentBucket == this.currentTable.length()) {
+                    this.currentSegment++;
+                    if (this.currentSegment == segments.length) {
+                        return;
+                    }
+                    this.currentTable = segments[this.currentSegment].table;
+                    this.currentBucket = 0;
+                } else {
+                    this.nextNode = this.currentTable.get(this.currentBucket);
+                    this.currentBucket++;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.nextNode != null;
+        }
+
+        @Override
+        public Pair<K, V> next() {
+            assert this.hasNext() : "Violation of: ~this.unseen /= <>";
+            if (!this.hasNext()) {
+                /*
+                 * Exception is supposed to be thrown in this case, but with
+                 * assertion-checking enabled it cannot happen because of assert
+                 * above.
+                 */
+                throw new NoSuchElementException();
+            }
+            Node<K, V> result = this.nextNode;
+            this.advance();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(
+                    "remove operation not supported");
+        }
+
+    }
+
+}
@@ -0,0 +1,793 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import components.map.Map;
+import components.map.MapSecondary;
+
+/**
+ * {@code Map} represented as a bucketized cuckoo hash table, with
+ * implementations of primary methods. Each key may live in only two buckets
+ * of {@code SLOTS_PER_BUCKET} slots, chosen by two seeded hash functions, or,
+ * failing that, in a small stash; so {@code value}, {@code hasKey}, and
+ * {@code remove} look at no more than {@code 2 * SLOTS_PER_BUCKET} slots plus
+ * the stash, however unlucky the keys. {@code add} makes room by moving
+ * ("kicking") resident keys to their other bucket along a random walk, puts
+ * the last homeless key in the stash if the walk is too long, and rehashes
+ * with new seeds (growing the table if it is at least half full) when the
+ * stash overflows.
+ *
+ * <p>
+ * The stash only outgrows {@code STASH_CAPACITY} when more than
+ * {@code 2 * SLOTS_PER_BUCKET} keys share a hash code, which no choice of
+ * seeds can separate; lookups then pay a scan of the stash, much as
+ * {@code Map4} pays for a long chain.
+ *
+ * @param <K>
+ *            type of {@code Map} domain (key) entries
+ * @param <V>
+ *            type of {@code Map} range (associated value) entries
+ * @mathdefinitions <pre>
+ * BUCKETS(
+ *   h: integer,
+ *   m: CuckooMap4
+ *  ): set of integer is
+ *  [the first and second buckets computed by m.first(h) and m.second(h, ...)
+ *   with the seeds and number of buckets of m]
+ * </pre>
+ * @convention <pre>
+ * |$this.keys| = |$this.values| = |$this.hashes|  and
+ * [|$this.keys| / SLOTS_PER_BUCKET is a power of 2 and at least
+ *  MIN_BUCKETS]  and
+ * $this.size <= |$this.keys| * MAX_LOAD_FACTOR  and
+ * for all i: integer
+ *     where (0 <= i  and  i < |$this.keys|)
+ *   (($this.keys[i] = null) = ($this.values[i] = null))  and
+ * for all i: integer
+ *     where (0 <= i  and  i < |$this.keys|  and  $this.keys[i] /= null)
+ *   ($this.hashes[i] = [computed result of $this.keys[i].hashCode()]  and
+ *    i / SLOTS_PER_BUCKET is in BUCKETS($this.hashes[i], $this))  and
+ * 0 <= $this.stashSize <= |$this.stashKeys|  and
+ * [the first $this.stashSize entries of $this.stashKeys,
+ *  $this.stashValues, and $this.stashHashes are the stashed entries, with
+ *  non-null keys and values and the keys' hash codes]  and
+ * [the non-null keys of $this.keys and the stashed keys are all
+ *  different]  and
+ * $this.size = [number of non-null entries in $this.keys] +
+ *              $this.stashSize  and
+ * 0 <= $this.firstOccupied <= |$this.keys|  and
+ * [every entry of $this.keys before $this.firstOccupied is null]
+ * </pre>
+ * @correspondence <pre>
+ * this = {(k, v): (K, V)
+ *          where (there exists i: integer
+ *                   (($this.keys[i] = k  and  $this.values[i] = v  and
+ *                     k /= null)  or
+ *                    (i < $this.stashSize  and  $this.stashKeys[i] = k  and
+ *                     $this.stashValues[i] = v)))}
+ * </pre>
+ *
+ * @author Allen Zheng and Jared Koharik
+ *
+ */
+public class CuckooMap4<K, V> extends MapSecondary<K, V> {
+
+    /*
+     * Private members --------------------------------------------------------
+     */
+
+    /**
+     * Number of slots in each bucket.
+     */
+    private static final int SLOTS_PER_BUCKET = 4;
+
+    /**
+     * Default (and minimum) number of buckets in the table.
+     */
+    private static final int MIN_BUCKETS = 4;
+
+    /**
+     * Largest fraction of the slots that may be occupied before the table is
+     * doubled. With two choices of 4-slot buckets, random walks almost always
+     * succeed below about 95%.
+     */
+    private static final double MAX_LOAD_FACTOR = 0.9;
+
+    /**
+     * Longest random walk tried by {@code add} before stashing a key.
+     */
+    private static final int MAX_KICKS = 128;
+
+    /**
+     * Number of stashed entries above which {@code add} rehashes.
+     */
+    private static final int STASH_CAPACITY = 4;
+
+    /**
+     * Seed of the first hash function of a new or cleared map. The initial
+     * seeds are fixed, and random seeds are drawn only when the map rehashes,
+     * so a new map is deterministic: the same keys added in the same order
+     * land in the same slots, and {@code removeAny} and the iterator visit
+     * them in the same order, on every run.
+     */
+    private static final int INITIAL_SEED1 = 0;
+
+    /**
+     * Seed of the second hash function of a new or cleared map.
+     */
+    private static final int INITIAL_SEED2 = 0x7F4A7C15;
+
+    /**
+     * Keys, indexed by slot; {@code null} marks an empty slot.
+     */
+    private K[] keys;
+
+    /**
+     * Values, indexed by the same slot as their keys.
+     */
+    private V[] values;
+
+    /**
+     * Hash codes of the keys, indexed by the same slot as the keys.
+     */
+    private int[] hashes;
+
+    /**
+     * Seed of the first hash function.
+     */
+    private int seed1;
+
+    /**
+     * Seed of the second hash function.
+     */
+    private int seed2;
+
+    /**
+     * Stashed keys.
+     */
+    private K[] stashKeys;
+
+    /**
+     * Stashed values.
+     */
+    private V[] stashValues;
+
+    /**
+     * Hash codes of the stashed keys.
+     */
+    private int[] stashHashes;
+
+    /**
+     * Number of stashed entries.
+     */
+    private int stashSize;
+
+    /**
+     * Number of stashed entries above which {@code add} rehashes; raised
+     * above {@code STASH_CAPACITY} only after a rehash could not empty the
+     * stash.
+     */
+    private int stashLimit;
+
+    /**
+     * Total size of abstract {@code this}.
+     */
+    private int size;
+
+    /**
+     * Slot at which {@code removeAny} starts looking for an entry of the
+     * table; no slot before it is occupied.
+     */
+    private int firstOccupied;
+
+    /**
+     * Returns the first bucket for hash code {@code h}.
+     *
+     * @param h
+     *            the hash code
+     * @return the first bucket
+     * @ensures 0 <= first < |$this.keys| / SLOTS_PER_BUCKET
+     */
+    private int first(int h) {
+        int mask = this.keys.length / SLOTS_PER_BUCKET - 1;
+        return Map4.Spreader.MURMUR3.spread(h ^ this.seed1) & mask;
+    }
+
+    /**
+     * Returns the second bucket for hash code {@code h}, which is never
+     * {@code first}.
+     *
+     * @param h
+     *            the hash code
+     * @param first
+     *            the first bucket for h
+     * @return the second bucket
+     * @requires first = $this.first(h)
+     * @ensures <pre>
+     * 0 <= second < |$this.keys| / SLOTS_PER_BUCKET  and  second /= first
+     * </pre>
+     */
+    private int second(int h, int first) {
+        int mask = this.keys.length / SLOTS_PER_BUCKET - 1;
+        int result = Map4.Spreader.MURMUR3.spread(h ^ this.seed2) & mask;
+        if (result == first) {
+            result ^= 1;
+        }
+        return result;
+    }
+
+    /**
+     * Creator of initial representation.
+     *
+     * @param buckets
+     *            the number of buckets in the table
+     * @requires [buckets is a power of 2 and buckets >= MIN_BUCKETS]
+     * @ensures <pre>
+     * |$this.keys| = buckets * SLOTS_PER_BUCKET  and
+     * [all entries of $this.keys and $this.values are null]  and
+     * $this.seed1 = INITIAL_SEED1  and  $this.seed2 = INITIAL_SEED2  and
+     * $this.stashSize = 0  and  $this.stashLimit = STASH_CAPACITY  and
+     * $this.size = 0  and  $this.firstOccupied = |$this.keys|
+     * </pre>
+     */
+    @SuppressWarnings("unchecked")
+    private void createNewRep(int buckets) {
+        /*
+         * As in Map4, generic array creation is not allowed, so these are
+         * unchecked conversions that cannot fail.
+         */
+        this.keys = (K[]) new Object[buckets * SLOTS_PER_BUCKET];
+        this.values = (V[]) new Object[buckets * SLOTS_PER_BUCKET];
+        this.hashes = new int[buckets * SLOTS_PER_BUCKET];
+        this.seed1 = INITIAL_SEED1;
+        this.seed2 = INITIAL_SEED2;
+        this.stashKeys = (K[]) new Object[STASH_CAPACITY + 1];
+        this.stashValues = (V[]) new Object[STASH_CAPACITY + 1];
+        this.stashHashes = new int[STASH_CAPACITY + 1];
+        this.stashSize = 0;
+        this.stashLimit = STASH_CAPACITY;
+        this.size = 0;
+        this.firstOccupied = this.keys.length;
+    }
+
+    /**
+     * Returns the slot of {@code key} in {@code bucket}, or -1.
+     *
+     * @param bucket
+     *            the bucket
+     * @param key
+     *            the key
+     * @param h
+     *            hash code of key
+     * @return the slot of key, or -1
+     * @ensures <pre>
+     * (findIn = -1  and  [key is not in bucket])  or
+     * $this.keys[findIn] = key
+     * </pre>
+     */
+    private int findIn(int bucket, K key, int h) {
+        int result = -1;
+        int base = bucket * SLOTS_PER_BUCKET;
+        for (int s = base; s < base + SLOTS_PER_BUCKET && result < 0; s++) {
+            if (this.hashes[s] == h && this.keys[s] != null
+                    && this.keys[s].equals(key)) {
+                result = s;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns where {@code key} is: a slot of the table, {@code |$this.keys|}
+     * plus its index in the stash, or -1 if it is not in {@code this}.
+     *
+     * @param key
+     *            the key to be located
+     * @return the position of key, or -1
+     * @ensures <pre>
+     * (find = -1  and  key is not in DOMAIN(this))  or
+     * (0 <= find < |$this.keys|  and  $this.keys[find] = key)  or
+     * (find >= |$this.keys|  and
+     *  $this.stashKeys[find - |$this.keys|] = key)
+     * </pre>
+     */
+    private int find(K key) {
+        int h = key.hashCode();
+        int b1 = this.first(h);
+        int result = this.findIn(b1, key, h);
+        if (result < 0) {
+            result = this.findIn(this.second(h, b1), key, h);
+        }
+        for (int i = 0; i < this.stashSize && result < 0; i++) {
+            if (this.stashHashes[i] == h && this.stashKeys[i].equals(key)) {
+                result = this.keys.length + i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Puts the entry in an empty slot of {@code bucket}, if it has one.
+     *
+     * @param bucket
+     *            the bucket
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     * @param h
+     *            hash code of key
+     * @return whether the entry was put in bucket
+     * @updates $this.keys, $this.values, $this.hashes, $this.firstOccupied
+     * @requires bucket is in BUCKETS(h, $this)
+     * @ensures <pre>
+     * tryPut = [bucket had an empty slot]  and
+     * [if tryPut then the entry is in bucket]
+     * </pre>
+     */
+    private boolean tryPut(int bucket, K key, V value, int h) {
+        int base = bucket * SLOTS_PER_BUCKET;
+        int s = base;
+        while (s < base + SLOTS_PER_BUCKET && this.keys[s] != null) {
+            s++;
+        }
+        boolean result = s < base + SLOTS_PER_BUCKET;
+        if (result) {
+            this.keys[s] = key;
+            this.values[s] = value;
+            this.hashes[s] = h;
+            if (s < this.firstOccupied) {
+                this.firstOccupied = s;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Appends the entry to the stash, making it larger if necessary.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     * @param h
+     *            hash code of key
+     * @updates $this.stashKeys, $this.stashValues, $this.stashHashes,
+     *          $this.stashSize
+     * @ensures [the entry is the last stashed entry]
+     */
+    @SuppressWarnings("unchecked")
+    private void stash(K key, V value, int h) {
+        if (this.stashSize == this.stashKeys.length) {
+            int length = 2 * this.stashKeys.length;
+            K[] k = (K[]) new Object[length];
+            V[] v = (V[]) new Object[length];
+            int[] hs = new int[length];
+            System.arraycopy(this.stashKeys, 0, k, 0, this.stashSize);
+            System.arraycopy(this.stashValues, 0, v, 0, this.stashSize);
+            System.arraycopy(this.stashHashes, 0, hs, 0, this.stashSize);
+            this.stashKeys = k;
+            this.stashValues = v;
+            this.stashHashes = hs;
+        }
+        this.stashKeys[this.stashSize] = key;
+        this.stashValues[this.stashSize] = value;
+        this.stashHashes[this.stashSize] = h;
+        this.stashSize++;
+    }
+
+    /**
+     * Places the entry in one of its buckets, kicking resident entries to
+     * their other bucket as necessary, or, after {@code MAX_KICKS} kicks,
+     * stashes the entry left homeless.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     * @param h
+     *            hash code of key
+     * @updates $this
+     * @requires key is not in DOMAIN(this)
+     * @ensures this = #this union {(key, value)}  and  [$this.size unchanged]
+     */
+    private void place(K key, V value, int h) {
+        int b1 = this.first(h);
+        int b2 = this.second(h, b1);
+        if (this.tryPut(b1, key, value, h) || this.tryPut(b2, key, value, h)) {
+            return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        K k = key;
+        V v = value;
+        int hk = h;
+        int bucket = b1;
+        if (random.nextBoolean()) {
+            bucket = b2;
+        }
+        for (int kick = 0; kick < MAX_KICKS; kick++) {
+            /*
+             * Swap the homeless entry with a random resident of the full
+             * bucket, then try the evicted entry's other bucket.
+             */
+            int s = bucket * SLOTS_PER_BUCKET
+                    + random.nextInt(SLOTS_PER_BUCKET);
+            K evictedKey = this.keys[s];
+            V evictedValue = this.values[s];
+            int evictedHash = this.hashes[s];
+            this.keys[s] = k;
+            this.values[s] = v;
+            this.hashes[s] = hk;
+            k = evictedKey;
+            v = evictedValue;
+            hk = evictedHash;
+            int f = this.first(hk);
+            if (f == bucket) {
+                bucket = this.second(hk, f);
+            } else {
+                bucket = f;
+            }
+            if (this.tryPut(bucket, k, v, hk)) {
+                return;
+            }
+        }
+        this.stash(k, v, hk);
+    }
+
+    /**
+     * Moves every entry into a table with {@code buckets} buckets and new
+     * hash seeds.
+     *
+     * @param buckets
+     *            the number of buckets in the new table
+     * @updates $this
+     * @requires <pre>
+     * [buckets is a power of 2 and buckets >= MIN_BUCKETS]  and
+     * buckets * SLOTS_PER_BUCKET * MAX_LOAD_FACTOR >= $this.size
+     * </pre>
+     * @ensures <pre>
+     * |$this.keys| = buckets * SLOTS_PER_BUCKET  and  this = #this  and
+     * $this.stashLimit = max(STASH_CAPACITY, 2 * $this.stashSize)
+     * </pre>
+     */
+    private void rehash(int buckets) {
+        K[] oldKeys = this.keys;
+        V[] oldValues = this.values;
+        int[] oldHashes = this.hashes;
+        K[] oldStashKeys = this.stashKeys;
+        V[] oldStashValues = this.stashValues;
+        int[] oldStashHashes = this.stashHashes;
+        int oldStashSize = this.stashSize;
+        int oldSize = this.size;
+        this.createNewRep(buckets);
+        this.seed1 = ThreadLocalRandom.current().nextInt();
+        this.seed2 = ThreadLocalRandom.current().nextInt();
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                this.place(oldKeys[i], oldValues[i], oldHashes[i]);
+            }
+        }
+        for (int i = 0; i < oldStashSize; i++) {
+            this.place(oldStashKeys[i], oldStashValues[i], oldStashHashes[i]);
+        }
+        this.size = oldSize;
+        this.stashLimit = Math.max(STASH_CAPACITY, 2 * this.stashSize);
+    }
+
+    /**
+     * Removes the entry at position {@code i}, as reported by {@code find}.
+     *
+     * @param i
+     *            the position
+     * @return the removed entry
+     * @updates $this
+     * @requires [i is the position of an entry]
+     * @ensures <pre>
+     * #this = this union {removeAt}  and  removeAt is not in this
+     * </pre>
+     */
+    private Pair<K, V> removeAt(int i) {
+        Pair<K, V> result;
+        if (i < this.keys.length) {
+            result = new SimplePair<>(this.keys[i], this.values[i]);
+            this.keys[i] = null;
+            this.values[i] = null;
+        } else {
+            int j = i - this.keys.length;
+            int last = this.stashSize - 1;
+            result = new SimplePair<>(this.stashKeys[j], this.stashValues[j]);
+            this.stashKeys[j] = this.stashKeys[last];
+            this.stashValues[j] = this.stashValues[last];
+            this.stashHashes[j] = this.stashHashes[last];
+            this.stashKeys[last] = null;
+            this.stashValues[last] = null;
+            this.stashSize = last;
+        }
+        this.size--;
+        return result;
+    }
+
+    /*
+     * Constructors -----------------------------------------------------------
+     */
+
+    /**
+     * No-argument constructor.
+     */
+    public CuckooMap4() {
+        this.createNewRep(MIN_BUCKETS);
+    }
+
+    /**
+     * Constructor resulting in a table large enough to hold
+     * {@code expectedSize} entries without resizing.
+     *
+     * @param expectedSize
+     *            number of entries expected
+     * @requires expectedSize >= 0
+     * @ensures this = {}
+     */
+    public CuckooMap4(int expectedSize) {
+        assert expectedSize >= 0 : "Violation of: expectedSize >= 0";
+
+        int buckets = MIN_BUCKETS;
+        while (buckets * SLOTS_PER_BUCKET * MAX_LOAD_FACTOR < expectedSize) {
+            buckets *= 2;
+        }
+        this.createNewRep(buckets);
+    }
+
+    /*
+     * Standard methods -------------------------------------------------------
+     */
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public final Map<K, V> newInstance() {
+        try {
+            return this.getClass().getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(
+                    "Cannot construct object of type " + this.getClass());
+        }
+    }
+
+    @Override
+    public final void clear() {
+        this.createNewRep(MIN_BUCKETS);
+    }
+
+    @Override
+    public final void transferFrom(Map<K, V> source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+        assert source instanceof CuckooMap4<?, ?> : ""
+                + "Violation of: source is of dynamic type CuckooMap4<?,?>";
+        /*
+         * This cast cannot fail since the assert above would have stopped
+         * execution in that case: source must be of dynamic type
+         * CuckooMap4<?,?>, and the ?,? must be K,V or the call would not have
+         * compiled.
+         */
+        CuckooMap4<K, V> localSource = (CuckooMap4<K, V>) source;
+        this.keys = localSource.keys;
+        this.values = localSource.values;
+        this.hashes = localSource.hashes;
+        this.seed1 = localSource.seed1;
+        this.seed2 = localSource.seed2;
+        this.stashKeys = localSource.stashKeys;
+        this.stashValues = localSource.stashValues;
+        this.stashHashes = localSource.stashHashes;
+        this.stashSize = localSource.stashSize;
+        this.stashLimit = localSource.stashLimit;
+        this.size = localSource.size;
+        this.firstOccupied = localSource.firstOccupied;
+        localSource.createNewRep(MIN_BUCKETS);
+    }
+
+    /*
+     * Kernel methods ---------------------------------------------------------
+     */
+
+    @Override
+    public final void add(K key, V value) {
+        assert key != null : "Violation of: key is not null";
+        assert value != null : "Violation of: value is not null";
+        assert this.find(key) < 0 : "Violation of: key is not in DOMAIN(this)";
+
+        int buckets = this.keys.length / SLOTS_PER_BUCKET;
+        if (this.size + 1 > this.keys.length * MAX_LOAD_FACTOR) {
+            this.rehash(2 * buckets);
+        }
+        this.place(key, value, key.hashCode());
+        this.size++;
+        if (this.stashSize > this.stashLimit) {
+            /*
+             * New seeds usually suffice; if the table is at least half full,
+             * the walks were long for lack of room, so grow it too.
+             */
+            buckets = this.keys.length / SLOTS_PER_BUCKET;
+            if (2 * this.size >= this.keys.length) {
+                buckets *= 2;
+            }
+            this.rehash(buckets);
+        }
+    }
+
+    @Override
+    public final Pair<K, V> remove(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        int i = this.find(key);
+        assert i >= 0 : "Violation of: key is in DOMAIN(this)";
+
+        return this.removeAt(i);
+    }
+
+    @Override
+    public final Pair<K, V> removeAny() {
+        assert this.size() > 0 : "Violation of: this /= empty_set";
+
+        int i;
+        if (this.stashSize > 0) {
+            i = this.keys.length + this.stashSize - 1;
+        } else {
+            /*
+             * Every slot before firstOccupied is empty, so the scan resumes
+             * there instead of at slot 0, and draining the map costs
+             * O(capacity) in total rather than per call.
+             */
+            while (this.keys[this.firstOccupied] == null) {
+                this.firstOccupied++;
+            }
+            i = this.firstOccupied;
+        }
+        return this.removeAt(i);
+    }
+
+    @Override
+    public final V value(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        int i = this.find(key);
+        assert i >= 0 : "Violation of: key is in DOMAIN(this)";
+
+        V result;
+        if (i < this.keys.length) {
+            result = this.values[i];
+        } else {
+            result = this.stashValues[i - this.keys.length];
+        }
+        return result;
+    }
+
+    @Override
+    public final boolean hasKey(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        return this.find(key) >= 0;
+    }
+
+    @Override
+    public final int size() {
+        return this.size;
+    }
+
+    @Override
+    public final Iterator<Pair<K, V>> iterator() {
+        return new CuckooMap4Iterator();
+    }
+
+    /**
+     * Simple immutable implementation of {@code Pair}.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     */
+    private static final class SimplePair<K, V> implements Pair<K, V> {
+
+        /**
+         * The key.
+         */
+        private final K key;
+
+        /**
+         * The value.
+         */
+        private final V value;
+
+        /**
+         * Constructor from key and value.
+         *
+         * @param key
+         *            the key
+         * @param value
+         *            the value
+         */
+        SimplePair(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public K key() {
+            return this.key;
+        }
+
+        @Override
+        public V value() {
+            return this.value;
+        }
+
+    }
+
+    /**
+     * Implementation of {@code Iterator} interface for {@code CuckooMap4}.
+     * Visits the slots of the table in order, then the stash.
+     */
+    private final class CuckooMap4Iterator implements Iterator<Pair<K, V>> {
+
+        /**
+         * Number of elements seen already (i.e., |~this.seen|).
+         */
+        private int numberSeen;
+
+        /**
+         * Position at which to start looking for the next element: a slot
+         * of the table, or |keys| plus an index into the stash.
+         */
+        private int current;
+
+        /**
+         * No-argument constructor.
+         */
+        CuckooMap4Iterator() {
+            this.numberSeen = 0;
+            this.current = 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.numberSeen < CuckooMap4.this.size;
+        }
+
+        @Override
+        public Pair<K, V> next() {
+            assert this.hasNext() : "Violation of: ~this.unseen /= <>";
+            if (!this.hasNext()) {
+                /*
+                 * Exception is supposed to be thrown in this case, but with
+                 * assertion-checking enabled it cannot happen because of assert
+                 * above.
+                 */
+                throw new NoSuchElementException();
+            }
+            this.numberSeen++;
+            K[] keys = CuckooMap4.this.keys;
+            while (this.current < keys.length && keys[this.current] == null) {
+                this.current++;
+            }
+            Pair<K, V> result;
+            if (this.current < keys.length) {
+                result = new SimplePair<>(keys[this.current],
+                        CuckooMap4.this.values[this.current]);
+            } else {
+                int j = this.current - keys.length;
+                result = new SimplePair<>(CuckooMap4.this.stashKeys[j],
+                        CuckooMap4.this.stashValues[j]);
+            }
+            this.current++;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(
+                    "remove operation not supported");
+        }
+
+    }
+
+}
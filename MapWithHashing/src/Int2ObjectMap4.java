@@ -0,0 +1,564 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import components.map.Map;
+import components.map.MapSecondary;
+
+/**
+ * {@code Map} from {@code int} keys to objects, represented as an
+ * open-addressing hash table (a probe array of {@code int} keys with linear
+ * probing and a parallel array of values) that grows automatically, with
+ * implementations of primary methods. Besides the {@code Map<Integer, V>}
+ * methods, it offers {@code add}, {@code value}, and {@code hasKey} on
+ * {@code int} keys, which neither box nor allocate.
+ *
+ * @param <V>
+ *            type of {@code Map} range (associated value) entries
+ * @mathdefinitions <pre>
+ * HOME(
+ *   x: integer,
+ *   capacity: integer
+ *  ): integer is
+ *  [computed result of Map4.Spreader.MURMUR3.spread(x)] mod capacity
+ * </pre>
+ * @convention <pre>
+ * |$this.keys| = |$this.values|  and
+ * [|$this.keys| is a power of 2]  and
+ * |$this.keys| >= DEFAULT_CAPACITY  and
+ * $this.size <= |$this.keys| * MAX_LOAD_FACTOR  and
+ * for all i: integer
+ *     where (0 <= i  and  i < |$this.keys|  and  $this.values[i] = null)
+ *   ($this.keys[i] = 0)  and
+ * for all i: integer
+ *     where (0 <= i  and  i < |$this.keys|  and  $this.values[i] /= null)
+ *   ([no entry of $this.values between HOME($this.keys[i], |$this.keys|)
+ *     and position i, cyclically, is null])  and
+ * [the entries of $this.keys at slots whose value is not null are all
+ *  different]  and
+ * $this.size = [number of non-null entries in $this.values]  and
+ * 0 <= $this.firstOccupied <= |$this.keys|  and
+ * [every entry of $this.values before $this.firstOccupied is null]
+ * </pre>
+ * @correspondence <pre>
+ * this = {(k, v): (integer, V)
+ *          where (there exists i: integer
+ *                   ($this.keys[i] = k  and  $this.values[i] = v  and
+ *                    v /= null))}
+ * </pre>
+ *
+ * @author Allen Zheng and Jared Koharik
+ *
+ */
+public class Int2ObjectMap4<V> extends MapSecondary<Integer, V> {
+
+    /*
+     * Private members --------------------------------------------------------
+     */
+
+    /**
+     * Default (and minimum) number of slots in the table.
+     */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * Largest fraction of the slots that may be occupied before the table is
+     * doubled.
+     */
+    private static final double MAX_LOAD_FACTOR = 0.5;
+
+    /**
+     * Keys, indexed by slot; meaningful only where the value is not
+     * {@code null}, since every {@code int} is a legal key.
+     */
+    private int[] keys;
+
+    /**
+     * Values, indexed by the same slot as their keys; {@code null} marks an
+     * empty slot (values of a {@code Map} are never {@code null}).
+     */
+    private V[] values;
+
+    /**
+     * Total size of abstract {@code this}.
+     */
+    private int size;
+
+    /**
+     * Slot at which {@code removeAny} starts looking for an entry; no slot
+     * before it is occupied.
+     */
+    private int firstOccupied;
+
+    /**
+     * Returns the home slot of {@code key} in a table with {@code capacity}
+     * slots.
+     *
+     * @param key
+     *            the key to be hashed
+     * @param capacity
+     *            the number of slots in the table
+     * @return the home slot of key
+     * @requires [capacity is a power of 2]
+     * @ensures homeSlot = HOME(key, capacity)
+     */
+    private static int homeSlot(int key, int capacity) {
+        return Map4.Spreader.MURMUR3.spread(key) & (capacity - 1);
+    }
+
+    /**
+     * Creator of initial representation.
+     *
+     * @param capacity
+     *            the number of slots in the table
+     * @requires [capacity is a power of 2]
+     * @ensures <pre>
+     * |$this.keys| = capacity  and  |$this.values| = capacity  and
+     * [all entries of $this.keys are 0 and of $this.values are null]  and
+     * $this.size = 0  and  $this.firstOccupied = capacity
+     * </pre>
+     */
+    @SuppressWarnings("unchecked")
+    private void createNewRep(int capacity) {
+        /*
+         * As in Map4, generic array creation is not allowed, so this is an
+         * unchecked conversion that cannot fail.
+         */
+        this.keys = new int[capacity];
+        this.values = (V[]) new Object[capacity];
+        this.size = 0;
+        this.firstOccupied = capacity;
+    }
+
+    /**
+     * Records that slot {@code i} has just been filled, moving
+     * {@code firstOccupied} back to it if it lies before.
+     *
+     * @param i
+     *            the slot that was filled
+     * @updates $this.firstOccupied
+     * @ensures $this.firstOccupied = min(#$this.firstOccupied, i)
+     */
+    private void filled(int i) {
+        if (i < this.firstOccupied) {
+            this.firstOccupied = i;
+        }
+    }
+
+    /**
+     * Returns the slot holding {@code key}, or the empty slot that ends its
+     * probe sequence if {@code key} is not in the table.
+     *
+     * @param key
+     *            the key to be located
+     * @return the slot for key
+     * @ensures <pre>
+     * ($this.values[findSlot] /= null  and  $this.keys[findSlot] = key)  or
+     * ($this.values[findSlot] = null  and  key is not in DOMAIN(this))
+     * </pre>
+     */
+    private int findSlot(int key) {
+        int mask = this.keys.length - 1;
+        int i = homeSlot(key, this.keys.length);
+        while (this.values[i] != null && this.keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Moves every entry into a table with {@code newCapacity} slots.
+     *
+     * @param newCapacity
+     *            the number of slots in the new table
+     * @updates $this
+     * @requires [newCapacity is a power of 2 and newCapacity > $this.size]
+     * @ensures |$this.keys| = newCapacity  and  this = #this
+     */
+    private void resize(int newCapacity) {
+        int[] oldKeys = this.keys;
+        V[] oldValues = this.values;
+        int oldSize = this.size;
+        this.createNewRep(newCapacity);
+        int mask = newCapacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] != null) {
+                int i = homeSlot(oldKeys[j], newCapacity);
+                while (this.values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                this.keys[i] = oldKeys[j];
+                this.values[i] = oldValues[j];
+                this.filled(i);
+            }
+        }
+        this.size = oldSize;
+    }
+
+    /**
+     * Empties slot {@code hole} and shifts later entries of the same cluster
+     * back so that no probe sequence is broken (no tombstones are needed).
+     *
+     * @param hole
+     *            the slot to be emptied
+     * @updates $this.keys, $this.values
+     * @requires $this.values[hole] /= null
+     * @ensures <pre>
+     * [the entry at #$this.keys[hole] is no longer in the table, and every
+     *  other entry still is and is still reachable from its home slot]
+     * </pre>
+     */
+    private void deleteSlot(int hole) {
+        int mask = this.keys.length - 1;
+        int i = hole;
+        int j = (i + 1) & mask;
+        while (this.values[j] != null) {
+            int home = homeSlot(this.keys[j], this.keys.length);
+            /*
+             * The entry at j may move to i only if i lies cyclically in
+             * [home, j), i.e., moving it does not put it before its home slot.
+             */
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                this.keys[i] = this.keys[j];
+                this.values[i] = this.values[j];
+                this.filled(i);
+                i = j;
+            }
+            j = (j + 1) & mask;
+        }
+        this.keys[i] = 0;
+        this.values[i] = null;
+    }
+
+    /**
+     * Removes the entry in slot {@code i} and returns it as a {@code Pair}.
+     *
+     * @param i
+     *            the slot to be emptied
+     * @return the removed entry
+     * @updates $this
+     * @requires $this.values[i] /= null
+     * @ensures <pre>
+     * removeSlot = (#$this.keys[i], #$this.values[i])  and
+     * this = #this \ {removeSlot}
+     * </pre>
+     */
+    private Pair<Integer, V> removeSlot(int i) {
+        Pair<Integer, V> result = new SimplePair<>(this.keys[i],
+                this.values[i]);
+        this.deleteSlot(i);
+        this.size--;
+        return result;
+    }
+
+    /*
+     * Constructors -----------------------------------------------------------
+     */
+
+    /**
+     * No-argument constructor.
+     */
+    public Int2ObjectMap4() {
+        this.createNewRep(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor resulting in a table large enough to hold
+     * {@code expectedSize} entries without resizing.
+     *
+     * @param expectedSize
+     *            number of entries expected
+     * @requires expectedSize >= 0
+     * @ensures this = {}
+     */
+    public Int2ObjectMap4(int expectedSize) {
+        assert expectedSize >= 0 : "Violation of: expectedSize >= 0";
+
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity * MAX_LOAD_FACTOR < expectedSize) {
+            capacity *= 2;
+        }
+        this.createNewRep(capacity);
+    }
+
+    /*
+     * Standard methods -------------------------------------------------------
+     */
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public final Map<Integer, V> newInstance() {
+        try {
+            return this.getClass().getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(
+                    "Cannot construct object of type " + this.getClass());
+        }
+    }
+
+    @Override
+    public final void clear() {
+        this.createNewRep(DEFAULT_CAPACITY);
+    }
+
+    @Override
+    public final void transferFrom(Map<Integer, V> source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+        assert source instanceof Int2ObjectMap4<?> : ""
+                + "Violation of: source is of dynamic type Int2ObjectMap4<?>";
+        /*
+         * This cast cannot fail since the assert above would have stopped
+         * execution in that case: source must be of dynamic type
+         * Int2ObjectMap4<?>, and the ? must be V or the call would not have
+         * compiled.
+         */
+        Int2ObjectMap4<V> localSource = (Int2ObjectMap4<V>) source;
+        this.keys = localSource.keys;
+        this.values = localSource.values;
+        this.size = localSource.size;
+        this.firstOccupied = localSource.firstOccupied;
+        localSource.createNewRep(DEFAULT_CAPACITY);
+    }
+
+    /*
+     * Kernel methods ---------------------------------------------------------
+     */
+
+    @Override
+    public final void add(Integer key, V value) {
+        assert key != null : "Violation of: key is not null";
+
+        this.add(key.intValue(), value);
+    }
+
+    @Override
+    public final Pair<Integer, V> remove(Integer key) {
+        assert key != null : "Violation of: key is not null";
+
+        int i = this.findSlot(key);
+        assert this.values[i] != null : "Violation of: key is in DOMAIN(this)";
+
+        return this.removeSlot(i);
+    }
+
+    @Override
+    public final Pair<Integer, V> removeAny() {
+        assert this.size() > 0 : "Violation of: this /= empty_set";
+
+        /*
+         * Every slot before firstOccupied is empty, so the scan resumes there
+         * instead of at slot 0, and draining the map costs O(capacity) in
+         * total rather than per call.
+         */
+        while (this.values[this.firstOccupied] == null) {
+            this.firstOccupied++;
+        }
+        return this.removeSlot(this.firstOccupied);
+    }
+
+    @Override
+    public final V value(Integer key) {
+        assert key != null : "Violation of: key is not null";
+
+        return this.value(key.intValue());
+    }
+
+    @Override
+    public final boolean hasKey(Integer key) {
+        assert key != null : "Violation of: key is not null";
+
+        return this.hasKey(key.intValue());
+    }
+
+    @Override
+    public final int size() {
+        return this.size;
+    }
+
+    @Override
+    public final Iterator<Pair<Integer, V>> iterator() {
+        return new Int2ObjectMap4Iterator();
+    }
+
+    /*
+     * Other methods ----------------------------------------------------------
+     */
+
+    /**
+     * Adds the pair ({@code key}, {@code value}) to this without boxing
+     * {@code key}.
+     *
+     * @param key
+     *            the key to be added
+     * @param value
+     *            the associated value to be added
+     * @aliases reference value
+     * @updates this
+     * @requires key is not in DOMAIN(this)
+     * @ensures this = #this union {(key, value)}
+     */
+    public final void add(int key, V value) {
+        assert value != null : "Violation of: value is not null";
+
+        int i = this.findSlot(key);
+        assert this.values[i] == null : ""
+                + "Violation of: key is not in DOMAIN(this)";
+
+        if (this.size + 1 > this.keys.length * MAX_LOAD_FACTOR) {
+            this.resize(this.keys.length * 2);
+            i = this.findSlot(key);
+        }
+        this.keys[i] = key;
+        this.values[i] = value;
+        this.filled(i);
+        this.size++;
+    }
+
+    /**
+     * Reports the value associated with {@code key} in {@code this} without
+     * boxing {@code key}.
+     *
+     * @param key
+     *            the key whose associated value is to be reported
+     * @return the value associated with key
+     * @aliases reference returned by {@code value}
+     * @requires key is in DOMAIN(this)
+     * @ensures (key, value) is in this
+     */
+    public final V value(int key) {
+        int i = this.findSlot(key);
+        assert this.values[i] != null : "Violation of: key is in DOMAIN(this)";
+
+        return this.values[i];
+    }
+
+    /**
+     * Reports whether there is a pair in {@code this} whose first component
+     * is {@code key}, without boxing {@code key}.
+     *
+     * @param key
+     *            the key to be checked
+     * @return true iff there is a pair in this whose first component is key
+     * @ensures hasKey = (key is in DOMAIN(this))
+     */
+    public final boolean hasKey(int key) {
+        return this.values[this.findSlot(key)] != null;
+    }
+
+    @Override
+    public final V replaceValue(Integer key, V value) {
+        assert key != null : "Violation of: key is not null";
+        assert value != null : "Violation of: value is not null";
+
+        int i = this.findSlot(key);
+        assert this.values[i] != null : "Violation of: key is in DOMAIN(this)";
+
+        V old = this.values[i];
+        this.values[i] = value;
+        return old;
+    }
+
+    /**
+     * Simple immutable implementation of {@code Pair}.
+     *
+     * @param <V>
+     *            type of value
+     */
+    private static final class SimplePair<V> implements Pair<Integer, V> {
+
+        /**
+         * The key.
+         */
+        private final int key;
+
+        /**
+         * The value.
+         */
+        private final V value;
+
+        /**
+         * Constructor from key and value.
+         *
+         * @param key
+         *            the key
+         * @param value
+         *            the value
+         */
+        SimplePair(int key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public Integer key() {
+            return this.key;
+        }
+
+        @Override
+        public V value() {
+            return this.value;
+        }
+
+    }
+
+    /**
+     * Implementation of {@code Iterator} interface for
+     * {@code Int2ObjectMap4}.
+     */
+    private final class Int2ObjectMap4Iterator
+            implements Iterator<Pair<Integer, V>> {
+
+        /**
+         * Number of elements seen already (i.e., |~this.seen|).
+         */
+        private int numberSeen;
+
+        /**
+         * Slot at which to start looking for the next element.
+         */
+        private int currentSlot;
+
+        /**
+         * No-argument constructor.
+         */
+        Int2ObjectMap4Iterator() {
+            this.numberSeen = 0;
+            this.currentSlot = 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.numberSeen < Int2ObjectMap4.this.size;
+        }
+
+        @Override
+        public Pair<Integer, V> next() {
+            assert this.hasNext() : "Violation of: ~this.unseen /= <>";
+            if (!this.hasNext()) {
+                /*
+                 * Exception is supposed to be thrown in this case, but with
+                 * assertion-checking enabled it cannot happen because of assert
+                 * above.
+                 */
+                throw new NoSuchElementException();
+            }
+            this.numberSeen++;
+            while (Int2ObjectMap4.this.values[this.currentSlot] == null) {
+                this.currentSlot++;
+            }
+            Pair<Integer, V> result = new SimplePair<>(
+                    Int2ObjectMap4.this.keys[this.currentSlot],
+                    Int2ObjectMap4.this.values[this.currentSlot]);
+            this.currentSlot++;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(
+                    "remove operation not supported");
+        }
+
+    }
+
+}
@@ -1,38 +1,140 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 import components.map.Map;
-import components.map.Map2;
 import components.map.MapSecondary;
 
 /**
- * {@code Map} represented as a hash table using {@code Map}s for the buckets,
- * with implementations of primary methods.
+ * {@code Map} represented as a hash table using singly-linked chains of nodes
+ * for the buckets, with implementations of primary methods. Each node caches
+ * the (spread) hash code of its key, so keys are hashed only once and are
+ * compared with {@code equals} only when their hash codes match. A bucket
+ * whose chain grows past {@code TREEIFY_THRESHOLD} nodes is turned into an AVL
+ * tree ordered by (hash, {@code compareTo}), provided its keys are mutually
+ * {@code Comparable}, and back into a chain when it shrinks to
+ * {@code UNTREEIFY_THRESHOLD} nodes; this bounds the cost of a lookup by
+ * O(log n) even when many keys share a hash code. The table grows when the
+ * load factor passes {@code MAX_LOAD_FACTOR}; the entries of the old table are
+ * then moved into the new one a few buckets at a time by later calls that
+ * change the map, so no single call pays for rehashing the whole map. Calls
+ * that only read it ({@code value}, {@code hasKey}, and the scans) never move
+ * entries, so they are safe during an iteration.
+ *
+ * <p>
+ * A bitmap with one bit per bucket records which buckets are non-empty, so
+ * full scans ({@code iterator}, {@code forEach}, {@code cursor},
+ * {@code hasValue}, {@code key}, and {@code removeAny}) skip empty buckets 64
+ * at a time. None of the scans allocates anything per entry: the nodes of the
+ * chains are themselves the {@code Pair}s returned by the iterator, and
+ * {@code forEach} and {@code cursor} do not hand out pairs at all. Each table
+ * also remembers the lowest bucket that may be non-empty, so draining the map
+ * with repeated {@code removeAny} takes amortized constant time per call;
+ * {@code drainTo} empties it in a single pass.
+ *
+ * <p>
+ * {@code parallelForEach}, {@code parallelReduce}, {@code maxByValue}, and
+ * {@code parallelMerge} split the buckets into ranges handled by the common
+ * {@code ForkJoinPool}. Ranges start at multiples of 64 buckets, so no two
+ * threads ever touch the same bucket or the same word of a bitmap, and
+ * {@code parallelMerge} needs no locking at all when both maps have the same
+ * number of buckets. {@code parallelMerge} finishes a resize in progress
+ * first; the other three instead scan the unmigrated buckets of the old
+ * table in place and never move an entry, so their actions may read the map
+ * with {@code value} and {@code hasKey}.
+ *
+ * <p>
+ * Running with {@code -DMap4.metrics=true} turns on counting of lookups,
+ * probe lengths, {@code hasKey} hits and misses, and resizes, reported with
+ * the load factor and the bucket-length histogram by {@code metrics}. Each
+ * map decides once, when it is constructed, whether it counts; when it does
+ * not, every counting site costs a single test of a {@code final} field.
  *
  * @param <K>
  *            type of {@code Map} domain (key) entries
  * @param <V>
  *            type of {@code Map} range (associated value) entries
+ * @mathdefinitions <pre>
+ * HASH(
+ *   s: Spreader, x: K
+ *  ): integer is
+ *  [computed result of s.spread([computed result of x.hashCode()])]
+ *
+ * IS_HOME_BUCKET(
+ *   s: Spreader, old: string of Node, new: string of Node,
+ *   migrated: integer, x: K, t: string of Node, i: integer
+ *  ): boolean is
+ *  (old /= <>  and  HASH(s, x) mod |old| >= migrated  and
+ *     t = old  and  i = HASH(s, x) mod |old|)  or
+ *  ((old = <>  or  HASH(s, x) mod |old| < migrated)  and
+ *     t = new  and  i = HASH(s, x) mod |new|)
+ * </pre>
  * @convention <pre>
  * |$this.hashTable| > 0  and
- * for all i: integer, pf: PARTIAL_FUNCTION, x: K
- *     where (0 <= i  and  i < |$this.hashTable|  and
- *            <pf> = $this.hashTable[i, i+1)  and
- *            x is in DOMAIN(pf))
- *   ([computed result of x.hashCode()] mod |$this.hashTable| = i))  and
+ * 0 <= $this.migrated  and
+ * ($this.oldTable = null  or  $this.migrated < |$this.oldTable|)  and
+ * [each entry of $this.hashTable and $this.oldTable is null (an empty
+ *  bucket) or the first node of a finite, acyclic chain linked by next]  and
+ * [a chain whose first node is a TreeNode consists only of TreeNodes, whose
+ *  keys are all of the same Comparable class, and the first node is also the
+ *  root of an AVL tree (linked by left and right) holding exactly the nodes
+ *  of the chain, ordered by hash and then by compareTo; every other chain
+ *  consists only of plain Nodes]  and
+ * for all t: string of Node, i: integer, n: Node
+ *     where ((t = $this.hashTable  or  t = $this.oldTable)  and
+ *            0 <= i  and  i < |t|  and
+ *            [n is in the chain starting at t[i]])
+ *   (n.hash = HASH($this.spreader, n.key)  and
+ *    IS_HOME_BUCKET($this.spreader, $this.oldTable, $this.hashTable,
+ *                   $this.migrated, n.key, t, i))  and
+ * [the keys of all nodes in all chains are all different]  and
+ * $this.size = [total number of nodes in all chains]  and
+ * |$this.occupied| = ceiling(|$this.hashTable| / 64)  and
  * for all i: integer
- *     where (0 <= i  and  i < |$this.hashTable|)
- *   ([entry at position i in $this.hashTable is not null])  and
- * $this.size = sum i: integer, pf: PARTIAL_FUNCTION
- *     where (0 <= i  and  i < |$this.hashTable|  and
- *            <pf> = $this.hashTable[i, i+1))
- *   (|pf|)
+ *     where (0 <= i  and  i < 64 * |$this.occupied|)
+ *   ([bit i of $this.occupied is set] =
+ *    (i < |$this.hashTable|  and  $this.hashTable[i] /= null))  and
+ * ($this.oldTable = null) = ($this.oldOccupied = null)  and
+ * ($this.oldTable /= null  implies
+ *  (|$this.oldOccupied| = ceiling(|$this.oldTable| / 64)  and
+ *   for all i: integer
+ *       where (0 <= i  and  i < 64 * |$this.oldOccupied|)
+ *     ([bit i of $this.oldOccupied is set] =
+ *      (i < |$this.oldTable|  and  $this.oldTable[i] /= null))))  and
+ * 0 <= $this.firstOccupied  and
+ * [every bucket of $this.hashTable before $this.firstOccupied is
+ *  empty]  and
+ * ($this.oldTable /= null  implies
+ *  [every bucket of $this.oldTable in [$this.migrated,
+ *   $this.oldFirstOccupied) is empty])
  * </pre>
  * @correspondence <pre>
- * this = union i: integer, pf: PARTIAL_FUNCTION
- *            where (0 <= i  and  i < |$this.hashTable|  and
- *                   <pf> = $this.hashTable[i, i+1))
- *          (pf)
+ * this = {(k, v): (K, V)
+ *          where (there exists n: Node
+ *                   ([n is in a chain of $this.hashTable or $this.oldTable]
+ *                    and  n.key = k  and  n.value = v))}
  * </pre>
  *
  * @author Allen Zheng and Jared Koharik
@@ -41,100 +143,2751 @@ import components.map.MapSecondary;
 public class Map4<K, V> extends MapSecondary<K, V> {
 
     /*
-     * Private members --------------------------------------------------------
+     * Hash spreading functions -----------------------------------------------
+     */
+
+    /**
+     * Functions applied to {@code hashCode()} before the bucket is chosen, to
+     * break up the regular patterns produced by poor hash functions.
+     */
+    public enum Spreader {
+
+        /**
+         * Uses {@code hashCode()} unchanged.
+         */
+        IDENTITY {
+            @Override
+            public int spread(int h) {
+                return h;
+            }
+        },
+
+        /**
+         * The 32-bit finalizer of MurmurHash3; every input bit affects every
+         * output bit.
+         */
+        MURMUR3 {
+            @Override
+            public int spread(int h) {
+                int x = h;
+                x ^= x >>> 16;
+                x *= 0x85ebca6b;
+                x ^= x >>> 13;
+                x *= 0xc2b2ae35;
+                x ^= x >>> 16;
+                return x;
+            }
+        },
+
+        /**
+         * Fibonacci (multiplicative) hashing: multiplies by 2^32 divided by
+         * the golden ratio and folds the well-mixed high bits back down.
+         */
+        FIBONACCI {
+            @Override
+            public int spread(int h) {
+                int x = h * 0x9e3779b9;
+                return x ^ (x >>> 16);
+            }
+        };
+
+        /**
+         * Returns the spread version of hash code {@code h}.
+         *
+         * @param h
+         *            the hash code
+         * @return the spread hash code
+         * @ensures [spread is a deterministic function of h]
+         */
+        public abstract int spread(int h);
+
+    }
+
+    /**
+     * Forward-only view of the entries of a map, one at a time, that exposes
+     * the key and value of the current entry without creating a {@code Pair}
+     * for it.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     */
+    public interface Cursor<K, V> {
+
+        /**
+         * Moves to the next entry, if there is one.
+         *
+         * @return true iff there was a next entry
+         * @updates this
+         */
+        boolean advance();
+
+        /**
+         * Returns the key of the current entry.
+         *
+         * @return the current key
+         * @requires [the last call to advance returned true]
+         */
+        K key();
+
+        /**
+         * Returns the value of the current entry.
+         *
+         * @return the current value
+         * @requires [the last call to advance returned true]
+         */
+        V value();
+
+    }
+
+    /**
+     * Snapshot of the shape and (if enabled) the usage counters of a
+     * {@code Map4}, as returned by {@code metrics}.
+     */
+    public static final class Metrics {
+
+        /**
+         * Whether usage counting was enabled.
+         */
+        private final boolean enabled;
+
+        /**
+         * Number of entries.
+         */
+        private final int size;
+
+        /**
+         * Number of buckets (old table's unmigrated ones included).
+         */
+        private final int buckets;
+
+        /**
+         * Number of buckets of each length.
+         */
+        private final int[] histogram;
+
+        /**
+         * Number of lookups counted.
+         */
+        private final long lookups;
+
+        /**
+         * Total number of nodes examined by the lookups counted.
+         */
+        private final long probes;
+
+        /**
+         * Largest number of nodes examined by one lookup.
+         */
+        private final int maxProbeLength;
+
+        /**
+         * Number of calls to {@code hasKey} that returned true.
+         */
+        private final long hasKeyHits;
+
+        /**
+         * Number of calls to {@code hasKey} that returned false.
+         */
+        private final long hasKeyMisses;
+
+        /**
+         * Number of times the table started to grow.
+         */
+        private final int resizes;
+
+        /**
+         * Constructor from all the fields.
+         *
+         * @param enabled
+         *            whether usage counting was enabled
+         * @param size
+         *            number of entries
+         * @param buckets
+         *            number of buckets
+         * @param histogram
+         *            number of buckets of each length
+         * @param counters
+         *            the usage counters, or null if not enabled
+         */
+        Metrics(boolean enabled, int size, int buckets, int[] histogram,
+                Counters counters) {
+            this.enabled = enabled;
+            this.size = size;
+            this.buckets = buckets;
+            this.histogram = histogram;
+            if (counters == null) {
+                this.lookups = 0;
+                this.probes = 0;
+                this.maxProbeLength = 0;
+                this.hasKeyHits = 0;
+                this.hasKeyMisses = 0;
+                this.resizes = 0;
+            } else {
+                this.lookups = counters.lookups;
+                this.probes = counters.probes;
+                this.maxProbeLength = counters.maxProbeLength;
+                this.hasKeyHits = counters.hasKeyHits;
+                this.hasKeyMisses = counters.hasKeyMisses;
+                this.resizes = counters.resizes;
+            }
+        }
+
+        /**
+         * Reports whether usage counting was enabled; if not, all the
+         * counters are 0.
+         *
+         * @return true iff the map was counting
+         */
+        public boolean enabled() {
+            return this.enabled;
+        }
+
+        /**
+         * Reports the load factor: entries per bucket.
+         *
+         * @return size / buckets
+         */
+        public double loadFactor() {
+            return (double) this.size / this.buckets;
+        }
+
+        /**
+         * Reports the number of buckets of each length.
+         *
+         * @return an array whose entry i is the number of buckets holding i
+         *         entries, up to the longest bucket
+         */
+        public int[] bucketLengthHistogram() {
+            return this.histogram.clone();
+        }
+
+        /**
+         * Reports the number of lookups ({@code value}, {@code hasKey},
+         * {@code replaceValue}) counted.
+         *
+         * @return the number of lookups
+         */
+        public long lookups() {
+            return this.lookups;
+        }
+
+        /**
+         * Reports the average number of nodes examined per lookup.
+         *
+         * @return the average probe length, or 0 if there were no lookups
+         */
+        public double averageProbeLength() {
+            double result = 0;
+            if (this.lookups > 0) {
+                result = (double) this.probes / this.lookups;
+            }
+            return result;
+        }
+
+        /**
+         * Reports the largest number of nodes examined by one lookup.
+         *
+         * @return the maximum probe length
+         */
+        public int maxProbeLength() {
+            return this.maxProbeLength;
+        }
+
+        /**
+         * Reports the number of calls to {@code hasKey} that returned true.
+         *
+         * @return the number of hits
+         */
+        public long hasKeyHits() {
+            return this.hasKeyHits;
+        }
+
+        /**
+         * Reports the number of calls to {@code hasKey} that returned false.
+         *
+         * @return the number of misses
+         */
+        public long hasKeyMisses() {
+            return this.hasKeyMisses;
+        }
+
+        /**
+         * Reports the number of times the table started to grow.
+         *
+         * @return the number of resizes
+         */
+        public int resizes() {
+            return this.resizes;
+        }
+
+        @Override
+        public String toString() {
+            return "loadFactor=" + this.loadFactor() + " buckets="
+                    + this.buckets + " histogram="
+                    + Arrays.toString(this.histogram)
+                    + " enabled=" + this.enabled + " lookups=" + this.lookups
+                    + " averageProbeLength=" + this.averageProbeLength()
+                    + " maxProbeLength=" + this.maxProbeLength
+                    + " hasKeyHits=" + this.hasKeyHits + " hasKeyMisses="
+                    + this.hasKeyMisses + " resizes=" + this.resizes;
+        }
+
+    }
+
+    /*
+     * Private members --------------------------------------------------------
+     */
+
+    /**
+     * Default size of hash table.
+     */
+    private static final int DEFAULT_HASH_TABLE_SIZE = 101;
+
+    /**
+     * Default hash spreading function.
+     */
+    private static final Spreader DEFAULT_SPREADER = Spreader.MURMUR3;
+
+    /**
+     * Largest average bucket length allowed before the table is grown.
+     */
+    private static final int MAX_LOAD_FACTOR = 2;
+
+    /**
+     * Number of old buckets moved into the new table by each mutating call
+     * while a resize is in progress.
+     */
+    private static final int MIGRATION_STEP = 2;
+
+    /**
+     * Chain length beyond which a bucket is turned into a tree.
+     */
+    private static final int TREEIFY_THRESHOLD = 8;
+
+    /**
+     * Tree size at or below which a bucket is turned back into a chain.
+     */
+    private static final int UNTREEIFY_THRESHOLD = 6;
+
+    /**
+     * Base 2 logarithm of the number of bits in a word of an occupancy
+     * bitmap.
+     */
+    private static final int LOG_WORD_BITS = 6;
+
+    /**
+     * Number of entries or buckets below which a parallel bulk operation
+     * does the rest of the work in the current thread.
+     */
+    private static final int PARALLEL_GRAIN = 1 << 13;
+
+    /**
+     * Whether usage counters are kept by maps made with the public
+     * constructors, from the system property {@code Map4.metrics}.
+     */
+    private static final boolean METRICS = Boolean.getBoolean("Map4.metrics");
+
+    /**
+     * Usage counters of one map, kept only if counting is enabled for it.
+     */
+    private static final class Counters {
+
+        /**
+         * Number of lookups.
+         */
+        private long lookups;
+
+        /**
+         * Total number of nodes examined by lookups.
+         */
+        private long probes;
+
+        /**
+         * Largest number of nodes examined by one lookup.
+         */
+        private int maxProbeLength;
+
+        /**
+         * Number of calls to {@code hasKey} that returned true.
+         */
+        private long hasKeyHits;
+
+        /**
+         * Number of calls to {@code hasKey} that returned false.
+         */
+        private long hasKeyMisses;
+
+        /**
+         * Number of times the table started to grow.
+         */
+        private int resizes;
+
+    }
+
+    /**
+     * Node of a bucket chain; also serves as the {@code Pair} handed out by
+     * {@code remove}, {@code removeAny}, and the iterator. Its fields are not
+     * private so that they remain visible through {@code TreeNode}
+     * references; the class itself is private to {@code Map4}.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     */
+    private static class Node<K, V> implements Pair<K, V> {
+
+        /**
+         * Spread hash code of {@code key}.
+         */
+        final int hash;
+
+        /**
+         * The key.
+         */
+        final K key;
+
+        /**
+         * The value.
+         */
+        V value;
+
+        /**
+         * Next node in the chain, or {@code null}.
+         */
+        Node<K, V> next;
+
+        /**
+         * Constructor from hash, key, value, and next node.
+         *
+         * @param hash
+         *            spread hash code of key
+         * @param key
+         *            the key
+         * @param value
+         *            the value
+         * @param next
+         *            the next node in the chain
+         */
+        Node(int hash, K key, V value, Node<K, V> next) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+            this.next = next;
+        }
+
+        @Override
+        public final K key() {
+            return this.key;
+        }
+
+        @Override
+        public final V value() {
+            return this.value;
+        }
+
+    }
+
+    /**
+     * Node of a treeified bucket. It is still linked into the bucket's chain
+     * (doubly, so that it can be unlinked in constant time), which lets code
+     * that only walks the chain ignore the difference between the two kinds
+     * of bucket.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     */
+    private static final class TreeNode<K, V> extends Node<K, V> {
+
+        /**
+         * Previous node in the chain, or {@code null}.
+         */
+        private TreeNode<K, V> prev;
+
+        /**
+         * Left subtree, or {@code null}.
+         */
+        private TreeNode<K, V> left;
+
+        /**
+         * Right subtree, or {@code null}.
+         */
+        private TreeNode<K, V> right;
+
+        /**
+         * Height of the subtree rooted here.
+         */
+        private int height;
+
+        /**
+         * Constructor from hash, key, and value.
+         *
+         * @param hash
+         *            spread hash code of key
+         * @param key
+         *            the key
+         * @param value
+         *            the value
+         */
+        TreeNode(int hash, K key, V value) {
+            super(hash, key, value, null);
+            this.height = 1;
+        }
+
+    }
+
+    /**
+     * Buckets for hashing.
+     */
+    private Node<K, V>[] hashTable;
+
+    /**
+     * Buckets of the table being replaced, or {@code null} if no resize is in
+     * progress.
+     */
+    private Node<K, V>[] oldTable;
+
+    /**
+     * Number of buckets at the front of {@code oldTable} that have already
+     * been moved into {@code hashTable}.
+     */
+    private int migrated;
+
+    /**
+     * Occupancy bitmap of {@code hashTable}: bit i is set iff bucket i is not
+     * empty.
+     */
+    private long[] occupied;
+
+    /**
+     * Occupancy bitmap of {@code oldTable}, or {@code null} if no resize is in
+     * progress.
+     */
+    private long[] oldOccupied;
+
+    /**
+     * Position in {@code hashTable} before which every bucket is empty; where
+     * {@code removeAny} starts looking.
+     */
+    private int firstOccupied;
+
+    /**
+     * Position in {@code oldTable} before which every unmigrated bucket is
+     * empty.
+     */
+    private int oldFirstOccupied;
+
+    /**
+     * Total size of abstract {@code this}.
+     */
+    private int size;
+
+    /**
+     * Hash spreading function applied to every key.
+     */
+    private Spreader spreader;
+
+    /**
+     * Usage counters, or {@code null} if counting is not enabled. They belong
+     * to this object rather than to its value, so {@code clear} and
+     * {@code transferFrom} leave them alone.
+     */
+    private final Counters counters;
+
+    /**
+     * Computes {@code a} mod {@code b} as % should have been defined to work.
+     *
+     * @param a
+     *            the number being reduced
+     * @param b
+     *            the modulus
+     * @return the result of a mod b, which satisfies 0 <= {@code mod} < b
+     * @requires b > 0
+     * @ensures <pre>
+     * 0 <= mod  and  mod < b  and
+     * there exists k: integer (a = k * b + mod)
+     * </pre>
+     */
+    private static int mod(int a, int b) {
+        assert b > 0 : "Violation of: b > 0";
+
+        int remain = a % b;
+
+        if (remain < 0) {
+            remain += b;
+        }
+
+        return remain;
+    }
+
+    /**
+     * Returns a new table of {@code hashTableSize} empty buckets.
+     *
+     * @param <K>
+     *            type of {@code Map} domain (key) entries
+     * @param <V>
+     *            type of {@code Map} range (associated value) entries
+     * @param hashTableSize
+     *            the size of the table
+     * @return the new table
+     * @requires hashTableSize > 0
+     * @ensures |newTable| = hashTableSize  and  [all entries are null]
+     */
+    @SuppressWarnings("unchecked")
+    private static <K, V> Node<K, V>[] newTable(int hashTableSize) {
+        /*
+         * With "new Node<K, V>[...]" in place of "new Node[...]" it does not
+         * compile; as shown, it results in a warning about an unchecked
+         * conversion, though it cannot fail.
+         */
+        return new Node[hashTableSize];
+    }
+
+    /**
+     * Returns an occupancy bitmap, with no bits set, for a table of
+     * {@code hashTableSize} buckets.
+     *
+     * @param hashTableSize
+     *            the size of the table
+     * @return the new bitmap
+     * @requires hashTableSize > 0
+     * @ensures <pre>
+     * |newBitmap| = ceiling(hashTableSize / 64)  and  [no bit is set]
+     * </pre>
+     */
+    private static long[] newBitmap(int hashTableSize) {
+        return new long[((hashTableSize - 1) >>> LOG_WORD_BITS) + 1];
+    }
+
+    /**
+     * Sets bit {@code pos} of {@code bits} iff bucket {@code pos} of
+     * {@code table} is not empty.
+     *
+     * @param bits
+     *            the occupancy bitmap of table
+     * @param table
+     *            the table
+     * @param pos
+     *            the position of the bucket
+     * @updates bits
+     * @requires 0 <= pos < |table|
+     * @ensures [bit pos of bits is set] = (table[pos] /= null)
+     */
+    private static void updateBit(long[] bits, Node<?, ?>[] table, int pos) {
+        if (table[pos] == null) {
+            bits[pos >>> LOG_WORD_BITS] &= ~(1L << pos);
+        } else {
+            bits[pos >>> LOG_WORD_BITS] |= 1L << pos;
+        }
+    }
+
+    /**
+     * Returns the position of the first set bit of {@code bits} at or after
+     * {@code from}, or -1 if there is none.
+     *
+     * @param bits
+     *            the bitmap
+     * @param from
+     *            the position at which to start
+     * @return the first set position >= from, or -1
+     * @requires from >= 0
+     * @ensures <pre>
+     * (nextSetBit = -1  and  [no bit at or after from is set])  or
+     * (from <= nextSetBit  and  [bit nextSetBit is set]  and
+     *  [no bit in [from, nextSetBit) is set])
+     * </pre>
+     */
+    private static int nextSetBit(long[] bits, int from) {
+        int word = from >>> LOG_WORD_BITS;
+        if (word >= bits.length) {
+            return -1;
+        }
+        /*
+         * Shifting a long left by from uses only the low 6 bits of from, which
+         * is exactly the position of from within its word.
+         */
+        long w = bits[word] & (-1L << from);
+        while (w == 0) {
+            word++;
+            if (word == bits.length) {
+                return -1;
+            }
+            w = bits[word];
+        }
+        return (word << LOG_WORD_BITS) + Long.numberOfTrailingZeros(w);
+    }
+
+    /**
+     * Records that bucket {@code pos} of {@code table} may have changed
+     * between empty and non-empty, updating the occupancy bitmap and the
+     * first-occupied position of that table.
+     *
+     * @param table
+     *            $this.hashTable or $this.oldTable
+     * @param pos
+     *            the position of the bucket
+     * @updates $this.occupied, $this.oldOccupied, $this.firstOccupied,
+     *          $this.oldFirstOccupied
+     * @requires <pre>
+     * (table = $this.hashTable  or  table = $this.oldTable)  and
+     * 0 <= pos < |table|
+     * </pre>
+     * @ensures [the convention holds for bucket pos of table]
+     */
+    private void bucketChanged(Node<K, V>[] table, int pos) {
+        if (table == this.hashTable) {
+            updateBit(this.occupied, table, pos);
+            if (table[pos] != null && pos < this.firstOccupied) {
+                this.firstOccupied = pos;
+            }
+        } else {
+            updateBit(this.oldOccupied, table, pos);
+            if (table[pos] != null && pos < this.oldFirstOccupied) {
+                this.oldFirstOccupied = pos;
+            }
+        }
+    }
+
+    /**
+     * Creator of initial representation.
+     *
+     * @param hashTableSize
+     *            the size of the hash table
+     * @param hashSpreader
+     *            the hash spreading function
+     * @requires hashTableSize > 0
+     * @ensures <pre>
+     * |$this.hashTable| = hashTableSize  and
+     * for all i: integer
+     *     where (0 <= i  and  i < |$this.hashTable|)
+     *   ($this.hashTable[i, i+1) = <null>)  and
+     * $this.oldTable = null  and  $this.migrated = 0  and
+     * [no bit of $this.occupied is set]  and  $this.oldOccupied = null  and
+     * $this.firstOccupied = hashTableSize  and  $this.oldFirstOccupied = 0  and
+     * $this.size = 0  and  $this.spreader = hashSpreader
+     * </pre>
+     */
+    private void createNewRep(int hashTableSize, Spreader hashSpreader) {
+        this.hashTable = newTable(hashTableSize);
+        this.oldTable = null;
+        this.migrated = 0;
+        this.occupied = newBitmap(hashTableSize);
+        this.oldOccupied = null;
+        this.firstOccupied = hashTableSize;
+        this.oldFirstOccupied = 0;
+        this.size = 0;
+        this.spreader = hashSpreader;
+    }
+
+    /**
+     * Returns the spread hash code of {@code key}.
+     *
+     * @param key
+     *            the key
+     * @return HASH($this.spreader, key)
+     * @ensures hash = HASH($this.spreader, key)
+     */
+    private int hash(K key) {
+        return this.spreader.spread(key.hashCode());
+    }
+
+    /**
+     * Returns the table holding the home bucket of a key with spread hash
+     * code {@code hash}. Only one bucket ever has to be searched for a key: an
+     * old bucket that has not been migrated yet holds all of its keys, and
+     * once it has been migrated they are all in the new table.
+     *
+     * @param hash
+     *            the spread hash code of the key
+     * @return the table holding the home bucket
+     * @ensures <pre>
+     * for all x: K
+     *     where (HASH($this.spreader, x) = hash)
+     *   (there exists i: integer
+     *      (IS_HOME_BUCKET($this.spreader, $this.oldTable, $this.hashTable,
+     *                      $this.migrated, x, tableFor, i)))
+     * </pre>
+     */
+    private Node<K, V>[] tableFor(int hash) {
+        Node<K, V>[] table = this.hashTable;
+        if (this.oldTable != null
+                && mod(hash, this.oldTable.length) >= this.migrated) {
+            table = this.oldTable;
+        }
+        return table;
+    }
+
+    /**
+     * Reports whether {@code a} and {@code b} can be ordered by
+     * {@code compareTo}, i.e., whether they are of the same {@code Comparable}
+     * class.
+     *
+     * @param a
+     *            the first key
+     * @param b
+     *            the second key
+     * @return true iff a and b are of the same Comparable class
+     * @ensures <pre>
+     * canOrder = ([a and b are of the same class]  and
+     *             [that class implements Comparable])
+     * </pre>
+     */
+    private static boolean canOrder(Object a, Object b) {
+        return a instanceof Comparable<?> && a.getClass() == b.getClass();
+    }
+
+    /**
+     * Compares the key with spread hash code {@code hash} and key {@code key}
+     * with the key of {@code t}, by hash first and then by
+     * {@code compareTo}.
+     *
+     * @param hash
+     *            the spread hash code of key
+     * @param key
+     *            the key
+     * @param t
+     *            the tree node
+     * @return negative, zero, or positive as (hash, key) is less than, equal
+     *         to, or greater than (t.hash, t.key)
+     * @requires canOrder(key, t.key)
+     * @ensures [compare orders by hash, then by compareTo]
+     */
+    @SuppressWarnings("unchecked")
+    private static int compare(int hash, Object key, TreeNode<?, ?> t) {
+        if (hash != t.hash) {
+            return Integer.compare(hash, t.hash);
+        }
+        /*
+         * This cast cannot fail since canOrder(key, t.key) holds.
+         */
+        return ((Comparable<Object>) key).compareTo(t.key);
+    }
+
+    /**
+     * Returns the node of the chain starting at {@code head} holding
+     * {@code key}, or {@code null} if there is none. Keys are compared with
+     * {@code equals} only when the cached hash codes match, and a treeified
+     * bucket is searched as a tree.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     * @param head
+     *            the first node of the chain
+     * @param key
+     *            the key to be found
+     * @param hash
+     *            the spread hash code of key
+     * @return the node holding key, or null
+     * @ensures <pre>
+     * (findInBucket /= null  and  findInBucket.key = key  and
+     *  [findInBucket is in the chain at head])  or
+     * (findInBucket = null  and  [key is not in the chain at head])
+     * </pre>
+     */
+    private static <K, V> Node<K, V> findInBucket(Node<K, V> head, K key,
+            int hash) {
+        if (head instanceof TreeNode<?, ?> && canOrder(key, head.key)) {
+            TreeNode<K, V> t = (TreeNode<K, V>) head;
+            while (t != null) {
+                int c = compare(hash, key, t);
+                if (c < 0) {
+                    t = t.left;
+                } else if (c > 0) {
+                    t = t.right;
+                } else if (key.equals(t.key)) {
+                    return t;
+                } else {
+                    t = null;
+                }
+            }
+            return null;
+        }
+        /*
+         * A chain, or a tree whose keys cannot be ordered against this one (so
+         * cannot be equal to it for any well-behaved equals); walk the chain.
+         */
+        Node<K, V> n = head;
+        while (n != null && (n.hash != hash || !n.key.equals(key))) {
+            n = n.next;
+        }
+        return n;
+    }
+
+    /**
+     * Returns the node holding {@code key}, or {@code null} if there is none.
+     *
+     * @param key
+     *            the key to be found
+     * @param hash
+     *            HASH($this.spreader, key)
+     * @return the node holding key, or null
+     * @ensures <pre>
+     * (findNode /= null  and  findNode.key = key)  or
+     * (findNode = null  and  key is not in DOMAIN(this))
+     * </pre>
+     */
+    private Node<K, V> findNode(K key, int hash) {
+        Node<K, V>[] table = this.tableFor(hash);
+        Node<K, V> head = table[mod(hash, table.length)];
+        if (this.counters != null) {
+            int probes = probeLength(head, key, hash);
+            this.counters.lookups++;
+            this.counters.probes += probes;
+            this.counters.maxProbeLength = Math.max(
+                    this.counters.maxProbeLength, probes);
+        }
+        return findInBucket(head, key, hash);
+    }
+
+    /**
+     * Returns the number of nodes {@code findInBucket(head, key, hash)}
+     * examines. Used only for metrics, so it walks the bucket a second time
+     * rather than slow down {@code findInBucket}.
+     *
+     * @param head
+     *            the first node of the bucket
+     * @param key
+     *            the key to be found
+     * @param hash
+     *            the spread hash code of key
+     * @return the number of nodes examined
+     * @ensures [probeLength is the number of nodes findInBucket examines]
+     */
+    private static int probeLength(Node<?, ?> head, Object key, int hash) {
+        int probes = 0;
+        if (head instanceof TreeNode<?, ?> && canOrder(key, head.key)) {
+            TreeNode<?, ?> t = (TreeNode<?, ?>) head;
+            while (t != null) {
+                probes++;
+                int c = compare(hash, key, t);
+                if (c < 0) {
+                    t = t.left;
+                } else if (c > 0) {
+                    t = t.right;
+                } else {
+                    t = null;
+                }
+            }
+        } else {
+            Node<?, ?> n = head;
+            while (n != null) {
+                probes++;
+                if (n.hash == hash && n.key.equals(key)) {
+                    n = null;
+                } else {
+                    n = n.next;
+                }
+            }
+        }
+        return probes;
+    }
+
+    /**
+     * Unlinks the node holding {@code key} from its bucket and returns it.
+     *
+     * @param key
+     *            the key to be removed
+     * @param hash
+     *            HASH($this.spreader, key)
+     * @return the unlinked node, or null if key is not in DOMAIN(this)
+     * @updates $this.hashTable, $this.oldTable
+     * @ensures <pre>
+     * (unlinkNode /= null  and  unlinkNode.key = key  and
+     *  [unlinkNode is no longer in any bucket])  or
+     * (unlinkNode = null  and  key is not in DOMAIN(this))
+     * </pre>
+     */
+    private Node<K, V> unlinkNode(K key, int hash) {
+        Node<K, V>[] table = this.tableFor(hash);
+        int pos = mod(hash, table.length);
+        Node<K, V> n = findInBucket(table[pos], key, hash);
+        if (n != null) {
+            unlinkFromBucket(table, pos, n);
+            this.bucketChanged(table, pos);
+        }
+        return n;
+    }
+
+    /**
+     * Unlinks node {@code n} from bucket {@code pos} of {@code table}, turning
+     * the bucket back into a chain if it is a tree that has become small.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     * @param table
+     *            the table
+     * @param pos
+     *            the position of the bucket
+     * @param n
+     *            the node to unlink
+     * @updates table
+     * @requires [n is in the chain at table[pos]]
+     * @ensures <pre>
+     * [n is no longer in the chain at table[pos], which otherwise holds the
+     *  same nodes as before]
+     * </pre>
+     */
+    private static <K, V> void unlinkFromBucket(Node<K, V>[] table, int pos,
+            Node<K, V> n) {
+        Node<K, V> head = table[pos];
+        if (head instanceof TreeNode<?, ?>) {
+            TreeNode<K, V> t = (TreeNode<K, V>) n;
+            TreeNode<K, V> root = treeDelete((TreeNode<K, V>) head, t);
+            TreeNode<K, V> first = (TreeNode<K, V>) head;
+            if (t == first) {
+                first = (TreeNode<K, V>) t.next;
+            }
+            if (t.prev != null) {
+                t.prev.next = t.next;
+            }
+            if (t.next != null) {
+                ((TreeNode<K, V>) t.next).prev = t.prev;
+            }
+            t.prev = null;
+            t.left = null;
+            t.right = null;
+            t.height = 1;
+            table[pos] = moveToFront(first, root);
+            if (chainLength(table[pos],
+                    UNTREEIFY_THRESHOLD + 1) <= UNTREEIFY_THRESHOLD) {
+                untreeify(table, pos);
+            }
+        } else if (head == n) {
+            table[pos] = n.next;
+        } else {
+            Node<K, V> prev = head;
+            while (prev.next != n) {
+                prev = prev.next;
+            }
+            prev.next = n.next;
+        }
+        n.next = null;
+    }
+
+    /**
+     * Links node {@code n} into bucket {@code pos} of {@code table}, turning
+     * the bucket into a tree once its chain passes {@code TREEIFY_THRESHOLD}
+     * nodes, or back into a chain if {@code n} cannot be ordered against the
+     * keys already in a tree. A node of the wrong kind for the bucket is
+     * replaced by a copy of the right kind.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     * @param table
+     *            the table
+     * @param pos
+     *            the position of the bucket
+     * @param n
+     *            the node to link
+     * @updates table
+     * @requires [n.key is not in the chain at table[pos]]
+     * @ensures <pre>
+     * [the chain at table[pos] holds the nodes it held before and n (or a
+     *  copy of n)]
+     * </pre>
+     */
+    private static <K, V> void linkIntoBucket(Node<K, V>[] table, int pos,
+            Node<K, V> n) {
+        Node<K, V> head = table[pos];
+        if (head instanceof TreeNode<?, ?>) {
+            TreeNode<K, V> first = (TreeNode<K, V>) head;
+            if (canOrder(n.key, first.key) && !treeHasTie(first, n)) {
+                TreeNode<K, V> t = asTreeNode(n);
+                t.next = first.next;
+                if (first.next != null) {
+                    ((TreeNode<K, V>) first.next).prev = t;
+                }
+                first.next = t;
+                t.prev = first;
+                table[pos] = moveToFront(first, treeInsert(first, t));
+                return;
+            }
+            untreeify(table, pos);
+            head = table[pos];
+        }
+        Node<K, V> p = asPlainNode(n);
+        p.next = head;
+        table[pos] = p;
+        if (chainLength(p, TREEIFY_THRESHOLD + 2) == TREEIFY_THRESHOLD + 1) {
+            /*
+             * Only the insertion that takes the chain just past the threshold
+             * tries to treeify, so a chain that cannot be treeified is not
+             * retried on every later insertion.
+             */
+            treeify(table, pos);
+        }
+    }
+
+    /**
+     * Returns the number of nodes in the chain starting at {@code head}, or
+     * {@code limit} if that is smaller.
+     *
+     * @param head
+     *            the first node of the chain
+     * @param limit
+     *            the most nodes to count
+     * @return min(length of chain, limit)
+     * @ensures chainLength = min([length of chain at head], limit)
+     */
+    private static int chainLength(Node<?, ?> head, int limit) {
+        int length = 0;
+        for (Node<?, ?> n = head; n != null && length < limit; n = n.next) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Returns {@code n} if it is a plain node, or a plain copy of it.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     * @param n
+     *            the node
+     * @return a plain node with the hash, key, and value of n
+     * @ensures [asPlainNode is a Node but not a TreeNode, with n's contents]
+     */
+    private static <K, V> Node<K, V> asPlainNode(Node<K, V> n) {
+        Node<K, V> p = n;
+        if (n instanceof TreeNode<?, ?>) {
+            p = new Node<>(n.hash, n.key, n.value, null);
+        }
+        return p;
+    }
+
+    /**
+     * Returns {@code n} if it is a tree node, or a tree node copy of it.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     * @param n
+     *            the node
+     * @return a tree node with the hash, key, and value of n
+     * @ensures [asTreeNode is a TreeNode with n's contents]
+     */
+    private static <K, V> TreeNode<K, V> asTreeNode(Node<K, V> n) {
+        TreeNode<K, V> t;
+        if (n instanceof TreeNode<?, ?>) {
+            t = (TreeNode<K, V>) n;
+        } else {
+            t = new TreeNode<>(n.hash, n.key, n.value);
+        }
+        return t;
+    }
+
+    /**
+     * Turns the chain at {@code table[pos]} into a tree, unless its keys
+     * cannot all be ordered against each other, in which case it is left
+     * alone.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     * @param table
+     *            the table
+     * @param pos
+     *            the position of the bucket
+     * @updates table
+     * @requires [table[pos] is a non-empty chain of plain nodes]
+     * @ensures [the bucket holds the same entries as before]
+     */
+    private static <K, V> void treeify(Node<K, V>[] table, int pos) {
+        Node<K, V> head = table[pos];
+        for (Node<K, V> n = head; n != null; n = n.next) {
+            if (!canOrder(n.key, head.key)) {
+                return;
+            }
+        }
+        TreeNode<K, V> root = null;
+        TreeNode<K, V> first = null;
+        TreeNode<K, V> last = null;
+        for (Node<K, V> n = head; n != null; n = n.next) {
+            TreeNode<K, V> t = new TreeNode<>(n.hash, n.key, n.value);
+            if (root != null && treeHasTie(root, t)) {
+                /*
+                 * compareTo is inconsistent with equals for these keys, so
+                 * they cannot be kept in a search tree.
+                 */
+                return;
+            }
+            root = treeInsert(root, t);
+            if (first == null) {
+                first = t;
+            } else {
+                last.next = t;
+                t.prev = last;
+            }
+            last = t;
+        }
+        table[pos] = moveToFront(first, root);
+    }
+
+    /**
+     * Turns the tree at {@code table[pos]} back into a chain of plain nodes.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     * @param table
+     *            the table
+     * @param pos
+     *            the position of the bucket
+     * @updates table
+     * @requires [table[pos] is a tree]
+     * @ensures [the bucket holds the same entries as before, as a chain]
+     */
+    private static <K, V> void untreeify(Node<K, V>[] table, int pos) {
+        Node<K, V> head = null;
+        Node<K, V> last = null;
+        for (Node<K, V> n = table[pos]; n != null; n = n.next) {
+            Node<K, V> p = new Node<>(n.hash, n.key, n.value, null);
+            if (head == null) {
+                head = p;
+            } else {
+                last.next = p;
+            }
+            last = p;
+        }
+        table[pos] = head;
+    }
+
+    /**
+     * Moves {@code root} to the front of the chain whose first node is
+     * {@code first}, so that the bucket's chain and tree start at the same
+     * node, and returns it.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     * @param first
+     *            the first node of the chain
+     * @param root
+     *            the root of the tree, a node of the chain (or null)
+     * @return root
+     * @updates [the chain]
+     * @ensures [root is the first node of the chain]
+     */
+    private static <K, V> TreeNode<K, V> moveToFront(TreeNode<K, V> first,
+            TreeNode<K, V> root) {
+        if (root != null && root != first) {
+            root.prev.next = root.next;
+            if (root.next != null) {
+                ((TreeNode<K, V>) root.next).prev = root.prev;
+            }
+            root.prev = null;
+            root.next = first;
+            first.prev = root;
+        }
+        return root;
+    }
+
+    /**
+     * Reports whether the tree rooted at {@code root} holds a node that
+     * compares equal to {@code n} (a duplicate, or a different key that
+     * {@code compareTo} cannot tell apart from it).
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     * @param root
+     *            the root of the tree
+     * @param n
+     *            the node
+     * @return true iff some node compares equal to n
+     * @requires canOrder(n.key, [keys of the tree])
+     * @ensures treeHasTie = [some node in the tree compares equal to n]
+     */
+    private static <K, V> boolean treeHasTie(TreeNode<K, V> root,
+            Node<K, V> n) {
+        TreeNode<K, V> t = root;
+        int c = 1;
+        while (t != null && c != 0) {
+            c = compare(n.hash, n.key, t);
+            if (c < 0) {
+                t = t.left;
+            } else if (c > 0) {
+                t = t.right;
+            }
+        }
+        return t != null;
+    }
+
+    /**
+     * Returns the height of {@code t}.
+     *
+     * @param t
+     *            the tree, or null
+     * @return the height of t
+     * @ensures height = [height of t]
+     */
+    private static int height(TreeNode<?, ?> t) {
+        int h = 0;
+        if (t != null) {
+            h = t.height;
+        }
+        return h;
+    }
+
+    /**
+     * Rotates {@code t} to the right and returns the new subtree root.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     * @param t
+     *            the subtree root
+     * @return the new subtree root
+     * @requires t.left /= null
+     * @ensures [the subtree holds the same nodes in the same order]
+     */
+    private static <K, V> TreeNode<K, V> rotateRight(TreeNode<K, V> t) {
+        TreeNode<K, V> l = t.left;
+        t.left = l.right;
+        l.right = t;
+        t.height = Math.max(height(t.left), height(t.right)) + 1;
+        l.height = Math.max(height(l.left), height(l.right)) + 1;
+        return l;
+    }
+
+    /**
+     * Rotates {@code t} to the left and returns the new subtree root.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     * @param t
+     *            the subtree root
+     * @return the new subtree root
+     * @requires t.right /= null
+     * @ensures [the subtree holds the same nodes in the same order]
+     */
+    private static <K, V> TreeNode<K, V> rotateLeft(TreeNode<K, V> t) {
+        TreeNode<K, V> r = t.right;
+        t.right = r.left;
+        r.left = t;
+        t.height = Math.max(height(t.left), height(t.right)) + 1;
+        r.height = Math.max(height(r.left), height(r.right)) + 1;
+        return r;
+    }
+
+    /**
+     * Restores the AVL balance condition at {@code t}, whose subtrees are
+     * balanced and differ in height by at most 2, and returns the new subtree
+     * root.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     * @param t
+     *            the subtree root
+     * @return the new subtree root
+     * @ensures [the subtree holds the same nodes in the same order and is
+     *          balanced]
+     */
+    private static <K, V> TreeNode<K, V> rebalance(TreeNode<K, V> t) {
+        TreeNode<K, V> root = t;
+        int balance = height(t.left) - height(t.right);
+        if (balance > 1) {
+            if (height(t.left.left) < height(t.left.right)) {
+                t.left = rotateLeft(t.left);
+            }
+            root = rotateRight(t);
+        } else if (balance < -1) {
+            if (height(t.right.right) < height(t.right.left)) {
+                t.right = rotateRight(t.right);
+            }
+            root = rotateLeft(t);
+        } else {
+            t.height = Math.max(height(t.left), height(t.right)) + 1;
+        }
+        return root;
+    }
+
+    /**
+     * Inserts {@code n} into the tree rooted at {@code t} and returns the new
+     * root.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     * @param t
+     *            the tree, or null
+     * @param n
+     *            the node to insert
+     * @return the new root
+     * @requires not treeHasTie(t, n)
+     * @ensures [the tree holds its old nodes and n, and is balanced]
+     */
+    private static <K, V> TreeNode<K, V> treeInsert(TreeNode<K, V> t,
+            TreeNode<K, V> n) {
+        TreeNode<K, V> root = n;
+        if (t != null) {
+            if (compare(n.hash, n.key, t) < 0) {
+                t.left = treeInsert(t.left, n);
+            } else {
+                t.right = treeInsert(t.right, n);
+            }
+            root = rebalance(t);
+        }
+        return root;
+    }
+
+    /**
+     * Removes the smallest node from the tree rooted at {@code t} and returns
+     * the new root.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     * @param t
+     *            the tree
+     * @return the new root
+     * @requires t /= null
+     * @ensures [the tree holds its old nodes except the smallest]
+     */
+    private static <K, V> TreeNode<K, V> treeDeleteMin(TreeNode<K, V> t) {
+        TreeNode<K, V> root = t.right;
+        if (t.left != null) {
+            t.left = treeDeleteMin(t.left);
+            root = rebalance(t);
+        }
+        return root;
+    }
+
+    /**
+     * Removes node {@code n} from the tree rooted at {@code t} and returns the
+     * new root.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     * @param t
+     *            the tree
+     * @param n
+     *            the node to remove
+     * @return the new root
+     * @requires [n is in t]
+     * @ensures [the tree holds its old nodes except n, and is balanced]
+     */
+    private static <K, V> TreeNode<K, V> treeDelete(TreeNode<K, V> t,
+            TreeNode<K, V> n) {
+        TreeNode<K, V> root;
+        if (t == n) {
+            if (t.left == null) {
+                root = t.right;
+            } else if (t.right == null) {
+                root = t.left;
+            } else {
+                TreeNode<K, V> successor = t.right;
+                while (successor.left != null) {
+                    successor = successor.left;
+                }
+                successor.right = treeDeleteMin(t.right);
+                successor.left = t.left;
+                root = rebalance(successor);
+            }
+        } else {
+            if (compare(n.hash, n.key, t) < 0) {
+                t.left = treeDelete(t.left, n);
+            } else {
+                t.right = treeDelete(t.right, n);
+            }
+            root = rebalance(t);
+        }
+        return root;
+    }
+
+    /**
+     * Adds the pair ({@code key}, {@code value}) to {@code this}, hashing
+     * {@code key} and locating its bucket only once; the precondition is
+     * checked against that same bucket rather than through {@code hasKey}.
+     *
+     * @param key
+     *            the key to be added
+     * @param value
+     *            the associated value to be added
+     * @aliases references {@code key, value}
+     * @updates this
+     * @requires key is not in DOMAIN(this)
+     * @ensures this = #this union {(key, value)}
+     */
+    private void insert(K key, V value) {
+        int hash = this.hash(key);
+        Node<K, V>[] table = this.tableFor(hash);
+        int pos = mod(hash, table.length);
+        assert findInBucket(table[pos], key, hash) == null : ""
+                + "Violation of: key is not in DOMAIN(this)";
+
+        Node<K, V> n;
+        if (table[pos] instanceof TreeNode<?, ?>) {
+            n = new TreeNode<>(hash, key, value);
+        } else {
+            n = new Node<>(hash, key, value, null);
+        }
+        linkIntoBucket(table, pos, n);
+        this.bucketChanged(table, pos);
+        this.size++;
+        this.migrate();
+        this.growIfNeeded();
+    }
+
+    /**
+     * Returns a node of {@code this} whose value is {@code value}, or
+     * {@code null} if there is none.
+     *
+     * @param value
+     *            the value to be searched for
+     * @return a node holding value, or null
+     * @ensures <pre>
+     * (nodeWithValue /= null  and  nodeWithValue.value = value  and
+     *  [nodeWithValue is in a chain of $this])  or
+     * (nodeWithValue = null  and  value is not in RANGE(this))
+     * </pre>
+     */
+    private Node<K, V> nodeWithValue(V value) {
+        if (this.oldTable != null) {
+            for (int i = nextSetBit(this.oldOccupied, this.migrated); i >= 0;
+                    i = nextSetBit(this.oldOccupied, i + 1)) {
+                for (Node<K, V> n = this.oldTable[i]; n != null; n = n.next) {
+                    if (n.value.equals(value)) {
+                        return n;
+                    }
+                }
+            }
+        }
+        for (int i = nextSetBit(this.occupied, 0); i >= 0;
+                i = nextSetBit(this.occupied, i + 1)) {
+            for (Node<K, V> n = this.hashTable[i]; n != null; n = n.next) {
+                if (n.value.equals(value)) {
+                    return n;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Clears the links of {@code n}, so that it can be linked into another
+     * bucket.
+     *
+     * @param n
+     *            the node
+     * @updates n
+     * @ensures <pre>
+     * n.next = null  and
+     * [if n is a TreeNode, it has no prev, left, or right, and height 1]
+     * </pre>
+     */
+    private static void detach(Node<?, ?> n) {
+        n.next = null;
+        if (n instanceof TreeNode<?, ?>) {
+            TreeNode<?, ?> t = (TreeNode<?, ?>) n;
+            t.prev = null;
+            t.left = null;
+            t.right = null;
+            t.height = 1;
+        }
+    }
+
+    /**
+     * Moves up to {@code MIGRATION_STEP} buckets of {@code this.oldTable} into
+     * {@code this.hashTable}, dropping the old table once it is empty. Nodes
+     * are relinked using their cached hash codes, so no key is rehashed, and
+     * are copied only when they move between a chain and a tree.
+     *
+     * @updates $this
+     * @ensures this = #this
+     */
+    private void migrate() {
+        if (this.oldTable != null) {
+            int end = Math.min(this.migrated + MIGRATION_STEP,
+                    this.oldTable.length);
+            while (this.migrated < end) {
+                Node<K, V> n = this.oldTable[this.migrated];
+                this.oldTable[this.migrated] = null;
+                this.bucketChanged(this.oldTable, this.migrated);
+                while (n != null) {
+                    Node<K, V> next = n.next;
+                    detach(n);
+                    int pos = mod(n.hash, this.hashTable.length);
+                    linkIntoBucket(this.hashTable, pos, n);
+                    this.bucketChanged(this.hashTable, pos);
+                    n = next;
+                }
+                this.migrated++;
+            }
+            if (this.migrated == this.oldTable.length) {
+                this.oldTable = null;
+                this.oldOccupied = null;
+                this.migrated = 0;
+            }
+        }
+    }
+
+    /**
+     * Finishes a resize in progress, if any, moving every remaining bucket of
+     * {@code this.oldTable} into {@code this.hashTable}.
+     *
+     * @updates $this
+     * @ensures this = #this  and  $this.oldTable = null
+     */
+    private void finishMigration() {
+        while (this.oldTable != null) {
+            this.migrate();
+        }
+    }
+
+    /**
+     * Starts growing the table if the load factor has passed
+     * {@code MAX_LOAD_FACTOR}. A resize still in progress is finished first;
+     * since each {@code add} migrates at least one bucket and the new table
+     * is twice as large, this can only happen after many removals.
+     *
+     * @updates $this
+     * @ensures this = #this
+     */
+    private void growIfNeeded() {
+        if (this.size > this.hashTable.length * MAX_LOAD_FACTOR) {
+            this.finishMigration();
+            if (this.counters != null) {
+                this.counters.resizes++;
+            }
+            this.oldTable = this.hashTable;
+            this.oldOccupied = this.occupied;
+            this.oldFirstOccupied = this.firstOccupied;
+            this.migrated = 0;
+            this.hashTable = newTable(2 * this.oldTable.length + 1);
+            this.occupied = newBitmap(this.hashTable.length);
+            this.firstOccupied = this.hashTable.length;
+        }
+    }
+
+    /**
+     * Returns the length of every bucket chain, old table (unmigrated part)
+     * first. Intended for diagnostics and benchmarks.
+     *
+     * @return the bucket lengths
+     * @ensures <pre>
+     * [bucketLengths lists the number of nodes in each bucket of
+     *  $this.oldTable[$this.migrated, |$this.oldTable|) and of
+     *  $this.hashTable, in that order]
+     * </pre>
+     */
+    final int[] bucketLengths() {
+        int oldBuckets = 0;
+        if (this.oldTable != null) {
+            oldBuckets = this.oldTable.length - this.migrated;
+        }
+        int[] lengths = new int[oldBuckets + this.hashTable.length];
+        for (int i = 0; i < oldBuckets; i++) {
+            for (Node<K, V> n = this.oldTable[this.migrated + i]; n != null;
+                    n = n.next) {
+                lengths[i]++;
+            }
+        }
+        for (int i = 0; i < this.hashTable.length; i++) {
+            for (Node<K, V> n = this.hashTable[i]; n != null; n = n.next) {
+                lengths[oldBuckets + i]++;
+            }
+        }
+        return lengths;
+    }
+
+    /**
+     * Returns a snapshot of the load factor and bucket-length histogram of
+     * {@code this} and, if {@code Map4.metrics} is set, of its usage
+     * counters. Costs a pass over the table, but nothing elsewhere.
+     *
+     * @return the snapshot
+     * @ensures [metrics describes this as it is now]
+     */
+    public final Metrics metrics() {
+        int[] lengths = this.bucketLengths();
+        int max = 0;
+        for (int length : lengths) {
+            max = Math.max(max, length);
+        }
+        int[] histogram = new int[max + 1];
+        for (int length : lengths) {
+            histogram[length]++;
+        }
+        return new Metrics(this.counters != null, this.size, lengths.length,
+                histogram, this.counters);
+    }
+
+    /**
+     * Work on a range of integers.
+     */
+    private interface RangeAction {
+
+        /**
+         * Does the work for {@code [lo, hi)}.
+         *
+         * @param lo
+         *            the start of the range
+         * @param hi
+         *            the end of the range
+         */
+        void run(int lo, int hi);
+
+    }
+
+    /**
+     * Fork/join task that splits a range in halves, down to
+     * {@code PARALLEL_GRAIN}, and runs a {@code RangeAction} on each piece.
+     * Split points are multiples of {@code 1 << LOG_WORD_BITS}, so that two
+     * pieces of a range of buckets never share a word of an occupancy bitmap.
+     */
+    private static final class RangeTask extends RecursiveAction {
+
+        /**
+         * Serialization version (the task is never serialized).
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The work to be done.
+         */
+        private final transient RangeAction action;
+
+        /**
+         * Start of the range.
+         */
+        private final int lo;
+
+        /**
+         * End of the range.
+         */
+        private final int hi;
+
+        /**
+         * Constructor from action and range.
+         *
+         * @param action
+         *            the work to be done
+         * @param lo
+         *            the start of the range
+         * @param hi
+         *            the end of the range
+         */
+        RangeTask(RangeAction action, int lo, int hi) {
+            this.action = action;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            int mid = ((this.lo + this.hi) >>> 1) & -(1 << LOG_WORD_BITS);
+            if (this.hi - this.lo <= PARALLEL_GRAIN || mid <= this.lo) {
+                this.action.run(this.lo, this.hi);
+            } else {
+                invokeAll(new RangeTask(this.action, this.lo, mid),
+                        new RangeTask(this.action, mid, this.hi));
+            }
+        }
+
+    }
+
+    /**
+     * Runs {@code action} on {@code [0, n)}, split across the common
+     * {@code ForkJoinPool} if {@code parallel}.
+     *
+     * @param action
+     *            the work to be done
+     * @param n
+     *            the end of the range
+     * @param parallel
+     *            whether to run in parallel
+     * @ensures [action has been run on pieces covering [0, n) exactly once]
+     */
+    private static void runRange(RangeAction action, int n,
+            boolean parallel) {
+        if (parallel) {
+            ForkJoinPool.commonPool().invoke(new RangeTask(action, 0, n));
+        } else {
+            action.run(0, n);
+        }
+    }
+
+    /**
+     * Work on a range of the buckets of one table.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     */
+    private interface BucketRangeAction<K, V> {
+
+        /**
+         * Does the work for the buckets of {@code table} in {@code [lo, hi)}.
+         *
+         * @param table
+         *            the table
+         * @param bits
+         *            the occupancy bitmap of table
+         * @param lo
+         *            the first bucket
+         * @param hi
+         *            the end of the range of buckets
+         */
+        void run(Node<K, V>[] table, long[] bits, int lo, int hi);
+
+    }
+
+    /**
+     * Runs {@code action} on the buckets of {@code this} (the unmigrated
+     * buckets of the old table, if any, and those of the new table), split
+     * across the common {@code ForkJoinPool}. No entry is migrated, so the
+     * buckets stay where they are while action runs.
+     *
+     * @param action
+     *            the work to be done
+     * @requires [action may be run by several threads at once on disjoint
+     *           ranges]
+     * @ensures <pre>
+     * [action has been run on ranges covering the buckets of this exactly
+     *  once]
+     * </pre>
+     */
+    private void parallelBuckets(BucketRangeAction<K, V> action) {
+        if (this.oldTable != null) {
+            Node<K, V>[] old = this.oldTable;
+            long[] oldBits = this.oldOccupied;
+            int start = this.migrated;
+            runRange((lo, hi) -> {
+                if (hi > start) {
+                    action.run(old, oldBits, Math.max(lo, start), hi);
+                }
+            }, old.length, true);
+        }
+        Node<K, V>[] table = this.hashTable;
+        long[] bits = this.occupied;
+        runRange((lo, hi) -> action.run(table, bits, lo, hi), table.length,
+                true);
+    }
+
+    /**
+     * Returns the reduction with {@code reducer} of {@code transformer}
+     * applied to every node of {@code this}, or {@code null} if
+     * {@code this} is empty, splitting the buckets across the common
+     * {@code ForkJoinPool}. Each range of buckets is reduced on its own and
+     * the partial results are then combined in no particular order.
+     *
+     * @param <R>
+     *            type of the result
+     * @param transformer
+     *            the function applied to each node
+     * @param reducer
+     *            the function combining two results
+     * @return the reduction, or null
+     * @requires <pre>
+     * [transformer and reducer may be run by several threads at once, do not
+     *  change this, and do not return null]  and
+     * [reducer is associative and commutative]
+     * </pre>
+     * @ensures <pre>
+     * (reduceNodes = null  and  this = {})  or
+     * reduceNodes = [the reduction of transformer over the nodes of this]
+     * </pre>
+     */
+    private <R> R reduceNodes(
+            Function<? super Node<K, V>, ? extends R> transformer,
+            BinaryOperator<R> reducer) {
+        AtomicReference<R> result = new AtomicReference<>();
+        BinaryOperator<R> combine = (x, y) -> {
+            R r = y;
+            if (x != null) {
+                r = reducer.apply(x, y);
+            }
+            return r;
+        };
+        this.parallelBuckets((table, bits, lo, hi) -> {
+            R partial = null;
+            for (int i = nextSetBit(bits, lo); i >= 0 && i < hi;
+                    i = nextSetBit(bits, i + 1)) {
+                for (Node<K, V> n = table[i]; n != null; n = n.next) {
+                    partial = combine.apply(partial, transformer.apply(n));
+                }
+            }
+            if (partial != null) {
+                result.accumulateAndGet(partial, combine);
+            }
+        });
+        return result.get();
+    }
+
+    /**
+     * Fills the empty table of {@code this} with the first {@code n} entries
+     * of {@code keys} and {@code values}, in one pass that sorts the entries
+     * by bucket (with a counting sort) followed by one pass over the
+     * buckets, each built in full and treeified if long. Hashing and building
+     * the buckets can be split across the common {@code ForkJoinPool}.
+     *
+     * @param keys
+     *            the keys
+     * @param values
+     *            the values, in the same order as their keys
+     * @param n
+     *            the number of entries
+     * @param parallel
+     *            whether to hash and build in parallel
+     * @updates this
+     * @requires <pre>
+     * this = {}  and  $this.oldTable = null  and
+     * n <= |keys|  and  n <= |values|  and
+     * [the first n keys are not null and are all different, and the first n
+     *  values are not null]
+     * </pre>
+     * @ensures this = {(keys[i], values[i]): 0 <= i < n}
+     */
+    private void loadAll(K[] keys, V[] values, int n, boolean parallel) {
+        Node<K, V>[] table = this.hashTable;
+        int length = table.length;
+        int[] hashes = new int[n];
+        runRange((lo, hi) -> {
+            for (int i = lo; i < hi; i++) {
+                assert keys[i] != null : "Violation of: keys are not null";
+                assert values[i] != null : "Violation of: values are not null";
+                hashes[i] = this.hash(keys[i]);
+            }
+        }, n, parallel);
+
+        /*
+         * Counting sort of the entries by bucket: after this, the entries of
+         * bucket pos are order[start[pos], start[pos + 1]).
+         */
+        int[] start = new int[length + 1];
+        for (int i = 0; i < n; i++) {
+            start[mod(hashes[i], length) + 1]++;
+        }
+        for (int pos = 0; pos < length; pos++) {
+            start[pos + 1] += start[pos];
+        }
+        int[] order = new int[n];
+        int[] fill = start.clone();
+        for (int i = 0; i < n; i++) {
+            order[fill[mod(hashes[i], length)]++] = i;
+        }
+
+        runRange((lo, hi) -> {
+            for (int pos = lo; pos < hi; pos++) {
+                Node<K, V> head = null;
+                for (int j = start[pos]; j < start[pos + 1]; j++) {
+                    int i = order[j];
+                    assert findInBucket(head, keys[i], hashes[i]) == null : ""
+                            + "Violation of: the keys are all different";
+                    head = new Node<>(hashes[i], keys[i], values[i], head);
+                }
+                table[pos] = head;
+                updateBit(this.occupied, table, pos);
+                if (start[pos + 1] - start[pos] > TREEIFY_THRESHOLD) {
+                    treeify(table, pos);
+                }
+            }
+        }, length, parallel);
+
+        this.size = n;
+        int first = nextSetBit(this.occupied, 0);
+        if (first >= 0) {
+            this.firstOccupied = first;
+        }
+    }
+
+    /**
+     * Returns a new {@code Map4} with a table sized for {@code n} entries,
+     * holding the first {@code n} entries of {@code keys} and {@code values}.
+     *
+     * @param <K>
+     *            type of {@code Map} domain (key) entries
+     * @param <V>
+     *            type of {@code Map} range (associated value) entries
+     * @param keys
+     *            the keys
+     * @param values
+     *            the values, in the same order as their keys
+     * @param n
+     *            the number of entries
+     * @param parallel
+     *            whether to build in parallel
+     * @return the new map
+     * @requires <pre>
+     * n <= |keys|  and  n <= |values|  and
+     * [the first n keys are not null and are all different, and the first n
+     *  values are not null]
+     * </pre>
+     * @ensures load = {(keys[i], values[i]): 0 <= i < n}
+     */
+    private static <K, V> Map4<K, V> load(K[] keys, V[] values, int n,
+            boolean parallel) {
+        /*
+         * One bucket per entry (odd, like the sizes the table grows to) keeps
+         * the chains short and leaves room to grow before the first resize.
+         */
+        Map4<K, V> result = new Map4<>(
+                Math.max(DEFAULT_HASH_TABLE_SIZE, n | 1));
+        result.loadAll(keys, values, n, parallel);
+        return result;
+    }
+
+    /**
+     * Returns a new {@code Map4} holding the pairs remaining in
+     * {@code pairs}, built as by {@code load}.
+     *
+     * @param <K>
+     *            type of {@code Map} domain (key) entries
+     * @param <V>
+     *            type of {@code Map} range (associated value) entries
+     * @param pairs
+     *            the pairs
+     * @param parallel
+     *            whether to build in parallel
+     * @return the new map
+     * @updates pairs
+     * @requires [the keys of the remaining pairs are not null and are all
+     *           different, and the values are not null]
+     * @ensures <pre>
+     * loadFrom = [the remaining pairs of #pairs]  and  ~pairs.unseen = <>
+     * </pre>
+     */
+    @SuppressWarnings("unchecked")
+    private static <K, V> Map4<K, V> loadFrom(
+            Iterator<? extends Pair<K, V>> pairs, boolean parallel) {
+        List<K> keys = new ArrayList<>();
+        List<V> values = new ArrayList<>();
+        while (pairs.hasNext()) {
+            Pair<K, V> p = pairs.next();
+            keys.add(p.key());
+            values.add(p.value());
+        }
+        /*
+         * The arrays are only read as K[] and V[] by load, so these unchecked
+         * conversions cannot fail.
+         */
+        return load((K[]) keys.toArray(), (V[]) values.toArray(), keys.size(),
+                parallel);
+    }
+
+    /**
+     * Binary snapshot format of {@code writeSnapshot} and
+     * {@code readSnapshot}. A file holds, all big-endian:
+     * <ul>
+     * <li>a header of {@code HEADER_SIZE} bytes: magic number, version,
+     * ordinal of the spreader, number of buckets, number of entries, buckets
+     * per chunk, end of the data (a long), and a CRC32 of the header before
+     * it and of the chunk directory;</li>
+     * <li>the chunk directory: for each run of {@code CHUNK_BUCKETS} buckets,
+     * the file offset of its first entry (a long), its number of entries, and
+     * the CRC32 of its entries;</li>
+     * <li>the entries, bucket by bucket: spread hash code, key length, value
+     * length, then the key and value as encoded by the codecs.</li>
+     * </ul>
+     * Since every entry carries its spread hash code, a reload finds its
+     * bucket without calling {@code hashCode}, and since chunks start at
+     * multiples of 64 buckets, the ranges of {@code runRange} are made of
+     * whole chunks and can be mapped, checked, and decoded in parallel.
+     */
+    private static final class Snapshot {
+
+        /**
+         * Magic number at the start of a snapshot ("M4SN").
+         */
+        private static final int MAGIC = 0x4D34534E;
+
+        /**
+         * Version of the format.
+         */
+        private static final int VERSION = 1;
+
+        /**
+         * Offset of the magic number.
+         */
+        private static final int MAGIC_OFFSET = 0;
+
+        /**
+         * Offset of the version.
+         */
+        private static final int VERSION_OFFSET = 4;
+
+        /**
+         * Offset of the ordinal of the spreader.
+         */
+        private static final int SPREADER_OFFSET = 8;
+
+        /**
+         * Offset of the number of buckets.
+         */
+        private static final int BUCKET_COUNT_OFFSET = 12;
+
+        /**
+         * Offset of the number of entries.
+         */
+        private static final int SIZE_OFFSET = 16;
+
+        /**
+         * Offset of the number of buckets per chunk.
+         */
+        private static final int CHUNK_OFFSET = 20;
+
+        /**
+         * Offset of the end of the data.
+         */
+        private static final int DATA_END_OFFSET = 24;
+
+        /**
+         * Offset of the CRC32 of the header before it and the directory.
+         */
+        private static final int CRC_OFFSET = 32;
+
+        /**
+         * Size of the header.
+         */
+        private static final int HEADER_SIZE = 40;
+
+        /**
+         * Number of buckets in a chunk.
+         */
+        private static final int CHUNK_BUCKETS = 1 << LOG_WORD_BITS;
+
+        /**
+         * Size of a directory entry: offset, count, and CRC32 of a chunk.
+         */
+        private static final int DIRECTORY_ENTRY_SIZE = 16;
+
+        /**
+         * Size of the fixed part of an entry: hash, key length, value length.
+         */
+        private static final int ENTRY_HEADER_SIZE = 12;
+
+        /**
+         * Size of the buffer used for writing.
+         */
+        private static final int BUFFER_SIZE = 1 << 20;
+
+        /**
+         * Private constructor so this utility class cannot be instantiated.
+         */
+        private Snapshot() {
+        }
+
+        /**
+         * Returns the exception reporting that {@code file} is damaged.
+         *
+         * @param file
+         *            the file
+         * @param detail
+         *            what is wrong
+         * @return the exception
+         */
+        private static IOException corrupt(Path file, String detail) {
+            return new IOException(
+                    "Corrupt Map4 snapshot " + file + ": " + detail);
+        }
+
+        /**
+         * Writes the contents of {@code buffer} to {@code channel}, after
+         * adding its bytes from {@code mark} on to {@code crc}, and empties
+         * it.
+         *
+         * @param channel
+         *            the channel
+         * @param buffer
+         *            the buffer, backed by an array
+         * @param mark
+         *            the first byte of buffer not yet added to crc
+         * @param crc
+         *            the checksum of the current chunk
+         * @throws IOException
+         *             if the channel cannot be written
+         * @updates channel, buffer, crc
+         */
+        private static void flush(FileChannel channel, ByteBuffer buffer,
+                int mark, CRC32 crc) throws IOException {
+            crc.update(buffer.array(), mark, buffer.position() - mark);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Writes {@code m} to {@code file}, through a temporary file moved
+         * into place once complete.
+         *
+         * @param <K>
+         *            type of key
+         * @param <V>
+         *            type of value
+         * @param m
+         *            the map
+         * @param file
+         *            the file
+         * @param keyCodec
+         *            the encoding of keys
+         * @param valueCodec
+         *            the encoding of values
+         * @throws IOException
+         *             if the file cannot be written
+         * @updates m
+         * @ensures m = #m  and  [file holds a snapshot of m]
+         */
+        static <K, V> void write(Map4<K, V> m, Path file, Codec<K> keyCodec,
+                Codec<V> valueCodec) throws IOException {
+            m.finishMigration();
+            Node<K, V>[] table = m.hashTable;
+            int chunks = (table.length + CHUNK_BUCKETS - 1) / CHUNK_BUCKETS;
+            ByteBuffer directory = ByteBuffer
+                    .allocate(chunks * DIRECTORY_ENTRY_SIZE);
+            long offset = HEADER_SIZE + (long) directory.capacity();
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                channel.position(offset);
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                CRC32 crc = new CRC32();
+                for (int c = 0; c < chunks; c++) {
+                    int lo = c * CHUNK_BUCKETS;
+                    int hi = Math.min(table.length, lo + CHUNK_BUCKETS);
+                    long chunkStart = offset;
+                    int count = 0;
+                    int mark = buffer.position();
+                    crc.reset();
+                    for (int i = nextSetBit(m.occupied, lo); i >= 0 && i < hi;
+                            i = nextSetBit(m.occupied, i + 1)) {
+                        for (Node<K, V> n = table[i]; n != null; n = n.next) {
+                            byte[] key = keyCodec.encode(n.key);
+                            byte[] value = valueCodec.encode(n.value);
+                            int length = ENTRY_HEADER_SIZE + key.length
+                                    + value.length;
+                            if (buffer.remaining() < length) {
+                                flush(channel, buffer, mark, crc);
+                                mark = 0;
+                                if (buffer.capacity() < length) {
+                                    buffer = ByteBuffer.allocate(length);
+                                }
+                            }
+                            buffer.putInt(n.hash).putInt(key.length)
+                                    .putInt(value.length).put(key).put(value);
+                            offset += length;
+                            count++;
+                        }
+                    }
+                    crc.update(buffer.array(), mark,
+                            buffer.position() - mark);
+                    directory.putLong(chunkStart).putInt(count)
+                            .putInt((int) crc.getValue());
+                }
+                flush(channel, buffer, buffer.position(), crc);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC_OFFSET, MAGIC)
+                        .putInt(VERSION_OFFSET, VERSION)
+                        .putInt(SPREADER_OFFSET, m.spreader.ordinal())
+                        .putInt(BUCKET_COUNT_OFFSET, table.length)
+                        .putInt(SIZE_OFFSET, m.size)
+                        .putInt(CHUNK_OFFSET, CHUNK_BUCKETS)
+                        .putLong(DATA_END_OFFSET, offset);
+                crc.reset();
+                crc.update(header.array(), 0, CRC_OFFSET);
+                crc.update(directory.array(), 0, directory.capacity());
+                header.putInt(CRC_OFFSET, (int) crc.getValue());
+                directory.flip();
+                channel.position(0);
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while (directory.hasRemaining()) {
+                    channel.write(directory);
+                }
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Returns a new {@code Map4} holding the snapshot in {@code file}.
+         *
+         * @param <K>
+         *            type of key
+         * @param <V>
+         *            type of value
+         * @param file
+         *            the file
+         * @param keyCodec
+         *            the encoding of keys
+         * @param valueCodec
+         *            the encoding of values
+         * @param parallel
+         *            whether to map, check, and decode chunks in parallel
+         * @return the map
+         * @throws IOException
+         *             if the file cannot be read, is not a snapshot, or is
+         *             damaged
+         * @ensures [read holds the entries of the snapshot in file]
+         */
+        static <K, V> Map4<K, V> read(Path file, Codec<K> keyCodec,
+                Codec<V> valueCodec, boolean parallel) throws IOException {
+            try (FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.READ)) {
+                if (channel.size() < HEADER_SIZE) {
+                    throw new IOException("Not a Map4 snapshot: " + file);
+                }
+                ByteBuffer header = channel
+                        .map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if (header.getInt(MAGIC_OFFSET) != MAGIC) {
+                    throw new IOException("Not a Map4 snapshot: " + file);
+                }
+                if (header.getInt(VERSION_OFFSET) != VERSION
+                        || header.getInt(CHUNK_OFFSET) != CHUNK_BUCKETS) {
+                    throw new IOException("Unsupported Map4 snapshot version "
+                            + header.getInt(VERSION_OFFSET) + ": " + file);
+                }
+                int spreader = header.getInt(SPREADER_OFFSET);
+                int bucketCount = header.getInt(BUCKET_COUNT_OFFSET);
+                int size = header.getInt(SIZE_OFFSET);
+                long dataEnd = header.getLong(DATA_END_OFFSET);
+                if (bucketCount <= 0 || size < 0 || spreader < 0
+                        || spreader >= Spreader.values().length) {
+                    throw corrupt(file, "bad header");
+                }
+                int chunks = (bucketCount + CHUNK_BUCKETS - 1)
+                        / CHUNK_BUCKETS;
+                long dataStart = HEADER_SIZE
+                        + (long) chunks * DIRECTORY_ENTRY_SIZE;
+                if (dataEnd < dataStart || dataEnd > channel.size()) {
+                    throw corrupt(file, "bad header");
+                }
+                ByteBuffer directory = channel.map(
+                        FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+                        dataStart - HEADER_SIZE);
+                CRC32 crc = new CRC32();
+                ByteBuffer checked = header.duplicate();
+                checked.limit(CRC_OFFSET);
+                crc.update(checked);
+                crc.update(directory.duplicate());
+                if ((int) crc.getValue() != header.getInt(CRC_OFFSET)) {
+                    throw corrupt(file, "header checksum mismatch");
+                }
+
+                Map4<K, V> result = new Map4<>(bucketCount,
+                        Spreader.values()[spreader]);
+                AtomicInteger loaded = new AtomicInteger();
+                try {
+                    runRange((lo, hi) -> {
+                        for (int b = lo; b < hi; b += PARALLEL_GRAIN) {
+                            loaded.addAndGet(loadChunks(file, channel,
+                                    directory, dataEnd, result, b,
+                                    Math.min(hi, b + PARALLEL_GRAIN),
+                                    keyCodec, valueCodec));
+                        }
+                    }, bucketCount, parallel);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                if (loaded.get() != size) {
+                    throw corrupt(file, "entry count mismatch");
+                }
+                result.size = size;
+                int first = nextSetBit(result.occupied, 0);
+                if (first >= 0) {
+                    result.firstOccupied = first;
+                }
+                return result;
+            }
+        }
+
+        /**
+         * Maps the chunks holding buckets {@code [lo, hi)} of the snapshot,
+         * checks them, and links their entries into the table of
+         * {@code m}.
+         *
+         * @param <K>
+         *            type of key
+         * @param <V>
+         *            type of value
+         * @param file
+         *            the file, for error messages
+         * @param channel
+         *            the open file
+         * @param directory
+         *            the chunk directory
+         * @param dataEnd
+         *            the end of the data
+         * @param m
+         *            the map being loaded
+         * @param lo
+         *            the first bucket
+         * @param hi
+         *            the end of the range of buckets
+         * @param keyCodec
+         *            the encoding of keys
+         * @param valueCodec
+         *            the encoding of values
+         * @return the number of entries loaded
+         * @updates m
+         * @requires <pre>
+         * lo is a multiple of CHUNK_BUCKETS  and
+         * (hi is a multiple of CHUNK_BUCKETS  or  hi = |$m.hashTable|)
+         * </pre>
+         * @ensures <pre>
+         * [buckets [lo, hi) of m hold the entries of those chunks]
+         * </pre>
+         */
+        private static <K, V> int loadChunks(Path file, FileChannel channel,
+                ByteBuffer directory, long dataEnd, Map4<K, V> m, int lo,
+                int hi, Codec<K> keyCodec, Codec<V> valueCodec) {
+            Node<K, V>[] table = m.hashTable;
+            int chunks = directory.capacity() / DIRECTORY_ENTRY_SIZE;
+            int firstChunk = lo / CHUNK_BUCKETS;
+            int endChunk = (hi + CHUNK_BUCKETS - 1) / CHUNK_BUCKETS;
+            long[] offsets = new long[endChunk - firstChunk + 1];
+            for (int c = firstChunk; c <= endChunk; c++) {
+                long offset = dataEnd;
+                if (c < chunks) {
+                    offset = directory.getLong(c * DIRECTORY_ENTRY_SIZE);
+                }
+                offsets[c - firstChunk] = offset;
+            }
+            long start = offsets[0];
+            long end = offsets[offsets.length - 1];
+            ByteBuffer data;
+            try {
+                if (start > end || end > dataEnd
+                        || end - start > Integer.MAX_VALUE) {
+                    throw corrupt(file, "bad chunk directory");
+                }
+                data = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        end - start);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            ByteBuffer view = data.duplicate();
+            CRC32 crc = new CRC32();
+            int loaded = 0;
+            for (int c = firstChunk; c < endChunk; c++) {
+                int chunkStart = (int) (offsets[c - firstChunk] - start);
+                int chunkEnd = (int) (offsets[c - firstChunk + 1] - start);
+                int count = directory.getInt(c * DIRECTORY_ENTRY_SIZE + 8);
+                int checksum = directory
+                        .getInt(c * DIRECTORY_ENTRY_SIZE + 12);
+                if (chunkStart > chunkEnd) {
+                    throw new UncheckedIOException(
+                            corrupt(file, "bad chunk directory"));
+                }
+                view.limit(chunkEnd).position(chunkStart);
+                crc.reset();
+                crc.update(view);
+                if ((int) crc.getValue() != checksum) {
+                    throw new UncheckedIOException(corrupt(file,
+                            "checksum mismatch in chunk " + c));
+                }
+                int bucketLo = c * CHUNK_BUCKETS;
+                int bucketHi = Math.min(table.length,
+                        bucketLo + CHUNK_BUCKETS);
+                int p = chunkStart;
+                for (int i = 0; i < count; i++) {
+                    if (chunkEnd - p < ENTRY_HEADER_SIZE) {
+                        throw new UncheckedIOException(
+                                corrupt(file, "truncated chunk " + c));
+                    }
+                    int hash = data.getInt(p);
+                    int keyLength = data.getInt(p + 4);
+                    int valueLength = data.getInt(p + 8);
+                    int keyStart = p + ENTRY_HEADER_SIZE;
+                    if (keyLength < 0 || valueLength < 0
+                            || chunkEnd - keyStart < keyLength
+                            || chunkEnd - keyStart - keyLength < valueLength) {
+                        throw new UncheckedIOException(
+                                corrupt(file, "truncated chunk " + c));
+                    }
+                    int pos = mod(hash, table.length);
+                    if (pos < bucketLo || pos >= bucketHi) {
+                        throw new UncheckedIOException(
+                                corrupt(file, "misplaced entry in chunk " + c));
+                    }
+                    view.limit(keyStart + keyLength).position(keyStart);
+                    K key = keyCodec.decode(view);
+                    view.limit(keyStart + keyLength + valueLength)
+                            .position(keyStart + keyLength);
+                    V value = valueCodec.decode(view);
+                    table[pos] = new Node<>(hash, key, value, table[pos]);
+                    p = keyStart + keyLength + valueLength;
+                }
+                if (p != chunkEnd) {
+                    throw new UncheckedIOException(
+                            corrupt(file, "bad entry count in chunk " + c));
+                }
+                loaded += count;
+                for (int pos = bucketLo; pos < bucketHi; pos++) {
+                    if (table[pos] != null) {
+                        updateBit(m.occupied, table, pos);
+                        if (chainLength(table[pos],
+                                TREEIFY_THRESHOLD + 1) > TREEIFY_THRESHOLD) {
+                            treeify(table, pos);
+                        }
+                    }
+                }
+            }
+            return loaded;
+        }
+
+    }
+
+    /*
+     * Constructors -----------------------------------------------------------
      */
 
     /**
-     * Default size of hash table.
+     * No-argument constructor.
      */
-    private static final int DEFAULT_HASH_TABLE_SIZE = 101;
+    public Map4() {
+        this(DEFAULT_HASH_TABLE_SIZE, DEFAULT_SPREADER, METRICS);
+    }
 
     /**
-     * Buckets for hashing.
+     * Constructor resulting in a hash table of initial size
+     * {@code hashTableSize}.
+     *
+     * @param hashTableSize
+     *            initial size of hash table
+     * @requires hashTableSize > 0
+     * @ensures this = {}
      */
-    private Map<K, V>[] hashTable;
+    public Map4(int hashTableSize) {
+        this(hashTableSize, DEFAULT_SPREADER, METRICS);
+    }
 
     /**
-     * Total size of abstract {@code this}.
+     * Constructor resulting in a hash table of initial size
+     * {@code hashTableSize} that applies {@code hashSpreader} to every hash
+     * code.
+     *
+     * @param hashTableSize
+     *            initial size of hash table
+     * @param hashSpreader
+     *            hash spreading function
+     * @requires hashTableSize > 0 and hashSpreader is not null
+     * @ensures this = {}
      */
-    private int size;
+    public Map4(int hashTableSize, Spreader hashSpreader) {
+        this(hashTableSize, hashSpreader, METRICS);
+    }
 
     /**
-     * Computes {@code a} mod {@code b} as % should have been defined to work.
+     * Constructor resulting in a hash table of initial size
+     * {@code hashTableSize} that applies {@code hashSpreader} to every hash
+     * code and keeps usage counters iff {@code countUsage}, whatever
+     * {@code Map4.metrics} says.
      *
-     * @param a
-     *            the number being reduced
-     * @param b
-     *            the modulus
-     * @return the result of a mod b, which satisfies 0 <= {@code mod} < b
-     * @requires b > 0
-     * @ensures <pre>
-     * 0 <= mod  and  mod < b  and
-     * there exists k: integer (a = k * b + mod)
+     * @param hashTableSize
+     *            initial size of hash table
+     * @param hashSpreader
+     *            hash spreading function
+     * @param countUsage
+     *            whether to keep usage counters
+     * @requires hashTableSize > 0 and hashSpreader is not null
+     * @ensures this = {}
+     */
+    Map4(int hashTableSize, Spreader hashSpreader, boolean countUsage) {
+        assert hashSpreader != null : "Violation of: hashSpreader is not null";
+
+        if (countUsage) {
+            this.counters = new Counters();
+        } else {
+            this.counters = null;
+        }
+        this.createNewRep(hashTableSize, hashSpreader);
+    }
+
+    /*
+     * Bulk loading -----------------------------------------------------------
+     */
+
+    /**
+     * Returns a new {@code Map4} holding the pairs ({@code keys[i]},
+     * {@code values[i]}). Much faster than a loop of {@code add}: the table
+     * is sized once for all the entries and each bucket is built in one go.
+     *
+     * @param <K>
+     *            type of {@code Map} domain (key) entries
+     * @param <V>
+     *            type of {@code Map} range (associated value) entries
+     * @param keys
+     *            the keys
+     * @param values
+     *            the values, in the same order as their keys
+     * @param parallel
+     *            whether to split the work across the common
+     *            {@code ForkJoinPool}
+     * @return the new map
+     * @requires <pre>
+     * |keys| = |values|  and  [the keys are not null and are all
+     *  different]  and  [the values are not null]
      * </pre>
+     * @ensures bulkLoad = {(keys[i], values[i]): 0 <= i < |keys|}
      */
-    private static int mod(int a, int b) {
-        assert b > 0 : "Violation of: b > 0";
+    public static <K, V> Map4<K, V> bulkLoad(K[] keys, V[] values,
+            boolean parallel) {
+        assert keys != null : "Violation of: keys is not null";
+        assert values != null : "Violation of: values is not null";
+        assert keys.length == values.length : ""
+                + "Violation of: |keys| = |values|";
 
-        int remain = a % b;
+        return load(keys, values, keys.length, parallel);
+    }
 
-        if (remain < 0) {
-            remain += b;
-        }
+    /**
+     * Returns a new {@code Map4} holding the pairs of {@code pairs} (which may
+     * be another {@code Map}), built as by {@code bulkLoad(K[], V[], boolean)}.
+     *
+     * @param <K>
+     *            type of {@code Map} domain (key) entries
+     * @param <V>
+     *            type of {@code Map} range (associated value) entries
+     * @param pairs
+     *            the pairs
+     * @param parallel
+     *            whether to split the work across the common
+     *            {@code ForkJoinPool}
+     * @return the new map
+     * @requires [the keys of pairs are not null and are all different, and
+     *           the values are not null]
+     * @ensures bulkLoad = [the pairs of pairs]
+     */
+    public static <K, V> Map4<K, V> bulkLoad(
+            Iterable<? extends Pair<K, V>> pairs, boolean parallel) {
+        assert pairs != null : "Violation of: pairs is not null";
 
-        return remain;
+        return loadFrom(pairs.iterator(), parallel);
     }
 
     /**
-     * Creator of initial representation.
+     * Returns a new {@code Map4} holding the pairs of {@code pairs}, built as
+     * by {@code bulkLoad(K[], V[], boolean)}.
      *
-     * @param hashTableSize
-     *            the size of the hash table
-     * @requires hashTableSize > 0
-     * @ensures <pre>
-     * |$this.hashTable| = hashTableSize  and
-     * for all i: integer
-     *     where (0 <= i  and  i < |$this.hashTable|)
-     *   ($this.hashTable[i, i+1) = <{}>)  and
-     * $this.size = 0
-     * </pre>
+     * @param <K>
+     *            type of {@code Map} domain (key) entries
+     * @param <V>
+     *            type of {@code Map} range (associated value) entries
+     * @param pairs
+     *            the pairs
+     * @param parallel
+     *            whether to split the work across the common
+     *            {@code ForkJoinPool}
+     * @return the new map
+     * @requires [the keys of pairs are not null and are all different, and
+     *           the values are not null]
+     * @ensures bulkLoad = [the pairs of pairs]
      */
-    @SuppressWarnings("unchecked")
-    private void createNewRep(int hashTableSize) {
-        /*
-         * With "new Map<K, V>[...]" in place of "new Map[...]" it does not
-         * compile; as shown, it results in a warning about an unchecked
-         * conversion, though it cannot fail.
-         */
-        this.hashTable = new Map[hashTableSize];
-        for (int i = 0; i < hashTableSize; i++) {
-            this.hashTable[i] = new Map2<>();
-        }
+    public static <K, V> Map4<K, V> bulkLoad(
+            Stream<? extends Pair<K, V>> pairs, boolean parallel) {
+        assert pairs != null : "Violation of: pairs is not null";
 
-        this.size = 0;
+        return loadFrom(pairs.iterator(), parallel);
     }
 
     /*
-     * Constructors -----------------------------------------------------------
+     * Snapshots --------------------------------------------------------------
      */
 
     /**
-     * No-argument constructor.
+     * Writes the entries of {@code this} to {@code file} as a binary
+     * snapshot: a checksummed header, a directory of chunks of buckets, and
+     * the entries bucket by bucket, each with its spread hash code and its
+     * length-prefixed key and value as encoded by the codecs. The snapshot
+     * is written to a temporary file, forced to the device, and then moved
+     * over {@code file}, so {@code file} always holds a complete snapshot. A
+     * resize in progress is finished first.
+     *
+     * @param file
+     *            the file
+     * @param keyCodec
+     *            the encoding of keys
+     * @param valueCodec
+     *            the encoding of values
+     * @throws IOException
+     *             if the file cannot be written
+     * @requires file is not null and keyCodec is not null and valueCodec is
+     *           not null
+     * @ensures [file holds a snapshot of this]
      */
-    public Map4() {
-        this.createNewRep(DEFAULT_HASH_TABLE_SIZE);
+    public final void writeSnapshot(Path file, Codec<K> keyCodec,
+            Codec<V> valueCodec) throws IOException {
+        assert file != null : "Violation of: file is not null";
+        assert keyCodec != null : "Violation of: keyCodec is not null";
+        assert valueCodec != null : "Violation of: valueCodec is not null";
+
+        Snapshot.write(this, file, keyCodec, valueCodec);
     }
 
     /**
-     * Constructor resulting in a hash table of size {@code hashTableSize}.
+     * Returns a new {@code Map4} holding the snapshot in {@code file}, as
+     * written by {@code writeSnapshot}. The file is memory-mapped, and every
+     * entry goes straight into its bucket using its stored hash code, so no
+     * key is hashed and no resize happens. Every chunk is checked against its
+     * CRC32 while it is decoded; chunks can be mapped, checked, and decoded
+     * in parallel by the common {@code ForkJoinPool}.
      *
-     * @param hashTableSize
-     *            size of hash table
-     * @requires hashTableSize > 0
-     * @ensures this = {}
+     * @param <K>
+     *            type of {@code Map} domain (key) entries
+     * @param <V>
+     *            type of {@code Map} range (associated value) entries
+     * @param file
+     *            the file
+     * @param keyCodec
+     *            the encoding of keys
+     * @param valueCodec
+     *            the encoding of values
+     * @param parallel
+     *            whether to load in parallel
+     * @return the map
+     * @throws IOException
+     *             if the file cannot be read, is not a snapshot, or fails its
+     *             checks
+     * @requires <pre>
+     * file is not null and keyCodec is not null and valueCodec is not null
+     * and [keyCodec and valueCodec may be used by several threads at once]
+     * and [the hashCode of every key is the same as when the snapshot was
+     * written, as for String, Integer, and Long]
+     * </pre>
+     * @ensures readSnapshot = [the entries of the snapshot in file]
      */
-    public Map4(int hashTableSize) {
-        this.createNewRep(hashTableSize);
+    public static <K, V> Map4<K, V> readSnapshot(Path file, Codec<K> keyCodec,
+            Codec<V> valueCodec, boolean parallel) throws IOException {
+        assert file != null : "Violation of: file is not null";
+        assert keyCodec != null : "Violation of: keyCodec is not null";
+        assert valueCodec != null : "Violation of: valueCodec is not null";
+
+        return Snapshot.read(file, keyCodec, valueCodec, parallel);
     }
 
     /*
@@ -154,7 +2907,7 @@ public class Map4<K, V> extends MapSecondary<K, V> {
 
     @Override
     public final void clear() {
-        this.createNewRep(DEFAULT_HASH_TABLE_SIZE);
+        this.createNewRep(DEFAULT_HASH_TABLE_SIZE, this.spreader);
     }
 
     @Override
@@ -170,8 +2923,19 @@ public class Map4<K, V> extends MapSecondary<K, V> {
          */
         Map4<K, V> localSource = (Map4<K, V>) source;
         this.hashTable = localSource.hashTable;
+        this.oldTable = localSource.oldTable;
+        this.migrated = localSource.migrated;
+        this.occupied = localSource.occupied;
+        this.oldOccupied = localSource.oldOccupied;
+        this.firstOccupied = localSource.firstOccupied;
+        this.oldFirstOccupied = localSource.oldFirstOccupied;
         this.size = localSource.size;
-        localSource.createNewRep(DEFAULT_HASH_TABLE_SIZE);
+        /*
+         * The cached hash codes were computed with the source's spreader, so
+         * it travels with them.
+         */
+        this.spreader = localSource.spreader;
+        localSource.createNewRep(DEFAULT_HASH_TABLE_SIZE, localSource.spreader);
     }
 
     /*
@@ -182,57 +2946,77 @@ public class Map4<K, V> extends MapSecondary<K, V> {
     public final void add(K key, V value) {
         assert key != null : "Violation of: key is not null";
         assert value != null : "Violation of: value is not null";
-        assert !this.hasKey(key) : "Violation of: key is not in DOMAIN(this)";
-
-        int pos = mod(key.hashCode(), this.hashTable.length);
-        this.size++;
 
-        this.hashTable[pos].add(key, value);
+        this.insert(key, value);
     }
 
     @Override
     public final Pair<K, V> remove(K key) {
         assert key != null : "Violation of: key is not null";
-        assert this.hasKey(key) : "Violation of: key is in DOMAIN(this)";
 
-        int pos = mod(key.hashCode(), this.hashTable.length);
+        Node<K, V> n = this.unlinkNode(key, this.hash(key));
+        assert n != null : "Violation of: key is in DOMAIN(this)";
+
         this.size--;
+        this.migrate();
 
-        return this.hashTable[pos].remove(key);
+        return n;
     }
 
     @Override
     public final Pair<K, V> removeAny() {
         assert this.size() > 0 : "Violation of: this /= empty_set";
 
-        this.size--;
+        this.migrate();
 
-        for (int i = 0; i < this.hashTable.length; i++) {
-            if (this.hashTable[i].size() > 0) {
-                return this.hashTable[i].removeAny();
+        Node<K, V>[] table = this.hashTable;
+        int pos = -1;
+        if (this.oldTable != null) {
+            pos = nextSetBit(this.oldOccupied,
+                    Math.max(this.migrated, this.oldFirstOccupied));
+            table = this.oldTable;
+            if (pos < 0) {
+                this.oldFirstOccupied = this.oldTable.length;
+            } else {
+                this.oldFirstOccupied = pos;
             }
         }
+        if (pos < 0) {
+            table = this.hashTable;
+            pos = nextSetBit(this.occupied, this.firstOccupied);
+            this.firstOccupied = pos;
+        }
+        Node<K, V> n = table[pos];
+        unlinkFromBucket(table, pos, n);
+        this.bucketChanged(table, pos);
+        this.size--;
 
-        return null;
+        return n;
     }
 
     @Override
     public final V value(K key) {
         assert key != null : "Violation of: key is not null";
-        assert this.hasKey(key) : "Violation of: key is in DOMAIN(this)";
 
-        int pos = mod(key.hashCode(), this.hashTable.length);
+        Node<K, V> n = this.findNode(key, this.hash(key));
+        assert n != null : "Violation of: key is in DOMAIN(this)";
 
-        return this.hashTable[pos].value(key);
+        return n.value;
     }
 
     @Override
     public final boolean hasKey(K key) {
         assert key != null : "Violation of: key is not null";
 
-        int pos = mod(key.hashCode(), this.hashTable.length);
-
-        return this.hashTable[pos].hasKey(key);
+        boolean result = this.findNode(key, this.hash(key)) != null;
+        if (this.counters != null) {
+            if (result) {
+                this.counters.hasKeyHits++;
+            } else {
+                this.counters.hasKeyMisses++;
+            }
+        }
+        return result;
     }
 
     @Override
@@ -245,10 +3029,366 @@ public class Map4<K, V> extends MapSecondary<K, V> {
         return new Map4Iterator();
     }
 
+    /*
+     * Secondary methods ------------------------------------------------------
+     */
+
+    @Override
+    public final V replaceValue(K key, V value) {
+        assert key != null : "Violation of: key is not null";
+        assert value != null : "Violation of: value is not null";
+
+        Node<K, V> n = this.findNode(key, this.hash(key));
+        assert n != null : "Violation of: key is in DOMAIN(this)";
+
+        V oldValue = n.value;
+        n.value = value;
+        this.migrate();
+
+        return oldValue;
+    }
+
+    @Override
+    public final K key(V value) {
+        assert value != null : "Violation of: value is not null";
+
+        Node<K, V> n = this.nodeWithValue(value);
+        assert n != null : "Violation of: value is in RANGE(this)";
+
+        return n.key;
+    }
+
+    @Override
+    public final boolean hasValue(V value) {
+        assert value != null : "Violation of: value is not null";
+
+        return this.nodeWithValue(value) != null;
+    }
+
+    @Override
+    public final void combineWith(Map<K, V> m) {
+        assert m != null : "Violation of: m is not null";
+        assert m != this : "Violation of: m is not this";
+
+        /*
+         * Each key is checked against DOMAIN(this) by insert, while its bucket
+         * is being located anyway, instead of through a separate
+         * sharesKeyWith pass.
+         */
+        while (m.size() > 0) {
+            Pair<K, V> p = m.removeAny();
+            this.insert(p.key(), p.value());
+        }
+    }
+
+    /**
+     * Performs {@code action} on every entry of {@code this}, without
+     * creating an iterator or any {@code Pair}.
+     *
+     * @param action
+     *            the action to be performed on each (key, value)
+     * @requires <pre>
+     * action is not null  and  [action does not change this]
+     * </pre>
+     * @ensures [action has been performed once on each entry of this]
+     */
+    public final void forEach(BiConsumer<? super K, ? super V> action) {
+        assert action != null : "Violation of: action is not null";
+
+        if (this.oldTable != null) {
+            for (int i = nextSetBit(this.oldOccupied, this.migrated); i >= 0;
+                    i = nextSetBit(this.oldOccupied, i + 1)) {
+                for (Node<K, V> n = this.oldTable[i]; n != null; n = n.next) {
+                    action.accept(n.key, n.value);
+                }
+            }
+        }
+        for (int i = nextSetBit(this.occupied, 0); i >= 0;
+                i = nextSetBit(this.occupied, i + 1)) {
+            for (Node<K, V> n = this.hashTable[i]; n != null; n = n.next) {
+                action.accept(n.key, n.value);
+            }
+        }
+    }
+
+    /**
+     * Returns a cursor over the entries of {@code this}, in the same order as
+     * {@code iterator}. Like an iterator, it must not be used after
+     * {@code this} has been changed.
+     *
+     * @return a cursor positioned before the first entry
+     * @ensures [cursor visits each entry of this exactly once]
+     */
+    public final Cursor<K, V> cursor() {
+        return new Map4Iterator();
+    }
+
+    /**
+     * Removes every entry of {@code this}, handing each one to
+     * {@code consumer}, in a single pass over the table. {@code this} is
+     * already empty when {@code consumer} is first called.
+     *
+     * @param consumer
+     *            the receiver of the removed entries
+     * @updates this
+     * @requires consumer is not null
+     * @ensures <pre>
+     * this = {}  and
+     * [consumer has been called once on each entry of #this]
+     * </pre>
+     */
+    public final void drainTo(Consumer<? super Pair<K, V>> consumer) {
+        assert consumer != null : "Violation of: consumer is not null";
+
+        Node<K, V>[] oldBuckets = this.oldTable;
+        long[] oldBits = this.oldOccupied;
+        int start = this.migrated;
+        Node<K, V>[] buckets = this.hashTable;
+        long[] bits = this.occupied;
+        this.createNewRep(DEFAULT_HASH_TABLE_SIZE, this.spreader);
+        if (oldBuckets != null) {
+            drainBuckets(oldBuckets, oldBits, start, consumer);
+        }
+        drainBuckets(buckets, bits, 0, consumer);
+    }
+
+    /**
+     * Hands every node in the buckets of {@code table} at or after
+     * {@code start} to {@code consumer}, unlinking each one first.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     * @param table
+     *            the table, no longer part of any map
+     * @param bits
+     *            the occupancy bitmap of table
+     * @param start
+     *            the first bucket to drain
+     * @param consumer
+     *            the receiver of the nodes
+     * @ensures [consumer has been called once on each node of those buckets]
+     */
+    private static <K, V> void drainBuckets(Node<K, V>[] table, long[] bits,
+            int start, Consumer<? super Pair<K, V>> consumer) {
+        for (int i = nextSetBit(bits, start); i >= 0;
+                i = nextSetBit(bits, i + 1)) {
+            Node<K, V> n = table[i];
+            while (n != null) {
+                Node<K, V> next = n.next;
+                n.next = null;
+                if (n instanceof TreeNode<?, ?>) {
+                    TreeNode<K, V> t = (TreeNode<K, V>) n;
+                    t.prev = null;
+                    t.left = null;
+                    t.right = null;
+                }
+                consumer.accept(n);
+                n = next;
+            }
+        }
+    }
+
+    /**
+     * Performs {@code action} on every entry of {@code this}, splitting the
+     * buckets into ranges handled in parallel by the common
+     * {@code ForkJoinPool}.
+     *
+     * @param action
+     *            the action to be performed on each (key, value)
+     * @requires <pre>
+     * action is not null  and  [action does not change this]  and
+     * [action may be run by several threads at once]
+     * </pre>
+     * @ensures [action has been performed once on each entry of this]
+     */
+    public final void parallelForEach(
+            BiConsumer<? super K, ? super V> action) {
+        assert action != null : "Violation of: action is not null";
+
+        this.parallelBuckets((table, bits, lo, hi) -> {
+            for (int i = nextSetBit(bits, lo); i >= 0 && i < hi;
+                    i = nextSetBit(bits, i + 1)) {
+                for (Node<K, V> n = table[i]; n != null; n = n.next) {
+                    action.accept(n.key, n.value);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns {@code identity} combined with {@code reducer} with the
+     * results of {@code transformer} on every entry of {@code this},
+     * computed in parallel by the common {@code ForkJoinPool}. Partial
+     * results are combined in no particular order.
+     *
+     * @param <R>
+     *            type of the result
+     * @param identity
+     *            the identity of reducer
+     * @param transformer
+     *            the function applied to each (key, value)
+     * @param reducer
+     *            the function combining two results
+     * @return the reduction
+     * @requires <pre>
+     * transformer is not null  and  reducer is not null  and
+     * [transformer and reducer do not change this, do not return null, and
+     *  may be run by several threads at once]  and
+     * [reducer is associative and commutative, with identity identity]
+     * </pre>
+     * @ensures <pre>
+     * parallelReduce = [identity combined with reducer with transformer(k, v)
+     *                   for every (k, v) in this]
+     * </pre>
+     */
+    public final <R> R parallelReduce(R identity,
+            BiFunction<? super K, ? super V, ? extends R> transformer,
+            BinaryOperator<R> reducer) {
+        assert transformer != null : "Violation of: transformer is not null";
+        assert reducer != null : "Violation of: reducer is not null";
+
+        R result = this.reduceNodes(n -> transformer.apply(n.key, n.value),
+                reducer);
+        if (result == null) {
+            result = identity;
+        } else {
+            result = reducer.apply(identity, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns an entry of {@code this} with a largest value in the order
+     * {@code order}, searching the buckets in parallel with the common
+     * {@code ForkJoinPool}. Among entries with equal largest values, any one
+     * may be returned.
+     *
+     * @param order
+     *            the order on values
+     * @return an entry with a largest value
+     * @requires <pre>
+     * order is not null  and  this /= empty_set  and
+     * [order may be used by several threads at once]
+     * </pre>
+     * @ensures <pre>
+     * maxByValue is in this  and
+     * for all (k, v): (K, V) where ((k, v) is in this)
+     *   (order.compare(v, maxByValue.value) <= 0)
+     * </pre>
+     */
+    public final Pair<K, V> maxByValue(Comparator<? super V> order) {
+        assert order != null : "Violation of: order is not null";
+        assert this.size() > 0 : "Violation of: this /= empty_set";
+
+        return this.<Node<K, V>> reduceNodes(n -> n, (x, y) -> {
+            Node<K, V> larger = x;
+            if (order.compare(y.value, x.value) > 0) {
+                larger = y;
+            }
+            return larger;
+        });
+    }
+
+    /**
+     * Moves every entry of {@code m} into {@code this}; for a key in both,
+     * the value in {@code this} becomes {@code merger} applied to the two
+     * values. When both maps have the same number of buckets and spreader
+     * (e.g., they were made with the same {@code hashTableSize} and have
+     * grown alike), bucket {@code i} of {@code m} only ever goes into bucket
+     * {@code i} of {@code this}, so ranges of buckets are merged in parallel
+     * by the common {@code ForkJoinPool} without any locking, and the nodes
+     * of {@code m} are relinked rather than copied. Otherwise the entries are
+     * merged one at a time.
+     *
+     * @param m
+     *            the map to be merged into this
+     * @param merger
+     *            the function combining the value in this with the value in
+     *            m
+     * @updates this
+     * @clears m
+     * @requires <pre>
+     * m is not null  and  m is not this  and  merger is not null  and
+     * [merger does not return null and may be run by several threads at
+     *  once]
+     * </pre>
+     * @ensures <pre>
+     * this = {(k, v): (K, V)
+     *          where (((k, v) is in #this  and  k is not in DOMAIN(#m))  or
+     *                 ((k, v) is in #m  and  k is not in DOMAIN(#this))  or
+     *                 (there exist v1, v2: V
+     *                    ((k, v1) is in #this  and  (k, v2) is in #m  and
+     *                     v = merger.apply(v1, v2))))}
+     * </pre>
+     */
+    public final void parallelMerge(Map4<K, V> m, BinaryOperator<V> merger) {
+        assert m != null : "Violation of: m is not null";
+        assert m != this : "Violation of: m is not this";
+        assert merger != null : "Violation of: merger is not null";
+
+        this.finishMigration();
+        m.finishMigration();
+        if (m.hashTable.length != this.hashTable.length
+                || m.spreader != this.spreader) {
+            /*
+             * The cached hash codes of m pick different buckets here.
+             */
+            m.drainTo(p -> {
+                Node<K, V> n = this.findNode(p.key(), this.hash(p.key()));
+                if (n == null) {
+                    this.insert(p.key(), p.value());
+                } else {
+                    n.value = merger.apply(n.value, p.value());
+                }
+            });
+        } else {
+            Node<K, V>[] table = this.hashTable;
+            long[] bits = this.occupied;
+            Node<K, V>[] other = m.hashTable;
+            long[] otherBits = m.occupied;
+            AtomicInteger added = new AtomicInteger();
+            runRange((lo, hi) -> {
+                int count = 0;
+                for (int pos = nextSetBit(otherBits, lo); pos >= 0 && pos < hi;
+                        pos = nextSetBit(otherBits, pos + 1)) {
+                    Node<K, V> n = other[pos];
+                    while (n != null) {
+                        Node<K, V> next = n.next;
+                        Node<K, V> mine = findInBucket(table[pos], n.key,
+                                n.hash);
+                        if (mine == null) {
+                            detach(n);
+                            linkIntoBucket(table, pos, n);
+                            count++;
+                        } else {
+                            mine.value = merger.apply(mine.value, n.value);
+                        }
+                        n = next;
+                    }
+                    updateBit(bits, table, pos);
+                }
+                added.addAndGet(count);
+            }, table.length, true);
+            m.createNewRep(DEFAULT_HASH_TABLE_SIZE, m.spreader);
+            this.size += added.get();
+            int first = nextSetBit(bits, 0);
+            if (first >= 0 && first < this.firstOccupied) {
+                this.firstOccupied = first;
+            }
+            this.growIfNeeded();
+        }
+    }
+
     /**
-     * Implementation of {@code Iterator} interface for {@code Map4}.
+     * Implementation of {@code Iterator} interface for {@code Map4}, which
+     * doubles as its {@code Cursor}. Visits the unmigrated buckets of the old
+     * table (if any) and then the buckets of the new table, using their
+     * occupancy bitmaps to skip empty buckets.
      */
-    private final class Map4Iterator implements Iterator<Pair<K, V>> {
+    private final class Map4Iterator
+            implements Iterator<Pair<K, V>>, Cursor<K, V> {
 
         /**
          * Number of elements seen already (i.e., |~this.seen|).
@@ -256,22 +3396,40 @@ public class Map4<K, V> extends MapSecondary<K, V> {
         private int numberSeen;
 
         /**
-         * Bucket from which current bucket iterator comes.
+         * Table from which current node comes.
+         */
+        private Node<K, V>[] currentTable;
+
+        /**
+         * Occupancy bitmap of {@code currentTable}.
+         */
+        private long[] currentBits;
+
+        /**
+         * Bucket from which current node comes.
          */
         private int currentBucket;
 
         /**
-         * Bucket iterator from which next element will come.
+         * Node most recently returned, or {@code null}.
          */
-        private Iterator<Pair<K, V>> bucketIterator;
+        private Node<K, V> current;
 
         /**
          * No-argument constructor.
          */
         Map4Iterator() {
             this.numberSeen = 0;
-            this.currentBucket = 0;
-            this.bucketIterator = Map4.this.hashTable[0].iterator();
+            if (Map4.this.oldTable != null) {
+                this.currentTable = Map4.this.oldTable;
+                this.currentBits = Map4.this.oldOccupied;
+                this.currentBucket = Map4.this.migrated - 1;
+            } else {
+                this.currentTable = Map4.this.hashTable;
+                this.currentBits = Map4.this.occupied;
+                this.currentBucket = -1;
+            }
+            this.current = null;
         }
 
         @Override
@@ -291,12 +3449,20 @@ public class Map4<K, V> extends MapSecondary<K, V> {
                 throw new NoSuchElementException();
             }
             this.numberSeen++;
-            while (!this.bucketIterator.hasNext()) {
-                this.currentBucket++;
-                this.bucketIterator = Map4.this.hashTable[this.currentBucket]
-                        .iterator();
+            if (this.current != null) {
+                this.current = this.current.next;
+            }
+            if (this.current == null) {
+                this.currentBucket = nextSetBit(this.currentBits,
+                        this.currentBucket + 1);
+                if (this.currentBucket < 0) {
+                    this.currentTable = Map4.this.hashTable;
+                    this.currentBits = Map4.this.occupied;
+                    this.currentBucket = nextSetBit(this.currentBits, 0);
+                }
+                this.current = this.currentTable[this.currentBucket];
             }
-            return this.bucketIterator.next();
+            return this.current;
         }
 
         @Override
@@ -305,6 +3471,31 @@ public class Map4<K, V> extends MapSecondary<K, V> {
                     "remove operation not supported");
         }
 
+        @Override
+        public boolean advance() {
+            boolean hasNext = this.hasNext();
+            if (hasNext) {
+                this.next();
+            }
+            return hasNext;
+        }
+
+        @Override
+        public K key() {
+            assert this.current != null : ""
+                    + "Violation of: [the last call to advance returned true]";
+
+            return this.current.key;
+        }
+
+        @Override
+        public V value() {
+            assert this.current != null : ""
+                    + "Violation of: [the last call to advance returned true]";
+
+            return this.current.value;
+        }
+
     }
 
 }
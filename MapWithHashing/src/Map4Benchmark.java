@@ -0,0 +1,1290 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+import components.map.Map;
+import components.map.Map2;
+import components.simplewriter.SimpleWriter;
+import components.simplewriter.SimpleWriter1L;
+
+/**
+ * Simple timing harness for {@code Map4} and its sibling implementations. It
+ * is not a substitute for a real benchmarking framework, but it is enough to
+ * compare implementations against each other on one machine. Run with and
+ * without {@code -ea} as appropriate.
+ *
+ * @author Allen Zheng and Jared Koharik
+ *
+ */
+public final class Map4Benchmark {
+
+    /**
+     * Default number of entries used by each benchmark.
+     */
+    private static final int DEFAULT_ENTRIES = 2_000_000;
+
+    /**
+     * Number of untimed passes made before timing, to let the JIT compiler
+     * settle.
+     */
+    private static final int WARMUP_PASSES = 2;
+
+    /**
+     * Nanoseconds per millisecond.
+     */
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    /**
+     * Nanoseconds per microsecond.
+     */
+    private static final double NANOS_PER_MICRO = 1_000.0;
+
+    /**
+     * Bytes per megabyte.
+     */
+    private static final double BYTES_PER_MEGABYTE = 1_000_000.0;
+
+    /**
+     * Private constructor so this utility class cannot be instantiated.
+     */
+    private Map4Benchmark() {
+    }
+
+    /**
+     * Returns the {@code p}-th percentile of the sorted array {@code sorted}.
+     *
+     * @param sorted
+     *            the sorted samples
+     * @param p
+     *            the percentile
+     * @return the p-th percentile of sorted
+     * @requires |sorted| > 0 and 0 <= p <= 100 and [sorted is sorted]
+     * @ensures percentile = [the p-th percentile of sorted]
+     */
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Adds {@code n} distinct keys to {@code m}, timing each call to
+     * {@code add} separately, and reports the latency distribution.
+     *
+     * @param out
+     *            the output stream
+     * @param name
+     *            the name to report
+     * @param m
+     *            the map to fill
+     * @param n
+     *            the number of keys to add
+     * @updates out.content, m
+     * @requires out.is_open and m = {}
+     * @ensures <pre>
+     * out.content = #out.content * [latency report]  and
+     * m = [n distinct entries]
+     * </pre>
+     */
+    private static void addLatency(SimpleWriter out, String name,
+            Map<Integer, Integer> m, int n) {
+        long[] samples = new long[n];
+        for (int i = 0; i < n; i++) {
+            Integer key = i;
+            long start = System.nanoTime();
+            m.add(key, key);
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        out.println(name + " add latency (ns) over " + n + " adds: p50="
+                + percentile(samples, 50) + " p99=" + percentile(samples, 99)
+                + " p99.9=" + percentile(samples, 99.9) + " p99.99="
+                + percentile(samples, 99.99) + " max="
+                + samples[samples.length - 1]);
+    }
+
+    /**
+     * Compares the {@code add} latency distribution of {@code Map4}, which
+     * grows incrementally, with {@code Map5}, which rehashes everything at
+     * once when it grows.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of entries
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [latency report]
+     */
+    private static void resizeLatency(SimpleWriter out, int n) {
+        for (int pass = 0; pass < WARMUP_PASSES; pass++) {
+            addLatency(out, "(warmup) Map4", new Map4<>(), n);
+            addLatency(out, "(warmup) Map5", new Map5<>(), n);
+        }
+        addLatency(out, "Map4", new Map4<>(), n);
+        addLatency(out, "Map5", new Map5<>(), n);
+    }
+
+    /**
+     * Times {@code add}, {@code value}, {@code replaceValue}, {@code remove},
+     * and {@code combineWith} on a {@code Map4} of {@code n} entries. Run it
+     * once with {@code -ea} and once without to see what the precondition
+     * checks cost.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of entries
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [timing report]
+     */
+    private static void kernelOperations(SimpleWriter out, int n) {
+        boolean assertionsEnabled = false;
+        assert assertionsEnabled = true;
+        out.println("Assertions enabled: " + assertionsEnabled);
+
+        for (int pass = 0; pass <= WARMUP_PASSES; pass++) {
+            String prefix = "";
+            if (pass < WARMUP_PASSES) {
+                prefix = "(warmup) ";
+            }
+            Map<Integer, Integer> m = new Map4<>();
+            /*
+             * Map2's removeAny is constant time, so combineWith measures the
+             * cost of adding to m rather than of draining other.
+             */
+            Map<Integer, Integer> other = new Map2<>();
+            long sum = 0;
+
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                m.add(i, i);
+            }
+            long addTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                sum += m.value(i);
+            }
+            long valueTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                sum += m.replaceValue(i, i + 1);
+            }
+            long replaceTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                sum += m.remove(i).value();
+            }
+            long removeTime = System.nanoTime() - start;
+
+            for (int i = 0; i < n; i++) {
+                other.add(i, i);
+            }
+            start = System.nanoTime();
+            m.combineWith(other);
+            long combineTime = System.nanoTime() - start;
+
+            out.println(prefix + "Map4 over " + n + " keys (ms): add="
+                    + addTime / NANOS_PER_MILLI + " value="
+                    + valueTime / NANOS_PER_MILLI + " replaceValue="
+                    + replaceTime / NANOS_PER_MILLI + " remove="
+                    + removeTime / NANOS_PER_MILLI + " combineWith="
+                    + combineTime / NANOS_PER_MILLI + " (checksum " + sum
+                    + ")");
+        }
+    }
+
+    /**
+     * Reports the mean, variance, and maximum of the bucket lengths of
+     * {@code m}.
+     *
+     * @param out
+     *            the output stream
+     * @param name
+     *            the name to report
+     * @param m
+     *            the map to examine
+     * @updates out.content
+     * @requires out.is_open
+     * @ensures out.content = #out.content * [bucket length statistics]
+     */
+    private static void reportBucketLengths(SimpleWriter out, String name,
+            Map4<?, ?> m) {
+        int[] lengths = m.bucketLengths();
+        double mean = (double) m.size() / lengths.length;
+        double variance = 0;
+        int max = 0;
+        for (int length : lengths) {
+            variance += (length - mean) * (length - mean);
+            max = Math.max(max, length);
+        }
+        variance /= lengths.length;
+        out.println("  " + name + ": buckets=" + lengths.length + " mean="
+                + mean + " variance=" + variance + " max=" + max);
+    }
+
+    /**
+     * Fills one {@code Map4} per spreading function with the keys
+     * {@code keys} and reports the resulting bucket lengths.
+     *
+     * @param <K>
+     *            type of keys
+     * @param out
+     *            the output stream
+     * @param distribution
+     *            the name of the key distribution
+     * @param keys
+     *            the keys
+     * @param hashTableSize
+     *            the initial hash table size
+     * @updates out.content
+     * @requires out.is_open and [entries of keys are distinct]
+     * @ensures out.content = #out.content * [bucket length statistics]
+     */
+    private static <K> void spreadDistribution(SimpleWriter out,
+            String distribution, K[] keys, int hashTableSize) {
+        out.println(distribution + " (" + keys.length + " keys)");
+        for (Map4.Spreader spreader : Map4.Spreader.values()) {
+            Map4<K, Boolean> m = new Map4<>(hashTableSize, spreader);
+            for (K key : keys) {
+                m.add(key, Boolean.TRUE);
+            }
+            reportBucketLengths(out, spreader.name(), m);
+        }
+    }
+
+    /**
+     * Compares the bucket length distribution produced by each
+     * {@code Map4.Spreader} for several adversarial key sets.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of keys per key set
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [bucket length statistics]
+     */
+    private static void spreadQuality(SimpleWriter out, int n) {
+        /*
+         * A table large enough that it never grows, so that its size is known
+         * and keys can be aimed at it.
+         */
+        int hashTableSize = n / 2 + 1;
+
+        Integer[] multiples = new Integer[n];
+        Integer[] sequential = new Integer[n];
+        Long[] highBits = new Long[n];
+        String[] prefixed = new String[n];
+        for (int i = 0; i < n; i++) {
+            multiples[i] = i * hashTableSize;
+            sequential[i] = i;
+            highBits[i] = (long) i << 32 | i;
+            prefixed[i] = "com.example.pipeline.stage.word" + i;
+        }
+        spreadDistribution(out, "Integer multiples of the table size",
+                multiples, hashTableSize);
+        spreadDistribution(out, "Sequential Integers", sequential,
+                hashTableSize);
+        spreadDistribution(out, "Longs with equal halves (hashCode 0)",
+                highBits, hashTableSize);
+        spreadDistribution(out, "Strings with a shared prefix", prefixed,
+                hashTableSize);
+    }
+
+    /**
+     * Times lookups in a {@code Map4} whose keys all have the same hash code,
+     * as under a hash-flooding attack, for growing numbers of keys. With
+     * treeified buckets the time per lookup grows logarithmically rather than
+     * linearly.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the largest number of keys
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [timing report]
+     */
+    private static void hashFlooding(SimpleWriter out, int n) {
+        final int smallest = 1000;
+        final int lookupsPerSize = 1_000_000;
+        for (int keys = smallest; keys <= n; keys *= 2) {
+            /*
+             * (i << 32 | i) has hashCode 0 for every i.
+             */
+            Map<Long, Integer> m = new Map4<>();
+            for (int i = 0; i < keys; i++) {
+                m.add((long) i << 32 | i, i);
+            }
+            long sum = 0;
+            long start = System.nanoTime();
+            for (int j = 0; j < lookupsPerSize; j++) {
+                int i = j % keys;
+                sum += m.value((long) i << 32 | i);
+            }
+            long elapsed = System.nanoTime() - start;
+            out.println(keys + " colliding keys: "
+                    + (double) elapsed / lookupsPerSize
+                    + " ns per lookup (checksum " + sum + ")");
+        }
+    }
+
+    /**
+     * Runs {@code threads} threads that each call {@code task} with their
+     * thread number, and returns the elapsed time in nanoseconds.
+     *
+     * @param threads
+     *            the number of threads
+     * @param task
+     *            the work of one thread
+     * @return the elapsed time in nanoseconds
+     * @requires threads > 0
+     * @ensures [every thread has run task to completion]
+     */
+    private static long runThreads(int threads,
+            IntConsumer task) {
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread(() -> task.accept(id));
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError("Interrupted while joining", e);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Measures the throughput of word-count style increments from 1, 2, 4, ...
+     * threads (up to the number of available processors), using
+     * {@code ConcurrentMap4.merge} and, for comparison, a {@code Map4} guarded
+     * by a single lock.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of increments per thread
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [throughput report]
+     */
+    private static void concurrentIncrements(SimpleWriter out, int n) {
+        final int keys = 100_000;
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int pass = 0; pass <= WARMUP_PASSES; pass++) {
+            String prefix = "";
+            if (pass < WARMUP_PASSES) {
+                prefix = "(warmup) ";
+            }
+            for (int threads = 1; threads <= cores; threads *= 2) {
+                ConcurrentMap4<Integer, Integer> striped =
+                        new ConcurrentMap4<>();
+                long stripedTime = runThreads(threads, id -> {
+                    Random random = new Random(id);
+                    for (int i = 0; i < n; i++) {
+                        striped.merge(random.nextInt(keys), 1, Integer::sum);
+                    }
+                });
+
+                Map<Integer, Integer> locked = new Map4<>();
+                long lockedTime = runThreads(threads, id -> {
+                    Random random = new Random(id);
+                    for (int i = 0; i < n; i++) {
+                        Integer key = random.nextInt(keys);
+                        synchronized (locked) {
+                            if (locked.hasKey(key)) {
+                                locked.replaceValue(key, locked.value(key) + 1);
+                            } else {
+                                locked.add(key, 1);
+                            }
+                        }
+                    }
+                });
+
+                double total = (double) threads * n;
+                out.println(prefix + threads + " threads (Mops/s): "
+                        + "ConcurrentMap4.merge="
+                        + total / stripedTime * 1000 + " locked Map4="
+                        + total / lockedTime * 1000);
+            }
+        }
+    }
+
+    /**
+     * Measures the read throughput of 1, 2, 4, 8, and 16 threads calling
+     * {@code value} on a prefilled {@code ConcurrentMap4} while one more
+     * thread keeps updating it with {@code merge} and {@code compute}, and,
+     * for comparison, on a {@code Map4} guarded by a single lock.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of reads per reader thread
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [throughput report]
+     */
+    private static void readersWithWriter(SimpleWriter out, int n) {
+        final int keys = 100_000;
+        final int maxReaders = 16;
+        for (int pass = 0; pass <= WARMUP_PASSES; pass++) {
+            String prefix = "";
+            if (pass < WARMUP_PASSES) {
+                prefix = "(warmup) ";
+            }
+            for (int readers = 1; readers <= maxReaders; readers *= 2) {
+                ConcurrentMap4<Integer, Integer> lockFree =
+                        new ConcurrentMap4<>();
+                Map<Integer, Integer> locked = new Map4<>();
+                for (int i = 0; i < keys; i++) {
+                    lockFree.add(i, 0);
+                    locked.add(i, 0);
+                }
+                final int threads = readers;
+                long lockFreeTime = runThreads(threads + 1, id -> {
+                    Random random = new Random(id);
+                    if (id == threads) {
+                        for (int i = 0; i < n; i++) {
+                            Integer key = random.nextInt(keys);
+                            if (i % 2 == 0) {
+                                lockFree.merge(key, 1, Integer::sum);
+                            } else {
+                                lockFree.compute(key, (k, v) -> v);
+                            }
+                        }
+                    } else {
+                        long sum = 0;
+                        for (int i = 0; i < n; i++) {
+                            sum += lockFree.value(random.nextInt(keys));
+                        }
+                        assert sum >= 0;
+                    }
+                });
+                long lockedTime = runThreads(threads + 1, id -> {
+                    Random random = new Random(id);
+                    if (id == threads) {
+                        for (int i = 0; i < n; i++) {
+                            Integer key = random.nextInt(keys);
+                            synchronized (locked) {
+                                locked.replaceValue(key, locked.value(key) + 1);
+                            }
+                        }
+                    } else {
+                        long sum = 0;
+                        for (int i = 0; i < n; i++) {
+                            Integer key = random.nextInt(keys);
+                            synchronized (locked) {
+                                sum += locked.value(key);
+                            }
+                        }
+                        assert sum >= 0;
+                    }
+                });
+
+                double total = (double) threads * n;
+                out.println(prefix + readers + " readers + 1 writer "
+                        + "(M reads/s): ConcurrentMap4="
+                        + total / lockFreeTime * 1000 + " locked Map4="
+                        + total / lockedTime * 1000);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread, or
+     * -1 if the JVM does not report it.
+     *
+     * @return the bytes allocated by the current thread
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory
+                .getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Measures time and garbage per increment when counting {@code n} words
+     * drawn from a fixed vocabulary, using {@code Object2IntMap4.addTo} and,
+     * for comparison, {@code replaceValue(word, value(word) + 1)} on a
+     * {@code Map4<String, Integer>}.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of increments
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [time and allocation report]
+     */
+    private static void counting(SimpleWriter out, int n) {
+        final int vocabulary = 10_000;
+        /*
+         * Large counts are used so that Integer.valueOf cannot return cached
+         * instances, as it would for real word counts.
+         */
+        final int base = 1_000_000;
+        String[] words = new String[vocabulary];
+        for (int i = 0; i < vocabulary; i++) {
+            words[i] = "word" + i;
+        }
+        int[] sequence = new Random(1).ints(n, 0, vocabulary).toArray();
+        for (int pass = 0; pass <= WARMUP_PASSES; pass++) {
+            String prefix = "";
+            if (pass < WARMUP_PASSES) {
+                prefix = "(warmup) ";
+            }
+            Object2IntMap4<String> primitive = new Object2IntMap4<>();
+            Map<String, Integer> boxed = new Map4<>();
+            for (String word : words) {
+                primitive.add(word, base);
+                boxed.add(word, base);
+            }
+
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i : sequence) {
+                primitive.addTo(words[i], 1);
+            }
+            long primitiveTime = System.nanoTime() - start;
+            long primitiveBytes = allocatedBytes() - bytes;
+
+            bytes = allocatedBytes();
+            start = System.nanoTime();
+            for (int i : sequence) {
+                boxed.replaceValue(words[i], boxed.value(words[i]) + 1);
+            }
+            long boxedTime = System.nanoTime() - start;
+            long boxedBytes = allocatedBytes() - bytes;
+
+            out.println(prefix + "ns/increment: Object2IntMap4.addTo="
+                    + (double) primitiveTime / n + " Map4.replaceValue="
+                    + (double) boxedTime / n);
+            out.println(prefix + "bytes/increment: Object2IntMap4.addTo="
+                    + (double) primitiveBytes / n + " Map4.replaceValue="
+                    + (double) boxedBytes / n);
+        }
+    }
+
+    /**
+     * Times full scans of a dense {@code Map4} (n entries) and of a sparse one
+     * (n / 100 entries in a table of n buckets) through {@code iterator},
+     * {@code forEach}, and {@code cursor}, and reports the bytes allocated by
+     * each kind of scan.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of entries of the dense map
+     * @updates out.content
+     * @requires out.is_open and n >= 100
+     * @ensures out.content = #out.content * [time and allocation report]
+     */
+    private static void scans(SimpleWriter out, int n) {
+        final int sparseFraction = 100;
+        Map4<Integer, Integer> dense = new Map4<>();
+        for (int i = 0; i < n; i++) {
+            dense.add(i, i);
+        }
+        Map4<Integer, Integer> sparse = new Map4<>(n);
+        for (int i = 0; i < n / sparseFraction; i++) {
+            sparse.add(i, i);
+        }
+        String[] names = { "dense", "sparse" };
+        Map4<?, ?>[] maps = { dense, sparse };
+        long[] sum = new long[1];
+        for (int pass = 0; pass <= WARMUP_PASSES; pass++) {
+            String prefix = "";
+            if (pass < WARMUP_PASSES) {
+                prefix = "(warmup) ";
+            }
+            for (int m = 0; m < maps.length; m++) {
+                @SuppressWarnings("unchecked")
+                Map4<Integer, Integer> map = (Map4<Integer, Integer>) maps[m];
+
+                long bytes = allocatedBytes();
+                long start = System.nanoTime();
+                for (Map.Pair<Integer, Integer> p : map) {
+                    sum[0] += p.value();
+                }
+                long iteratorTime = System.nanoTime() - start;
+                long iteratorBytes = allocatedBytes() - bytes;
+
+                bytes = allocatedBytes();
+                start = System.nanoTime();
+                map.forEach((k, v) -> sum[0] += v);
+                long forEachTime = System.nanoTime() - start;
+                long forEachBytes = allocatedBytes() - bytes;
+
+                bytes = allocatedBytes();
+                start = System.nanoTime();
+                Map4.Cursor<Integer, Integer> c = map.cursor();
+                while (c.advance()) {
+                    sum[0] += c.value();
+                }
+                long cursorTime = System.nanoTime() - start;
+                long cursorBytes = allocatedBytes() - bytes;
+
+                out.println(prefix + names[m] + " scan (ms / bytes): iterator="
+                        + iteratorTime / NANOS_PER_MILLI + " / " + iteratorBytes
+                        + " forEach=" + forEachTime / NANOS_PER_MILLI + " / "
+                        + forEachBytes + " cursor="
+                        + cursorTime / NANOS_PER_MILLI + " / " + cursorBytes);
+            }
+        }
+        assert sum[0] != 0;
+    }
+
+    /**
+     * Times emptying a {@code Map4} of {@code n} entries with repeated
+     * {@code removeAny} and with a single {@code drainTo}.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of entries
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [timing report]
+     */
+    private static void draining(SimpleWriter out, int n) {
+        long[] sum = new long[1];
+        for (int pass = 0; pass <= WARMUP_PASSES; pass++) {
+            String prefix = "";
+            if (pass < WARMUP_PASSES) {
+                prefix = "(warmup) ";
+            }
+            Map4<Integer, Integer> m = new Map4<>();
+            for (int i = 0; i < n; i++) {
+                m.add(i, i);
+            }
+            long start = System.nanoTime();
+            while (m.size() > 0) {
+                sum[0] += m.removeAny().value();
+            }
+            long removeAnyTime = System.nanoTime() - start;
+
+            for (int i = 0; i < n; i++) {
+                m.add(i, i);
+            }
+            start = System.nanoTime();
+            m.drainTo(p -> sum[0] += p.value());
+            long drainTime = System.nanoTime() - start;
+
+            out.println(prefix + "drain " + n + " entries (ms): removeAny="
+                    + removeAnyTime / NANOS_PER_MILLI + " drainTo="
+                    + drainTime / NANOS_PER_MILLI);
+        }
+        assert sum[0] != 0;
+    }
+
+    /**
+     * Returns the total time, in milliseconds, the JVM has spent in garbage
+     * collection so far.
+     *
+     * @return the accumulated collection time
+     */
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            total += Math.max(0, bean.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * Returns the heap in use after a full collection has been requested.
+     *
+     * @return the bytes of heap in use
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Compares building {@code n} entries (long keys, string values) in an
+     * on-heap {@code Map4} and in a file-backed {@code MappedMap4}: time,
+     * heap retained, and time spent in garbage collection; then times closing
+     * and reopening the file.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of entries
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [time, heap, and GC report]
+     */
+    private static void mapped(SimpleWriter out, int n) {
+        try {
+            Path file = Files.createTempFile("Map4Benchmark", ".map");
+            file.toFile().deleteOnExit();
+
+            long baseHeap = usedHeap();
+            long gc = gcMillis();
+            long start = System.nanoTime();
+            Map<Long, String> onHeap = new Map4<>();
+            for (long i = 0; i < n; i++) {
+                onHeap.add(i, "value" + i);
+            }
+            long onHeapTime = System.nanoTime() - start;
+            long onHeapGc = gcMillis() - gc;
+            long onHeapBytes = usedHeap() - baseHeap;
+            out.println("Map4: build (ms)=" + onHeapTime / NANOS_PER_MILLI
+                    + " heap (MB)=" + onHeapBytes / BYTES_PER_MEGABYTE
+                    + " GC (ms)=" + onHeapGc);
+            onHeap = null;
+
+            baseHeap = usedHeap();
+            gc = gcMillis();
+            start = System.nanoTime();
+            MappedMap4<Long, String> offHeap = new MappedMap4<>(file,
+                    Codec.LONG, Codec.STRING);
+            for (long i = 0; i < n; i++) {
+                offHeap.add(i, "value" + i);
+            }
+            long offHeapTime = System.nanoTime() - start;
+            long offHeapGc = gcMillis() - gc;
+            long offHeapBytes = usedHeap() - baseHeap;
+            out.println("MappedMap4: build (ms)="
+                    + offHeapTime / NANOS_PER_MILLI + " heap (MB)="
+                    + offHeapBytes / BYTES_PER_MEGABYTE + " GC (ms)=" + offHeapGc
+                    + " file (MB)=" + Files.size(file) / BYTES_PER_MEGABYTE);
+
+            start = System.nanoTime();
+            offHeap.close();
+            long closeTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            offHeap = new MappedMap4<>(file, Codec.LONG, Codec.STRING);
+            long reopenTime = System.nanoTime() - start;
+            out.println("MappedMap4: close (ms)=" + closeTime / NANOS_PER_MILLI
+                    + " reopen (ms)=" + reopenTime / NANOS_PER_MILLI
+                    + " size=" + offHeap.size());
+            offHeap.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Times building a {@code Map4} of {@code n} entries with a loop of
+     * {@code add}, with {@code bulkLoad}, and with a parallel
+     * {@code bulkLoad}.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of entries
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [timing report]
+     */
+    private static void bulkLoading(SimpleWriter out, int n) {
+        Integer[] keys = new Integer[n];
+        Integer[] values = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = i;
+            values[i] = -i;
+        }
+        for (int pass = 0; pass <= WARMUP_PASSES; pass++) {
+            String prefix = "";
+            if (pass < WARMUP_PASSES) {
+                prefix = "(warmup) ";
+            }
+            /*
+             * Each map is dropped, and the heap collected, before the next is
+             * built, so that no build pays for collecting another's garbage.
+             */
+            System.gc();
+            long start = System.nanoTime();
+            Map<Integer, Integer> m = new Map4<>();
+            for (int i = 0; i < n; i++) {
+                m.add(keys[i], values[i]);
+            }
+            long addTime = System.nanoTime() - start;
+            assert m.size() == n;
+
+            m = null;
+            System.gc();
+            start = System.nanoTime();
+            m = Map4.bulkLoad(keys, values, false);
+            long loadTime = System.nanoTime() - start;
+            assert m.size() == n;
+
+            m = null;
+            System.gc();
+            start = System.nanoTime();
+            m = Map4.bulkLoad(keys, values, true);
+            long parallelTime = System.nanoTime() - start;
+            assert m.size() == n;
+
+            out.println(prefix + "build " + n + " entries (ms): add="
+                    + addTime / NANOS_PER_MILLI + " bulkLoad="
+                    + loadTime / NANOS_PER_MILLI + " parallel bulkLoad="
+                    + parallelTime / NANOS_PER_MILLI);
+        }
+    }
+
+    /**
+     * Builds a {@code Map4} of {@code n} entries, looks up {@code n} present
+     * and {@code n} absent keys, and prints its metrics (counters included
+     * only when run with {@code -DMap4.metrics=true}), along with the time the
+     * lookups took, so that the cost of counting can be compared.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of entries
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [metrics report]
+     */
+    private static void metrics(SimpleWriter out, int n) {
+        Map4<Integer, Integer> m = new Map4<>();
+        for (int i = 0; i < n; i++) {
+            m.add(i, i);
+        }
+        int hits = 0;
+        long start = System.nanoTime();
+        for (int pass = 0; pass <= WARMUP_PASSES; pass++) {
+            for (int i = 0; i < 2 * n; i++) {
+                if (m.hasKey(i)) {
+                    hits++;
+                }
+            }
+        }
+        long lookupTime = System.nanoTime() - start;
+        out.println("hasKey (ns/call)="
+                + (double) lookupTime / ((WARMUP_PASSES + 1) * 2L * n)
+                + " hits=" + hits);
+        out.println(m.metrics().toString());
+    }
+
+    /**
+     * Runs {@code 4 * n} memoized lookups, drawn from {@code n} keys with a
+     * skewed (roughly Zipfian) distribution, through a {@code CacheMap4}
+     * holding a tenth of the keys, and prints the time per lookup, the hit
+     * rate, and the number of evictions.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of distinct keys
+     * @updates out.content
+     * @requires out.is_open and n >= 10
+     * @ensures out.content = #out.content * [cache report]
+     */
+    private static void caching(SimpleWriter out, int n) {
+        final int lookups = 4 * n;
+        final long seed = 14L;
+        Random rnd = new Random(seed);
+        int[] keys = new int[lookups];
+        for (int i = 0; i < lookups; i++) {
+            /*
+             * n^u for u uniform in [0, 1) puts most of the weight on small
+             * keys, like the popular inputs of a real memoized function.
+             */
+            keys[i] = (int) Math.pow(n, rnd.nextDouble());
+        }
+        int[] evicted = new int[1];
+        CacheMap4<Integer, Integer> cache = new CacheMap4<>(n / 10,
+                (k, v) -> evicted[0]++);
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            cache.computeIfAbsent(keys[i], key -> key);
+        }
+        long time = System.nanoTime() - start;
+        out.println("CacheMap4 capacity=" + cache.capacity() + " keys=" + n
+                + " lookups=" + lookups);
+        out.println("  ns/lookup=" + (double) time / lookups + " hitRate="
+                + cache.hitRate() + " evictions=" + cache.evictions()
+                + " (listener saw " + evicted[0] + ")");
+    }
+
+    /**
+     * Compares handing versions of an {@code n}-entry map between pipeline
+     * stages: each of a number of stages copies a {@code Map4} (the
+     * defensive copy) and changes one entry of the copy, or calls
+     * {@code with} on a {@code PersistentMap4}. Also times building the
+     * {@code PersistentMap4} in transient mode and taking snapshots, and
+     * prints the times per stage.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of entries
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [versioning times]
+     */
+    private static void persistent(SimpleWriter out, int n) {
+        final int stages = 20;
+        Map4<Integer, Integer> m = new Map4<>();
+        long start = System.nanoTime();
+        PersistentMap4<Integer, Integer> p = new PersistentMap4<>();
+        for (int i = 0; i < n; i++) {
+            p.add(i, i);
+        }
+        long buildTime = System.nanoTime() - start;
+        for (int i = 0; i < n; i++) {
+            m.add(i, i);
+        }
+        out.println("PersistentMap4 transient build (ms)="
+                + buildTime / NANOS_PER_MILLI);
+
+        start = System.nanoTime();
+        Map4<Integer, Integer> current = m;
+        for (int s = 0; s < stages; s++) {
+            Map4<Integer, Integer> copy = new Map4<>();
+            for (Map.Pair<Integer, Integer> e : current) {
+                copy.add(e.key(), e.value());
+            }
+            copy.replaceValue(s, -s);
+            current = copy;
+        }
+        long copyTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        PersistentMap4<Integer, Integer> version = p;
+        for (int s = 0; s < stages; s++) {
+            version = version.with(s, -s);
+        }
+        long withTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int s = 0; s < stages; s++) {
+            PersistentMap4<Integer, Integer> snapshot = p.snapshot();
+            p.replaceValue(s, snapshot.value(s) - 1);
+        }
+        long snapshotTime = System.nanoTime() - start;
+
+        out.println("per stage, n=" + n + ":");
+        out.println("  Map4 copy + replaceValue (ms)="
+                + (double) copyTime / stages / NANOS_PER_MILLI);
+        out.println("  PersistentMap4.with (us)="
+                + (double) withTime / stages / NANOS_PER_MICRO);
+        out.println("  PersistentMap4.snapshot + replaceValue (us)="
+                + (double) snapshotTime / stages / NANOS_PER_MICRO);
+    }
+
+    /**
+     * Looks up each key of {@code keys} in {@code m}, timing each call to
+     * {@code hasKey} separately (after {@code WARMUP_PASSES} untimed passes),
+     * and reports the latency distribution.
+     *
+     * @param out
+     *            the output stream
+     * @param name
+     *            the name to report
+     * @param m
+     *            the map
+     * @param keys
+     *            the keys to look up
+     * @updates out.content
+     * @requires out.is_open and |keys| > 0
+     * @ensures out.content = #out.content * [latency report]
+     */
+    private static void lookupLatency(SimpleWriter out, String name,
+            Map<Integer, Integer> m, Integer[] keys) {
+        long[] samples = new long[keys.length];
+        int found = 0;
+        for (int pass = 0; pass <= WARMUP_PASSES; pass++) {
+            for (int i = 0; i < keys.length; i++) {
+                long start = System.nanoTime();
+                boolean hit = m.hasKey(keys[i]);
+                samples[i] = System.nanoTime() - start;
+                if (hit) {
+                    found++;
+                }
+            }
+        }
+        Arrays.sort(samples);
+        out.println(name + " hasKey latency (ns) over " + keys.length
+                + " lookups: p50=" + percentile(samples, 50) + " p99="
+                + percentile(samples, 99) + " p99.9="
+                + percentile(samples, 99.9) + " p99.99="
+                + percentile(samples, 99.99) + " max="
+                + samples[samples.length - 1] + " (hits=" + found + ")");
+    }
+
+    /**
+     * Compares the {@code hasKey} latency distribution of {@code Map4}, whose
+     * chains vary in length, with {@code CuckooMap4}, which looks at two
+     * buckets at most, on {@code n} random keys and as many lookups, half of
+     * them for absent keys.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of entries
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [latency reports]
+     */
+    private static void cuckoo(SimpleWriter out, int n) {
+        final long seed = 16L;
+        Random rnd = new Random(seed);
+        Integer[] keys = new Integer[n];
+        Map<Integer, Integer> chained = new Map4<>();
+        Map<Integer, Integer> cuckoo = new CuckooMap4<>();
+        for (int i = 0; i < n; i++) {
+            int key = rnd.nextInt();
+            if (!chained.hasKey(key)) {
+                chained.add(key, i);
+                cuckoo.add(key, i);
+            }
+            if (i % 2 == 0) {
+                keys[i] = key;
+            } else {
+                keys[i] = rnd.nextInt();
+            }
+        }
+        lookupLatency(out, "Map4", chained, keys);
+        lookupLatency(out, "CuckooMap4", cuckoo, keys);
+    }
+
+    /**
+     * Builds {@code PARTS} word-count maps of {@code n} entries each, over
+     * overlapping key ranges and with tables of the same size, and merges
+     * them into one, first entry by entry and then with
+     * {@code parallelMerge}; then finds the largest count with a serial
+     * {@code forEach} and with {@code maxByValue}. Prints the times and the
+     * number of processors available.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of entries in each part
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [merge and reduction times]
+     */
+    private static void parallel(SimpleWriter out, int n) {
+        final int parts = 4;
+        out.println("processors="
+                + Runtime.getRuntime().availableProcessors());
+
+        Map4<Integer, Integer> serial = new Map4<>(2 * n + 1);
+        long serialTime = 0;
+        for (int p = 0; p < parts; p++) {
+            Map4<Integer, Integer> part = wordCounts(n, p);
+            long start = System.nanoTime();
+            for (Map.Pair<Integer, Integer> e : part) {
+                if (serial.hasKey(e.key())) {
+                    serial.replaceValue(e.key(),
+                            serial.value(e.key()) + e.value());
+                } else {
+                    serial.add(e.key(), e.value());
+                }
+            }
+            serialTime += System.nanoTime() - start;
+        }
+
+        Map4<Integer, Integer> merged = new Map4<>(2 * n + 1);
+        long parallelTime = 0;
+        for (int p = 0; p < parts; p++) {
+            Map4<Integer, Integer> part = wordCounts(n, p);
+            long start = System.nanoTime();
+            merged.parallelMerge(part, Integer::sum);
+            parallelTime += System.nanoTime() - start;
+        }
+        out.println("merge " + parts + " x " + n + " (ms): entry by entry="
+                + serialTime / NANOS_PER_MILLI + " parallelMerge="
+                + parallelTime / NANOS_PER_MILLI);
+
+        long start = System.nanoTime();
+        int[] best = { Integer.MIN_VALUE };
+        merged.forEach((k, v) -> best[0] = Math.max(best[0], v));
+        long forEachTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        int max = merged.maxByValue(Integer::compare).value();
+        long maxTime = System.nanoTime() - start;
+        out.println("max count " + max + " (ms): forEach="
+                + forEachTime / NANOS_PER_MILLI + " maxByValue="
+                + maxTime / NANOS_PER_MILLI);
+    }
+
+    /**
+     * Returns a word-count map with {@code n} entries, keys
+     * {@code [part * n / 2, part * n / 2 + n)}, and a table of
+     * {@code 2 * n + 1} buckets.
+     *
+     * @param n
+     *            the number of entries
+     * @param part
+     *            the index of the part
+     * @return the map
+     * @requires n > 0 and part >= 0
+     * @ensures [wordCounts has the keys above, with small counts]
+     */
+    private static Map4<Integer, Integer> wordCounts(int n, int part) {
+        Map4<Integer, Integer> result = new Map4<>(2 * n + 1);
+        int first = part * (n / 2);
+        for (int i = first; i < first + n; i++) {
+            result.add(i, 1 + i % 7);
+        }
+        return result;
+    }
+
+    /**
+     * Compares restarting with an {@code n}-entry map by rebuilding it from
+     * its raw input ({@code add} of every entry) with reloading it from a
+     * snapshot written by {@code writeSnapshot}, serially and in parallel,
+     * and prints the times and the size of the snapshot.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of entries
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [restart times]
+     */
+    private static void snapshot(SimpleWriter out, int n) {
+        try {
+            Path file = Files.createTempFile("Map4Benchmark", ".snap");
+            file.toFile().deleteOnExit();
+            System.gc();
+            long start = System.nanoTime();
+            Map4<String, Integer> m = new Map4<>();
+            for (int i = 0; i < n; i++) {
+                m.add("word" + i, i);
+            }
+            long rebuildTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            m.writeSnapshot(file, Codec.STRING, Codec.INTEGER);
+            long writeTime = System.nanoTime() - start;
+            m = null;
+            out.println("snapshot of " + n + " entries: "
+                    + Files.size(file) / BYTES_PER_MEGABYTE + " MB");
+            out.println("  rebuild from input (ms)="
+                    + rebuildTime / NANOS_PER_MILLI + " writeSnapshot (ms)="
+                    + writeTime / NANOS_PER_MILLI);
+            for (boolean parallel : new boolean[] { false, true }) {
+                System.gc();
+                start = System.nanoTime();
+                Map4<String, Integer> reloaded = Map4.readSnapshot(file,
+                        Codec.STRING, Codec.INTEGER, parallel);
+                long readTime = System.nanoTime() - start;
+                out.println("  readSnapshot parallel=" + parallel + " (ms)="
+                        + readTime / NANOS_PER_MILLI + " size="
+                        + reloaded.size());
+            }
+            Files.delete(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Main method.
+     *
+     * @param args
+     *            the command line arguments: the benchmark name and,
+     *            optionally, the number of entries
+     */
+    public static void main(String[] args) {
+        SimpleWriter out = new SimpleWriter1L();
+        String benchmark = "resize";
+        int n = DEFAULT_ENTRIES;
+        if (args.length > 0) {
+            benchmark = args[0];
+        }
+        if (args.length > 1) {
+            n = Integer.parseInt(args[1]);
+        }
+
+        long start = System.nanoTime();
+        switch (benchmark) {
+            case "resize":
+                resizeLatency(out, n);
+                break;
+            case "kernel":
+                kernelOperations(out, n);
+                break;
+            case "spread":
+                spreadQuality(out, n);
+                break;
+            case "flood":
+                hashFlooding(out, n);
+                break;
+            case "concurrent":
+                concurrentIncrements(out, n);
+                break;
+            case "readers":
+                readersWithWriter(out, n);
+                break;
+            case "counting":
+                counting(out, n);
+                break;
+            case "scan":
+                scans(out, n);
+                break;
+            case "drain":
+                draining(out, n);
+                break;
+            case "mapped":
+                mapped(out, n);
+                break;
+            case "bulk":
+                bulkLoading(out, n);
+                break;
+            case "metrics":
+                metrics(out, n);
+                break;
+            case "cache":
+                caching(out, n);
+                break;
+            case "persistent":
+                persistent(out, n);
+                break;
+            case "cuckoo":
+                cuckoo(out, n);
+                break;
+            case "parallel":
+                parallel(out, n);
+                break;
+            case "snapshot":
+                snapshot(out, n);
+                break;
+            default:
+                out.println("Unknown benchmark: " + benchmark);
+                out.println(
+                        "Available: resize, kernel, spread, flood, concurrent, "
+                                + "readers, counting, scan, drain, mapped, "
+                                + "bulk, metrics, cache, persistent, "
+                                + "cuckoo, parallel, snapshot");
+                break;
+        }
+        out.println("Total time: "
+                + (System.nanoTime() - start) / NANOS_PER_MILLI + " ms");
+
+        out.close();
+    }
+
+}
@@ -0,0 +1,490 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import components.map.Map;
+import components.map.MapSecondary;
+
+/**
+ * {@code Map} represented as an open-addressing hash table (parallel arrays of
+ * keys and values with linear probing) that grows automatically, with
+ * implementations of primary methods.
+ *
+ * @param <K>
+ *            type of {@code Map} domain (key) entries
+ * @param <V>
+ *            type of {@code Map} range (associated value) entries
+ * @convention <pre>
+ * |$this.keys| = |$this.values|  and
+ * [|$this.keys| is a power of 2]  and
+ * |$this.keys| >= DEFAULT_CAPACITY  and
+ * $this.size <= |$this.keys| * MAX_LOAD_FACTOR  and
+ * for all i: integer
+ *     where (0 <= i  and  i < |$this.keys|)
+ *   (($this.keys[i] = null) = ($this.values[i] = null))  and
+ * for all i: integer
+ *     where (0 <= i  and  i < |$this.keys|  and  $this.keys[i] /= null)
+ *   ([no entry of $this.keys between the home slot of $this.keys[i] and
+ *     position i, cyclically, is null])  and
+ * [the non-null entries of $this.keys are all different]  and
+ * $this.size = [number of non-null entries in $this.keys]  and
+ * 0 <= $this.firstOccupied <= |$this.keys|  and
+ * [every entry of $this.keys before $this.firstOccupied is null]
+ * </pre>
+ * @correspondence <pre>
+ * this = {(k, v): (K, V)
+ *          where (there exists i: integer
+ *                   ($this.keys[i] = k  and  $this.values[i] = v  and
+ *                    k /= null))}
+ * </pre>
+ *
+ * @author Allen Zheng and Jared Koharik
+ *
+ */
+public class Map5<K, V> extends MapSecondary<K, V> {
+
+    /*
+     * Private members --------------------------------------------------------
+     */
+
+    /**
+     * Default (and minimum) number of slots in the table.
+     */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * Largest fraction of the slots that may be occupied before the table is
+     * doubled.
+     */
+    private static final double MAX_LOAD_FACTOR = 0.5;
+
+    /**
+     * Keys, indexed by slot; {@code null} marks an empty slot.
+     */
+    private K[] keys;
+
+    /**
+     * Values, indexed by the same slot as their keys.
+     */
+    private V[] values;
+
+    /**
+     * Total size of abstract {@code this}.
+     */
+    private int size;
+
+    /**
+     * Slot at which {@code removeAny} starts looking for an entry; no slot
+     * before it is occupied.
+     */
+    private int firstOccupied;
+
+    /**
+     * Returns the home slot of {@code key} in a table with {@code capacity}
+     * slots.
+     *
+     * @param key
+     *            the key to be hashed
+     * @param capacity
+     *            the number of slots in the table
+     * @return the home slot of key
+     * @requires [capacity is a power of 2]
+     * @ensures 0 <= homeSlot < capacity
+     */
+    private static int homeSlot(Object key, int capacity) {
+        /*
+         * Mix every bit of the hash code into the low bits with the
+         * MurmurHash3 finalizer (as Map4.Spreader.MURMUR3 does). Folding the
+         * high half down is not enough: consecutive hash codes (small
+         * Integers, for instance) would then fill consecutive slots and form
+         * one cluster as large as the map, and every deleteSlot would walk
+         * all of it.
+         */
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & (capacity - 1);
+    }
+
+    /**
+     * Creator of initial representation.
+     *
+     * @param capacity
+     *            the number of slots in the table
+     * @requires [capacity is a power of 2]
+     * @ensures <pre>
+     * |$this.keys| = capacity  and  |$this.values| = capacity  and
+     * [all entries of $this.keys and $this.values are null]  and
+     * $this.size = 0  and  $this.firstOccupied = capacity
+     * </pre>
+     */
+    @SuppressWarnings("unchecked")
+    private void createNewRep(int capacity) {
+        /*
+         * As in Map4, generic array creation is not allowed, so these are
+         * unchecked conversions that cannot fail.
+         */
+        this.keys = (K[]) new Object[capacity];
+        this.values = (V[]) new Object[capacity];
+        this.size = 0;
+        this.firstOccupied = capacity;
+    }
+
+    /**
+     * Records that slot {@code i} has just been filled, moving
+     * {@code firstOccupied} back to it if it lies before.
+     *
+     * @param i
+     *            the slot that was filled
+     * @updates $this.firstOccupied
+     * @ensures $this.firstOccupied = min(#$this.firstOccupied, i)
+     */
+    private void filled(int i) {
+        if (i < this.firstOccupied) {
+            this.firstOccupied = i;
+        }
+    }
+
+    /**
+     * Returns the slot holding {@code key}, or the empty slot that ends its
+     * probe sequence if {@code key} is not in the table.
+     *
+     * @param key
+     *            the key to be located
+     * @return the slot for key
+     * @ensures <pre>
+     * ($this.keys[findSlot] = key)  or
+     * ($this.keys[findSlot] = null  and  key is not in DOMAIN(this))
+     * </pre>
+     */
+    private int findSlot(K key) {
+        int mask = this.keys.length - 1;
+        int i = homeSlot(key, this.keys.length);
+        while (this.keys[i] != null && !this.keys[i].equals(key)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Moves every entry into a table with {@code newCapacity} slots.
+     *
+     * @param newCapacity
+     *            the number of slots in the new table
+     * @updates $this
+     * @requires [newCapacity is a power of 2 and newCapacity > $this.size]
+     * @ensures |$this.keys| = newCapacity  and  this = #this
+     */
+    private void resize(int newCapacity) {
+        K[] oldKeys = this.keys;
+        V[] oldValues = this.values;
+        int oldSize = this.size;
+        this.createNewRep(newCapacity);
+        int mask = newCapacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != null) {
+                int i = homeSlot(oldKeys[j], newCapacity);
+                while (this.keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                this.keys[i] = oldKeys[j];
+                this.values[i] = oldValues[j];
+                this.filled(i);
+            }
+        }
+        this.size = oldSize;
+    }
+
+    /**
+     * Empties slot {@code hole} and shifts later entries of the same cluster
+     * back so that no probe sequence is broken (no tombstones are needed).
+     *
+     * @param hole
+     *            the slot to be emptied
+     * @updates $this.keys, $this.values
+     * @requires $this.keys[hole] /= null
+     * @ensures <pre>
+     * [the entry at #$this.keys[hole] is no longer in the table, and every
+     *  other entry still is and is still reachable from its home slot]
+     * </pre>
+     */
+    private void deleteSlot(int hole) {
+        int mask = this.keys.length - 1;
+        int i = hole;
+        int j = (i + 1) & mask;
+        while (this.keys[j] != null) {
+            int home = homeSlot(this.keys[j], this.keys.length);
+            /*
+             * The entry at j may move to i only if i lies cyclically in
+             * [home, j), i.e., moving it does not put it before its home slot.
+             */
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                this.keys[i] = this.keys[j];
+                this.values[i] = this.values[j];
+                this.filled(i);
+                i = j;
+            }
+            j = (j + 1) & mask;
+        }
+        this.keys[i] = null;
+        this.values[i] = null;
+    }
+
+    /*
+     * Constructors -----------------------------------------------------------
+     */
+
+    /**
+     * No-argument constructor.
+     */
+    public Map5() {
+        this.createNewRep(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor resulting in a table large enough to hold
+     * {@code expectedSize} entries without resizing.
+     *
+     * @param expectedSize
+     *            number of entries expected
+     * @requires expectedSize >= 0
+     * @ensures this = {}
+     */
+    public Map5(int expectedSize) {
+        assert expectedSize >= 0 : "Violation of: expectedSize >= 0";
+
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity * MAX_LOAD_FACTOR < expectedSize) {
+            capacity *= 2;
+        }
+        this.createNewRep(capacity);
+    }
+
+    /*
+     * Standard methods -------------------------------------------------------
+     */
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public final Map<K, V> newInstance() {
+        try {
+            return this.getClass().getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(
+                    "Cannot construct object of type " + this.getClass());
+        }
+    }
+
+    @Override
+    public final void clear() {
+        this.createNewRep(DEFAULT_CAPACITY);
+    }
+
+    @Override
+    public final void transferFrom(Map<K, V> source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+        assert source instanceof Map5<?, ?> : ""
+                + "Violation of: source is of dynamic type Map5<?,?>";
+        /*
+         * This cast cannot fail since the assert above would have stopped
+         * execution in that case: source must be of dynamic type Map5<?,?>, and
+         * the ?,? must be K,V or the call would not have compiled.
+         */
+        Map5<K, V> localSource = (Map5<K, V>) source;
+        this.keys = localSource.keys;
+        this.values = localSource.values;
+        this.size = localSource.size;
+        this.firstOccupied = localSource.firstOccupied;
+        localSource.createNewRep(DEFAULT_CAPACITY);
+    }
+
+    /*
+     * Kernel methods ---------------------------------------------------------
+     */
+
+    @Override
+    public final void add(K key, V value) {
+        assert key != null : "Violation of: key is not null";
+        assert value != null : "Violation of: value is not null";
+
+        int i = this.findSlot(key);
+        assert this.keys[i] == null : "Violation of: key is not in DOMAIN(this)";
+
+        if (this.size + 1 > this.keys.length * MAX_LOAD_FACTOR) {
+            this.resize(this.keys.length * 2);
+            i = this.findSlot(key);
+        }
+        this.keys[i] = key;
+        this.values[i] = value;
+        this.filled(i);
+        this.size++;
+    }
+
+    @Override
+    public final Pair<K, V> remove(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        int i = this.findSlot(key);
+        assert this.keys[i] != null : "Violation of: key is in DOMAIN(this)";
+
+        Pair<K, V> result = new SimplePair<>(this.keys[i], this.values[i]);
+        this.deleteSlot(i);
+        this.size--;
+
+        return result;
+    }
+
+    @Override
+    public final Pair<K, V> removeAny() {
+        assert this.size() > 0 : "Violation of: this /= empty_set";
+
+        /*
+         * Every slot before firstOccupied is empty, so the scan resumes there
+         * instead of at slot 0, and draining the map costs O(capacity) in
+         * total rather than per call.
+         */
+        while (this.keys[this.firstOccupied] == null) {
+            this.firstOccupied++;
+        }
+        int i = this.firstOccupied;
+        Pair<K, V> result = new SimplePair<>(this.keys[i], this.values[i]);
+        this.deleteSlot(i);
+        this.size--;
+
+        return result;
+    }
+
+    @Override
+    public final V value(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        int i = this.findSlot(key);
+        assert this.keys[i] != null : "Violation of: key is in DOMAIN(this)";
+
+        return this.values[i];
+    }
+
+    @Override
+    public final boolean hasKey(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        return this.keys[this.findSlot(key)] != null;
+    }
+
+    @Override
+    public final int size() {
+        return this.size;
+    }
+
+    @Override
+    public final Iterator<Pair<K, V>> iterator() {
+        return new Map5Iterator();
+    }
+
+    /**
+     * Simple immutable implementation of {@code Pair}.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     */
+    private static final class SimplePair<K, V> implements Pair<K, V> {
+
+        /**
+         * The key.
+         */
+        private final K key;
+
+        /**
+         * The value.
+         */
+        private final V value;
+
+        /**
+         * Constructor from key and value.
+         *
+         * @param key
+         *            the key
+         * @param value
+         *            the value
+         */
+        SimplePair(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public K key() {
+            return this.key;
+        }
+
+        @Override
+        public V value() {
+            return this.value;
+        }
+
+    }
+
+    /**
+     * Implementation of {@code Iterator} interface for {@code Map5}.
+     */
+    private final class Map5Iterator implements Iterator<Pair<K, V>> {
+
+        /**
+         * Number of elements seen already (i.e., |~this.seen|).
+         */
+        private int numberSeen;
+
+        /**
+         * Slot at which to start looking for the next element.
+         */
+        private int currentSlot;
+
+        /**
+         * No-argument constructor.
+         */
+        Map5Iterator() {
+            this.numberSeen = 0;
+            this.currentSlot = 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.numberSeen < Map5.this.size;
+        }
+
+        @Override
+        public Pair<K, V> next() {
+            assert this.hasNext() : "Violation of: ~this.unseen /= <>";
+            if (!this.hasNext()) {
+                /*
+                 * Exception is supposed to be thrown in this case, but with
+                 * assertion-checking enabled it cannot happen because of assert
+                 * above.
+                 */
+                throw new NoSuchElementException();
+            }
+            this.numberSeen++;
+            while (Map5.this.keys[this.currentSlot] == null) {
+                this.currentSlot++;
+            }
+            Pair<K, V> result = new SimplePair<>(
+                    Map5.this.keys[this.currentSlot],
+                    Map5.this.values[this.currentSlot]);
+            this.currentSlot++;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(
+                    "remove operation not supported");
+        }
+
+    }
+
+}
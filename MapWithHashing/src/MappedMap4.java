@@ -0,0 +1,1232 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+import components.map.Map;
+import components.map.MapSecondary;
+
+/**
+ * {@code Map} represented, like {@code Map4}, as a hash table using chains of
+ * entries for the buckets, but kept entirely in a memory-mapped file instead
+ * of on the Java heap, with implementations of primary methods. Keys and
+ * values are stored as bytes produced by a {@code Codec} for each; only the
+ * objects handed out by the kernel methods are ever created on the heap, so a
+ * large map adds nothing to the work of the garbage collector, and reopening
+ * the file makes the map available again without rebuilding it.
+ *
+ * <p>
+ * The file starts with a 64-byte header (magic number, format version,
+ * state, bucket count, size, garbage byte count, end of data, and a CRC32 of
+ * the header), followed by the bucket array (the file offset of the first
+ * entry of each chain, or 0), followed by an append-only log of entries.
+ * Each entry holds the offset of the next entry in its chain, the hash of its
+ * encoded key, a live flag, and the lengths and bytes of its key and value.
+ * Removing or replacing an entry clears its live flag and unlinks it; the
+ * space is reclaimed when the table is rebuilt, which happens when it grows
+ * or when more than half of the log is garbage.
+ *
+ * <p>
+ * Crash safety: the header is marked dirty, and that mark is forced onto the
+ * storage device, before the first change after it was last synced, and
+ * marked clean (with a fresh checksum) by {@code sync} and {@code close}, so
+ * a header that says clean can be trusted. Every change is ordered so that
+ * the log alone determines the map: an entry is written completely before it
+ * is marked live, and a live entry for a key makes any earlier one for the
+ * same key obsolete. Opening a dirty file therefore rebuilds the bucket array
+ * from the log, and the map is as it was after some prefix of the completed
+ * calls. A rebuilt table is
+ * written to a temporary file that atomically replaces the old one. This
+ * protects against the process dying at any point; surviving a power failure
+ * also requires {@code sync} to have been called.
+ *
+ * <p>
+ * A file is limited to 2 GiB (the largest buffer {@code FileChannel.map}
+ * returns), and must not be opened by two {@code MappedMap4} objects at once.
+ *
+ * @param <K>
+ *            type of {@code Map} domain (key) entries
+ * @param <V>
+ *            type of {@code Map} range (associated value) entries
+ * @mathdefinitions <pre>
+ * HASH(
+ *   c: Codec, x: K
+ *  ): integer is
+ *  [computed result of Map4.Spreader.MURMUR3.spread(
+ *     [computed result of Arrays.hashCode(c.ENCODING(x))])]
+ * </pre>
+ * @convention <pre>
+ * [$this.buffer maps the first |$this.buffer| bytes of the file at
+ *  $this.path, opened as $this.channel]  and
+ * [the header in $this.buffer records MAGIC, VERSION, $this.bucketCount,
+ *  $this.size, $this.garbage, and $this.dataEnd, and is marked dirty iff
+ *  $this.dirty]  and
+ * DATA_START($this.bucketCount) <= $this.dataEnd <= |$this.buffer|  and
+ * [the entries in [DATA_START($this.bucketCount), $this.dataEnd) are laid
+ *  out back to back]  and
+ * [the chain of bucket i holds exactly the live entries whose hash mod
+ *  $this.bucketCount = i, and each entry's hash is HASH($this.keyCodec, its
+ *  key)]  and
+ * [the keys of all live entries are all different]  and
+ * $this.size = [number of live entries]  and
+ * $this.garbage = [total length of the entries that are not live]  and
+ * [every bucket before $this.firstOccupied is empty]
+ * </pre>
+ * @correspondence <pre>
+ * this = {(k, v): (K, V)
+ *          where (there exists e: entry
+ *                   ([e is live]  and
+ *                    $this.keyCodec.ENCODING(k) = [key bytes of e]  and
+ *                    $this.valueCodec.ENCODING(v) = [value bytes of e]))}
+ * </pre>
+ *
+ * @author Allen Zheng and Jared Koharik
+ *
+ */
+public class MappedMap4<K, V> extends MapSecondary<K, V> implements Closeable {
+
+    /*
+     * Private members --------------------------------------------------------
+     */
+
+    /**
+     * Default number of buckets of a new table.
+     */
+    private static final int DEFAULT_BUCKET_COUNT = 101;
+
+    /**
+     * Largest average bucket length allowed before the table is rebuilt with
+     * more buckets.
+     */
+    private static final int MAX_LOAD_FACTOR = 2;
+
+    /**
+     * Number of bytes of log space reserved beyond the buckets when a file is
+     * created.
+     */
+    private static final int INITIAL_DATA_CAPACITY = 1 << 16;
+
+    /**
+     * First four bytes of every file ("MAP4" in ASCII).
+     */
+    private static final int MAGIC = 0x4D415034;
+
+    /**
+     * Version of the file format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Header state of a file whose contents were all forced to disk.
+     */
+    private static final int CLEAN = 0;
+
+    /**
+     * Header state of a file that has been changed since it was last synced.
+     */
+    private static final int DIRTY = 1;
+
+    /**
+     * Offset of the magic number in the header.
+     */
+    private static final int MAGIC_OFFSET = 0;
+
+    /**
+     * Offset of the format version in the header.
+     */
+    private static final int VERSION_OFFSET = 4;
+
+    /**
+     * Offset of the state (CLEAN or DIRTY) in the header.
+     */
+    private static final int STATE_OFFSET = 8;
+
+    /**
+     * Offset of the bucket count in the header.
+     */
+    private static final int BUCKET_COUNT_OFFSET = 12;
+
+    /**
+     * Offset of the size in the header.
+     */
+    private static final int SIZE_OFFSET = 16;
+
+    /**
+     * Offset of the number of garbage bytes in the header.
+     */
+    private static final int GARBAGE_OFFSET = 20;
+
+    /**
+     * Offset of the end of the log (a long) in the header.
+     */
+    private static final int DATA_END_OFFSET = 24;
+
+    /**
+     * Offset of the CRC32 of the rest of the header.
+     */
+    private static final int CRC_OFFSET = 60;
+
+    /**
+     * Size of the header.
+     */
+    private static final int HEADER_SIZE = 64;
+
+    /**
+     * Size of a bucket, the file offset (a long) of its first entry.
+     */
+    private static final int BUCKET_SIZE = Long.BYTES;
+
+    /**
+     * Offset, within an entry, of the file offset of the next entry.
+     */
+    private static final int NEXT = 0;
+
+    /**
+     * Offset, within an entry, of the hash of its key.
+     */
+    private static final int HASH = 8;
+
+    /**
+     * Offset, within an entry, of its live flag.
+     */
+    private static final int FLAGS = 12;
+
+    /**
+     * Offset, within an entry, of the length of its key.
+     */
+    private static final int KEY_LENGTH = 16;
+
+    /**
+     * Offset, within an entry, of the length of its value.
+     */
+    private static final int VALUE_LENGTH = 20;
+
+    /**
+     * Size of the fixed part of an entry, after which come the key and value
+     * bytes.
+     */
+    private static final int ENTRY_HEADER_SIZE = 24;
+
+    /**
+     * Value of the live flag of a live entry.
+     */
+    private static final int LIVE = 1;
+
+    /**
+     * The file holding the map.
+     */
+    private final Path path;
+
+    /**
+     * Codec for keys.
+     */
+    private final Codec<K> keyCodec;
+
+    /**
+     * Codec for values.
+     */
+    private final Codec<V> valueCodec;
+
+    /**
+     * Channel of the open file.
+     */
+    private FileChannel channel;
+
+    /**
+     * Mapping of the file.
+     */
+    private MappedByteBuffer buffer;
+
+    /**
+     * Number of buckets.
+     */
+    private int bucketCount;
+
+    /**
+     * Total size of abstract {@code this}.
+     */
+    private int size;
+
+    /**
+     * Total length of the entries in the log that are no longer live.
+     */
+    private int garbage;
+
+    /**
+     * Offset just past the last entry of the log.
+     */
+    private int dataEnd;
+
+    /**
+     * Whether the header is marked dirty.
+     */
+    private boolean dirty;
+
+    /**
+     * Bucket before which every bucket is empty; where {@code removeAny}
+     * starts looking.
+     */
+    private int firstOccupied;
+
+    /**
+     * Returns the offset of the first entry of a file with
+     * {@code bucketCount} buckets.
+     *
+     * @param bucketCount
+     *            the number of buckets
+     * @return the offset just past the buckets
+     * @ensures dataStart = HEADER_SIZE + BUCKET_SIZE * bucketCount
+     */
+    private static int dataStart(int bucketCount) {
+        return HEADER_SIZE + BUCKET_SIZE * bucketCount;
+    }
+
+    /**
+     * Returns HASH(keyCodec, key), given the encoding of key.
+     *
+     * @param key
+     *            the encoded key
+     * @return the hash of key
+     * @ensures [hash is the spread hash of the bytes of key]
+     */
+    private static int hash(byte[] key) {
+        return Map4.Spreader.MURMUR3.spread(Arrays.hashCode(key));
+    }
+
+    /**
+     * Wraps {@code e} for methods that cannot throw it.
+     *
+     * @param e
+     *            the exception
+     * @return the unchecked exception to be thrown
+     * @ensures [ioFailure wraps e]
+     */
+    private static UncheckedIOException ioFailure(IOException e) {
+        return new UncheckedIOException(e);
+    }
+
+    /**
+     * Maps the first {@code capacity} bytes of the file, extending it if
+     * needed.
+     *
+     * @param capacity
+     *            the number of bytes to map
+     * @throws IOException
+     *             if the file cannot be mapped
+     * @updates $this.buffer
+     * @requires capacity <= Integer.MAX_VALUE
+     * @ensures |$this.buffer| = capacity
+     */
+    private void map(long capacity) throws IOException {
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                capacity);
+    }
+
+    /**
+     * Opens (creating it if needed) the file at {@code this.path} and maps
+     * it, recovering its bucket array if it was not closed cleanly.
+     *
+     * @throws IOException
+     *             if the file cannot be read or is not a valid map file
+     * @updates $this
+     * @ensures [$this represents the map stored in the file]
+     */
+    private void open() throws IOException {
+        this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (this.channel.size() == 0) {
+            this.format(DEFAULT_BUCKET_COUNT);
+            return;
+        }
+        if (this.channel.size() < HEADER_SIZE
+                || this.channel.size() > Integer.MAX_VALUE) {
+            throw new IOException("Not a MappedMap4 file: " + this.path);
+        }
+        this.map(this.channel.size());
+        if (this.buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+            throw new IOException("Not a MappedMap4 file: " + this.path);
+        }
+        if (this.buffer.getInt(VERSION_OFFSET) != VERSION) {
+            throw new IOException("Unsupported MappedMap4 version "
+                    + this.buffer.getInt(VERSION_OFFSET) + ": " + this.path);
+        }
+        this.bucketCount = this.buffer.getInt(BUCKET_COUNT_OFFSET);
+        long end = this.buffer.getLong(DATA_END_OFFSET);
+        if (this.bucketCount <= 0
+                || (long) dataStart(this.bucketCount) > this.buffer.capacity()
+                || end < dataStart(this.bucketCount)
+                || end > this.buffer.capacity()) {
+            throw new IOException("Corrupt MappedMap4 header: " + this.path);
+        }
+        this.dataEnd = (int) end;
+        if (this.buffer.getInt(STATE_OFFSET) == CLEAN) {
+            if (this.buffer.getInt(CRC_OFFSET) != this.headerChecksum()) {
+                throw new IOException(
+                        "MappedMap4 header checksum mismatch: " + this.path);
+            }
+            this.size = this.buffer.getInt(SIZE_OFFSET);
+            this.garbage = this.buffer.getInt(GARBAGE_OFFSET);
+            this.dirty = false;
+            this.firstOccupied = 0;
+        } else {
+            this.dirty = true;
+            this.recover();
+        }
+    }
+
+    /**
+     * Turns the open (empty) file into an empty map with
+     * {@code newBucketCount} buckets, and syncs it.
+     *
+     * @param newBucketCount
+     *            the number of buckets
+     * @throws IOException
+     *             if the file cannot be written
+     * @updates $this
+     * @requires newBucketCount > 0  and  [the file is empty]
+     * @ensures this = {}  and  $this.bucketCount = newBucketCount
+     */
+    private void format(int newBucketCount) throws IOException {
+        this.map((long) dataStart(newBucketCount) + INITIAL_DATA_CAPACITY);
+        this.bucketCount = newBucketCount;
+        this.size = 0;
+        this.garbage = 0;
+        this.dataEnd = dataStart(newBucketCount);
+        this.firstOccupied = newBucketCount;
+        this.buffer.putInt(MAGIC_OFFSET, MAGIC);
+        this.buffer.putInt(VERSION_OFFSET, VERSION);
+        this.buffer.putInt(BUCKET_COUNT_OFFSET, newBucketCount);
+        this.writeCounts();
+        this.dirty = true;
+        this.sync();
+    }
+
+    /**
+     * Returns the CRC32 of the header bytes before the checksum.
+     *
+     * @return the checksum of the header
+     * @ensures [headerChecksum is the CRC32 of $this.buffer[0, CRC_OFFSET)]
+     */
+    private int headerChecksum() {
+        byte[] header = new byte[CRC_OFFSET];
+        ByteBuffer view = this.buffer.duplicate();
+        view.position(0);
+        view.get(header);
+        CRC32 crc = new CRC32();
+        crc.update(header);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Copies {@code size}, {@code garbage}, and {@code dataEnd} into the
+     * header.
+     *
+     * @updates [the header in $this.buffer]
+     * @ensures [the header records $this.size, $this.garbage, $this.dataEnd]
+     */
+    private void writeCounts() {
+        this.buffer.putInt(SIZE_OFFSET, this.size);
+        this.buffer.putInt(GARBAGE_OFFSET, this.garbage);
+        this.buffer.putLong(DATA_END_OFFSET, this.dataEnd);
+    }
+
+    /**
+     * Marks the header dirty, if it is not already, before a change, and
+     * forces the header onto the storage device. Without the force, the
+     * operating system may write back a changed bucket or log page before
+     * the header page, and a power failure then leaves a file whose header
+     * still says clean, which {@code open} would trust.
+     *
+     * @updates $this.dirty, [the header in $this.buffer and the file]
+     * @ensures $this.dirty  and  [the file's header is marked dirty]
+     */
+    private void markDirty() {
+        if (!this.dirty) {
+            this.buffer.putInt(STATE_OFFSET, DIRTY);
+            this.buffer.force(0, HEADER_SIZE);
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * Returns the position of bucket {@code i} in the file.
+     *
+     * @param i
+     *            the bucket
+     * @return the offset of bucket i
+     * @requires 0 <= i < $this.bucketCount
+     * @ensures bucketOffset = HEADER_SIZE + BUCKET_SIZE * i
+     */
+    private static int bucketOffset(int i) {
+        return HEADER_SIZE + BUCKET_SIZE * i;
+    }
+
+    /**
+     * Returns the offset of the first entry of bucket {@code i}, or 0.
+     *
+     * @param i
+     *            the bucket
+     * @return the first entry of bucket i, or 0 if it is empty
+     * @requires 0 <= i < $this.bucketCount
+     * @ensures [head is the first entry of the chain of bucket i, or 0]
+     */
+    private int head(int i) {
+        return (int) this.buffer.getLong(bucketOffset(i));
+    }
+
+    /**
+     * Returns the offset of the entry after entry {@code e} in its chain, or
+     * 0.
+     *
+     * @param e
+     *            the entry
+     * @return the next entry, or 0
+     * @requires [e is an entry]
+     * @ensures [next is the next entry of e's chain, or 0]
+     */
+    private int next(int e) {
+        return (int) this.buffer.getLong(e + NEXT);
+    }
+
+    /**
+     * Returns the total length of entry {@code e}.
+     *
+     * @param e
+     *            the entry
+     * @return the length of e
+     * @requires [e is an entry]
+     * @ensures [entryLength is the number of bytes of e]
+     */
+    private int entryLength(int e) {
+        return ENTRY_HEADER_SIZE + this.buffer.getInt(e + KEY_LENGTH)
+                + this.buffer.getInt(e + VALUE_LENGTH);
+    }
+
+    /**
+     * Returns the bucket of a key whose hash is {@code hash}.
+     *
+     * @param hash
+     *            the hash of the key
+     * @return hash mod $this.bucketCount
+     * @ensures bucketFor = hash mod $this.bucketCount
+     */
+    private int bucketFor(int hash) {
+        int remain = hash % this.bucketCount;
+        if (remain < 0) {
+            remain += this.bucketCount;
+        }
+        return remain;
+    }
+
+    /**
+     * Reports whether the key of entry {@code e} is {@code key}.
+     *
+     * @param e
+     *            the entry
+     * @param hash
+     *            HASH of key
+     * @param key
+     *            the encoded key
+     * @return true iff e holds key
+     * @requires [e is an entry]
+     * @ensures keyEquals = ([key bytes of e] = key)
+     */
+    private boolean keyEquals(int e, int hash, byte[] key) {
+        if (this.buffer.getInt(e + HASH) != hash
+                || this.buffer.getInt(e + KEY_LENGTH) != key.length) {
+            return false;
+        }
+        int start = e + ENTRY_HEADER_SIZE;
+        for (int i = 0; i < key.length; i++) {
+            if (this.buffer.get(start + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the live entry holding {@code key}, or 0 if there is none.
+     *
+     * @param key
+     *            the encoded key
+     * @param hash
+     *            HASH of key
+     * @return the entry holding key, or 0
+     * @ensures <pre>
+     * (find /= 0  and  [find is the live entry holding key])  or
+     * (find = 0  and  [no live entry holds key])
+     * </pre>
+     */
+    private int find(byte[] key, int hash) {
+        int e = this.head(this.bucketFor(hash));
+        while (e != 0 && !this.keyEquals(e, hash, key)) {
+            e = this.next(e);
+        }
+        return e;
+    }
+
+    /**
+     * Returns a view of {@code length} bytes of the file starting at
+     * {@code offset}.
+     *
+     * @param offset
+     *            the first byte
+     * @param length
+     *            the number of bytes
+     * @return the view
+     * @ensures [slice holds $this.buffer[offset, offset + length)]
+     */
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer view = this.buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view;
+    }
+
+    /**
+     * Returns the key of entry {@code e}.
+     *
+     * @param e
+     *            the entry
+     * @return the decoded key of e
+     * @requires [e is an entry]
+     * @ensures keyOf = [the key of e]
+     */
+    private K keyOf(int e) {
+        return this.keyCodec.decode(this.slice(e + ENTRY_HEADER_SIZE,
+                this.buffer.getInt(e + KEY_LENGTH)));
+    }
+
+    /**
+     * Returns the value of entry {@code e}.
+     *
+     * @param e
+     *            the entry
+     * @return the decoded value of e
+     * @requires [e is an entry]
+     * @ensures valueOf = [the value of e]
+     */
+    private V valueOf(int e) {
+        return this.valueCodec.decode(this.slice(
+                e + ENTRY_HEADER_SIZE + this.buffer.getInt(e + KEY_LENGTH),
+                this.buffer.getInt(e + VALUE_LENGTH)));
+    }
+
+    /**
+     * Makes sure the mapping has room for {@code extra} more bytes of log,
+     * growing (and remapping) the file if it does not.
+     *
+     * @param extra
+     *            the number of bytes about to be appended
+     * @throws IOException
+     *             if the file cannot be grown
+     * @updates $this.buffer
+     * @ensures $this.dataEnd + extra <= |$this.buffer|
+     */
+    private void ensureCapacity(int extra) throws IOException {
+        long needed = (long) this.dataEnd + extra;
+        if (needed > this.buffer.capacity()) {
+            if (needed > Integer.MAX_VALUE) {
+                throw new IllegalStateException(
+                        "MappedMap4 file would exceed 2 GiB: " + this.path);
+            }
+            this.map(Math.min(Integer.MAX_VALUE,
+                    Math.max(needed, 2L * this.buffer.capacity())));
+        }
+    }
+
+    /**
+     * Appends an entry with the given hash, key bytes, and value bytes to
+     * the log and links it at the front of its bucket. It is written
+     * completely, and recorded in the header's end of data, before it is
+     * marked live, so a crash can never expose a partial entry.
+     *
+     * @param hash
+     *            HASH of the key
+     * @param key
+     *            source of the key bytes
+     * @param value
+     *            source of the value bytes
+     * @return the new entry
+     * @throws IOException
+     *             if the file cannot be grown
+     * @updates $this
+     * @requires <pre>
+     * $this.dirty  and  [key and value each hold exactly the bytes to be
+     *  stored, from their positions to their limits]
+     * </pre>
+     * @ensures [the new live entry is first in the chain of its bucket]
+     */
+    private int append(int hash, ByteBuffer key, ByteBuffer value)
+            throws IOException {
+        int keyLength = key.remaining();
+        int valueLength = value.remaining();
+        this.ensureCapacity(ENTRY_HEADER_SIZE + keyLength + valueLength);
+        int bucket = this.bucketFor(hash);
+        int e = this.dataEnd;
+        this.buffer.putLong(e + NEXT, this.head(bucket));
+        this.buffer.putInt(e + HASH, hash);
+        this.buffer.putInt(e + FLAGS, 0);
+        this.buffer.putInt(e + KEY_LENGTH, keyLength);
+        this.buffer.putInt(e + VALUE_LENGTH, valueLength);
+        ByteBuffer view = this.buffer.duplicate();
+        view.position(e + ENTRY_HEADER_SIZE);
+        view.put(key);
+        view.put(value);
+        this.dataEnd = view.position();
+        this.buffer.putLong(DATA_END_OFFSET, this.dataEnd);
+        this.buffer.putInt(e + FLAGS, LIVE);
+        this.buffer.putLong(bucketOffset(bucket), e);
+        if (bucket < this.firstOccupied) {
+            this.firstOccupied = bucket;
+        }
+        return e;
+    }
+
+    /**
+     * Clears the live flag of entry {@code e} and unlinks it from its chain.
+     *
+     * @param e
+     *            the entry
+     * @updates $this
+     * @requires $this.dirty  and  [e is a live entry]
+     * @ensures [e is no longer live, and no chain holds it]
+     */
+    private void kill(int e) {
+        this.buffer.putInt(e + FLAGS, 0);
+        int bucket = this.bucketFor(this.buffer.getInt(e + HASH));
+        int head = this.head(bucket);
+        if (head == e) {
+            this.buffer.putLong(bucketOffset(bucket), this.next(e));
+        } else {
+            int prev = head;
+            while (this.next(prev) != e) {
+                prev = this.next(prev);
+            }
+            this.buffer.putLong(prev + NEXT, this.next(e));
+        }
+        this.garbage += this.entryLength(e);
+    }
+
+    /**
+     * Removes live entry {@code e} and returns it as a {@code Pair}.
+     *
+     * @param e
+     *            the entry
+     * @return the removed (key, value)
+     * @updates $this
+     * @requires [e is a live entry]
+     * @ensures this = #this \ {removeEntry}
+     */
+    private Pair<K, V> removeEntry(int e) {
+        Pair<K, V> result = new SimplePair<>(this.keyOf(e), this.valueOf(e));
+        this.markDirty();
+        this.kill(e);
+        this.size--;
+        this.writeCounts();
+        this.compactIfNeeded();
+        return result;
+    }
+
+    /**
+     * Rebuilds the bucket array from the log, after the file was found not to
+     * have been closed cleanly. Entries that are not live, or that are
+     * followed by a live entry for the same key, are dropped; the log is cut
+     * at the first entry that does not fit before the end of data.
+     *
+     * @updates $this
+     * @requires $this.dirty
+     * @ensures [the convention holds, with the live entries of the log]
+     */
+    private void recover() {
+        for (int i = 0; i < this.bucketCount; i++) {
+            this.buffer.putLong(bucketOffset(i), 0);
+        }
+        this.size = 0;
+        this.garbage = 0;
+        this.firstOccupied = this.bucketCount;
+        int end = this.dataEnd;
+        int e = dataStart(this.bucketCount);
+        while (e + ENTRY_HEADER_SIZE <= end) {
+            int keyLength = this.buffer.getInt(e + KEY_LENGTH);
+            int valueLength = this.buffer.getInt(e + VALUE_LENGTH);
+            if (keyLength < 0 || valueLength < 0 || (long) e
+                    + ENTRY_HEADER_SIZE + keyLength + valueLength > end) {
+                break;
+            }
+            int length = ENTRY_HEADER_SIZE + keyLength + valueLength;
+            if (this.buffer.getInt(e + FLAGS) == LIVE) {
+                int hash = this.buffer.getInt(e + HASH);
+                byte[] key = new byte[keyLength];
+                this.slice(e + ENTRY_HEADER_SIZE, keyLength).get(key);
+                int old = this.find(key, hash);
+                if (old != 0) {
+                    this.kill(old);
+                    this.size--;
+                }
+                int bucket = this.bucketFor(hash);
+                this.buffer.putLong(e + NEXT, this.head(bucket));
+                this.buffer.putLong(bucketOffset(bucket), e);
+                if (bucket < this.firstOccupied) {
+                    this.firstOccupied = bucket;
+                }
+                this.size++;
+            } else {
+                this.garbage += length;
+            }
+            e += length;
+        }
+        this.dataEnd = e;
+        this.writeCounts();
+    }
+
+    /**
+     * Rebuilds the table in a new file with {@code newBucketCount} buckets
+     * and only the live entries, then atomically replaces the file with it.
+     *
+     * @param newBucketCount
+     *            the number of buckets of the new table
+     * @throws IOException
+     *             if the new file cannot be written or moved
+     * @updates $this
+     * @requires newBucketCount > 0
+     * @ensures <pre>
+     * this = #this  and  $this.bucketCount = newBucketCount  and
+     * $this.garbage = 0  and  not $this.dirty
+     * </pre>
+     */
+    private void rebuild(int newBucketCount) throws IOException {
+        Path tmp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        MappedMap4<K, V> copy = new MappedMap4<>(tmp, this.keyCodec,
+                this.valueCodec, newBucketCount);
+        copy.markDirty();
+        for (int i = 0; i < this.bucketCount; i++) {
+            for (int e = this.head(i); e != 0; e = this.next(e)) {
+                int keyLength = this.buffer.getInt(e + KEY_LENGTH);
+                copy.append(this.buffer.getInt(e + HASH),
+                        this.slice(e + ENTRY_HEADER_SIZE, keyLength),
+                        this.slice(e + ENTRY_HEADER_SIZE + keyLength,
+                                this.buffer.getInt(e + VALUE_LENGTH)));
+            }
+        }
+        copy.size = this.size;
+        copy.writeCounts();
+        copy.close();
+        this.channel.close();
+        Files.move(tmp, this.path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        this.open();
+    }
+
+    /**
+     * Rebuilds the table with about twice as many buckets if the load factor
+     * has passed {@code MAX_LOAD_FACTOR}.
+     *
+     * @updates $this
+     * @ensures this = #this
+     */
+    private void growIfNeeded() {
+        if (this.size > (long) this.bucketCount * MAX_LOAD_FACTOR) {
+            try {
+                this.rebuild(2 * this.bucketCount + 1);
+            } catch (IOException e) {
+                throw ioFailure(e);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the table without its garbage if more than half of the log is
+     * garbage.
+     *
+     * @updates $this
+     * @ensures this = #this
+     */
+    private void compactIfNeeded() {
+        int logLength = this.dataEnd - dataStart(this.bucketCount);
+        if (this.garbage > INITIAL_DATA_CAPACITY
+                && this.garbage > logLength / 2) {
+            try {
+                this.rebuild(this.bucketCount);
+            } catch (IOException e) {
+                throw ioFailure(e);
+            }
+        }
+    }
+
+    /*
+     * Constructors -----------------------------------------------------------
+     */
+
+    /**
+     * Constructor opening the map stored in the file at {@code path}, or
+     * creating an empty one there if the file does not exist or is empty.
+     *
+     * @param path
+     *            the file holding the map
+     * @param keyCodec
+     *            codec for keys
+     * @param valueCodec
+     *            codec for values
+     * @throws IOException
+     *             if the file cannot be opened or is not a valid map file
+     * @requires <pre>
+     * path, keyCodec, and valueCodec are not null  and
+     * [the file, if not empty, was written with the same codecs]
+     * </pre>
+     * @ensures this = [the map stored in the file, or {}]
+     */
+    public MappedMap4(Path path, Codec<K> keyCodec, Codec<V> valueCodec)
+            throws IOException {
+        assert path != null : "Violation of: path is not null";
+        assert keyCodec != null : "Violation of: keyCodec is not null";
+        assert valueCodec != null : "Violation of: valueCodec is not null";
+
+        this.path = path;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.open();
+    }
+
+    /**
+     * Constructor creating an empty map with {@code bucketCount} buckets in
+     * the file at {@code path}, replacing whatever it held.
+     *
+     * @param path
+     *            the file to hold the map
+     * @param keyCodec
+     *            codec for keys
+     * @param valueCodec
+     *            codec for values
+     * @param bucketCount
+     *            the number of buckets
+     * @throws IOException
+     *             if the file cannot be written
+     * @requires bucketCount > 0
+     * @ensures this = {}
+     */
+    private MappedMap4(Path path, Codec<K> keyCodec, Codec<V> valueCodec,
+            int bucketCount) throws IOException {
+        this.path = path;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.format(bucketCount);
+    }
+
+    /*
+     * Standard methods -------------------------------------------------------
+     */
+
+    /**
+     * Returns a new, empty map with the same codecs, in a new temporary file
+     * that is deleted when the JVM exits.
+     */
+    @Override
+    public final Map<K, V> newInstance() {
+        try {
+            Path file = Files.createTempFile("MappedMap4", ".map");
+            file.toFile().deleteOnExit();
+            return new MappedMap4<>(file, this.keyCodec, this.valueCodec);
+        } catch (IOException e) {
+            throw ioFailure(e);
+        }
+    }
+
+    @Override
+    public final void clear() {
+        try {
+            this.channel.close();
+            this.channel = FileChannel.open(this.path,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.format(DEFAULT_BUCKET_COUNT);
+        } catch (IOException e) {
+            throw ioFailure(e);
+        }
+    }
+
+    /**
+     * Copies the entries of {@code source} into the file of {@code this},
+     * since each map stays tied to its own file, and then clears
+     * {@code source}.
+     */
+    @Override
+    public final void transferFrom(Map<K, V> source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+        assert source instanceof MappedMap4<?, ?> : ""
+                + "Violation of: source is of dynamic type MappedMap4<?,?>";
+
+        this.clear();
+        for (Pair<K, V> p : source) {
+            this.add(p.key(), p.value());
+        }
+        source.clear();
+    }
+
+    /*
+     * Kernel methods ---------------------------------------------------------
+     */
+
+    @Override
+    public final void add(K key, V value) {
+        assert key != null : "Violation of: key is not null";
+        assert value != null : "Violation of: value is not null";
+
+        byte[] k = this.keyCodec.encode(key);
+        int hash = hash(k);
+        assert this.find(k, hash) == 0 : ""
+                + "Violation of: key is not in DOMAIN(this)";
+
+        this.markDirty();
+        try {
+            this.append(hash, ByteBuffer.wrap(k),
+                    ByteBuffer.wrap(this.valueCodec.encode(value)));
+        } catch (IOException e) {
+            throw ioFailure(e);
+        }
+        this.size++;
+        this.writeCounts();
+        this.growIfNeeded();
+    }
+
+    @Override
+    public final Pair<K, V> remove(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        byte[] k = this.keyCodec.encode(key);
+        int e = this.find(k, hash(k));
+        assert e != 0 : "Violation of: key is in DOMAIN(this)";
+
+        return this.removeEntry(e);
+    }
+
+    @Override
+    public final Pair<K, V> removeAny() {
+        assert this.size() > 0 : "Violation of: this /= empty_set";
+
+        while (this.head(this.firstOccupied) == 0) {
+            this.firstOccupied++;
+        }
+        return this.removeEntry(this.head(this.firstOccupied));
+    }
+
+    @Override
+    public final V value(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        byte[] k = this.keyCodec.encode(key);
+        int e = this.find(k, hash(k));
+        assert e != 0 : "Violation of: key is in DOMAIN(this)";
+
+        return this.valueOf(e);
+    }
+
+    @Override
+    public final boolean hasKey(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        byte[] k = this.keyCodec.encode(key);
+        return this.find(k, hash(k)) != 0;
+    }
+
+    @Override
+    public final int size() {
+        return this.size;
+    }
+
+    @Override
+    public final Iterator<Pair<K, V>> iterator() {
+        return new MappedMap4Iterator();
+    }
+
+    /*
+     * Other methods ----------------------------------------------------------
+     */
+
+    @Override
+    public final V replaceValue(K key, V value) {
+        assert key != null : "Violation of: key is not null";
+        assert value != null : "Violation of: value is not null";
+
+        byte[] k = this.keyCodec.encode(key);
+        int hash = hash(k);
+        int e = this.find(k, hash);
+        assert e != 0 : "Violation of: key is in DOMAIN(this)";
+
+        V oldValue = this.valueOf(e);
+        this.markDirty();
+        /*
+         * The new entry is made live before the old one is killed, so a crash
+         * in between leaves two live entries for key, of which recovery keeps
+         * the later (new) one.
+         */
+        try {
+            this.append(hash, ByteBuffer.wrap(k),
+                    ByteBuffer.wrap(this.valueCodec.encode(value)));
+        } catch (IOException ex) {
+            throw ioFailure(ex);
+        }
+        this.kill(e);
+        this.writeCounts();
+        this.compactIfNeeded();
+        return oldValue;
+    }
+
+    /**
+     * Forces every change to the file onto the storage device and marks the
+     * header clean, so that reopening the file needs no recovery.
+     *
+     * @updates [the file]
+     * @ensures [the file holds this and is marked clean]
+     */
+    public final void sync() {
+        if (this.dirty) {
+            this.buffer.force();
+            this.buffer.putInt(STATE_OFFSET, CLEAN);
+            this.buffer.putInt(CRC_OFFSET, this.headerChecksum());
+            this.buffer.force();
+            this.dirty = false;
+        }
+    }
+
+    /**
+     * Syncs the file and closes it. {@code this} must not be used afterwards.
+     *
+     * @throws IOException
+     *             if the file cannot be closed
+     * @ensures [the file holds this and is marked clean and closed]
+     */
+    @Override
+    public final void close() throws IOException {
+        this.sync();
+        this.channel.close();
+    }
+
+    /**
+     * Simple immutable implementation of {@code Pair}.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     */
+    private static final class SimplePair<K, V> implements Pair<K, V> {
+
+        /**
+         * The key.
+         */
+        private final K key;
+
+        /**
+         * The value.
+         */
+        private final V value;
+
+        /**
+         * Constructor from key and value.
+         *
+         * @param key
+         *            the key
+         * @param value
+         *            the value
+         */
+        SimplePair(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public K key() {
+            return this.key;
+        }
+
+        @Override
+        public V value() {
+            return this.value;
+        }
+
+    }
+
+    /**
+     * Implementation of {@code Iterator} interface for {@code MappedMap4}.
+     * Decodes each entry as it is reached.
+     */
+    private final class MappedMap4Iterator implements Iterator<Pair<K, V>> {
+
+        /**
+         * Number of elements seen already (i.e., |~this.seen|).
+         */
+        private int numberSeen;
+
+        /**
+         * Bucket from which current entry comes.
+         */
+        private int currentBucket;
+
+        /**
+         * Entry most recently returned, or 0.
+         */
+        private int current;
+
+        /**
+         * No-argument constructor.
+         */
+        MappedMap4Iterator() {
+            this.numberSeen = 0;
+            this.currentBucket = -1;
+            this.current = 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.numberSeen < MappedMap4.this.size;
+        }
+
+        @Override
+        public Pair<K, V> next() {
+            assert this.hasNext() : "Violation of: ~this.unseen /= <>";
+            if (!this.hasNext()) {
+                /*
+                 * Exception is supposed to be thrown in this case, but with
+                 * assertion-checking enabled it cannot happen because of assert
+                 * above.
+                 */
+                throw new NoSuchElementException();
+            }
+            this.numberSeen++;
+            if (this.current != 0) {
+                this.current = MappedMap4.this.next(this.current);
+            }
+            while (this.current == 0) {
+                this.currentBucket++;
+                this.current = MappedMap4.this.head(this.currentBucket);
+            }
+            return new SimplePair<>(MappedMap4.this.keyOf(this.current),
+                    MappedMap4.this.valueOf(this.current));
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(
+                    "remove operation not supported");
+        }
+
+    }
+
+}
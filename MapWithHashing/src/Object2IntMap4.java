@@ -0,0 +1,585 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import components.map.Map;
+import components.map.MapSecondary;
+
+/**
+ * {@code Map} from objects to {@code int} values, represented as an
+ * open-addressing hash table (a probe array of keys with linear probing and a
+ * parallel {@code int[]} of values) that grows automatically, with
+ * implementations of primary methods. Besides the {@code Map<K, Integer>}
+ * methods, it offers {@code intValue} and {@code addTo}, which neither box nor
+ * allocate, so counting with {@code addTo(word, 1)} produces no garbage once
+ * the table has reached its final size.
+ *
+ * @param <K>
+ *            type of {@code Map} domain (key) entries
+ * @mathdefinitions <pre>
+ * HOME(
+ *   x: K,
+ *   capacity: integer
+ *  ): integer is
+ *  [computed result of Map4.Spreader.MURMUR3.spread(
+ *     [computed result of x.hashCode()])] mod capacity
+ * </pre>
+ * @convention <pre>
+ * |$this.keys| = |$this.values|  and
+ * [|$this.keys| is a power of 2]  and
+ * |$this.keys| >= DEFAULT_CAPACITY  and
+ * $this.size <= |$this.keys| * MAX_LOAD_FACTOR  and
+ * for all i: integer
+ *     where (0 <= i  and  i < |$this.keys|  and  $this.keys[i] = null)
+ *   ($this.values[i] = 0)  and
+ * for all i: integer
+ *     where (0 <= i  and  i < |$this.keys|  and  $this.keys[i] /= null)
+ *   ([no entry of $this.keys between HOME($this.keys[i], |$this.keys|) and
+ *     position i, cyclically, is null])  and
+ * [the non-null entries of $this.keys are all different]  and
+ * $this.size = [number of non-null entries in $this.keys]  and
+ * 0 <= $this.firstOccupied <= |$this.keys|  and
+ * [every entry of $this.keys before $this.firstOccupied is null]
+ * </pre>
+ * @correspondence <pre>
+ * this = {(k, v): (K, integer)
+ *          where (there exists i: integer
+ *                   ($this.keys[i] = k  and  $this.values[i] = v  and
+ *                    k /= null))}
+ * </pre>
+ *
+ * @author Allen Zheng and Jared Koharik
+ *
+ */
+public class Object2IntMap4<K> extends MapSecondary<K, Integer> {
+
+    /*
+     * Private members --------------------------------------------------------
+     */
+
+    /**
+     * Default (and minimum) number of slots in the table.
+     */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * Largest fraction of the slots that may be occupied before the table is
+     * doubled.
+     */
+    private static final double MAX_LOAD_FACTOR = 0.5;
+
+    /**
+     * Keys, indexed by slot; {@code null} marks an empty slot.
+     */
+    private K[] keys;
+
+    /**
+     * Values, indexed by the same slot as their keys.
+     */
+    private int[] values;
+
+    /**
+     * Total size of abstract {@code this}.
+     */
+    private int size;
+
+    /**
+     * Slot at which {@code removeAny} starts looking for an entry; no slot
+     * before it is occupied.
+     */
+    private int firstOccupied;
+
+    /**
+     * Returns the home slot of {@code key} in a table with {@code capacity}
+     * slots.
+     *
+     * @param key
+     *            the key to be hashed
+     * @param capacity
+     *            the number of slots in the table
+     * @return the home slot of key
+     * @requires [capacity is a power of 2]
+     * @ensures homeSlot = HOME(key, capacity)
+     */
+    private static int homeSlot(Object key, int capacity) {
+        return Map4.Spreader.MURMUR3.spread(key.hashCode()) & (capacity - 1);
+    }
+
+    /**
+     * Creator of initial representation.
+     *
+     * @param capacity
+     *            the number of slots in the table
+     * @requires [capacity is a power of 2]
+     * @ensures <pre>
+     * |$this.keys| = capacity  and  |$this.values| = capacity  and
+     * [all entries of $this.keys are null and of $this.values are 0]  and
+     * $this.size = 0  and  $this.firstOccupied = capacity
+     * </pre>
+     */
+    @SuppressWarnings("unchecked")
+    private void createNewRep(int capacity) {
+        /*
+         * As in Map4, generic array creation is not allowed, so this is an
+         * unchecked conversion that cannot fail.
+         */
+        this.keys = (K[]) new Object[capacity];
+        this.values = new int[capacity];
+        this.size = 0;
+        this.firstOccupied = capacity;
+    }
+
+    /**
+     * Records that slot {@code i} has just been filled, moving
+     * {@code firstOccupied} back to it if it lies before.
+     *
+     * @param i
+     *            the slot that was filled
+     * @updates $this.firstOccupied
+     * @ensures $this.firstOccupied = min(#$this.firstOccupied, i)
+     */
+    private void filled(int i) {
+        if (i < this.firstOccupied) {
+            this.firstOccupied = i;
+        }
+    }
+
+    /**
+     * Returns the slot holding {@code key}, or the empty slot that ends its
+     * probe sequence if {@code key} is not in the table.
+     *
+     * @param key
+     *            the key to be located
+     * @return the slot for key
+     * @ensures <pre>
+     * ($this.keys[findSlot] = key)  or
+     * ($this.keys[findSlot] = null  and  key is not in DOMAIN(this))
+     * </pre>
+     */
+    private int findSlot(K key) {
+        int mask = this.keys.length - 1;
+        int i = homeSlot(key, this.keys.length);
+        while (this.keys[i] != null && !this.keys[i].equals(key)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Moves every entry into a table with {@code newCapacity} slots.
+     *
+     * @param newCapacity
+     *            the number of slots in the new table
+     * @updates $this
+     * @requires [newCapacity is a power of 2 and newCapacity > $this.size]
+     * @ensures |$this.keys| = newCapacity  and  this = #this
+     */
+    private void resize(int newCapacity) {
+        K[] oldKeys = this.keys;
+        int[] oldValues = this.values;
+        int oldSize = this.size;
+        this.createNewRep(newCapacity);
+        int mask = newCapacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != null) {
+                int i = homeSlot(oldKeys[j], newCapacity);
+                while (this.keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                this.keys[i] = oldKeys[j];
+                this.values[i] = oldValues[j];
+                this.filled(i);
+            }
+        }
+        this.size = oldSize;
+    }
+
+    /**
+     * Stores {@code key} with {@code value} in the empty slot {@code i} that
+     * ends its probe sequence, first growing the table if it would become too
+     * full.
+     *
+     * @param i
+     *            the slot found for key
+     * @param key
+     *            the key to be added
+     * @param value
+     *            the associated value to be added
+     * @updates $this
+     * @requires <pre>
+     * $this.keys[i] = null  and  [i ends the probe sequence of key]
+     * </pre>
+     * @ensures this = #this union {(key, value)}
+     */
+    private void insertAt(int i, K key, int value) {
+        int slot = i;
+        if (this.size + 1 > this.keys.length * MAX_LOAD_FACTOR) {
+            this.resize(this.keys.length * 2);
+            slot = this.findSlot(key);
+        }
+        this.keys[slot] = key;
+        this.values[slot] = value;
+        this.filled(slot);
+        this.size++;
+    }
+
+    /**
+     * Empties slot {@code hole} and shifts later entries of the same cluster
+     * back so that no probe sequence is broken (no tombstones are needed).
+     *
+     * @param hole
+     *            the slot to be emptied
+     * @updates $this.keys, $this.values
+     * @requires $this.keys[hole] /= null
+     * @ensures <pre>
+     * [the entry at #$this.keys[hole] is no longer in the table, and every
+     *  other entry still is and is still reachable from its home slot]
+     * </pre>
+     */
+    private void deleteSlot(int hole) {
+        int mask = this.keys.length - 1;
+        int i = hole;
+        int j = (i + 1) & mask;
+        while (this.keys[j] != null) {
+            int home = homeSlot(this.keys[j], this.keys.length);
+            /*
+             * The entry at j may move to i only if i lies cyclically in
+             * [home, j), i.e., moving it does not put it before its home slot.
+             */
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                this.keys[i] = this.keys[j];
+                this.values[i] = this.values[j];
+                this.filled(i);
+                i = j;
+            }
+            j = (j + 1) & mask;
+        }
+        this.keys[i] = null;
+        this.values[i] = 0;
+    }
+
+    /**
+     * Removes the entry in slot {@code i} and returns it as a {@code Pair}.
+     *
+     * @param i
+     *            the slot to be emptied
+     * @return the removed entry
+     * @updates $this
+     * @requires $this.keys[i] /= null
+     * @ensures <pre>
+     * removeSlot = (#$this.keys[i], #$this.values[i])  and
+     * this = #this \ {removeSlot}
+     * </pre>
+     */
+    private Pair<K, Integer> removeSlot(int i) {
+        Pair<K, Integer> result = new SimplePair<>(this.keys[i],
+                this.values[i]);
+        this.deleteSlot(i);
+        this.size--;
+        return result;
+    }
+
+    /*
+     * Constructors -----------------------------------------------------------
+     */
+
+    /**
+     * No-argument constructor.
+     */
+    public Object2IntMap4() {
+        this.createNewRep(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor resulting in a table large enough to hold
+     * {@code expectedSize} entries without resizing.
+     *
+     * @param expectedSize
+     *            number of entries expected
+     * @requires expectedSize >= 0
+     * @ensures this = {}
+     */
+    public Object2IntMap4(int expectedSize) {
+        assert expectedSize >= 0 : "Violation of: expectedSize >= 0";
+
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity * MAX_LOAD_FACTOR < expectedSize) {
+            capacity *= 2;
+        }
+        this.createNewRep(capacity);
+    }
+
+    /*
+     * Standard methods -------------------------------------------------------
+     */
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public final Map<K, Integer> newInstance() {
+        try {
+            return this.getClass().getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(
+                    "Cannot construct object of type " + this.getClass());
+        }
+    }
+
+    @Override
+    public final void clear() {
+        this.createNewRep(DEFAULT_CAPACITY);
+    }
+
+    @Override
+    public final void transferFrom(Map<K, Integer> source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+        assert source instanceof Object2IntMap4<?> : ""
+                + "Violation of: source is of dynamic type Object2IntMap4<?>";
+        /*
+         * This cast cannot fail since the assert above would have stopped
+         * execution in that case: source must be of dynamic type
+         * Object2IntMap4<?>, and the ? must be K or the call would not have
+         * compiled.
+         */
+        Object2IntMap4<K> localSource = (Object2IntMap4<K>) source;
+        this.keys = localSource.keys;
+        this.values = localSource.values;
+        this.size = localSource.size;
+        this.firstOccupied = localSource.firstOccupied;
+        localSource.createNewRep(DEFAULT_CAPACITY);
+    }
+
+    /*
+     * Kernel methods ---------------------------------------------------------
+     */
+
+    @Override
+    public final void add(K key, Integer value) {
+        assert key != null : "Violation of: key is not null";
+        assert value != null : "Violation of: value is not null";
+
+        int i = this.findSlot(key);
+        assert this.keys[i] == null : "Violation of: key is not in DOMAIN(this)";
+
+        this.insertAt(i, key, value);
+    }
+
+    @Override
+    public final Pair<K, Integer> remove(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        int i = this.findSlot(key);
+        assert this.keys[i] != null : "Violation of: key is in DOMAIN(this)";
+
+        return this.removeSlot(i);
+    }
+
+    @Override
+    public final Pair<K, Integer> removeAny() {
+        assert this.size() > 0 : "Violation of: this /= empty_set";
+
+        /*
+         * Every slot before firstOccupied is empty, so the scan resumes there
+         * instead of at slot 0, and draining the map costs O(capacity) in
+         * total rather than per call.
+         */
+        while (this.keys[this.firstOccupied] == null) {
+            this.firstOccupied++;
+        }
+        return this.removeSlot(this.firstOccupied);
+    }
+
+    @Override
+    public final Integer value(K key) {
+        return this.intValue(key);
+    }
+
+    @Override
+    public final boolean hasKey(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        return this.keys[this.findSlot(key)] != null;
+    }
+
+    @Override
+    public final int size() {
+        return this.size;
+    }
+
+    @Override
+    public final Iterator<Pair<K, Integer>> iterator() {
+        return new Object2IntMap4Iterator();
+    }
+
+    /*
+     * Other methods ----------------------------------------------------------
+     */
+
+    @Override
+    public final Integer replaceValue(K key, Integer value) {
+        assert key != null : "Violation of: key is not null";
+        assert value != null : "Violation of: value is not null";
+
+        int i = this.findSlot(key);
+        assert this.keys[i] != null : "Violation of: key is in DOMAIN(this)";
+
+        int old = this.values[i];
+        this.values[i] = value;
+        return old;
+    }
+
+    /**
+     * Reports the value associated with {@code key} in {@code this} without
+     * boxing it.
+     *
+     * @param key
+     *            the key whose associated value is to be reported
+     * @return the value associated with key
+     * @requires key is in DOMAIN(this)
+     * @ensures (key, intValue) is in this
+     */
+    public final int intValue(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        int i = this.findSlot(key);
+        assert this.keys[i] != null : "Violation of: key is in DOMAIN(this)";
+
+        return this.values[i];
+    }
+
+    /**
+     * Adds {@code delta} to the value associated with {@code key}, first
+     * adding {@code key} with value 0 if it is not already in {@code this}.
+     * Neither boxes nor allocates unless the table has to grow.
+     *
+     * @param key
+     *            the key whose value is to be incremented
+     * @param delta
+     *            the amount to be added
+     * @return the value associated with key before the call, or 0 if there
+     *         was none
+     * @updates this
+     * @ensures <pre>
+     * if key is in DOMAIN(#this) then
+     *   (key, addTo) is in #this  and
+     *   this = (#this \ {(key, addTo)}) union {(key, addTo + delta)}
+     * else
+     *   addTo = 0  and  this = #this union {(key, delta)}
+     * </pre>
+     */
+    public final int addTo(K key, int delta) {
+        assert key != null : "Violation of: key is not null";
+
+        int i = this.findSlot(key);
+        if (this.keys[i] == null) {
+            this.insertAt(i, key, delta);
+            return 0;
+        }
+        int old = this.values[i];
+        this.values[i] = old + delta;
+        return old;
+    }
+
+    /**
+     * Simple immutable implementation of {@code Pair}.
+     *
+     * @param <K>
+     *            type of key
+     */
+    private static final class SimplePair<K> implements Pair<K, Integer> {
+
+        /**
+         * The key.
+         */
+        private final K key;
+
+        /**
+         * The value.
+         */
+        private final int value;
+
+        /**
+         * Constructor from key and value.
+         *
+         * @param key
+         *            the key
+         * @param value
+         *            the value
+         */
+        SimplePair(K key, int value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public K key() {
+            return this.key;
+        }
+
+        @Override
+        public Integer value() {
+            return this.value;
+        }
+
+    }
+
+    /**
+     * Implementation of {@code Iterator} interface for
+     * {@code Object2IntMap4}.
+     */
+    private final class Object2IntMap4Iterator
+            implements Iterator<Pair<K, Integer>> {
+
+        /**
+         * Number of elements seen already (i.e., |~this.seen|).
+         */
+        private int numberSeen;
+
+        /**
+         * Slot at which to start looking for the next element.
+         */
+        private int currentSlot;
+
+        /**
+         * No-argument constructor.
+         */
+        Object2IntMap4Iterator() {
+            this.numberSeen = 0;
+            this.currentSlot = 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.numberSeen < Object2IntMap4.this.size;
+        }
+
+        @Override
+        public Pair<K, Integer> next() {
+            assert this.hasNext() : "Violation of: ~this.unseen /= <>";
+            if (!this.hasNext()) {
+                /*
+                 * Exception is supposed to be thrown in this case, but with
+                 * assertion-checking enabled it cannot happen because of assert
+                 * above.
+                 */
+                throw new NoSuchElementException();
+            }
+            this.numberSeen++;
+            while (Object2IntMap4.this.keys[this.currentSlot] == null) {
+                this.currentSlot++;
+            }
+            Pair<K, Integer> result = new SimplePair<>(
+                    Object2IntMap4.this.keys[this.currentSlot],
+                    Object2IntMap4.this.values[this.currentSlot]);
+            this.currentSlot++;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(
+                    "remove operation not supported");
+        }
+
+    }
+
+}
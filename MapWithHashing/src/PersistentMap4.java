@@ -0,0 +1,975 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import components.map.Map;
+import components.map.MapSecondary;
+
+/**
+ * {@code Map} represented as a hash array mapped trie (HAMT) whose nodes are
+ * shared between versions, with implementations of primary methods. Each
+ * node covers 5 bits of a key's spread hash code and holds, in a compact
+ * array indexed through a 32-bit bitmap, either entries or child nodes; keys
+ * whose hash codes are entirely equal share a collision node. A lookup or an
+ * update visits at most 7 levels, i.e., O(log32 n) nodes.
+ *
+ * <p>
+ * Versions are made by {@code snapshot}, which takes constant time, and by
+ * {@code with} and {@code without}, which return a new map that differs from
+ * {@code this} in one entry and shares all but the O(log32 n) nodes on the
+ * path to it. A version so obtained is never changed by later updates to
+ * either map, so it can be handed to another stage of a pipeline, or read by
+ * any number of threads once safely published, without copying.
+ *
+ * <p>
+ * The kernel methods are the transient (builder) mode: every map owns an
+ * edit token, and nodes stamped with its current token were made by it since
+ * its last snapshot and are updated in place, so a batch of {@code add}s or
+ * {@code remove}s allocates only where it first touches shared nodes. Taking
+ * a snapshot, or calling {@code with} or {@code without}, replaces the token,
+ * which freezes every node built so far.
+ *
+ * @param <K>
+ *            type of {@code Map} domain (key) entries
+ * @param <V>
+ *            type of {@code Map} range (associated value) entries
+ * @mathdefinitions <pre>
+ * HASH(
+ *   x: K
+ *  ): integer is
+ *  [computed result of Map4.Spreader.MURMUR3.spread(
+ *     [computed result of x.hashCode()])]
+ *
+ * ENTRIES(
+ *   n: Node
+ *  ): finite set of (key: K, value: V) is
+ *  [the set of pairs (n.array[2i], n.array[2i+1]) with n.array[2i] /= null,
+ *   together with ENTRIES(n.array[2i+1]) for each i with n.array[2i] = null]
+ * </pre>
+ * @convention <pre>
+ * $this.root is a BitmapNode  and
+ * [every node reachable from $this.root has a non-empty array of even
+ *  length, except $this.root, whose array may be empty]  and
+ * [a BitmapNode n at depth d has 2 * |bits of n.bitmap| entries in n.array;
+ *  the pair at 2 * [number of bits of n.bitmap below bit b] holds the key, or
+ *  the subtree, whose HASH has bits 5d..5d+4 equal to b]  and
+ * [a CollisionNode n holds at least 2 entries, all with HASH n.hash]  and
+ * [no child node holds exactly one entry and no children]  and
+ * [the keys of ENTRIES($this.root) are all different]  and
+ * $this.size = |ENTRIES($this.root)|  and
+ * [no node reachable from $this.root whose edit is $this.edit is reachable
+ *  from the root of any other map]
+ * </pre>
+ * @correspondence this = ENTRIES($this.root)
+ *
+ * @author Allen Zheng and Jared Koharik
+ *
+ */
+public class PersistentMap4<K, V> extends MapSecondary<K, V> {
+
+    /*
+     * Private members --------------------------------------------------------
+     */
+
+    /**
+     * Number of hash bits consumed by each level of the trie.
+     */
+    private static final int BITS = 5;
+
+    /**
+     * Mask selecting the bits of the hash consumed at one level.
+     */
+    private static final int MASK = (1 << BITS) - 1;
+
+    /**
+     * Deepest path, in nodes, from the root to a collision node: one
+     * {@code BitmapNode} for every {@code BITS} bits of a 32-bit hash, then
+     * the collision node.
+     */
+    private static final int MAX_DEPTH = (Integer.SIZE + BITS - 1) / BITS + 1;
+
+    /**
+     * Array of the empty root.
+     */
+    private static final Object[] NO_ENTRIES = {};
+
+    /**
+     * Trie node. Its array holds pairs of slots: a key and its value, or
+     * {@code null} and a child node.
+     */
+    private abstract static class Node {
+
+        /**
+         * Edit token of the map allowed to change this node in place.
+         */
+        private final Object edit;
+
+        /**
+         * Pairs of slots.
+         */
+        private Object[] array;
+
+        /**
+         * Constructor from edit token and array.
+         *
+         * @param edit
+         *            the edit token
+         * @param array
+         *            the pairs of slots
+         */
+        Node(Object edit, Object[] array) {
+            this.edit = edit;
+            this.array = array;
+        }
+
+        /**
+         * Returns the value of {@code key}, or {@code null} if it is not
+         * below this node.
+         *
+         * @param shift
+         *            5 * [depth of this node]
+         * @param hash
+         *            HASH(key)
+         * @param key
+         *            the key
+         * @return the value of key, or null
+         */
+        abstract Object find(int shift, int hash, Object key);
+
+        /**
+         * Returns this node with {@code key} mapped to {@code value},
+         * updating in place if this node carries {@code edit}.
+         *
+         * @param edit
+         *            edit token of the map being updated
+         * @param shift
+         *            5 * [depth of this node]
+         * @param hash
+         *            HASH(key)
+         * @param key
+         *            the key
+         * @param value
+         *            the value
+         * @param change
+         *            record of the change
+         * @return the node replacing this node
+         * @updates change
+         * @ensures <pre>
+         * ENTRIES(assoc) = [ENTRIES(this) with key mapped to value]  and
+         * [change records the key's previous value, or that it was added]
+         * </pre>
+         */
+        abstract Node assoc(Object edit, int shift, int hash, Object key,
+                Object value, Change change);
+
+        /**
+         * Returns this node without {@code key}, or {@code null} if it would
+         * be empty, updating in place if this node carries {@code edit}.
+         *
+         * @param edit
+         *            edit token of the map being updated
+         * @param shift
+         *            5 * [depth of this node]
+         * @param hash
+         *            HASH(key)
+         * @param key
+         *            the key
+         * @param change
+         *            record of the change
+         * @return the node replacing this node, or null
+         * @updates change
+         * @ensures <pre>
+         * ENTRIES(without) = [ENTRIES(this) without key]  and
+         * [change records the removed key and value, if any]
+         * </pre>
+         */
+        abstract Node without(Object edit, int shift, int hash, Object key,
+                Change change);
+
+        /**
+         * Returns this node, or a copy of it that {@code edit} may change in
+         * place.
+         *
+         * @param edit
+         *            the edit token
+         * @return a node with the same entries carrying edit
+         */
+        abstract Node editable(Object edit);
+
+        /**
+         * Returns this node, or an editable copy, with {@code array[i]} set to
+         * {@code x}.
+         *
+         * @param edit
+         *            the edit token
+         * @param i
+         *            the slot
+         * @param x
+         *            the new contents of the slot
+         * @return the node replacing this node
+         */
+        final Node set(Object edit, int i, Object x) {
+            Node n = this.editable(edit);
+            n.array[i] = x;
+            return n;
+        }
+
+        /**
+         * Returns the pair of slots starting at {@code i} to be stored in a
+         * parent for the child {@code child} returned by an update: the
+         * child's only entry if it has no other, else {@code null} and the
+         * child itself.
+         *
+         * @param child
+         *            the updated child, not null
+         * @param slots
+         *            receives the pair of slots
+         */
+        static void inline(Node child, Object[] slots) {
+            if (child.array.length == 2 && child.array[0] != null) {
+                slots[0] = child.array[0];
+                slots[1] = child.array[1];
+            } else {
+                slots[0] = null;
+                slots[1] = child;
+            }
+        }
+
+    }
+
+    /**
+     * Node indexed by 5 bits of the hash through a bitmap.
+     */
+    private static final class BitmapNode extends Node {
+
+        /**
+         * Bits of the hash, at this level, that have a pair of slots.
+         */
+        private int bitmap;
+
+        /**
+         * Constructor from edit token, bitmap, and array.
+         *
+         * @param edit
+         *            the edit token
+         * @param bitmap
+         *            the bitmap
+         * @param array
+         *            the pairs of slots
+         */
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            super(edit, array);
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            Object result = null;
+            if ((this.bitmap & bit) != 0) {
+                int i = 2 * Integer.bitCount(this.bitmap & (bit - 1));
+                Object k = super.array[i];
+                if (k == null) {
+                    result = ((Node) super.array[i + 1]).find(shift + BITS,
+                            hash, key);
+                } else if (k.equals(key)) {
+                    result = super.array[i + 1];
+                }
+            }
+            return result;
+        }
+
+        @Override
+        Node assoc(Object edit, int shift, int hash, Object key, Object value,
+                Change change) {
+            Object[] a = super.array;
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int i = 2 * Integer.bitCount(this.bitmap & (bit - 1));
+            if ((this.bitmap & bit) == 0) {
+                change.added = true;
+                Object[] b = new Object[a.length + 2];
+                System.arraycopy(a, 0, b, 0, i);
+                b[i] = key;
+                b[i + 1] = value;
+                System.arraycopy(a, i, b, i + 2, a.length - i);
+                BitmapNode n = (BitmapNode) this.editable(edit);
+                n.bitmap |= bit;
+                ((Node) n).array = b;
+                return n;
+            }
+            Object k = a[i];
+            Object v = a[i + 1];
+            Node result = this;
+            if (k == null) {
+                Node child = ((Node) v).assoc(edit, shift + BITS, hash, key,
+                        value, change);
+                if (child != v) {
+                    result = this.set(edit, i + 1, child);
+                }
+            } else if (k.equals(key)) {
+                change.oldKey = k;
+                change.oldValue = v;
+                if (v != value) {
+                    result = this.set(edit, i + 1, value);
+                }
+            } else {
+                change.added = true;
+                Node child = pair(edit, shift + BITS, k, v, hash, key, value);
+                result = this.editable(edit);
+                result.array[i] = null;
+                result.array[i + 1] = child;
+            }
+            return result;
+        }
+
+        @Override
+        Node without(Object edit, int shift, int hash, Object key,
+                Change change) {
+            Object[] a = super.array;
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((this.bitmap & bit) == 0) {
+                return this;
+            }
+            int i = 2 * Integer.bitCount(this.bitmap & (bit - 1));
+            Object k = a[i];
+            Object v = a[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).without(edit, shift + BITS, hash, key,
+                        change);
+                /*
+                 * An editable child may have lost the key in place, so only
+                 * the change record tells whether anything was removed.
+                 */
+                if (change.oldKey == null) {
+                    return this;
+                }
+                if (child != null) {
+                    Object[] slots = new Object[2];
+                    inline(child, slots);
+                    Node n = this.editable(edit);
+                    n.array[i] = slots[0];
+                    n.array[i + 1] = slots[1];
+                    return n;
+                }
+            } else if (k.equals(key)) {
+                change.oldKey = k;
+                change.oldValue = v;
+            } else {
+                return this;
+            }
+            if (this.bitmap == bit) {
+                return null;
+            }
+            Object[] b = new Object[a.length - 2];
+            System.arraycopy(a, 0, b, 0, i);
+            System.arraycopy(a, i + 2, b, i, a.length - i - 2);
+            BitmapNode n = (BitmapNode) this.editable(edit);
+            n.bitmap &= ~bit;
+            ((Node) n).array = b;
+            return n;
+        }
+
+        @Override
+        Node editable(Object edit) {
+            Node result = this;
+            if (super.edit != edit) {
+                result = new BitmapNode(edit, this.bitmap,
+                        super.array.clone());
+            }
+            return result;
+        }
+
+    }
+
+    /**
+     * Node holding the entries whose keys have the same hash.
+     */
+    private static final class CollisionNode extends Node {
+
+        /**
+         * HASH of every key in this node.
+         */
+        private final int hash;
+
+        /**
+         * Constructor from edit token, hash, and array.
+         *
+         * @param edit
+         *            the edit token
+         * @param hash
+         *            the common hash
+         * @param array
+         *            the pairs of slots
+         */
+        CollisionNode(Object edit, int hash, Object[] array) {
+            super(edit, array);
+            this.hash = hash;
+        }
+
+        /**
+         * Returns the slot of {@code key} in this node, or -1.
+         *
+         * @param key
+         *            the key
+         * @return the slot of key, or -1
+         */
+        private int indexOf(Object key) {
+            Object[] a = super.array;
+            int i = 0;
+            while (i < a.length && !a[i].equals(key)) {
+                i += 2;
+            }
+            int result = -1;
+            if (i < a.length) {
+                result = i;
+            }
+            return result;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            Object result = null;
+            if (hash == this.hash) {
+                int i = this.indexOf(key);
+                if (i >= 0) {
+                    result = super.array[i + 1];
+                }
+            }
+            return result;
+        }
+
+        @Override
+        Node assoc(Object edit, int shift, int hash, Object key, Object value,
+                Change change) {
+            if (hash != this.hash) {
+                /*
+                 * Push this node one level down, under a bitmap node that can
+                 * tell the two hashes apart.
+                 */
+                int bit = 1 << ((this.hash >>> shift) & MASK);
+                return new BitmapNode(edit, bit, new Object[] { null, this })
+                        .assoc(edit, shift, hash, key, value, change);
+            }
+            Object[] a = super.array;
+            int i = this.indexOf(key);
+            Node result = this;
+            if (i >= 0) {
+                change.oldKey = a[i];
+                change.oldValue = a[i + 1];
+                if (a[i + 1] != value) {
+                    result = this.set(edit, i + 1, value);
+                }
+            } else {
+                change.added = true;
+                Object[] b = new Object[a.length + 2];
+                System.arraycopy(a, 0, b, 0, a.length);
+                b[a.length] = key;
+                b[a.length + 1] = value;
+                result = this.editable(edit);
+                result.array = b;
+            }
+            return result;
+        }
+
+        @Override
+        Node without(Object edit, int shift, int hash, Object key,
+                Change change) {
+            int i = -1;
+            if (hash == this.hash) {
+                i = this.indexOf(key);
+            }
+            if (i < 0) {
+                return this;
+            }
+            Object[] a = super.array;
+            change.oldKey = a[i];
+            change.oldValue = a[i + 1];
+            Object[] b = new Object[a.length - 2];
+            System.arraycopy(a, 0, b, 0, i);
+            System.arraycopy(a, i + 2, b, i, a.length - i - 2);
+            Node n = this.editable(edit);
+            n.array = b;
+            return n;
+        }
+
+        @Override
+        Node editable(Object edit) {
+            Node result = this;
+            if (super.edit != edit) {
+                result = new CollisionNode(edit, this.hash,
+                        super.array.clone());
+            }
+            return result;
+        }
+
+    }
+
+    /**
+     * Record of the effect of one update on the trie.
+     */
+    private static final class Change {
+
+        /**
+         * Whether a new key was added.
+         */
+        private boolean added;
+
+        /**
+         * The key replaced or removed, or {@code null}.
+         */
+        private Object oldKey;
+
+        /**
+         * The value replaced or removed, or {@code null}.
+         */
+        private Object oldValue;
+
+    }
+
+    /**
+     * Simple immutable implementation of {@code Pair}.
+     *
+     * @param <K>
+     *            type of key
+     * @param <V>
+     *            type of value
+     */
+    private static final class SimplePair<K, V> implements Pair<K, V> {
+
+        /**
+         * The key.
+         */
+        private final K key;
+
+        /**
+         * The value.
+         */
+        private final V value;
+
+        /**
+         * Constructor from key and value.
+         *
+         * @param key
+         *            the key
+         * @param value
+         *            the value
+         */
+        SimplePair(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public K key() {
+            return this.key;
+        }
+
+        @Override
+        public V value() {
+            return this.value;
+        }
+
+    }
+
+    /**
+     * Root of the trie.
+     */
+    private Node root;
+
+    /**
+     * Total size of abstract {@code this}.
+     */
+    private int size;
+
+    /**
+     * Token marking the nodes {@code this} may change in place.
+     */
+    private Object edit;
+
+    /**
+     * Returns the spread hash code of {@code key}.
+     *
+     * @param key
+     *            the key
+     * @return HASH(key)
+     * @ensures hash = HASH(key)
+     */
+    private static int hash(Object key) {
+        return Map4.Spreader.MURMUR3.spread(key.hashCode());
+    }
+
+    /**
+     * Returns a node, at depth {@code shift / 5}, holding exactly the two
+     * given entries.
+     *
+     * @param edit
+     *            the edit token for the new nodes
+     * @param shift
+     *            5 * [depth of the node]
+     * @param k1
+     *            the first key
+     * @param v1
+     *            the first value
+     * @param h2
+     *            HASH(k2)
+     * @param k2
+     *            the second key
+     * @param v2
+     *            the second value
+     * @return the node
+     * @requires k1 /= k2  and  [HASH(k1) and h2 agree in their low shift bits]
+     * @ensures ENTRIES(pair) = {(k1, v1), (k2, v2)}
+     */
+    private static Node pair(Object edit, int shift, Object k1, Object v1,
+            int h2, Object k2, Object v2) {
+        int h1 = hash(k1);
+        if (h1 == h2) {
+            return new CollisionNode(edit, h1,
+                    new Object[] { k1, v1, k2, v2 });
+        }
+        int b1 = (h1 >>> shift) & MASK;
+        int b2 = (h2 >>> shift) & MASK;
+        if (b1 == b2) {
+            return new BitmapNode(edit, 1 << b1, new Object[] { null,
+                    pair(edit, shift + BITS, k1, v1, h2, k2, v2) });
+        }
+        Object[] a;
+        if (b1 < b2) {
+            a = new Object[] { k1, v1, k2, v2 };
+        } else {
+            a = new Object[] { k2, v2, k1, v1 };
+        }
+        return new BitmapNode(edit, (1 << b1) | (1 << b2), a);
+    }
+
+    /**
+     * Creator of initial representation.
+     */
+    private void createNewRep() {
+        this.root = new BitmapNode(null, 0, NO_ENTRIES);
+        this.size = 0;
+        this.edit = new Object();
+    }
+
+    /**
+     * Makes every node reachable from {@code this.root} immutable, so that it
+     * can be shared with another map.
+     *
+     * @updates $this.edit
+     * @ensures [no node reachable from $this.root has edit = $this.edit]
+     */
+    private void freeze() {
+        this.edit = new Object();
+    }
+
+    /**
+     * Returns a new map with the given trie.
+     *
+     * @param root
+     *            the root
+     * @param size
+     *            the number of entries below root
+     * @return the new map
+     * @requires [root is frozen]
+     * @ensures version = ENTRIES(root)
+     */
+    private PersistentMap4<K, V> version(Node root, int size) {
+        PersistentMap4<K, V> result = new PersistentMap4<>();
+        result.root = root;
+        result.size = size;
+        return result;
+    }
+
+    /*
+     * Constructors -----------------------------------------------------------
+     */
+
+    /**
+     * No-argument constructor.
+     */
+    public PersistentMap4() {
+        this.createNewRep();
+    }
+
+    /*
+     * Standard methods -------------------------------------------------------
+     */
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public final Map<K, V> newInstance() {
+        try {
+            return this.getClass().getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(
+                    "Cannot construct object of type " + this.getClass());
+        }
+    }
+
+    @Override
+    public final void clear() {
+        this.createNewRep();
+    }
+
+    @Override
+    public final void transferFrom(Map<K, V> source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+        assert source instanceof PersistentMap4<?, ?> : ""
+                + "Violation of: source is of dynamic type PersistentMap4<?,?>";
+        /*
+         * This cast cannot fail since the assert above would have stopped
+         * execution in that case: source must be of dynamic type
+         * PersistentMap4<?,?>, and the ?,? must be K,V or the call would not
+         * have compiled.
+         */
+        PersistentMap4<K, V> localSource = (PersistentMap4<K, V>) source;
+        this.root = localSource.root;
+        this.size = localSource.size;
+        this.edit = localSource.edit;
+        localSource.createNewRep();
+    }
+
+    /*
+     * Kernel methods ---------------------------------------------------------
+     */
+
+    @Override
+    public final void add(K key, V value) {
+        assert key != null : "Violation of: key is not null";
+        assert value != null : "Violation of: value is not null";
+        assert !this.hasKey(key) : "Violation of: key is not in DOMAIN(this)";
+
+        this.root = this.root.assoc(this.edit, 0, hash(key), key, value,
+                new Change());
+        this.size++;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public final Pair<K, V> remove(K key) {
+        assert key != null : "Violation of: key is not null";
+        assert this.hasKey(key) : "Violation of: key is in DOMAIN(this)";
+
+        Change change = new Change();
+        Node n = this.root.without(this.edit, 0, hash(key), key, change);
+        if (n == null) {
+            n = new BitmapNode(null, 0, NO_ENTRIES);
+        }
+        this.root = n;
+        this.size--;
+        return new SimplePair<>((K) change.oldKey, (V) change.oldValue);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public final Pair<K, V> removeAny() {
+        assert this.size() > 0 : "Violation of: this /= empty_set";
+
+        Node n = this.root;
+        while (n.array[0] == null) {
+            n = (Node) n.array[1];
+        }
+        return this.remove((K) n.array[0]);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public final V value(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        Object result = this.root.find(0, hash(key), key);
+        assert result != null : "Violation of: key is in DOMAIN(this)";
+
+        return (V) result;
+    }
+
+    @Override
+    public final boolean hasKey(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        return this.root.find(0, hash(key), key) != null;
+    }
+
+    @Override
+    public final int size() {
+        return this.size;
+    }
+
+    @Override
+    public final Iterator<Pair<K, V>> iterator() {
+        return new PersistentMap4Iterator();
+    }
+
+    /*
+     * Other methods ----------------------------------------------------------
+     */
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public final V replaceValue(K key, V value) {
+        assert key != null : "Violation of: key is not null";
+        assert value != null : "Violation of: value is not null";
+        assert this.hasKey(key) : "Violation of: key is in DOMAIN(this)";
+
+        Change change = new Change();
+        this.root = this.root.assoc(this.edit, 0, hash(key), key, value,
+                change);
+        return (V) change.oldValue;
+    }
+
+    /**
+     * Returns a map equal to {@code this} that later updates to either map
+     * do not affect. Takes constant time.
+     *
+     * @return the snapshot
+     * @ensures snapshot = this
+     */
+    public final PersistentMap4<K, V> snapshot() {
+        this.freeze();
+        return this.version(this.root, this.size);
+    }
+
+    /**
+     * Returns {@code this} with {@code key} mapped to {@code value}, added or
+     * replacing its value, sharing all unchanged nodes with {@code this}.
+     * {@code this} is not changed.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     * @return the new version
+     * @requires key is not null and value is not null
+     * @ensures <pre>
+     * with = [this with any pair with key key removed] union {(key, value)}
+     * </pre>
+     */
+    public final PersistentMap4<K, V> with(K key, V value) {
+        assert key != null : "Violation of: key is not null";
+        assert value != null : "Violation of: value is not null";
+
+        this.freeze();
+        PersistentMap4<K, V> result = this.version(this.root, this.size);
+        Change change = new Change();
+        result.root = this.root.assoc(result.edit, 0, hash(key), key, value,
+                change);
+        if (change.added) {
+            result.size++;
+        }
+        return result;
+    }
+
+    /**
+     * Returns {@code this} without any pair with key {@code key}, sharing all
+     * unchanged nodes with {@code this}. {@code this} is not changed.
+     *
+     * @param key
+     *            the key
+     * @return the new version
+     * @requires key is not null
+     * @ensures without = [this with any pair with key key removed]
+     */
+    public final PersistentMap4<K, V> without(K key) {
+        assert key != null : "Violation of: key is not null";
+
+        this.freeze();
+        PersistentMap4<K, V> result = this.version(this.root, this.size);
+        Change change = new Change();
+        Node n = this.root.without(result.edit, 0, hash(key), key, change);
+        if (n == null) {
+            n = new BitmapNode(null, 0, NO_ENTRIES);
+        }
+        result.root = n;
+        if (change.oldKey != null) {
+            result.size--;
+        }
+        return result;
+    }
+
+    /**
+     * Implementation of {@code Iterator} interface for
+     * {@code PersistentMap4}. Walks the trie depth first with an explicit
+     * stack of arrays and positions.
+     */
+    private final class PersistentMap4Iterator
+            implements Iterator<Pair<K, V>> {
+
+        /**
+         * Number of elements seen already (i.e., |~this.seen|).
+         */
+        private int numberSeen;
+
+        /**
+         * Arrays of the nodes on the path to the next entry.
+         */
+        private final Object[][] arrays;
+
+        /**
+         * Slot to look at next in each array of {@code arrays}.
+         */
+        private final int[] positions;
+
+        /**
+         * Index of the deepest node on the path.
+         */
+        private int top;
+
+        /**
+         * No-argument constructor.
+         */
+        PersistentMap4Iterator() {
+            this.numberSeen = 0;
+            this.arrays = new Object[MAX_DEPTH][];
+            this.positions = new int[MAX_DEPTH];
+            this.arrays[0] = PersistentMap4.this.root.array;
+            this.positions[0] = 0;
+            this.top = 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.numberSeen < PersistentMap4.this.size;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Pair<K, V> next() {
+            assert this.hasNext() : "Violation of: ~this.unseen /= <>";
+            if (!this.hasNext()) {
+                /*
+                 * Exception is supposed to be thrown in this case, but with
+                 * assertion-checking enabled it cannot happen because of assert
+                 * above.
+                 */
+                throw new NoSuchElementException();
+            }
+            this.numberSeen++;
+            Pair<K, V> result = null;
+            while (result == null) {
+                Object[] a = this.arrays[this.top];
+                int p = this.positions[this.top];
+                if (p == a.length) {
+                    this.top--;
+                } else {
+                    this.positions[this.top] = p + 2;
+                    if (a[p] == null) {
+                        this.top++;
+                        this.arrays[this.top] = ((Node) a[p + 1]).array;
+                        this.positions[this.top] = 0;
+                    } else {
+                        result = new SimplePair<>((K) a[p], (V) a[p + 1]);
+                    }
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(
+                    "remove operation not supported");
+        }
+
+    }
+
+}
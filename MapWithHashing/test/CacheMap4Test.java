@@ -0,0 +1,246 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import components.map.Map;
+import components.map.Map1L;
+
+/**
+ * Customized JUnit test fixture for {@code CacheMap4} with a capacity larger
+ * than any map built by {@code MapTest}.
+ */
+public class CacheMap4Test extends MapTest {
+
+    /**
+     * Capacity of the maps under test.
+     */
+    private static final int CAPACITY = 100;
+
+    @Override
+    protected final Map<String, String> constructorTest() {
+        return new CacheMap4<String, String>(CAPACITY);
+    }
+
+    @Override
+    protected final Map<String, String> constructorRef() {
+        return new Map1L<String, String>();
+    }
+
+    /**
+     * Test that adding to a full cache evicts the least recently used entry
+     * and reports it to the listener.
+     */
+    @Test
+    public final void testEvictLeastRecentlyUsed() {
+        final int capacity = 3;
+        List<String> evicted = new ArrayList<>();
+        CacheMap4<String, String> m = new CacheMap4<>(capacity,
+                (k, v) -> evicted.add(k + "=" + v));
+        m.add("a", "1");
+        m.add("b", "2");
+        m.add("c", "3");
+        m.value("a");
+        m.add("d", "4");
+        m.hasKey("b");
+        m.add("e", "5");
+        Map<String, String> mExpected = new Map1L<>();
+        mExpected.add("a", "1");
+        mExpected.add("d", "4");
+        mExpected.add("e", "5");
+        assertEquals(mExpected, m);
+        List<String> evictedExpected = new ArrayList<>();
+        evictedExpected.add("b=2");
+        evictedExpected.add("c=3");
+        assertEquals(evictedExpected, evicted);
+        assertEquals(2, m.evictions());
+    }
+
+    /**
+     * Test that removeAny and the iterator go from least to most recently
+     * used.
+     */
+    @Test
+    public final void testRecencyOrder() {
+        CacheMap4<String, String> m = new CacheMap4<>(CAPACITY);
+        m.add("a", "1");
+        m.add("b", "2");
+        m.add("c", "3");
+        m.replaceValue("a", "4");
+        StringBuilder order = new StringBuilder();
+        for (Map.Pair<String, String> p : m) {
+            order.append(p.key());
+        }
+        assertEquals("bca", order.toString());
+        assertEquals("b", m.removeAny().key());
+        assertEquals("c", m.removeAny().key());
+        assertEquals("4", m.removeAny().value());
+        assertEquals(0, m.size());
+    }
+
+    /**
+     * Test hit and miss counts.
+     */
+    @Test
+    public final void testHitRate() {
+        final double delta = 1e-9;
+        CacheMap4<String, String> m = new CacheMap4<>(CAPACITY);
+        assertEquals(0.0, m.hitRate(), delta);
+        m.add("a", "1");
+        m.hasKey("a");
+        m.hasKey("a");
+        m.hasKey("a");
+        m.hasKey("b");
+        assertEquals(3, m.hits());
+        assertEquals(1, m.misses());
+        assertEquals(0.75, m.hitRate(), delta);
+    }
+
+    /**
+     * Test that newInstance and transferFrom keep the capacity.
+     */
+    @Test
+    public final void testCapacityKept() {
+        final int capacity = 2;
+        CacheMap4<String, String> m = new CacheMap4<>(capacity);
+        @SuppressWarnings("unchecked")
+        CacheMap4<String, String> n = (CacheMap4<String, String>) m
+                .newInstance();
+        assertEquals(capacity, n.capacity());
+        m.add("a", "1");
+        CacheMap4<String, String> big = new CacheMap4<>(CAPACITY);
+        big.transferFrom(m);
+        assertEquals(capacity, big.capacity());
+        big.add("b", "2");
+        big.add("c", "3");
+        assertEquals(capacity, big.size());
+        assertEquals(false, big.hasKey("a"));
+    }
+
+    /**
+     * Test that value counts a hit, except right after a hasKey hit for the
+     * same key, so that hasKey followed by value counts one lookup.
+     */
+    @Test
+    public final void testHitRateCountsValue() {
+        final double delta = 1e-9;
+        CacheMap4<String, String> m = new CacheMap4<>(CAPACITY);
+        m.add("a", "1");
+        m.add("b", "2");
+        m.value("a");
+        m.value("a");
+        if (m.hasKey("b")) {
+            m.value("b");
+        }
+        m.hasKey("c");
+        assertEquals(3, m.hits());
+        assertEquals(1, m.misses());
+        assertEquals(0.75, m.hitRate(), delta);
+    }
+
+    /**
+     * Test that computeIfAbsent calls the loader only for a missing key, and
+     * counts a hit or a miss.
+     */
+    @Test
+    public final void testComputeIfAbsent() {
+        final int capacity = 2;
+        List<String> loaded = new ArrayList<>();
+        CacheMap4<String, String> m = new CacheMap4<>(capacity);
+        Function<String, String> loader = k -> {
+            loaded.add(k);
+            return k.toUpperCase();
+        };
+        assertEquals("A", m.computeIfAbsent("a", loader));
+        assertEquals("A", m.computeIfAbsent("a", loader));
+        assertEquals("B", m.computeIfAbsent("b", loader));
+        assertEquals("A", m.computeIfAbsent("a", loader));
+        assertEquals("C", m.computeIfAbsent("c", loader));
+        assertEquals(true, m.hasKey("a"));
+        assertEquals(false, m.hasKey("b"));
+        assertEquals("[a, b, c]", loaded.toString());
+        assertEquals(3, m.hits());
+        assertEquals(4, m.misses());
+        assertEquals(1, m.evictions());
+    }
+
+    /**
+     * Test that a cache large enough to have several segments never holds
+     * more than its capacity, and that every entry added is either still
+     * there or was evicted.
+     */
+    @Test
+    public final void testCapacityWithSegments() {
+        final int capacity = 1000;
+        final int n = 10 * capacity;
+        List<String> evicted = new ArrayList<>();
+        CacheMap4<Integer, String> m = new CacheMap4<>(capacity,
+                (k, v) -> evicted.add(v));
+        for (int i = 0; i < n; i++) {
+            m.add(i, "v" + i);
+            assertTrue(m.size() <= capacity);
+        }
+        int count = 0;
+        for (Map.Pair<Integer, String> p : m) {
+            assertEquals("v" + p.key(), p.value());
+            count++;
+        }
+        assertEquals(m.size(), count);
+        assertEquals(n, m.size() + evicted.size());
+        assertEquals(evicted.size(), m.evictions());
+    }
+
+    /**
+     * Test computeIfAbsent from several threads at once, each on its own
+     * keys: no call fails or returns a wrong value, the capacity is
+     * respected, and every lookup and eviction is counted.
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting for the threads
+     */
+    @Test
+    public final void testConcurrentLookups() throws InterruptedException {
+        final int threads = 4;
+        final int keys = 2000;
+        final int rounds = 20;
+        final int capacity = 1024;
+        CacheMap4<Integer, Integer> m = new CacheMap4<>(capacity);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int base = t * keys;
+            workers[t] = new Thread(() -> {
+                try {
+                    for (int r = 0; r < rounds; r++) {
+                        for (int k = base; k < base + keys; k++) {
+                            /*
+                             * Small keys are looked up far more often, so
+                             * that some stay cached.
+                             */
+                            int key = base + (k - base) % (1 + r * keys / 20);
+                            assertEquals(key, m.computeIfAbsent(key,
+                                    x -> x).intValue());
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(null, failure.get());
+        assertTrue(m.size() <= capacity);
+        assertEquals((long) threads * keys * rounds, m.hits() + m.misses());
+        assertEquals(m.misses(), m.size() + m.evictions());
+    }
+
+}
@@ -0,0 +1,199 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import components.map.Map;
+import components.map.Map1L;
+
+/**
+ * Customized JUnit test fixture for {@code ConcurrentMap4}.
+ */
+public class ConcurrentMap4Test extends MapTest {
+
+    @Override
+    protected final Map<String, String> constructorTest() {
+        return new ConcurrentMap4<String, String>();
+    }
+
+    @Override
+    protected final Map<String, String> constructorRef() {
+        return new Map1L<String, String>();
+    }
+
+    /**
+     * Test merge from several threads at once.
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting for the threads
+     */
+    @Test
+    public final void testMergeConcurrent() throws InterruptedException {
+        final int threads = 4;
+        final int keys = 100;
+        final int rounds = 1000;
+        ConcurrentMap4<Integer, Integer> m = new ConcurrentMap4<>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int r = 0; r < rounds; r++) {
+                    for (int k = 0; k < keys; k++) {
+                        m.merge(k, 1, Integer::sum);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(keys, m.size());
+        for (int k = 0; k < keys; k++) {
+            assertEquals(threads * rounds, m.value(k).intValue());
+        }
+    }
+
+    /**
+     * Test removeAny until empty on a large map; a scan from segment 0,
+     * bucket 0 on every call makes this quadratic and it does not finish in
+     * reasonable time.
+     */
+    @Test
+    public final void testRemoveAnyDrainLarge() {
+        final int n = 200_000;
+        ConcurrentMap4<Integer, Integer> m = new ConcurrentMap4<>();
+        for (int i = 0; i < n; i++) {
+            m.add(i, -i);
+        }
+        boolean[] seen = new boolean[n];
+        while (m.size() > 0) {
+            Map.Pair<Integer, Integer> p = m.removeAny();
+            int k = p.key();
+            assertTrue(0 <= k && k < n && !seen[k]);
+            assertEquals(-k, p.value().intValue());
+            seen[k] = true;
+        }
+        for (int i = 0; i < n; i++) {
+            assertTrue(seen[i]);
+        }
+    }
+
+    /**
+     * Test removeAny interleaved with add, so that entries land in segments
+     * and buckets before ones removeAny has already scanned past.
+     */
+    @Test
+    public final void testRemoveAnyInterleavedWithAdd() {
+        final int n = 5000;
+        ConcurrentMap4<Integer, Integer> m = new ConcurrentMap4<>();
+        Map<Integer, Integer> mExpected = new Map1L<>();
+        int next = 0;
+        for (int round = 0; round < n; round++) {
+            for (int j = 0; j < 3; j++) {
+                m.add(next, next);
+                mExpected.add(next, next);
+                next++;
+            }
+            for (int j = 0; j < 2; j++) {
+                Map.Pair<Integer, Integer> p = m.removeAny();
+                assertTrue(mExpected.hasKey(p.key()));
+                mExpected.remove(p.key());
+            }
+        }
+        assertEquals(mExpected, m);
+        while (m.size() > 0) {
+            mExpected.remove(m.removeAny().key());
+        }
+        assertEquals(0, mExpected.size());
+    }
+
+    /**
+     * Test readers calling value, hasKey, and the iterator while a writer
+     * adds, merges, computes, and removes keys, growing the segments' tables
+     * as it goes: no reader fails, every key that is never removed is always
+     * found with its value, and no iterator returns a key twice.
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting for the threads
+     */
+    @Test
+    public final void testReadersWithWriter() throws InterruptedException {
+        final int readers = 4;
+        final int stable = 1000;
+        final int rounds = 6;
+        final int firstBatch = 1000;
+        ConcurrentMap4<Integer, Integer> m = new ConcurrentMap4<>();
+        for (int k = 0; k < stable; k++) {
+            m.add(k, k);
+        }
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                /*
+                 * Each round adds twice as many keys as the last, so the
+                 * tables keep growing while the readers run.
+                 */
+                int batch = firstBatch;
+                for (int r = 0; r < rounds; r++) {
+                    for (int k = stable; k < stable + batch; k++) {
+                        m.add(k, k);
+                    }
+                    for (int k = stable; k < stable + batch; k++) {
+                        m.merge(k, 1, Integer::sum);
+                    }
+                    for (int k = 0; k < stable; k++) {
+                        m.compute(k, (key, v) -> v);
+                    }
+                    for (int k = stable; k < stable + batch; k++) {
+                        m.remove(k);
+                    }
+                    batch *= 2;
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                done.set(true);
+            }
+        });
+        Thread[] workers = new Thread[readers];
+        for (int t = 0; t < readers; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        for (int k = 0; k < stable; k++) {
+                            assertTrue(m.hasKey(k));
+                            assertEquals(k, m.value(k).intValue());
+                            m.hasKey(stable + k);
+                        }
+                        Set<Integer> seen = new HashSet<>();
+                        for (Map.Pair<Integer, Integer> p : m) {
+                            assertTrue(seen.add(p.key()));
+                        }
+                        for (int k = 0; k < stable; k++) {
+                            assertTrue(seen.contains(k));
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            workers[t].start();
+        }
+        writer.start();
+        writer.join();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(null, failure.get());
+        assertEquals(stable, m.size());
+    }
+
+}
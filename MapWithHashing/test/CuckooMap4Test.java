@@ -0,0 +1,99 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import components.map.Map;
+import components.map.Map1L;
+
+/**
+ * Customized JUnit test fixture for {@code CuckooMap4} using default
+ * constructor.
+ */
+public class CuckooMap4Test extends MapTest {
+
+    @Override
+    protected final Map<String, String> constructorTest() {
+        return new CuckooMap4<String, String>();
+    }
+
+    @Override
+    protected final Map<String, String> constructorRef() {
+        return new Map1L<String, String>();
+    }
+
+    /**
+     * Test growing well past the initial table.
+     */
+    @Test
+    public final void testManyEntries() {
+        final int n = 5000;
+        Map<String, String> m = new CuckooMap4<>();
+        Map<String, String> mExpected = new Map1L<>();
+        for (int i = 0; i < n; i++) {
+            m.add("k" + i, "v" + i);
+            mExpected.add("k" + i, "v" + i);
+        }
+        assertEquals(mExpected, m);
+        for (int i = 0; i < n; i += 2) {
+            assertEquals("v" + i, m.remove("k" + i).value());
+            mExpected.remove("k" + i);
+        }
+        assertEquals(mExpected, m);
+    }
+
+    /**
+     * Test more keys with the same hash code than two buckets hold, so that
+     * the stash must keep the rest.
+     */
+    @Test
+    public final void testStash() {
+        Map<String, String> m = new CuckooMap4<>();
+        Map<String, String> mExpected = new Map1L<>();
+        /*
+         * "Aa" and "BB" have the same hashCode, so all 2^5 strings made of
+         * five of them do too.
+         */
+        String[] halves = { "Aa", "BB" };
+        for (int i = 0; i < 32; i++) {
+            StringBuilder key = new StringBuilder();
+            for (int bit = 0; bit < 5; bit++) {
+                key.append(halves[(i >> bit) & 1]);
+            }
+            m.add(key.toString(), "" + i);
+            mExpected.add(key.toString(), "" + i);
+            m.add("other" + i, "x");
+            mExpected.add("other" + i, "x");
+        }
+        assertEquals(mExpected, m);
+        assertEquals("0", m.value("AaAaAaAaAa"));
+        assertEquals("31", m.remove("BBBBBBBBBB").value());
+        mExpected.remove("BBBBBBBBBB");
+        assertEquals(mExpected, m);
+    }
+
+    /**
+     * Test removeAny until empty on a large map; a scan from slot 0 on every
+     * call makes this quadratic and it does not finish in reasonable time.
+     */
+    @Test
+    public final void testRemoveAnyDrainLarge() {
+        final int n = 200_000;
+        CuckooMap4<Integer, Integer> m = new CuckooMap4<>();
+        for (int i = 0; i < n; i++) {
+            m.add(i, -i);
+        }
+        boolean[] seen = new boolean[n];
+        while (m.size() > 0) {
+            Map.Pair<Integer, Integer> p = m.removeAny();
+            int k = p.key();
+            assertTrue(0 <= k && k < n && !seen[k]);
+            assertEquals(-k, p.value().intValue());
+            seen[k] = true;
+        }
+        for (int i = 0; i < n; i++) {
+            assertTrue(seen[i]);
+        }
+    }
+
+}
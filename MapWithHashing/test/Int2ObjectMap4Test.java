@@ -0,0 +1,94 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import components.map.Map;
+import components.map.Map1L;
+
+/**
+ * JUnit test fixture for {@code Int2ObjectMap4}'s kernel methods and its
+ * {@code int}-keyed methods.
+ */
+public class Int2ObjectMap4Test {
+
+    /**
+     * Test add, value, and remove against {@code Map1L} for enough keys
+     * (including 0 and negative ones) to force several resizes.
+     */
+    @Test
+    public final void testAddValueRemove() {
+        final int n = 1000;
+        Map<Integer, String> m = new Int2ObjectMap4<>();
+        Map<Integer, String> mExpected = new Map1L<>();
+        for (int i = -n / 2; i < n / 2; i++) {
+            m.add(Integer.valueOf(i), "v" + i);
+            mExpected.add(i, "v" + i);
+        }
+        for (int i = -n / 2; i < n / 2; i += 2) {
+            Map.Pair<Integer, String> p = m.remove(i);
+            Map.Pair<Integer, String> pExpected = mExpected.remove(i);
+            assertEquals(pExpected.key(), p.key());
+            assertEquals(pExpected.value(), p.value());
+        }
+        assertEquals(mExpected, m);
+    }
+
+    /**
+     * Test the int-keyed add, value, and hasKey.
+     */
+    @Test
+    public final void testIntKeys() {
+        Int2ObjectMap4<String> m = new Int2ObjectMap4<>();
+        m.add(0, "zero");
+        m.add(-7, "minus seven");
+        m.add(Integer.MAX_VALUE, "max");
+        assertTrue(m.hasKey(0));
+        assertTrue(m.hasKey(-7));
+        assertTrue(!m.hasKey(7));
+        assertEquals("zero", m.value(0));
+        assertEquals("max", m.value(Integer.MAX_VALUE));
+        assertEquals(3, m.size());
+    }
+
+    /**
+     * Test replaceValue and removeAny.
+     */
+    @Test
+    public final void testReplaceValueRemoveAny() {
+        Int2ObjectMap4<String> m = new Int2ObjectMap4<>();
+        m.add(1, "a");
+        m.add(2, "b");
+        assertEquals("a", m.replaceValue(1, "c"));
+        assertEquals("c", m.value(1));
+        Map.Pair<Integer, String> p = m.removeAny();
+        assertTrue(!m.hasKey(p.key()));
+        m.removeAny();
+        assertEquals(0, m.size());
+    }
+
+    /**
+     * Test removeAny until empty on a large map; a scan from slot 0 on every
+     * call makes this quadratic and it does not finish in reasonable time.
+     */
+    @Test
+    public final void testRemoveAnyDrainLarge() {
+        final int n = 200_000;
+        Int2ObjectMap4<String> m = new Int2ObjectMap4<>();
+        for (int i = 0; i < n; i++) {
+            m.add(i, "v" + i);
+        }
+        boolean[] seen = new boolean[n];
+        while (m.size() > 0) {
+            Map.Pair<Integer, String> p = m.removeAny();
+            int k = p.key();
+            assertTrue(0 <= k && k < n && !seen[k]);
+            assertEquals("v" + k, p.value());
+            seen[k] = true;
+        }
+        for (int i = 0; i < n; i++) {
+            assertTrue(seen[i]);
+        }
+    }
+
+}
@@ -1,3 +1,17 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
 import components.map.Map;
 import components.map.Map1L;
 
@@ -16,4 +30,801 @@ public class Map4Test extends MapTest {
         return new Map1L<String, String>();
     }
 
+    /**
+     * Test forEach on a map whose table is being resized.
+     */
+    @Test
+    public final void testForEach() {
+        final int n = 250;
+        Map4<String, String> m = new Map4<>();
+        Map<String, String> mExpected = new Map1L<>();
+        for (int i = 0; i < n; i++) {
+            m.add("k" + i, "v" + i);
+            mExpected.add("k" + i, "v" + i);
+        }
+        Map<String, String> seen = new Map1L<>();
+        m.forEach((k, v) -> seen.add(k, v));
+        assertEquals(mExpected, seen);
+    }
+
+    /**
+     * Test cursor on a sparse map.
+     */
+    @Test
+    public final void testCursor() {
+        final int buckets = 1000;
+        Map4<String, String> m = new Map4<>(buckets);
+        m.add("red", "1");
+        m.add("green", "2");
+        m.add("blue", "3");
+        Map<String, String> mExpected = new Map1L<>();
+        mExpected.add("red", "1");
+        mExpected.add("green", "2");
+        mExpected.add("blue", "3");
+        Map<String, String> seen = new Map1L<>();
+        Map4.Cursor<String, String> c = m.cursor();
+        while (c.advance()) {
+            seen.add(c.key(), c.value());
+        }
+        assertEquals(mExpected, seen);
+    }
+
+    /**
+     * Test removeAny until empty on a map whose table has grown.
+     */
+    @Test
+    public final void testRemoveAnyUntilEmpty() {
+        final int n = 1000;
+        Map4<String, String> m = new Map4<>();
+        Map<String, String> mExpected = new Map1L<>();
+        for (int i = 0; i < n; i++) {
+            m.add("k" + i, "v" + i);
+            mExpected.add("k" + i, "v" + i);
+        }
+        while (m.size() > 0) {
+            Map.Pair<String, String> p = m.removeAny();
+            Map.Pair<String, String> pExpected = mExpected.remove(p.key());
+            assertEquals(pExpected.value(), p.value());
+        }
+        assertEquals(0, mExpected.size());
+    }
+
+    /**
+     * Test drainTo.
+     */
+    @Test
+    public final void testDrainTo() {
+        final int n = 250;
+        Map4<String, String> m = new Map4<>();
+        Map<String, String> mExpected = new Map1L<>();
+        for (int i = 0; i < n; i++) {
+            m.add("k" + i, "v" + i);
+            mExpected.add("k" + i, "v" + i);
+        }
+        Map<String, String> drained = new Map1L<>();
+        m.drainTo(p -> drained.add(p.key(), p.value()));
+        assertEquals(0, m.size());
+        assertEquals(mExpected, drained);
+    }
+
+    /**
+     * Test bulkLoad from arrays, in parallel, followed by kernel calls.
+     */
+    @Test
+    public final void testBulkLoadArraysParallel() {
+        final int n = 50_000;
+        String[] keys = new String[n];
+        String[] values = new String[n];
+        Map<String, String> mExpected = new Map1L<>();
+        for (int i = 0; i < n; i++) {
+            keys[i] = "k" + i;
+            values[i] = "v" + i;
+            mExpected.add(keys[i], values[i]);
+        }
+        Map4<String, String> m = Map4.bulkLoad(keys, values, true);
+        assertEquals(mExpected, m);
+        for (int i = 0; i < n; i += 2) {
+            m.remove(keys[i]);
+            mExpected.remove(keys[i]);
+        }
+        m.add("extra", "value");
+        mExpected.add("extra", "value");
+        assertEquals(mExpected, m);
+    }
+
+    /**
+     * Test bulkLoad from another map.
+     */
+    @Test
+    public final void testBulkLoadIterable() {
+        Map<String, String> source = new Map1L<>();
+        source.add("red", "1");
+        source.add("green", "2");
+        source.add("blue", "3");
+        Map4<String, String> m = Map4.bulkLoad(source, false);
+        assertEquals(source, m);
+    }
+
+    /**
+     * Test that metrics reports the load factor and a histogram that
+     * accounts for every bucket and entry.
+     */
+    @Test
+    public final void testMetrics() {
+        final int buckets = 11;
+        final int n = 20;
+        Map4<String, String> m = new Map4<>(buckets);
+        for (int i = 0; i < n; i++) {
+            m.add("k" + i, "v" + i);
+        }
+        Map4.Metrics metrics = m.metrics();
+        int[] histogram = metrics.bucketLengthHistogram();
+        int bucketCount = 0;
+        int entryCount = 0;
+        for (int length = 0; length < histogram.length; length++) {
+            bucketCount += histogram[length];
+            entryCount += length * histogram[length];
+        }
+        assertEquals(buckets, bucketCount);
+        assertEquals(n, entryCount);
+        assertEquals((double) n / buckets, metrics.loadFactor(), 0);
+    }
+
+    /**
+     * Test the usage counters after a known sequence of calls on a map whose
+     * keys all share one chain, so that every probe length is known.
+     */
+    @Test
+    public final void testMetricsCounters() {
+        final int buckets = 5;
+        Map4<Integer, Integer> m = new Map4<>(buckets, Map4.Spreader.IDENTITY,
+                true);
+        /*
+         * Keys are linked at the head, so bucket 0 is 10 -> 5 -> 0
+         */
+        m.add(0, 0);
+        m.add(5, 5);
+        m.add(10, 10);
+        assertEquals(0L, m.metrics().lookups());
+        assertTrue(m.hasKey(0));
+        assertTrue(m.hasKey(10));
+        assertTrue(!m.hasKey(15));
+        assertTrue(!m.hasKey(1));
+        assertEquals(5, m.value(5).intValue());
+        assertEquals(0, m.replaceValue(0, 7).intValue());
+        Map4.Metrics metrics = m.metrics();
+        assertTrue(metrics.enabled());
+        assertEquals(6L, metrics.lookups());
+        assertEquals((3.0 + 1 + 3 + 0 + 2 + 3) / 6,
+                metrics.averageProbeLength(), 0);
+        assertEquals(3, metrics.maxProbeLength());
+        assertEquals(2L, metrics.hasKeyHits());
+        assertEquals(2L, metrics.hasKeyMisses());
+        assertEquals(0, metrics.resizes());
+        /*
+         * The table grows once size passes 2 * buckets
+         */
+        for (int i = 1; i <= 2 * buckets - 2; i++) {
+            m.add(-i, i);
+        }
+        metrics = m.metrics();
+        assertEquals(1, metrics.resizes());
+        assertEquals(6L, metrics.lookups());
+        Map4<Integer, Integer> quiet = new Map4<>(buckets,
+                Map4.Spreader.IDENTITY, false);
+        quiet.add(0, 0);
+        assertTrue(quiet.hasKey(0));
+        assertTrue(!quiet.metrics().enabled());
+        assertEquals(0L, quiet.metrics().lookups());
+        assertEquals(0L, quiet.metrics().hasKeyHits());
+    }
+
+    /**
+     * Test parallelForEach on a table large enough to be split.
+     */
+    @Test
+    public final void testParallelForEach() {
+        final int buckets = 40_001;
+        final int n = 50_000;
+        Map4<Integer, Integer> m = new Map4<>(buckets);
+        long expectedSum = 0;
+        for (int i = 0; i < n; i++) {
+            m.add(i, i);
+            expectedSum += i;
+        }
+        AtomicLong count = new AtomicLong();
+        AtomicLong sum = new AtomicLong();
+        m.parallelForEach((k, v) -> {
+            count.incrementAndGet();
+            sum.addAndGet(v);
+        });
+        assertEquals(n, count.get());
+        assertEquals(expectedSum, sum.get());
+    }
+
+    /**
+     * Test parallelForEach on a map being migrated, with an action that reads
+     * the map with value.
+     */
+    @Test
+    public final void testParallelForEachMigrating() {
+        final int size = 20_011;
+        Map<Integer, Integer> mExpected = new Map1L<>();
+        Map4<Integer, Integer> m = migrating(size, mExpected);
+        long expectedSum = 0;
+        for (Map.Pair<Integer, Integer> p : mExpected) {
+            expectedSum += p.value();
+        }
+        AtomicLong count = new AtomicLong();
+        AtomicLong sum = new AtomicLong();
+        m.parallelForEach((k, v) -> {
+            assertEquals(v, m.value(k));
+            count.incrementAndGet();
+            sum.addAndGet(v);
+        });
+        assertEquals(mExpected.size(), count.get());
+        assertEquals(expectedSum, sum.get());
+        assertTrue(m.bucketLengths().length > 2 * size + 1);
+        assertEquals(mExpected, m);
+    }
+
+    /**
+     * Test parallelReduce and maxByValue, including on a map being resized.
+     */
+    @Test
+    public final void testParallelReduce() {
+        final int n = 30_000;
+        Map4<Integer, Integer> m = new Map4<>();
+        long expectedSum = 0;
+        for (int i = 0; i < n; i++) {
+            int v = (i * 7919) % n;
+            m.add(i, v);
+            expectedSum += v;
+        }
+        long sum = m.parallelReduce(0L, (k, v) -> (long) v, Long::sum);
+        assertEquals(expectedSum, sum);
+        Map.Pair<Integer, Integer> max = m
+                .maxByValue(Comparator.naturalOrder());
+        assertEquals(n - 1, max.value().intValue());
+        assertEquals(0L, new Map4<Integer, Integer>().parallelReduce(0L,
+                (k, v) -> 1L, Long::sum).longValue());
+    }
+
+    /**
+     * Test parallelMerge of word counts, with equal and with different
+     * numbers of buckets.
+     */
+    @Test
+    public final void testParallelMerge() {
+        final int buckets = 20_001;
+        final int n = 30_000;
+        for (int otherBuckets : new int[] { buckets, 101 }) {
+            Map4<String, Integer> m = new Map4<>(buckets);
+            Map4<String, Integer> other = new Map4<>(otherBuckets);
+            Map<String, Integer> mExpected = new Map1L<>();
+            for (int i = 0; i < n; i++) {
+                m.add("w" + i, 1);
+            }
+            for (int i = n / 2; i < n + n / 2; i++) {
+                other.add("w" + i, 2);
+            }
+            for (int i = 0; i < n + n / 2; i++) {
+                int count = 0;
+                if (i < n) {
+                    count += 1;
+                }
+                if (i >= n / 2) {
+                    count += 2;
+                }
+                mExpected.add("w" + i, count);
+            }
+            m.parallelMerge(other, Integer::sum);
+            assertEquals(mExpected, m);
+            assertEquals(0, other.size());
+        }
+    }
+
+    /**
+     * Returns a new temporary file that is deleted when the JVM exits.
+     *
+     * @return the path of the file
+     * @throws IOException
+     *             if the file cannot be created
+     */
+    private static Path tempFile() throws IOException {
+        Path file = Files.createTempFile("Map4Test", ".snap");
+        file.toFile().deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Test writing and reading back a snapshot of a map that is being
+     * resized and has treeified buckets, serially and in parallel.
+     *
+     * @throws IOException
+     *             if the file cannot be used
+     */
+    @Test
+    public final void testSnapshotRoundTrip() throws IOException {
+        final int n = 20_000;
+        Path file = tempFile();
+        Map4<String, Integer> m = new Map4<>();
+        Map<String, Integer> mExpected = new Map1L<>();
+        for (int i = 0; i < n; i++) {
+            m.add("k" + i, i);
+            mExpected.add("k" + i, i);
+        }
+        /*
+         * "Aa" and "BB" have the same hashCode, so these keys all share a
+         * bucket, which is treeified.
+         */
+        String[] halves = { "Aa", "BB" };
+        for (int i = 0; i < 16; i++) {
+            StringBuilder key = new StringBuilder();
+            for (int bit = 0; bit < 4; bit++) {
+                key.append(halves[(i >> bit) & 1]);
+            }
+            m.add(key.toString(), -i);
+            mExpected.add(key.toString(), -i);
+        }
+        m.writeSnapshot(file, Codec.STRING, Codec.INTEGER);
+        assertEquals(mExpected, m);
+        assertEquals(mExpected,
+                Map4.readSnapshot(file, Codec.STRING, Codec.INTEGER, false));
+        Map4<String, Integer> reloaded = Map4.readSnapshot(file, Codec.STRING,
+                Codec.INTEGER, true);
+        assertEquals(mExpected, reloaded);
+        reloaded.add("new", 1);
+        mExpected.add("new", 1);
+        assertEquals(mExpected, reloaded);
+    }
+
+    /**
+     * Test that a damaged snapshot is rejected.
+     *
+     * @throws IOException
+     *             if the file cannot be used
+     */
+    @Test
+    public final void testSnapshotCorrupt() throws IOException {
+        final int n = 1000;
+        Path file = tempFile();
+        Map4<String, String> m = new Map4<>();
+        for (int i = 0; i < n; i++) {
+            m.add("k" + i, "v" + i);
+        }
+        m.writeSnapshot(file, Codec.STRING, Codec.STRING);
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long last = channel.size() - 1;
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, last);
+            b.put(0, (byte) (b.get(0) ^ 1));
+            b.rewind();
+            channel.write(b, last);
+        }
+        boolean rejected = false;
+        try {
+            Map4.readSnapshot(file, Codec.STRING, Codec.STRING, false);
+        } catch (IOException e) {
+            rejected = true;
+        }
+        assertTrue(rejected);
+    }
+
+    /**
+     * Hash code shared by every {@code CollidingKey} and {@code PlainKey}, so
+     * that all of them land in the same bucket.
+     */
+    private static final int SHARED_HASH = 42;
+
+    /**
+     * Key whose hash code is always {@code SHARED_HASH}, ordered by
+     * {@code compareTo} on {@code id / tieWidth}: with a tie width of 1,
+     * {@code compareTo} is consistent with {@code equals}; with a larger one,
+     * different keys can compare equal.
+     */
+    private static final class CollidingKey
+            implements Comparable<CollidingKey> {
+
+        /**
+         * Identity of the key, used by {@code equals}.
+         */
+        private final int id;
+
+        /**
+         * Number of consecutive ids that {@code compareTo} cannot tell apart.
+         */
+        private final int tieWidth;
+
+        /**
+         * Constructor from id and tie width.
+         *
+         * @param id
+         *            the identity of the key
+         * @param tieWidth
+         *            the number of ids compareTo cannot tell apart
+         */
+        CollidingKey(int id, int tieWidth) {
+            this.id = id;
+            this.tieWidth = tieWidth;
+        }
+
+        @Override
+        public int compareTo(CollidingKey other) {
+            return Integer.compare(this.id / this.tieWidth,
+                    other.id / other.tieWidth);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof CollidingKey
+                    && ((CollidingKey) obj).id == this.id;
+        }
+
+        @Override
+        public int hashCode() {
+            return SHARED_HASH;
+        }
+
+        @Override
+        public String toString() {
+            return "c" + this.id;
+        }
+
+    }
+
+    /**
+     * Key whose hash code is always {@code SHARED_HASH}, and which is not
+     * {@code Comparable}.
+     */
+    private static final class PlainKey {
+
+        /**
+         * Identity of the key, used by {@code equals}.
+         */
+        private final int id;
+
+        /**
+         * Constructor from id.
+         *
+         * @param id
+         *            the identity of the key
+         */
+        PlainKey(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof PlainKey && ((PlainKey) obj).id == this.id;
+        }
+
+        @Override
+        public int hashCode() {
+            return SHARED_HASH;
+        }
+
+        @Override
+        public String toString() {
+            return "p" + this.id;
+        }
+
+    }
+
+    /**
+     * Checks {@code value} and {@code hasKey} of {@code m} for every key in
+     * {@code keys}, which {@code m} holds iff {@code mExpected} does, and
+     * checks that the maps are equal.
+     *
+     * @param m
+     *            the map under test
+     * @param mExpected
+     *            the reference map
+     * @param keys
+     *            the keys to look up
+     */
+    private static void checkLookups(Map4<Object, Integer> m,
+            Map<Object, Integer> mExpected, Object[] keys) {
+        for (Object key : keys) {
+            assertEquals(mExpected.hasKey(key), m.hasKey(key));
+            if (mExpected.hasKey(key)) {
+                assertEquals(mExpected.value(key), m.value(key));
+            }
+        }
+        assertEquals(mExpected, m);
+    }
+
+    /**
+     * Test a bucket of Comparable colliding keys that grows well past
+     * TREEIFY_THRESHOLD and then shrinks, one removal at a time, below
+     * UNTREEIFY_THRESHOLD and grows again.
+     */
+    @Test
+    public final void testTreeifyComparable() {
+        final int n = 40;
+        Map4<Object, Integer> m = new Map4<>();
+        Map<Object, Integer> mExpected = new Map1L<>();
+        Object[] keys = new Object[n + 1];
+        for (int i = 0; i <= n; i++) {
+            keys[i] = new CollidingKey(i, 1);
+        }
+        for (int i = 0; i < n; i++) {
+            m.add(keys[i], i);
+            mExpected.add(keys[i], i);
+            checkLookups(m, mExpected, keys);
+        }
+        for (int i = 0; i < n - 2; i++) {
+            int k = (i * 7) % n;
+            while (!mExpected.hasKey(keys[k])) {
+                k = (k + 1) % n;
+            }
+            assertEquals(mExpected.remove(keys[k]).value(),
+                    m.remove(keys[k]).value());
+            checkLookups(m, mExpected, keys);
+        }
+        for (int i = 0; i < n; i++) {
+            if (!mExpected.hasKey(keys[i])) {
+                m.add(keys[i], -i);
+                mExpected.add(keys[i], -i);
+            }
+        }
+        checkLookups(m, mExpected, keys);
+    }
+
+    /**
+     * Test a bucket of colliding keys that are not Comparable, which stays a
+     * chain, and a treeified bucket into which such a key is then added.
+     */
+    @Test
+    public final void testTreeifyNotComparable() {
+        final int n = 30;
+        Map4<Object, Integer> m = new Map4<>();
+        Map<Object, Integer> mExpected = new Map1L<>();
+        Object[] keys = new Object[2 * n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = new PlainKey(i);
+            keys[n + i] = new CollidingKey(i, 1);
+        }
+        for (int i = 0; i < n; i++) {
+            m.add(keys[i], i);
+            mExpected.add(keys[i], i);
+        }
+        checkLookups(m, mExpected, keys);
+        for (int i = 0; i < n; i += 2) {
+            m.remove(keys[i]);
+            mExpected.remove(keys[i]);
+        }
+        checkLookups(m, mExpected, keys);
+
+        Map4<Object, Integer> mixed = new Map4<>();
+        Map<Object, Integer> mixedExpected = new Map1L<>();
+        for (int i = n; i < 2 * n; i++) {
+            mixed.add(keys[i], i);
+            mixedExpected.add(keys[i], i);
+        }
+        mixed.add(keys[0], 0);
+        mixedExpected.add(keys[0], 0);
+        checkLookups(mixed, mixedExpected, keys);
+        for (int i = n; i < 2 * n; i += 3) {
+            mixed.remove(keys[i]);
+            mixedExpected.remove(keys[i]);
+        }
+        checkLookups(mixed, mixedExpected, keys);
+    }
+
+    /**
+     * Test colliding keys whose compareTo ties while equals differs, both
+     * when they are present before the bucket would be treeified and when
+     * they are added to a bucket that already is a tree.
+     */
+    @Test
+    public final void testTreeifyCompareToTies() {
+        final int n = 30;
+        final int tieWidth = 2;
+        Object[] keys = new Object[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = new CollidingKey(i, tieWidth);
+        }
+
+        Map4<Object, Integer> m = new Map4<>();
+        Map<Object, Integer> mExpected = new Map1L<>();
+        for (int i = 0; i < n; i++) {
+            m.add(keys[i], i);
+            mExpected.add(keys[i], i);
+        }
+        checkLookups(m, mExpected, keys);
+
+        Map4<Object, Integer> late = new Map4<>();
+        Map<Object, Integer> lateExpected = new Map1L<>();
+        for (int i = 0; i < n; i += tieWidth) {
+            late.add(keys[i], i);
+            lateExpected.add(keys[i], i);
+        }
+        checkLookups(late, lateExpected, keys);
+        for (int i = 1; i < n; i += tieWidth) {
+            late.add(keys[i], i);
+            lateExpected.add(keys[i], i);
+            checkLookups(late, lateExpected, keys);
+        }
+        for (int i = 0; i < n; i += 3) {
+            assertEquals(lateExpected.remove(keys[i]).value(),
+                    late.remove(keys[i]).value());
+        }
+        checkLookups(late, lateExpected, keys);
+    }
+
+    /**
+     * Test the iterator and removeAny on a map with a treeified bucket among
+     * ordinary ones.
+     */
+    @Test
+    public final void testTreeifiedIteratorAndRemoveAny() {
+        final int n = 30;
+        final int others = 200;
+        Map4<Object, Integer> m = new Map4<>();
+        Map<Object, Integer> mExpected = new Map1L<>();
+        for (int i = 0; i < n; i++) {
+            m.add(new CollidingKey(i, 1), i);
+            mExpected.add(new CollidingKey(i, 1), i);
+        }
+        for (int i = 0; i < others; i++) {
+            m.add("k" + i, -i);
+            mExpected.add("k" + i, -i);
+        }
+        Map<Object, Integer> seen = new Map1L<>();
+        for (Map.Pair<Object, Integer> p : m) {
+            assertTrue(!seen.hasKey(p.key()));
+            seen.add(p.key(), p.value());
+        }
+        assertEquals(mExpected, seen);
+        while (m.size() > 0) {
+            Map.Pair<Object, Integer> p = m.removeAny();
+            assertTrue(!m.hasKey(p.key()));
+            assertEquals(mExpected.remove(p.key()).value(), p.value());
+        }
+        assertEquals(0, mExpected.size());
+    }
+
+    /**
+     * Returns a {@code Map4} with hash table size {@code size} holding keys 0
+     * through 2 * {@code size} (mapped to their negations), together with the
+     * same pairs in {@code mExpected}. Adding the last key resizes the table,
+     * so the returned map has only just started migrating its old table.
+     *
+     * @param size
+     *            initial hash table size
+     * @param mExpected
+     *            the reference map
+     * @return the map being migrated
+     * @updates mExpected
+     */
+    private static Map4<Integer, Integer> migrating(int size,
+            Map<Integer, Integer> mExpected) {
+        Map4<Integer, Integer> m = new Map4<>(size);
+        for (int i = 0; i <= 2 * size; i++) {
+            m.add(i, -i);
+            mExpected.add(i, -i);
+        }
+        assertTrue(m.bucketLengths().length > 2 * size + 1);
+        return m;
+    }
+
+    /**
+     * Test value, replaceValue, remove and removeAny while the old table is
+     * only partly migrated.
+     */
+    @Test
+    public final void testPartialMigration() {
+        final int size = 1009;
+        final int calls = 20;
+        Map<Integer, Integer> mExpected = new Map1L<>();
+        Map4<Integer, Integer> m = migrating(size, mExpected);
+        for (int i = 0; i < calls; i++) {
+            int old = 2 * size - i;
+            int young = i;
+            assertEquals(mExpected.value(old), m.value(old));
+            assertEquals(mExpected.value(young), m.value(young));
+            assertEquals(mExpected.replaceValue(old, old),
+                    m.replaceValue(old, old));
+            assertEquals(mExpected.replaceValue(young, young),
+                    m.replaceValue(young, young));
+            assertEquals(mExpected.remove(size + i).value(),
+                    m.remove(size + i).value());
+        }
+        for (int i = 0; i < calls; i++) {
+            Map.Pair<Integer, Integer> p = m.removeAny();
+            assertTrue(!m.hasKey(p.key()));
+            assertEquals(mExpected.remove(p.key()).value(), p.value());
+        }
+        assertTrue(m.bucketLengths().length > 2 * size + 1);
+        for (int i = 0; i <= 2 * size; i++) {
+            assertEquals(mExpected.hasKey(i), m.hasKey(i));
+        }
+        assertTrue(m.bucketLengths().length > 2 * size + 1);
+        assertEquals(mExpected, m);
+    }
+
+    /**
+     * Test remove followed by add of the same key while the old table is only
+     * partly migrated.
+     */
+    @Test
+    public final void testPartialMigrationAddRemove() {
+        final int size = 1009;
+        final int calls = 20;
+        Map<Integer, Integer> mExpected = new Map1L<>();
+        Map4<Integer, Integer> m = migrating(size, mExpected);
+        for (int i = 0; i < calls; i++) {
+            Map.Pair<Integer, Integer> p = m.remove(i);
+            assertTrue(!m.hasKey(i));
+            m.add(p.key(), p.value());
+            assertEquals(-i, m.value(i).intValue());
+        }
+        assertTrue(m.bucketLengths().length > 2 * size + 1);
+        assertEquals(mExpected, m);
+    }
+
+    /**
+     * Test that calling value, which does not change the map, on every key
+     * reached by the iterator, by cursor and by forEach over a map being
+     * migrated neither repeats nor skips a key.
+     */
+    @Test
+    public final void testValueDuringIteration() {
+        final int size = 101;
+        Map<Integer, Integer> mExpected = new Map1L<>();
+        Map4<Integer, Integer> m = migrating(size, mExpected);
+        Map<Integer, Integer> seen = new Map1L<>();
+        for (Map.Pair<Integer, Integer> p : m) {
+            assertTrue(!seen.hasKey(p.key()));
+            assertEquals(p.value(), m.value(p.key()));
+            seen.add(p.key(), p.value());
+        }
+        assertEquals(mExpected, seen);
+        seen.clear();
+        Map4.Cursor<Integer, Integer> c = m.cursor();
+        while (c.advance()) {
+            assertTrue(!seen.hasKey(c.key()));
+            assertEquals(c.value(), m.value(c.key()));
+            seen.add(c.key(), c.value());
+        }
+        assertEquals(mExpected, seen);
+        seen.clear();
+        m.forEach((k, v) -> {
+            assertTrue(!seen.hasKey(k));
+            assertEquals(v, m.value(k));
+            seen.add(k, v);
+        });
+        assertEquals(mExpected, seen);
+        assertTrue(m.bucketLengths().length > 2 * size + 1);
+    }
+
+    /**
+     * Test add, remove and removeAny through resizes with each spreader.
+     */
+    @Test
+    public final void testSpreaders() {
+        final int n = 3000;
+        for (Map4.Spreader spreader : Map4.Spreader.values()) {
+            Map4<Integer, Integer> m = new Map4<>(1, spreader);
+            Map<Integer, Integer> mExpected = new Map1L<>();
+            for (int i = 0; i < n; i++) {
+                m.add(i * 64, i);
+                mExpected.add(i * 64, i);
+            }
+            assertEquals(mExpected, m);
+            for (int i = 0; i < n; i += 2) {
+                assertEquals(mExpected.remove(i * 64).value(),
+                        m.remove(i * 64).value());
+            }
+            assertEquals(mExpected, m);
+            while (m.size() > 0) {
+                Map.Pair<Integer, Integer> p = m.removeAny();
+                assertEquals(mExpected.remove(p.key()).value(), p.value());
+            }
+            assertEquals(0, mExpected.size());
+        }
+    }
+
 }
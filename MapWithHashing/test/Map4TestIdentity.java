@@ -0,0 +1,26 @@
+import components.map.Map;
+import components.map.Map1L;
+
+/**
+ * Customized JUnit test fixture for {@code Map4} using non-default constructor
+ * with hash table size 1009 and the {@code IDENTITY} spreader.
+ */
+public class Map4TestIdentity extends MapTest {
+
+    /**
+     * Size of hash table to be used in tests.
+     */
+    private static final int TEST_HASH_TABLE_SIZE = 1009;
+
+    @Override
+    protected final Map<String, String> constructorTest() {
+        return new Map4<String, String>(TEST_HASH_TABLE_SIZE,
+                Map4.Spreader.IDENTITY);
+    }
+
+    @Override
+    protected final Map<String, String> constructorRef() {
+        return new Map1L<String, String>();
+    }
+
+}
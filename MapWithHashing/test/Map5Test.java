@@ -0,0 +1,77 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import components.map.Map;
+import components.map.Map1L;
+
+/**
+ * Customized JUnit test fixture for {@code Map5} using default constructor.
+ */
+public class Map5Test extends MapTest {
+
+    @Override
+    protected final Map<String, String> constructorTest() {
+        return new Map5<String, String>();
+    }
+
+    @Override
+    protected final Map<String, String> constructorRef() {
+        return new Map1L<String, String>();
+    }
+
+    /**
+     * Test removeAny until empty on a large map; a scan from slot 0 on every
+     * call makes this quadratic and it does not finish in reasonable time.
+     */
+    @Test
+    public final void testRemoveAnyDrainLarge() {
+        final int n = 200_000;
+        Map5<Integer, Integer> m = new Map5<>();
+        for (int i = 0; i < n; i++) {
+            m.add(i, -i);
+        }
+        boolean[] seen = new boolean[n];
+        while (m.size() > 0) {
+            Map.Pair<Integer, Integer> p = m.removeAny();
+            int k = p.key();
+            assertTrue(0 <= k && k < n && !seen[k]);
+            assertEquals(-k, p.value().intValue());
+            seen[k] = true;
+        }
+        for (int i = 0; i < n; i++) {
+            assertTrue(seen[i]);
+        }
+    }
+
+    /**
+     * Test removeAny interleaved with add, so that entries land in slots
+     * before ones removeAny has already scanned past.
+     */
+    @Test
+    public final void testRemoveAnyInterleavedWithAdd() {
+        final int n = 5000;
+        Map5<Integer, Integer> m = new Map5<>();
+        Map<Integer, Integer> mExpected = new Map1L<>();
+        int next = 0;
+        for (int round = 0; round < n; round++) {
+            for (int j = 0; j < 3; j++) {
+                m.add(next, next);
+                mExpected.add(next, next);
+                next++;
+            }
+            for (int j = 0; j < 2; j++) {
+                Map.Pair<Integer, Integer> p = m.removeAny();
+                assertTrue(mExpected.hasKey(p.key()));
+                mExpected.remove(p.key());
+            }
+        }
+        assertEquals(mExpected, m);
+        while (m.size() > 0) {
+            mExpected.remove(m.removeAny().key());
+        }
+        assertEquals(0, mExpected.size());
+    }
+
+}
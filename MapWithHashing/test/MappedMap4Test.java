@@ -0,0 +1,136 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import components.map.Map;
+import components.map.Map1L;
+
+/**
+ * Customized JUnit test fixture for {@code MappedMap4}, each map in a new
+ * temporary file.
+ */
+public class MappedMap4Test extends MapTest {
+
+    /**
+     * Returns a new temporary file that is deleted when the JVM exits.
+     *
+     * @return the path of the file
+     * @throws IOException
+     *             if the file cannot be created
+     */
+    private static Path tempFile() throws IOException {
+        Path file = Files.createTempFile("MappedMap4Test", ".map");
+        file.toFile().deleteOnExit();
+        return file;
+    }
+
+    @Override
+    protected final Map<String, String> constructorTest() {
+        try {
+            return new MappedMap4<>(tempFile(), Codec.STRING, Codec.STRING);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    protected final Map<String, String> constructorRef() {
+        return new Map1L<String, String>();
+    }
+
+    /**
+     * Test that a closed map reopens with the same entries, after enough
+     * adds, removes, and replacements to grow and rebuild the table.
+     *
+     * @throws IOException
+     *             if the file cannot be used
+     */
+    @Test
+    public final void testReopen() throws IOException {
+        final int n = 2000;
+        Path file = tempFile();
+        Map<String, Integer> mExpected = new Map1L<>();
+        MappedMap4<String, Integer> m = new MappedMap4<>(file, Codec.STRING,
+                Codec.INTEGER);
+        for (int i = 0; i < n; i++) {
+            m.add("k" + i, i);
+            mExpected.add("k" + i, i);
+        }
+        for (int i = 0; i < n; i += 3) {
+            m.remove("k" + i);
+            mExpected.remove("k" + i);
+        }
+        for (int i = 1; i < n; i += 3) {
+            m.replaceValue("k" + i, -i);
+            mExpected.replaceValue("k" + i, -i);
+        }
+        m.close();
+        MappedMap4<String, Integer> reopened = new MappedMap4<>(file,
+                Codec.STRING, Codec.INTEGER);
+        assertEquals(mExpected, reopened);
+        reopened.close();
+    }
+
+    /**
+     * Test that a map that was never synced (as after a crash) is recovered
+     * from its log when the file is opened again.
+     *
+     * @throws IOException
+     *             if the file cannot be used
+     */
+    @Test
+    public final void testRecoverUnsynced() throws IOException {
+        Path file = tempFile();
+        MappedMap4<String, String> m = new MappedMap4<>(file, Codec.STRING,
+                Codec.STRING);
+        m.add("red", "1");
+        m.add("green", "2");
+        m.add("blue", "3");
+        m.remove("green");
+        m.replaceValue("red", "4");
+        /*
+         * m is neither synced nor closed, as if the process had died; its
+         * changes are still in the shared mapping of the file.
+         */
+        MappedMap4<String, String> recovered = new MappedMap4<>(file,
+                Codec.STRING, Codec.STRING);
+        assertEquals(2, recovered.size());
+        assertEquals("4", recovered.value("red"));
+        assertEquals("3", recovered.value("blue"));
+        assertTrue(!recovered.hasKey("green"));
+        recovered.close();
+    }
+
+    /**
+     * Test that changes made after a sync are recovered when the file is
+     * opened again without another sync, i.e., that the clean mark left by
+     * the sync is replaced before the first change.
+     *
+     * @throws IOException
+     *             if the file cannot be used
+     */
+    @Test
+    public final void testRecoverChangedAfterSync() throws IOException {
+        Path file = tempFile();
+        MappedMap4<String, String> m = new MappedMap4<>(file, Codec.STRING,
+                Codec.STRING);
+        m.add("red", "1");
+        m.add("green", "2");
+        m.sync();
+        m.add("blue", "3");
+        m.remove("red");
+        MappedMap4<String, String> recovered = new MappedMap4<>(file,
+                Codec.STRING, Codec.STRING);
+        assertEquals(2, recovered.size());
+        assertEquals("2", recovered.value("green"));
+        assertEquals("3", recovered.value("blue"));
+        assertTrue(!recovered.hasKey("red"));
+        recovered.close();
+    }
+
+}
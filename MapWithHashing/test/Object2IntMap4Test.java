@@ -0,0 +1,113 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import components.map.Map;
+import components.map.Map1L;
+
+/**
+ * JUnit test fixture for {@code Object2IntMap4}'s kernel methods and its
+ * {@code int}-valued methods.
+ */
+public class Object2IntMap4Test {
+
+    /**
+     * Test add, value, and remove against {@code Map1L} for enough keys to
+     * force several resizes.
+     */
+    @Test
+    public final void testAddValueRemove() {
+        final int n = 1000;
+        Map<String, Integer> m = new Object2IntMap4<>();
+        Map<String, Integer> mExpected = new Map1L<>();
+        for (int i = 0; i < n; i++) {
+            m.add("k" + i, i);
+            mExpected.add("k" + i, i);
+        }
+        for (int i = 0; i < n; i += 2) {
+            Map.Pair<String, Integer> p = m.remove("k" + i);
+            Map.Pair<String, Integer> pExpected = mExpected.remove("k" + i);
+            assertEquals(pExpected.key(), p.key());
+            assertEquals(pExpected.value(), p.value());
+        }
+        assertEquals(mExpected, m);
+        for (int i = 1; i < n; i += 2) {
+            assertEquals(Integer.valueOf(i), m.value("k" + i));
+        }
+    }
+
+    /**
+     * Test addTo on a new key and on an existing key.
+     */
+    @Test
+    public final void testAddTo() {
+        Object2IntMap4<String> m = new Object2IntMap4<>();
+        assertEquals(0, m.addTo("red", 3));
+        assertEquals(3, m.addTo("red", 4));
+        assertEquals(0, m.addTo("blue", -1));
+        assertEquals(7, m.intValue("red"));
+        assertEquals(-1, m.intValue("blue"));
+        assertEquals(2, m.size());
+    }
+
+    /**
+     * Test addTo as a word counter.
+     */
+    @Test
+    public final void testAddToCounts() {
+        final int words = 50;
+        final int rounds = 20;
+        Object2IntMap4<String> m = new Object2IntMap4<>();
+        for (int r = 0; r < rounds; r++) {
+            for (int w = 0; w < words; w++) {
+                m.addTo("w" + w, 1);
+            }
+        }
+        assertEquals(words, m.size());
+        for (int w = 0; w < words; w++) {
+            assertEquals(rounds, m.intValue("w" + w));
+        }
+    }
+
+    /**
+     * Test replaceValue and removeAny.
+     */
+    @Test
+    public final void testReplaceValueRemoveAny() {
+        Object2IntMap4<String> m = new Object2IntMap4<>();
+        m.add("a", 1);
+        m.add("b", 2);
+        assertEquals(Integer.valueOf(1), m.replaceValue("a", 5));
+        assertEquals(5, m.intValue("a"));
+        Map.Pair<String, Integer> p = m.removeAny();
+        assertTrue(!m.hasKey(p.key()));
+        m.removeAny();
+        assertEquals(0, m.size());
+    }
+
+    /**
+     * Test removeAny until empty on a large map; a scan from slot 0 on every
+     * call makes this quadratic and it does not finish in reasonable time.
+     */
+    @Test
+    public final void testRemoveAnyDrainLarge() {
+        final int n = 200_000;
+        Object2IntMap4<Integer> m = new Object2IntMap4<>();
+        for (int i = 0; i < n; i++) {
+            m.add(i, -i);
+        }
+        boolean[] seen = new boolean[n];
+        while (m.size() > 0) {
+            Map.Pair<Integer, Integer> p = m.removeAny();
+            int k = p.key();
+            assertTrue(0 <= k && k < n && !seen[k]);
+            assertEquals(-k, p.value().intValue());
+            seen[k] = true;
+        }
+        for (int i = 0; i < n; i++) {
+            assertTrue(seen[i]);
+        }
+    }
+
+}
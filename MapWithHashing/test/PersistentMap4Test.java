@@ -0,0 +1,98 @@
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import components.map.Map;
+import components.map.Map1L;
+
+/**
+ * Customized JUnit test fixture for {@code PersistentMap4} using default
+ * constructor.
+ */
+public class PersistentMap4Test extends MapTest {
+
+    @Override
+    protected final Map<String, String> constructorTest() {
+        return new PersistentMap4<String, String>();
+    }
+
+    @Override
+    protected final Map<String, String> constructorRef() {
+        return new Map1L<String, String>();
+    }
+
+    /**
+     * Test that with and without leave the original unchanged.
+     */
+    @Test
+    public final void testWithWithout() {
+        PersistentMap4<String, String> m = new PersistentMap4<>();
+        m.add("red", "1");
+        m.add("green", "2");
+        PersistentMap4<String, String> m2 = m.with("blue", "3")
+                .with("red", "4").without("green");
+        Map<String, String> mExpected = new Map1L<>();
+        mExpected.add("red", "1");
+        mExpected.add("green", "2");
+        Map<String, String> m2Expected = new Map1L<>();
+        m2Expected.add("red", "4");
+        m2Expected.add("blue", "3");
+        assertEquals(mExpected, m);
+        assertEquals(m2Expected, m2);
+    }
+
+    /**
+     * Test that a snapshot is not affected by later updates, in place or
+     * not, to the map it was taken from.
+     */
+    @Test
+    public final void testSnapshot() {
+        final int n = 2000;
+        PersistentMap4<String, String> m = new PersistentMap4<>();
+        Map<String, String> mExpected = new Map1L<>();
+        for (int i = 0; i < n; i++) {
+            m.add("k" + i, "v" + i);
+            mExpected.add("k" + i, "v" + i);
+        }
+        PersistentMap4<String, String> s = m.snapshot();
+        for (int i = 0; i < n; i += 2) {
+            m.remove("k" + i);
+            m.replaceValue("k" + (i + 1), "w");
+        }
+        m.add("new", "x");
+        assertEquals(mExpected, s);
+        assertEquals(n / 2 + 1, m.size());
+        assertEquals("w", m.value("k1"));
+    }
+
+    /**
+     * Test keys whose hash codes are equal.
+     */
+    @Test
+    public final void testCollisions() {
+        PersistentMap4<String, String> m = new PersistentMap4<>();
+        Map<String, String> mExpected = new Map1L<>();
+        /*
+         * "Aa" and "BB" have the same hashCode, so all 2^4 strings made of
+         * four of them do too.
+         */
+        String[] halves = { "Aa", "BB" };
+        for (int i = 0; i < 16; i++) {
+            StringBuilder key = new StringBuilder();
+            for (int bit = 0; bit < 4; bit++) {
+                key.append(halves[(i >> bit) & 1]);
+            }
+            m.add(key.toString(), "" + i);
+            mExpected.add(key.toString(), "" + i);
+        }
+        m.add("other", "x");
+        mExpected.add("other", "x");
+        PersistentMap4<String, String> s = m.snapshot();
+        assertEquals(mExpected, m);
+        assertEquals("10", m.remove("AaBBAaBB").value());
+        mExpected.remove("AaBBAaBB");
+        assertEquals(mExpected, m);
+        assertEquals(mExpected.size() + 1, s.size());
+    }
+
+}
@@ -0,0 +1,547 @@
+import java.util.Iterator;
+import java.util.Random;
+import java.util.function.Supplier;
+import java.util.stream.StreamSupport;
+
+import components.set.Set;
+import components.simplewriter.SimpleWriter;
+import components.simplewriter.SimpleWriter1L;
+
+/**
+ * Simple timing harness for {@code Set3a} and its sibling implementations. It
+ * is not a substitute for a real benchmarking framework, but it is enough to
+ * compare implementations against each other on one machine. Run with and
+ * without {@code -ea} as appropriate.
+ *
+ * @author Allen Zheng and Jared Koharik
+ *
+ */
+public final class Set3Benchmark {
+
+    /**
+     * Default number of elements used by each benchmark.
+     */
+    private static final int DEFAULT_ELEMENTS = 1_000_000;
+
+    /**
+     * Longest time, in milliseconds, any single implementation is given to
+     * finish a run before it is reported as not completing.
+     */
+    private static final long TIME_LIMIT_MILLIS = 60_000;
+
+    /**
+     * Number of untimed passes made before timing, to let the JIT compiler
+     * settle.
+     */
+    private static final int WARMUP_PASSES = 2;
+
+    /**
+     * Nanoseconds per millisecond.
+     */
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    /**
+     * Private constructor so this utility class cannot be instantiated.
+     */
+    private Set3Benchmark() {
+    }
+
+    /**
+     * Runs {@code task} on a fresh thread, waits at most
+     * {@code TIME_LIMIT_MILLIS} for it, and reports how long it took or why it
+     * did not complete.
+     *
+     * @param out
+     *            the output stream
+     * @param name
+     *            the name to report
+     * @param task
+     *            the work to time; returns a short summary of its result
+     * @updates out.content
+     * @requires out.is_open
+     * @ensures out.content = #out.content * [timing report]
+     */
+    private static void timeLimited(SimpleWriter out, String name,
+            Supplier<String> task) {
+        final String[] result = new String[1];
+        final Throwable[] failure = new Throwable[1];
+        Thread worker = new Thread(() -> {
+            try {
+                result[0] = task.get();
+            } catch (StackOverflowError | OutOfMemoryError e) {
+                failure[0] = e;
+            }
+        }, name);
+        worker.setDaemon(true);
+        long start = System.nanoTime();
+        worker.start();
+        try {
+            worker.join(TIME_LIMIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        double elapsed = (System.nanoTime() - start) / NANOS_PER_MILLI;
+        if (worker.isAlive()) {
+            out.println(name + ": did not complete within "
+                    + TIME_LIMIT_MILLIS + " ms");
+        } else if (failure[0] != null) {
+            out.println(name + ": failed after " + elapsed + " ms with "
+                    + failure[0].getClass().getSimpleName());
+        } else {
+            out.println(name + ": " + result[0] + " in " + elapsed + " ms");
+        }
+    }
+
+    /**
+     * Adds the integers 0 to {@code n - 1}, in ascending order, to a set made
+     * by {@code factory} and then looks each of them up.
+     *
+     * @param factory
+     *            supplies the empty set to fill
+     * @param n
+     *            the number of elements
+     * @return a short summary of the result
+     * @requires n >= 0
+     * @ensures ascendingRun = [summary of the final set]
+     */
+    private static String ascendingRun(Supplier<Set<Integer>> factory,
+            int n) {
+        Set<Integer> s = factory.get();
+        for (int i = 0; i < n; i++) {
+            s.add(i);
+        }
+        int found = 0;
+        for (int i = 0; i < n; i++) {
+            if (s.contains(i)) {
+                found++;
+            }
+        }
+        return "added " + s.size() + " ascending, found " + found;
+    }
+
+    /**
+     * Inserts {@code n} ascending integers into the unbalanced {@code Set3a}
+     * and the balanced {@code Set3b}. Sorted input turns the former into a
+     * list; its iterative kernel methods cannot overflow the stack, but each
+     * operation takes O(n) time, so it runs out of time, while the latter
+     * stays O(log n) per operation.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of elements
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [timing report]
+     */
+    private static void ascending(SimpleWriter out, int n) {
+        timeLimited(out, "Set3b", () -> ascendingRun(Set3b::new, n));
+        timeLimited(out, "Set3a", () -> ascendingRun(Set3a::new, n));
+    }
+
+    /**
+     * Returns the integers 0 to {@code n - 1} in a random order that is the
+     * same on every run.
+     *
+     * @param n
+     *            the number of integers
+     * @return the shuffled integers
+     * @requires n >= 0
+     * @ensures shuffled = [a permutation of 0 to n - 1]
+     */
+    private static Integer[] shuffled(int n) {
+        Integer[] keys = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = i;
+        }
+        Random rnd = new Random(n);
+        for (int i = n - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            Integer tmp = keys[i];
+            keys[i] = keys[j];
+            keys[j] = tmp;
+        }
+        return keys;
+    }
+
+    /**
+     * Times {@code add}, {@code contains} on present and absent elements, and
+     * {@code remove} of every element, on a set made by {@code factory} and
+     * filled with {@code keys} in the given order.
+     *
+     * @param out
+     *            the output stream
+     * @param name
+     *            the name to report
+     * @param factory
+     *            supplies the empty set to fill
+     * @param keys
+     *            the distinct elements to add, in the order to add them
+     * @updates out.content
+     * @requires out.is_open and [keys are distinct and non-negative]
+     * @ensures out.content = #out.content * [timing report]
+     */
+    private static void kernelRun(SimpleWriter out, String name,
+            Supplier<Set<Integer>> factory, Integer[] keys) {
+        Set<Integer> s = factory.get();
+        long start = System.nanoTime();
+        for (Integer k : keys) {
+            s.add(k);
+        }
+        long added = System.nanoTime();
+        int found = 0;
+        for (Integer k : keys) {
+            if (s.contains(k)) {
+                found++;
+            }
+            if (s.contains(-1 - k)) {
+                found--;
+            }
+        }
+        long searched = System.nanoTime();
+        for (Integer k : keys) {
+            s.remove(k);
+        }
+        long removed = System.nanoTime();
+        double perOp = keys.length;
+        out.println(name + " (ns/op over " + keys.length + "): add="
+                + (added - start) / perOp + " contains="
+                + (searched - added) / (2 * perOp) + " remove="
+                + (removed - searched) / perOp + " (found " + found + ")");
+    }
+
+    /**
+     * Compares the kernel operations of {@code Set3a}, which walks a mutable
+     * node tree in place, with the balanced {@code Set3b}, on elements added
+     * in random order.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of elements
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [timing report]
+     */
+    private static void kernelOperations(SimpleWriter out, int n) {
+        Integer[] keys = shuffled(n);
+        for (int pass = 0; pass < WARMUP_PASSES; pass++) {
+            kernelRun(out, "(warmup) Set3a", Set3a::new, keys);
+            kernelRun(out, "(warmup) Set3b", Set3b::new, keys);
+        }
+        kernelRun(out, "Set3a", Set3a::new, keys);
+        kernelRun(out, "Set3b", Set3b::new, keys);
+    }
+
+    /**
+     * Compares answering "how many elements are below x" by scanning
+     * {@code Set3a} with its iterator against {@code Set3a.rank}, and
+     * reports the cost of {@code select} and of short {@code range} scans.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of elements
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [timing report]
+     */
+    private static void orderStatistics(SimpleWriter out, int n) {
+        final int scans = 100;
+        final int window = 100;
+        Integer[] keys = shuffled(n);
+        Set3a<Integer> s = new Set3a<>();
+        for (Integer k : keys) {
+            s.add(k);
+        }
+        for (int pass = 0; pass <= WARMUP_PASSES; pass++) {
+            String prefix = "";
+            if (pass < WARMUP_PASSES) {
+                prefix = "(warmup) ";
+            }
+            long check = 0;
+            long start = System.nanoTime();
+            for (int q = 0; q < scans; q++) {
+                Integer x = keys[q];
+                for (Integer y : s) {
+                    if (y.compareTo(x) < 0) {
+                        check++;
+                    }
+                }
+            }
+            long scanned = System.nanoTime();
+            for (Integer k : keys) {
+                check -= s.rank(k);
+            }
+            long ranked = System.nanoTime();
+            for (int k = 0; k < n; k++) {
+                check += s.select(k);
+            }
+            long selected = System.nanoTime();
+            for (Integer k : keys) {
+                Iterator<Integer> it = s.range(k, k + window);
+                while (it.hasNext()) {
+                    check += it.next();
+                }
+            }
+            long windowed = System.nanoTime();
+            out.println(prefix + "Set3a (ns/query over " + n + "): scan="
+                    + (scanned - start) / (double) scans + " rank="
+                    + (ranked - scanned) / (double) n + " select="
+                    + (selected - ranked) / (double) n + " range(" + window
+                    + ")=" + (windowed - selected) / (double) n + " (check "
+                    + check + ")");
+        }
+    }
+
+    /**
+     * Times taking the first few elements of {@code Set3a} through its lazy
+     * iterator, a full in-order scan, and summing the elements with
+     * sequential and parallel streams over its spliterator.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of elements
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [timing report]
+     */
+    private static void streaming(SimpleWriter out, int n) {
+        final int firstFew = 10;
+        Set3a<Integer> s = new Set3a<>();
+        for (Integer k : shuffled(n)) {
+            s.add(k);
+        }
+        for (int pass = 0; pass <= WARMUP_PASSES; pass++) {
+            String prefix = "";
+            if (pass < WARMUP_PASSES) {
+                prefix = "(warmup) ";
+            }
+            long check = 0;
+            long start = System.nanoTime();
+            Iterator<Integer> it = s.iterator();
+            for (int i = 0; i < firstFew && it.hasNext(); i++) {
+                check += it.next();
+            }
+            long first = System.nanoTime();
+            for (Integer x : s) {
+                check += x;
+            }
+            long scanned = System.nanoTime();
+            check += StreamSupport.stream(s.spliterator(), false)
+                    .mapToLong(Integer::longValue).sum();
+            long sequential = System.nanoTime();
+            check += StreamSupport.stream(s.spliterator(), true)
+                    .mapToLong(Integer::longValue).sum();
+            long parallel = System.nanoTime();
+            out.println(prefix + "Set3a (" + n + " elements): first "
+                    + firstFew + "=" + (first - start) / NANOS_PER_MILLI
+                    + " ms, scan=" + (scanned - first) / NANOS_PER_MILLI
+                    + " ms, stream=" + (sequential - scanned) / NANOS_PER_MILLI
+                    + " ms, parallel stream="
+                    + (parallel - sequential) / NANOS_PER_MILLI + " ms (check "
+                    + check + ")");
+        }
+    }
+
+    /**
+     * Returns a {@code Set3a} of the elements of {@code keys} with indices in
+     * [{@code lo}, {@code hi}), added in the order given.
+     *
+     * @param keys
+     *            the elements
+     * @param lo
+     *            the first index
+     * @param hi
+     *            one past the last index
+     * @return the new set
+     * @requires 0 <= lo <= hi <= |keys| and [keys are distinct]
+     * @ensures fill = [elements of keys[lo, hi)]
+     */
+    private static Set3a<Integer> fill(Integer[] keys, int lo, int hi) {
+        Set3a<Integer> s = new Set3a<>();
+        for (int i = lo; i < hi; i++) {
+            s.add(keys[i]);
+        }
+        return s;
+    }
+
+    /**
+     * Compares adding and removing the elements of one {@code Set3a} to and
+     * from another one at a time with the merge-based {@code union} and
+     * {@code subtract}, sequentially and in parallel. The two sets overlap in
+     * half of their elements.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the number of elements in each set
+     * @updates out.content
+     * @requires out.is_open and n > 0
+     * @ensures out.content = #out.content * [timing report]
+     */
+    private static void bulkOperations(SimpleWriter out, int n) {
+        Integer[] keys = shuffled(n + n / 2);
+        Set3a<Integer> other = fill(keys, n / 2, n + n / 2);
+        for (int pass = 0; pass <= WARMUP_PASSES; pass++) {
+            String prefix = "";
+            if (pass < WARMUP_PASSES) {
+                prefix = "(warmup) ";
+            }
+            Set3a<Integer> s = fill(keys, 0, n);
+            long start = System.nanoTime();
+            for (Integer x : other) {
+                if (!s.contains(x)) {
+                    s.add(x);
+                }
+            }
+            for (Integer x : other) {
+                s.remove(x);
+            }
+            long single = System.nanoTime();
+            s = fill(keys, 0, n);
+            long filled = System.nanoTime();
+            s.union(other, false);
+            s.subtract(other, false);
+            long sequential = System.nanoTime();
+            s = fill(keys, 0, n);
+            long refilled = System.nanoTime();
+            s.union(other, true);
+            s.subtract(other, true);
+            long parallel = System.nanoTime();
+            out.println(prefix + "Set3a (" + n + " + " + n
+                    + " elements): one at a time="
+                    + (single - start) / NANOS_PER_MILLI + " ms, merge="
+                    + (sequential - filled) / NANOS_PER_MILLI
+                    + " ms, parallel merge="
+                    + (parallel - refilled) / NANOS_PER_MILLI + " ms (size "
+                    + s.size() + ")");
+        }
+    }
+
+    /**
+     * Times inserting {@code keys} into a set made by {@code factory}, looking
+     * each of them up again in a different order, and scanning the set with
+     * its iterator, and reports the cost per element.
+     *
+     * @param out
+     *            the output stream
+     * @param name
+     *            the name to report
+     * @param factory
+     *            supplies the empty set to fill
+     * @param keys
+     *            the distinct elements to add, in the order to add them
+     * @param probes
+     *            the elements to look up, in the order to look them up
+     * @updates out.content
+     * @requires out.is_open and [keys are distinct]
+     * @ensures out.content = #out.content * [timing report]
+     */
+    private static void sortedSetRun(SimpleWriter out, String name,
+            Supplier<Set<Integer>> factory, Integer[] keys, Integer[] probes) {
+        Set<Integer> s = factory.get();
+        long start = System.nanoTime();
+        for (Integer k : keys) {
+            s.add(k);
+        }
+        long inserted = System.nanoTime();
+        int found = 0;
+        for (Integer k : probes) {
+            if (s.contains(k)) {
+                found++;
+            }
+        }
+        long looked = System.nanoTime();
+        long sum = 0;
+        for (Integer x : s) {
+            sum += x;
+        }
+        long scanned = System.nanoTime();
+        double n = keys.length;
+        out.println(name + " (ns/element over " + keys.length + "): insert="
+                + (inserted - start) / n + " lookup="
+                + (looked - inserted) / n + " scan=" + (scanned - looked) / n
+                + " (found " + found + ", sum " + sum + ")");
+    }
+
+    /**
+     * Compares insert, lookup, and full-scan costs of the binary search tree
+     * {@code Set3a} with the B+ tree {@code Set4}, at sizes from 1,000 up to
+     * {@code n} in steps of a factor of 10.
+     *
+     * @param out
+     *            the output stream
+     * @param n
+     *            the largest number of elements
+     * @updates out.content
+     * @requires out.is_open and n >= 1000
+     * @ensures out.content = #out.content * [timing report]
+     */
+    private static void bTree(SimpleWriter out, int n) {
+        final int smallest = 1_000;
+        for (int pass = 0; pass < WARMUP_PASSES; pass++) {
+            Integer[] keys = shuffled(smallest * smallest);
+            sortedSetRun(out, "(warmup) Set3a", Set3a::new, keys, keys);
+            sortedSetRun(out, "(warmup) Set4", Set4::new, keys, keys);
+        }
+        for (long size = smallest; size <= n; size *= 10) {
+            Integer[] keys = shuffled((int) size);
+            Integer[] probes = shuffled((int) size);
+            sortedSetRun(out, "Set3a", Set3a::new, keys, probes);
+            sortedSetRun(out, "Set4", Set4::new, keys, probes);
+        }
+    }
+
+    /**
+     * Main method.
+     *
+     * @param args
+     *            the command line arguments: the benchmark name and,
+     *            optionally, the number of elements
+     */
+    public static void main(String[] args) {
+        SimpleWriter out = new SimpleWriter1L();
+        String benchmark = "ascending";
+        int n = DEFAULT_ELEMENTS;
+        if (args.length > 0) {
+            benchmark = args[0];
+        }
+        if (args.length > 1) {
+            n = Integer.parseInt(args[1]);
+        }
+
+        long start = System.nanoTime();
+        switch (benchmark) {
+            case "ascending":
+                ascending(out, n);
+                break;
+            case "kernel":
+                kernelOperations(out, n);
+                break;
+            case "order":
+                orderStatistics(out, n);
+                break;
+            case "stream":
+                streaming(out, n);
+                break;
+            case "bulk":
+                bulkOperations(out, n);
+                break;
+            case "btree":
+                bTree(out, n);
+                break;
+            default:
+                out.println("Unknown benchmark: " + benchmark);
+                out.println("Available: ascending, kernel, order, stream, "
+                        + "bulk, btree");
+                break;
+        }
+        out.println("Total time: "
+                + (System.nanoTime() - start) / NANOS_PER_MILLI + " ms");
+
+        out.close();
+    }
+
+}
@@ -1,13 +1,28 @@
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
-import components.binarytree.BinaryTree;
-import components.binarytree.BinaryTree1;
 import components.set.Set;
 import components.set.SetSecondary;
 
 /**
- * {@code Set} represented as a {@code BinaryTree} (maintained as a binary
- * search tree) of elements with implementations of primary methods.
+ * {@code Set} represented as a binary search tree of elements with
+ * implementations of primary methods. The tree is built from private mutable
+ * nodes, and every kernel method walks it iteratively: {@code contains} never
+ * allocates or restructures the tree, and {@code add} allocates only the new
+ * node, so no operation can overflow the stack however deep the tree gets.
+ * Each node also records the size of its subtree, which lets the
+ * order-statistic and range methods ({@code rank}, {@code select},
+ * {@code floor}, {@code ceiling}, {@code rangeCount}, and {@code range}) run
+ * in time proportional to the height of the tree plus the number of elements
+ * they return, instead of scanning the whole set.
  *
  * @param <T>
  *            type of {@code Set} elements
@@ -19,10 +34,15 @@ import components.set.SetSecondary;
  *   slides with the ordering reported by compareTo for T, including that
  *   it has no duplicate labels]
  * </pre>
- * @convention IS_BST($this.tree)
- * @correspondence this = labels($this.tree)
+ * @convention <pre>
+ * IS_BST([tree rooted at $this.root])  and
+ * [every node n in that tree has n.size = the size of the subtree rooted
+ *  at n]  and
+ * $this.size = |[tree rooted at $this.root]|
+ * </pre>
+ * @correspondence this = labels([tree rooted at $this.root])
  *
- * @author Put your name here
+ * @author Allen Zheng and Jared Koharik
  *
  */
 public class Set3a<T extends Comparable<T>> extends SetSecondary<T> {
@@ -32,174 +52,586 @@ public class Set3a<T extends Comparable<T>> extends SetSecondary<T> {
      */
 
     /**
-     * Elements included in {@code this}.
+     * Initial capacity of the explicit stack used by iterators.
+     */
+    private static final int INITIAL_STACK_DEPTH = 16;
+
+    /**
+     * Fewest elements worth handing to a separate fork/join task in the
+     * parallel bulk operations.
      */
-    private BinaryTree<T> tree;
+    private static final int PARALLEL_GRAIN = 1 << 13;
+
+    /**
+     * Bulk operations that combine two sets by merging their sorted labels.
+     */
+    private enum Operation {
+        /**
+         * Elements in either set.
+         */
+        UNION,
+        /**
+         * Elements in both sets.
+         */
+        INTERSECTION,
+        /**
+         * Elements in the first set but not the second.
+         */
+        DIFFERENCE
+    }
 
     /**
-     * Returns whether {@code x} is in {@code t}.
+     * Node class for binary search trees.
      *
      * @param <T>
-     *            type of {@code BinaryTree} labels
-     * @param t
-     *            the {@code BinaryTree} to be searched
-     * @param x
-     *            the label to be searched for
-     * @return true if t contains x, false otherwise
-     * @requires IS_BST(t)
-     * @ensures isInTree = (x is in labels(t))
+     *            type of labels
      */
-    private static <T extends Comparable<T>> boolean isInTree(BinaryTree<T> t,
-            T x) {
-        assert t != null : "Violation of: t is not null";
-        assert x != null : "Violation of: x is not null";
-
-        boolean inTree = false;
+    private static final class Node<T> {
 
-        if (t.height() > 0) {
-            T tempVar;
+        /**
+         * Label of this node.
+         */
+        private T label;
 
-            BinaryTree<T> left = new BinaryTree1<>();
-            BinaryTree<T> right = new BinaryTree1<>();
+        /**
+         * Left subtree, or null if empty.
+         */
+        private Node<T> left;
 
-            tempVar = t.disassemble(left, right);
+        /**
+         * Right subtree, or null if empty.
+         */
+        private Node<T> right;
 
-            if (x.compareTo(tempVar) == 0) {
-                inTree = true;
-            } else {
-                if (x.compareTo(tempVar) < 0) {
-                    inTree = isInTree(left, x);
-                }
-                if (x.compareTo(tempVar) > 0) {
-                    inTree = isInTree(right, x);
-                }
-            }
+        /**
+         * Number of nodes in the subtree rooted at this node.
+         */
+        private int size;
 
-            t.assemble(tempVar, left, right);
+        /**
+         * Constructor for a leaf.
+         *
+         * @param label
+         *            the label of the node
+         */
+        Node(T label) {
+            this.label = label;
+            this.size = 1;
         }
 
-        return inTree;
     }
 
     /**
-     * Inserts {@code x} in {@code t}.
+     * Root of the tree, or null if {@code this} is empty.
+     */
+    private Node<T> root;
+
+    /**
+     * Number of elements in {@code this}.
+     */
+    private int size;
+
+    /**
+     * Returns the number of nodes in the tree rooted at {@code n}.
+     *
+     * @param n
+     *            the root of the tree, possibly null
+     * @return the size of the tree
+     * @ensures size = |[tree rooted at n]|
+     */
+    private static int size(Node<?> n) {
+        int s = 0;
+        if (n != null) {
+            s = n.size;
+        }
+        return s;
+    }
+
+    /**
+     * Returns the node labeled {@code x} in the tree rooted at {@code n}, or
+     * null if there is none. Reads the tree without changing it.
      *
      * @param <T>
-     *            type of {@code BinaryTree} labels
-     * @param t
-     *            the {@code BinaryTree} to be searched
+     *            type of labels
+     * @param n
+     *            the root of the tree, possibly null
      * @param x
-     *            the label to be inserted
-     * @aliases reference {@code x}
-     * @updates t
-     * @requires IS_BST(t) and x is not in labels(t)
-     * @ensures IS_BST(t) and labels(t) = labels(#t) union {x}
+     *            the label to be searched for
+     * @return the node labeled x, or null
+     * @requires IS_BST(n)
+     * @ensures <pre>
+     * if x is in labels(n) then findNode.label = x
+     *  else findNode = null
+     * </pre>
      */
-    private static <T extends Comparable<T>> void insertInTree(BinaryTree<T> t,
+    private static <T extends Comparable<T>> Node<T> findNode(Node<T> n,
             T x) {
-        assert t != null : "Violation of: t is not null";
-        assert x != null : "Violation of: x is not null";
-
-        BinaryTree<T> left = t.newInstance();
-        BinaryTree<T> right = t.newInstance();
+        Node<T> p = n;
+        int c = -1;
+        while (p != null && c != 0) {
+            c = x.compareTo(p.label);
+            if (c < 0) {
+                p = p.left;
+            } else if (c > 0) {
+                p = p.right;
+            }
+        }
+        return p;
+    }
 
-        if (t.size() > 0) {
-            T root = t.disassemble(left, right);
+    /**
+     * Unlinks {@code n}, which has at most one child, from the tree rooted at
+     * {@code this.root}, replacing it by that child.
+     *
+     * @param n
+     *            the node to unlink
+     * @param parent
+     *            the parent of n, or null if n is the root
+     * @updates this.root
+     * @requires <pre>
+     * [n is in the tree rooted at this.root with parent parent]  and
+     *  (n.left = null  or  n.right = null)
+     * </pre>
+     * @ensures <pre>
+     * IS_BST(this.root)  and
+     *  labels(this.root) = labels(#this.root) \ {n.label}
+     * </pre>
+     */
+    private void unlink(Node<T> n, Node<T> parent) {
+        Node<T> child = n.left;
+        if (child == null) {
+            child = n.right;
+        }
+        if (parent == null) {
+            this.root = child;
+        } else if (parent.left == n) {
+            parent.left = child;
+        } else {
+            parent.right = child;
+        }
+    }
 
-            if (x.compareTo(root) > 0) {
-                insertInTree(right, x);
+    /**
+     * Merges the sorted, duplicate-free labels {@code a[aLo, aHi)} and
+     * {@code b[bLo, bHi)} according to {@code op}, writing the result in
+     * increasing order to {@code out} from position {@code outPos}. Where an
+     * element is in both, the label from {@code a} is the one kept.
+     *
+     * @param <T>
+     *            type of labels
+     * @param a
+     *            the first sorted labels
+     * @param aLo
+     *            start of the first range
+     * @param aHi
+     *            end of the first range
+     * @param b
+     *            the second sorted labels
+     * @param bLo
+     *            start of the second range
+     * @param bHi
+     *            end of the second range
+     * @param op
+     *            the operation
+     * @param out
+     *            the destination
+     * @param outPos
+     *            the first position of out to write
+     * @return the number of labels written
+     * @updates out
+     * @requires <pre>
+     * [a[aLo, aHi) and b[bLo, bHi) are strictly increasing]  and
+     *  outPos + (aHi - aLo) + (bHi - bLo) <= |out|
+     * </pre>
+     * @ensures <pre>
+     * out[outPos, outPos + mergeInto) =
+     *  [labels of a[aLo, aHi) op labels of b[bLo, bHi), in increasing order]
+     * </pre>
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends Comparable<T>> int mergeInto(Object[] a, int aLo,
+            int aHi, Object[] b, int bLo, int bHi, Operation op, Object[] out,
+            int outPos) {
+        int i = aLo;
+        int j = bLo;
+        int k = outPos;
+        while (i < aHi && j < bHi) {
+            int c = ((T) a[i]).compareTo((T) b[j]);
+            if (c < 0) {
+                if (op != Operation.INTERSECTION) {
+                    out[k] = a[i];
+                    k++;
+                }
+                i++;
+            } else if (c > 0) {
+                if (op == Operation.UNION) {
+                    out[k] = b[j];
+                    k++;
+                }
+                j++;
             } else {
-                insertInTree(left, x);
+                if (op != Operation.DIFFERENCE) {
+                    out[k] = a[i];
+                    k++;
+                }
+                i++;
+                j++;
             }
-            t.assemble(root, left, right);
-        } else {
-            t.assemble(x, left, right);
         }
+        if (op != Operation.INTERSECTION) {
+            System.arraycopy(a, i, out, k, aHi - i);
+            k += aHi - i;
+        }
+        if (op == Operation.UNION) {
+            System.arraycopy(b, j, out, k, bHi - j);
+            k += bHi - j;
+        }
+        return k - outPos;
     }
 
     /**
-     * Removes and returns the smallest (left-most) label in {@code t}.
+     * Returns the position of the first label in the sorted array {@code a}
+     * that is not smaller than {@code x}.
      *
      * @param <T>
-     *            type of {@code BinaryTree} labels
-     * @param t
-     *            the {@code BinaryTree} from which to remove the label
-     * @return the smallest label in the given {@code BinaryTree}
-     * @updates t
-     * @requires IS_BST(t) and |t| > 0
+     *            type of labels
+     * @param a
+     *            the sorted labels
+     * @param x
+     *            the label to search for
+     * @return the first position of a with a label >= x, or |a| if none
+     * @requires [a is strictly increasing]
      * @ensures <pre>
-     * IS_BST(t)  and  removeSmallest = [the smallest label in #t]  and
-     *  labels(t) = labels(#t) \ {removeSmallest}
+     * [every label of a[0, lowerBound) is < x]  and
+     *  [every label of a[lowerBound, |a|) is >= x]
      * </pre>
      */
-    private static <T> T removeSmallest(BinaryTree<T> t) {
-        assert t != null : "Violation of: t is not null";
-        assert t.size() > 0 : "Violation of: |t| > 0";
+    @SuppressWarnings("unchecked")
+    private static <T extends Comparable<T>> int lowerBound(Object[] a, T x) {
+        int lo = 0;
+        int hi = a.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (((T) a[mid]).compareTo(x) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Fork/join task that splits a range of chunk indices in halves and runs
+     * an action on each index.
+     */
+    private static final class ChunkTask extends RecursiveAction {
+
+        /**
+         * Serialization version (the task is never serialized).
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The work to be done for each chunk.
+         */
+        private final transient IntConsumer action;
+
+        /**
+         * First chunk index.
+         */
+        private final int lo;
+
+        /**
+         * One past the last chunk index.
+         */
+        private final int hi;
+
+        /**
+         * Constructor from action and range.
+         *
+         * @param action
+         *            the work to be done for each chunk
+         * @param lo
+         *            the first chunk index
+         * @param hi
+         *            one past the last chunk index
+         */
+        ChunkTask(IntConsumer action, int lo, int hi) {
+            this.action = action;
+            this.lo = lo;
+            this.hi = hi;
+        }
 
-        BinaryTree<T> left = new BinaryTree1<>();
-        BinaryTree<T> right = new BinaryTree1<>();
-        T small = null;
-        T root = t.disassemble(left, right);
+        @Override
+        protected void compute() {
+            if (this.hi - this.lo == 1) {
+                this.action.accept(this.lo);
+            } else {
+                int mid = (this.lo + this.hi) >>> 1;
+                invokeAll(new ChunkTask(this.action, this.lo, mid),
+                        new ChunkTask(this.action, mid, this.hi));
+            }
+        }
+
+    }
 
-        if (left.size() == 0) {
-            small = root;
-            t.transferFrom(right);
+    /**
+     * Combines the sorted, duplicate-free labels {@code a} and {@code b}
+     * according to {@code op}, and returns the result in increasing order in
+     * an array that may be longer than the result; the result's length is
+     * stored in {@code length[0]}. If {@code parallel}, the larger array is cut
+     * into chunks of about {@code PARALLEL_GRAIN} labels, the other is cut at
+     * the matching labels by binary search, and the chunks are merged on the
+     * common {@code ForkJoinPool}.
+     *
+     * @param <T>
+     *            type of labels
+     * @param a
+     *            the first sorted labels
+     * @param b
+     *            the second sorted labels
+     * @param op
+     *            the operation
+     * @param parallel
+     *            whether to merge in parallel
+     * @param length
+     *            one-element array receiving the length of the result
+     * @return the array holding the result
+     * @updates length
+     * @requires [a and b are strictly increasing]
+     * @ensures <pre>
+     * combine[0, length[0]) =
+     *  [labels of a op labels of b, in increasing order]
+     * </pre>
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends Comparable<T>> Object[] combine(Object[] a,
+            Object[] b, Operation op, boolean parallel, int[] length) {
+        Object[] out = new Object[a.length + b.length];
+        int chunks = 1;
+        if (parallel) {
+            chunks = Math.max(1, (a.length + b.length) / PARALLEL_GRAIN);
+        }
+        if (chunks == 1) {
+            length[0] = mergeInto(a, 0, a.length, b, 0, b.length, op, out, 0);
         } else {
-            small = removeSmallest(left);
-            t.assemble(root, left, right);
+            /*
+             * Chunk i covers a[aCut[i], aCut[i + 1]) and b[bCut[i], bCut[i +
+             * 1]) and writes its result to out from aCut[i] + bCut[i], where
+             * it cannot overlap the next chunk's result
+             */
+            Object[] big = a;
+            Object[] small = b;
+            if (b.length > a.length) {
+                big = b;
+                small = a;
+            }
+            int[] bigCut = new int[chunks + 1];
+            int[] smallCut = new int[chunks + 1];
+            for (int i = 1; i < chunks; i++) {
+                bigCut[i] = (int) ((long) i * big.length / chunks);
+                smallCut[i] = lowerBound(small, (T) big[bigCut[i]]);
+            }
+            bigCut[chunks] = big.length;
+            smallCut[chunks] = small.length;
+            final int[] aCut;
+            final int[] bCut;
+            if (big == a) {
+                aCut = bigCut;
+                bCut = smallCut;
+            } else {
+                aCut = smallCut;
+                bCut = bigCut;
+            }
+            final int[] counts = new int[chunks];
+            ForkJoinPool.commonPool().invoke(new ChunkTask(
+                    i -> counts[i] = mergeInto(a, aCut[i], aCut[i + 1], b,
+                            bCut[i], bCut[i + 1], op, out, aCut[i] + bCut[i]),
+                    0, chunks));
+            int k = counts[0];
+            for (int i = 1; i < chunks; i++) {
+                System.arraycopy(out, aCut[i] + bCut[i], out, k, counts[i]);
+                k += counts[i];
+            }
+            Arrays.fill(out, k, out.length, null);
+            length[0] = k;
         }
+        return out;
+    }
 
-        return small;
+    /**
+     * Reports whether merging {@code k} elements into (or out of) a tree of
+     * {@code n} elements is cheaper than {@code k} single-element updates,
+     * i.e., whether k * log(n) exceeds the n steps a merge always takes.
+     *
+     * @param n
+     *            the size of the tree being updated
+     * @param k
+     *            the number of elements being added or removed
+     * @return true iff the merge is the cheaper way
+     * @ensures mergePays = (k * floor(log2(n + 1)) > n)
+     */
+    private static boolean mergePays(int n, int k) {
+        int log = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(n + 1);
+        return (long) k * log > n;
     }
 
     /**
-     * Finds label {@code x} in {@code t}, removes it from {@code t}, and
-     * returns it.
+     * Builds a perfectly balanced tree from the labels {@code labels[lo, hi)}
+     * and returns its root.
      *
      * @param <T>
-     *            type of {@code BinaryTree} labels
-     * @param t
-     *            the {@code BinaryTree} from which to remove label {@code x}
-     * @param x
-     *            the label to be removed
-     * @return the removed label
-     * @updates t
-     * @requires IS_BST(t) and x is in labels(t)
+     *            type of labels
+     * @param labels
+     *            the sorted labels
+     * @param lo
+     *            start of the range
+     * @param hi
+     *            end of the range
+     * @return the root of the new tree, or null if lo = hi
+     * @requires [labels[lo, hi) is strictly increasing]
      * @ensures <pre>
-     * IS_BST(t)  and  removeFromTree = x  and
-     *  labels(t) = labels(#t) \ {x}
+     * IS_BST(build)  and  labels(build) = [labels of labels[lo, hi)]  and
+     *  [build has the least height of any tree with those labels]
      * </pre>
      */
-    private static <T extends Comparable<T>> T removeFromTree(BinaryTree<T> t,
-            T x) {
-        assert t != null : "Violation of: t is not null";
-        assert x != null : "Violation of: x is not null";
-        assert t.size() > 0 : "Violation of: x is in labels(t)";
-
-        BinaryTree<T> left = new BinaryTree1<>();
-        BinaryTree<T> right = new BinaryTree1<>();
-        T root = t.disassemble(left, right);
-        T removedElement = null;
-
-        if (t.size() == 1 && x.equals(root)) {
-            removedElement = root;
-        } else if (x.equals(root)) {
-            if (left.size() > 0 && right.size() > 0) {
-                t.assemble(removeSmallest(right), left, right);
-            } else if (right.size() == 0) {
-                t.transferFrom(left);
+    @SuppressWarnings("unchecked")
+    private static <T> Node<T> build(Object[] labels, int lo, int hi) {
+        Node<T> n = null;
+        if (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            n = new Node<>((T) labels[mid]);
+            n.left = build(labels, lo, mid);
+            n.right = build(labels, mid + 1, hi);
+            n.size = hi - lo;
+        }
+        return n;
+    }
+
+    /**
+     * Fork/join task that builds a perfectly balanced tree, as {@code build}
+     * does, building the two subtrees of large ranges in parallel.
+     *
+     * @param <T>
+     *            type of labels
+     */
+    private static final class BuildTask<T> extends RecursiveTask<Node<T>> {
+
+        /**
+         * Serialization version (the task is never serialized).
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The sorted labels.
+         */
+        private final transient Object[] labels;
+
+        /**
+         * Start of the range.
+         */
+        private final int lo;
+
+        /**
+         * End of the range.
+         */
+        private final int hi;
+
+        /**
+         * Constructor from labels and range.
+         *
+         * @param labels
+         *            the sorted labels
+         * @param lo
+         *            the start of the range
+         * @param hi
+         *            the end of the range
+         */
+        BuildTask(Object[] labels, int lo, int hi) {
+            this.labels = labels;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        protected Node<T> compute() {
+            Node<T> n;
+            if (this.hi - this.lo <= PARALLEL_GRAIN) {
+                n = build(this.labels, this.lo, this.hi);
             } else {
-                t.transferFrom(right);
+                int mid = (this.lo + this.hi) >>> 1;
+                BuildTask<T> left = new BuildTask<>(this.labels, this.lo, mid);
+                left.fork();
+                n = new Node<>((T) this.labels[mid]);
+                n.right = new BuildTask<T>(this.labels, mid + 1, this.hi)
+                        .compute();
+                n.left = left.join();
+                n.size = this.hi - this.lo;
             }
-        } else if (x.compareTo(root) > 0) {
-            removeFromTree(right, x);
-            t.assemble(root, left, right);
+            return n;
+        }
+
+    }
+
+    /**
+     * Returns the labels of {@code this} in increasing order.
+     *
+     * @return the labels of this, in increasing order
+     * @ensures toArray = [the elements of this, in increasing order]
+     */
+    private Object[] toArray() {
+        Object[] labels = new Object[this.size];
+        Iterator<T> it = new Set3aIterator(0, this.size);
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = it.next();
+        }
+        return labels;
+    }
+
+    /**
+     * Replaces the tree of {@code this} by a perfectly balanced tree of
+     * {@code labels[0, length)}.
+     *
+     * @param labels
+     *            the sorted labels
+     * @param length
+     *            the number of labels
+     * @param parallel
+     *            whether to build the tree in parallel
+     * @replaces this
+     * @requires [labels[0, length) is strictly increasing]
+     * @ensures this = [labels of labels[0, length)]
+     */
+    private void rebuild(Object[] labels, int length, boolean parallel) {
+        if (parallel && length > PARALLEL_GRAIN) {
+            this.root = ForkJoinPool.commonPool()
+                    .invoke(new BuildTask<T>(labels, 0, length));
         } else {
-            removeFromTree(left, x);
-            t.assemble(root, left, right);
+            this.root = build(labels, 0, length);
         }
+        this.size = length;
+    }
 
-        return removedElement;
+    /**
+     * Replaces {@code this} by {@code this op s}, computed by merging the
+     * sorted labels of both sets in linear time.
+     *
+     * @param s
+     *            the other set
+     * @param op
+     *            the operation
+     * @param parallel
+     *            whether to merge and rebuild in parallel
+     * @updates this
+     * @ensures this = #this op s
+     */
+    private void combineWith(Set3a<T> s, Operation op, boolean parallel) {
+        int[] length = new int[1];
+        Object[] labels = combine(this.toArray(), s.toArray(), op, parallel,
+                length);
+        this.rebuild(labels, length[0], parallel);
     }
 
     /**
@@ -207,7 +639,8 @@ public class Set3a<T extends Comparable<T>> extends SetSecondary<T> {
      */
     private void createNewRep() {
 
-        this.tree = new BinaryTree1<T>();
+        this.root = null;
+        this.size = 0;
 
     }
 
@@ -256,7 +689,8 @@ public class Set3a<T extends Comparable<T>> extends SetSecondary<T> {
          * the ? must be T or the call would not have compiled.
          */
         Set3a<T> localSource = (Set3a<T>) source;
-        this.tree = localSource.tree;
+        this.root = localSource.root;
+        this.size = localSource.size;
         localSource.createNewRep();
     }
 
@@ -269,7 +703,32 @@ public class Set3a<T extends Comparable<T>> extends SetSecondary<T> {
         assert x != null : "Violation of: x is not null";
         assert !this.contains(x) : "Violation of: x is not in this";
 
-        insertInTree(this.tree, x);
+        Node<T> leaf = new Node<>(x);
+        if (this.root == null) {
+            this.root = leaf;
+        } else {
+            Node<T> p = this.root;
+            boolean placed = false;
+            while (!placed) {
+                p.size++;
+                if (x.compareTo(p.label) < 0) {
+                    if (p.left == null) {
+                        p.left = leaf;
+                        placed = true;
+                    } else {
+                        p = p.left;
+                    }
+                } else {
+                    if (p.right == null) {
+                        p.right = leaf;
+                        placed = true;
+                    } else {
+                        p = p.right;
+                    }
+                }
+            }
+        }
+        this.size++;
 
     }
 
@@ -278,36 +737,613 @@ public class Set3a<T extends Comparable<T>> extends SetSecondary<T> {
         assert x != null : "Violation of: x is not null";
         assert this.contains(x) : "Violation of: x is in this";
 
-        System.out.println(this.tree);
-        T object = removeFromTree(this.tree, x);
-        System.out.println(this.tree);
+        Node<T> parent = null;
+        Node<T> n = this.root;
+        n.size--;
+        int c = x.compareTo(n.label);
+        while (c != 0) {
+            parent = n;
+            if (c < 0) {
+                n = n.left;
+            } else {
+                n = n.right;
+            }
+            n.size--;
+            c = x.compareTo(n.label);
+        }
+        T removed = n.label;
+        if (n.left != null && n.right != null) {
+            /*
+             * Replace the label with that of the in-order successor, the
+             * left-most node of the right subtree, and unlink that node instead
+             */
+            Node<T> successorParent = n;
+            Node<T> successor = n.right;
+            while (successor.left != null) {
+                successor.size--;
+                successorParent = successor;
+                successor = successor.left;
+            }
+            n.label = successor.label;
+            this.unlink(successor, successorParent);
+        } else {
+            this.unlink(n, parent);
+        }
+        this.size--;
 
-        return object;
+        return removed;
     }
 
     @Override
     public final T removeAny() {
         assert this.size() > 0 : "Violation of: this /= empty_set";
 
-        return removeSmallest(this.tree);
+        Node<T> parent = null;
+        Node<T> n = this.root;
+        while (n.left != null) {
+            n.size--;
+            parent = n;
+            n = n.left;
+        }
+        this.unlink(n, parent);
+        this.size--;
+
+        return n.label;
     }
 
     @Override
     public final boolean contains(T x) {
         assert x != null : "Violation of: x is not null";
 
-        return isInTree(this.tree, x);
+        return findNode(this.root, x) != null;
     }
 
     @Override
     public final int size() {
 
-        return this.tree.size();
+        return this.size;
     }
 
     @Override
     public final Iterator<T> iterator() {
-        return this.tree.iterator();
+        return new Set3aIterator(0, this.size);
+    }
+
+    /*
+     * Secondary methods ------------------------------------------------------
+     */
+
+    @Override
+    public final void add(Set<T> s) {
+        assert s != null : "Violation of: s is not null";
+        assert s != this : "Violation of: s is not this";
+
+        if (s instanceof Set3a<?> && mergePays(this.size, s.size())) {
+            /*
+             * Merge the sorted labels in linear time instead of moving the
+             * elements of s one at a time
+             */
+            Set3a<T> localS = (Set3a<T>) s;
+            Object[] a = this.toArray();
+            Object[] b = localS.toArray();
+            int[] length = new int[1];
+            Object[] common = combine(a, b, Operation.INTERSECTION, false,
+                    length);
+            localS.rebuild(common, length[0], false);
+            Object[] all = combine(a, b, Operation.UNION, false, length);
+            this.rebuild(all, length[0], false);
+        } else {
+            super.add(s);
+        }
+    }
+
+    @Override
+    public final Set<T> remove(Set<T> s) {
+        assert s != null : "Violation of: s is not null";
+        assert s != this : "Violation of: s is not this";
+
+        Set<T> result;
+        if (s instanceof Set3a<?> && mergePays(this.size, s.size())) {
+            /*
+             * Merge the sorted labels in linear time instead of removing the
+             * elements of s one at a time
+             */
+            Object[] a = this.toArray();
+            Object[] b = ((Set3a<T>) s).toArray();
+            int[] length = new int[1];
+            Set3a<T> removed = (Set3a<T>) this.newInstance();
+            Object[] common = combine(a, b, Operation.INTERSECTION, false,
+                    length);
+            removed.rebuild(common, length[0], false);
+            Object[] rest = combine(a, b, Operation.DIFFERENCE, false, length);
+            this.rebuild(rest, length[0], false);
+            result = removed;
+        } else {
+            result = super.remove(s);
+        }
+        return result;
+    }
+
+    /*
+     * Other methods ----------------------------------------------------------
+     */
+
+    /**
+     * Reports the number of elements of {@code this} that are smaller than
+     * {@code x}.
+     *
+     * @param x
+     *            the element to rank
+     * @return the number of elements smaller than x
+     * @ensures rank = |{y: T where (y is in this and y < x)}|
+     */
+    public final int rank(T x) {
+        assert x != null : "Violation of: x is not null";
+
+        int r = 0;
+        Node<T> n = this.root;
+        while (n != null) {
+            int c = x.compareTo(n.label);
+            if (c < 0) {
+                n = n.left;
+            } else {
+                r += size(n.left);
+                if (c > 0) {
+                    r++;
+                    n = n.right;
+                } else {
+                    n = null;
+                }
+            }
+        }
+
+        return r;
+    }
+
+    /**
+     * Reports the element of {@code this} with rank {@code k}, i.e., the
+     * {@code k}-th smallest element counting from 0.
+     *
+     * @param k
+     *            the rank of the element to report
+     * @return the element with rank k
+     * @requires 0 <= k < |this|
+     * @ensures select is in this and rank(select) = k
+     */
+    public final T select(int k) {
+        assert 0 <= k : "Violation of: 0 <= k";
+        assert k < this.size() : "Violation of: k < |this|";
+
+        int i = k;
+        Node<T> n = this.root;
+        int leftSize = size(n.left);
+        while (i != leftSize) {
+            if (i < leftSize) {
+                n = n.left;
+            } else {
+                i -= leftSize + 1;
+                n = n.right;
+            }
+            leftSize = size(n.left);
+        }
+
+        return n.label;
+    }
+
+    /**
+     * Reports the largest element of {@code this} that is not larger than
+     * {@code x}, or null if there is none.
+     *
+     * @param x
+     *            the bound
+     * @return the largest element not larger than x, or null
+     * @ensures <pre>
+     * if there exists y: T (y is in this and y <= x)
+     *  then floor = [the largest such y]
+     *  else floor = null
+     * </pre>
+     */
+    public final T floor(T x) {
+        assert x != null : "Violation of: x is not null";
+
+        T result = null;
+        Node<T> n = this.root;
+        while (n != null) {
+            int c = x.compareTo(n.label);
+            if (c < 0) {
+                n = n.left;
+            } else {
+                result = n.label;
+                if (c > 0) {
+                    n = n.right;
+                } else {
+                    n = null;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Reports the smallest element of {@code this} that is not smaller than
+     * {@code x}, or null if there is none.
+     *
+     * @param x
+     *            the bound
+     * @return the smallest element not smaller than x, or null
+     * @ensures <pre>
+     * if there exists y: T (y is in this and y >= x)
+     *  then ceiling = [the smallest such y]
+     *  else ceiling = null
+     * </pre>
+     */
+    public final T ceiling(T x) {
+        assert x != null : "Violation of: x is not null";
+
+        T result = null;
+        Node<T> n = this.root;
+        while (n != null) {
+            int c = x.compareTo(n.label);
+            if (c > 0) {
+                n = n.right;
+            } else {
+                result = n.label;
+                if (c < 0) {
+                    n = n.left;
+                } else {
+                    n = null;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Reports the number of elements of {@code this} in the half-open
+     * interval [{@code lo}, {@code hi}).
+     *
+     * @param lo
+     *            the inclusive lower bound
+     * @param hi
+     *            the exclusive upper bound
+     * @return the number of elements in [lo, hi)
+     * @requires lo <= hi
+     * @ensures rangeCount = |{y: T where (y is in this and lo <= y < hi)}|
+     */
+    public final int rangeCount(T lo, T hi) {
+        assert lo != null : "Violation of: lo is not null";
+        assert hi != null : "Violation of: hi is not null";
+        assert lo.compareTo(hi) <= 0 : "Violation of: lo <= hi";
+
+        return this.rank(hi) - this.rank(lo);
+    }
+
+    /**
+     * Returns an iterator over the elements of {@code this} in the half-open
+     * interval [{@code lo}, {@code hi}), in increasing order. The iterator is
+     * lazy: it finds the first element when constructed and each later one
+     * when asked, so stopping early costs only the elements actually visited.
+     * {@code this} must not be changed while the iterator is in use.
+     *
+     * @param lo
+     *            the inclusive lower bound
+     * @param hi
+     *            the exclusive upper bound
+     * @return an iterator over the elements in [lo, hi)
+     * @requires lo <= hi
+     * @ensures <pre>
+     * ~range.unseen =
+     *  [the elements y of this with lo <= y < hi, in increasing order]
+     * </pre>
+     */
+    public final Iterator<T> range(T lo, T hi) {
+        assert lo != null : "Violation of: lo is not null";
+        assert hi != null : "Violation of: hi is not null";
+        assert lo.compareTo(hi) <= 0 : "Violation of: lo <= hi";
+
+        int from = this.rank(lo);
+        return new Set3aIterator(from, this.rank(hi) - from);
+    }
+
+    /**
+     * Returns a {@code Spliterator} over the elements of {@code this} in
+     * increasing order. It reports the {@code SORTED}, {@code DISTINCT},
+     * {@code SIZED}, and {@code SUBSIZED} characteristics and splits exactly
+     * in half by rank, so parallel streams over {@code this} divide the work
+     * evenly without copying the elements. {@code this} must not be changed
+     * while the spliterator is in use.
+     *
+     * @return a spliterator over the elements of this, in increasing order
+     * @ensures [spliterator covers the elements of this, in increasing order]
+     */
+    @Override
+    public final Spliterator<T> spliterator() {
+        return new Set3aSpliterator(0, this.size);
+    }
+
+    /**
+     * Adds to {@code this} all elements of {@code s} that are not already in
+     * {@code this}, i.e., replaces {@code this} by the union of {@code this}
+     * and {@code s}. Unlike {@code add(Set)}, leaves {@code s} unchanged. Runs
+     * in O(|this| + |s|) time by merging the two sets in order, and leaves
+     * {@code this} perfectly balanced.
+     *
+     * @param s
+     *            the set whose elements are to be added to {@code this}
+     * @param parallel
+     *            whether to merge and rebuild on the common
+     *            {@code ForkJoinPool}
+     * @aliases references in {@code s}
+     * @updates this
+     * @requires s /= this
+     * @ensures this = #this union s
+     */
+    public final void union(Set3a<T> s, boolean parallel) {
+        assert s != null : "Violation of: s is not null";
+        assert s != this : "Violation of: s is not this";
+
+        this.combineWith(s, Operation.UNION, parallel);
+    }
+
+    /**
+     * Removes from {@code this} all elements that are not in {@code s}, i.e.,
+     * replaces {@code this} by the intersection of {@code this} and {@code s}.
+     * Runs in O(|this| + |s|) time by merging the two sets in order, and
+     * leaves {@code this} perfectly balanced.
+     *
+     * @param s
+     *            the set whose elements are to be kept in {@code this}
+     * @param parallel
+     *            whether to merge and rebuild on the common
+     *            {@code ForkJoinPool}
+     * @updates this
+     * @requires s /= this
+     * @ensures this = #this intersection s
+     */
+    public final void intersect(Set3a<T> s, boolean parallel) {
+        assert s != null : "Violation of: s is not null";
+        assert s != this : "Violation of: s is not this";
+
+        this.combineWith(s, Operation.INTERSECTION, parallel);
+    }
+
+    /**
+     * Removes from {@code this} all elements of {@code s}, i.e., replaces
+     * {@code this} by the difference of {@code this} and {@code s}. Runs in
+     * O(|this| + |s|) time by merging the two sets in order, and leaves
+     * {@code this} perfectly balanced.
+     *
+     * @param s
+     *            the set whose elements are to be removed from {@code this}
+     * @param parallel
+     *            whether to merge and rebuild on the common
+     *            {@code ForkJoinPool}
+     * @updates this
+     * @requires s /= this
+     * @ensures this = #this \ s
+     */
+    public final void subtract(Set3a<T> s, boolean parallel) {
+        assert s != null : "Violation of: s is not null";
+        assert s != this : "Violation of: s is not this";
+
+        this.combineWith(s, Operation.DIFFERENCE, parallel);
+    }
+
+    /**
+     * Implementation of {@code Iterator} interface for {@code Set3a}. Visits a
+     * run of consecutive elements, in increasing order, lazily: it finds the
+     * first one by rank when constructed and each later one when asked, so
+     * stopping early costs only the elements actually visited. The nodes still
+     * to be visited, each with its right subtree, are kept on an explicit
+     * stack that grows as needed, so it uses O(height) memory, never recurses,
+     * and takes O(1) amortized time per element.
+     */
+    private final class Set3aIterator implements Iterator<T> {
+
+        /**
+         * Nodes whose labels and right subtrees are still to be visited, with
+         * the next node on top.
+         */
+        private Node<T>[] stack;
+
+        /**
+         * Number of nodes in {@code stack}.
+         */
+        private int depth;
+
+        /**
+         * Number of elements still to be reported (i.e., |~this.unseen|).
+         */
+        private int remaining;
+
+        /**
+         * Constructor from the rank of the first element and the number of
+         * elements to report.
+         *
+         * @param from
+         *            the rank of the first element
+         * @param count
+         *            the number of elements to report
+         */
+        @SuppressWarnings("unchecked")
+        Set3aIterator(int from, int count) {
+            assert 0 <= from : "Violation of: 0 <= from";
+            assert 0 <= count : "Violation of: 0 <= count";
+            assert from + count <= Set3a.this.size
+                    : "Violation of: from + count <= |this|";
+
+            this.stack = (Node<T>[]) new Node<?>[INITIAL_STACK_DEPTH];
+            this.depth = 0;
+            this.remaining = count;
+            if (count > 0) {
+                /*
+                 * Push the node of rank from and every ancestor to its right,
+                 * i.e., every ancestor reached by going left
+                 */
+                int k = from;
+                Node<T> n = Set3a.this.root;
+                while (n != null) {
+                    int leftSize = size(n.left);
+                    if (k < leftSize) {
+                        this.push(n);
+                        n = n.left;
+                    } else if (k > leftSize) {
+                        k -= leftSize + 1;
+                        n = n.right;
+                    } else {
+                        this.push(n);
+                        n = null;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Pushes {@code n} onto the stack, growing it if necessary.
+         *
+         * @param n
+         *            the node to push
+         */
+        private void push(Node<T> n) {
+            if (this.depth == this.stack.length) {
+                this.stack = Arrays.copyOf(this.stack, 2 * this.depth);
+            }
+            this.stack[this.depth] = n;
+            this.depth++;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.remaining > 0;
+        }
+
+        @Override
+        public T next() {
+            assert this.hasNext() : "Violation of: ~this.unseen /= <>";
+            if (!this.hasNext()) {
+                /*
+                 * Exception is supposed to be thrown in this case, but with
+                 * assertion-checking enabled it cannot happen because of assert
+                 * above.
+                 */
+                throw new NoSuchElementException();
+            }
+            this.remaining--;
+            this.depth--;
+            Node<T> n = this.stack[this.depth];
+            this.stack[this.depth] = null;
+            if (this.remaining > 0) {
+                Node<T> p = n.right;
+                while (p != null) {
+                    this.push(p);
+                    p = p.left;
+                }
+            }
+            return n.label;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(
+                    "remove operation not supported");
+        }
+
+    }
+
+    /**
+     * Implementation of {@code Spliterator} interface for {@code Set3a}.
+     * Covers the elements with ranks in [{@code origin}, {@code fence}) and
+     * splits that interval in half; subtree sizes make every split exact, so
+     * each part knows its size. Elements are reported by a
+     * {@code Set3aIterator}, created on the first traversal.
+     */
+    private final class Set3aSpliterator implements Spliterator<T> {
+
+        /**
+         * Fewest elements worth splitting off into a separate part.
+         */
+        private static final int MIN_SPLIT = 1 << 10;
+
+        /**
+         * Rank of the next element to report.
+         */
+        private int origin;
+
+        /**
+         * Rank one past the last element to report.
+         */
+        private final int fence;
+
+        /**
+         * Iterator over the remaining elements, or null if traversal has not
+         * started.
+         */
+        private Set3aIterator cursor;
+
+        /**
+         * Constructor from a range of ranks.
+         *
+         * @param origin
+         *            the rank of the first element
+         * @param fence
+         *            the rank one past the last element
+         */
+        Set3aSpliterator(int origin, int fence) {
+            this.origin = origin;
+            this.fence = fence;
+            this.cursor = null;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            assert action != null : "Violation of: action is not null";
+
+            if (this.cursor == null) {
+                this.cursor = new Set3aIterator(this.origin,
+                        this.fence - this.origin);
+            }
+            boolean advanced = this.cursor.hasNext();
+            if (advanced) {
+                this.origin++;
+                action.accept(this.cursor.next());
+            }
+            return advanced;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            Spliterator<T> prefix = null;
+            if (this.cursor == null
+                    && this.fence - this.origin >= 2 * MIN_SPLIT) {
+                int mid = (this.origin + this.fence) >>> 1;
+                prefix = new Set3aSpliterator(this.origin, mid);
+                this.origin = mid;
+            }
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return this.fence - this.origin;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.SORTED
+                    | Spliterator.DISTINCT | Spliterator.SIZED
+                    | Spliterator.SUBSIZED | Spliterator.NONNULL;
+        }
+
+        @Override
+        public Comparator<? super T> getComparator() {
+            /*
+             * Null means the elements are sorted in their natural order
+             */
+            return null;
+        }
+
     }
 
 }
@@ -0,0 +1,523 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import components.set.Set;
+import components.set.SetSecondary;
+
+/**
+ * {@code Set} represented as an AVL tree (a height-balanced binary search
+ * tree) of elements with implementations of primary methods. Unlike
+ * {@code Set3a}, sorted or nearly sorted input cannot degrade the tree into a
+ * list, so {@code add}, {@code remove}, and {@code contains} take O(log n)
+ * time and recurse at most O(log n) deep.
+ *
+ * @param <T>
+ *            type of {@code Set} elements
+ * @mathdefinitions <pre>
+ * IS_BST(
+ *   tree: binary tree of T
+ *  ): boolean satisfies
+ *  [tree satisfies the binary search tree properties as described in the
+ *   slides with the ordering reported by compareTo for T, including that
+ *   it has no duplicate labels]
+ *
+ * IS_AVL(
+ *   tree: binary tree of T
+ *  ): boolean satisfies
+ *  IS_BST(tree)  and
+ *  [the heights of the two subtrees of every node in tree differ by at
+ *   most 1]
+ * </pre>
+ * @convention <pre>
+ * IS_AVL([tree rooted at $this.root])  and
+ * [every node n in that tree has n.height = the height of the subtree
+ *  rooted at n]  and
+ * $this.size = |[tree rooted at $this.root]|
+ * </pre>
+ * @correspondence this = labels([tree rooted at $this.root])
+ *
+ * @author Allen Zheng and Jared Koharik
+ *
+ */
+public class Set3b<T extends Comparable<T>> extends SetSecondary<T> {
+
+    /*
+     * Private members --------------------------------------------------------
+     */
+
+    /**
+     * Node class for AVL trees.
+     *
+     * @param <T>
+     *            type of labels
+     */
+    private static final class Node<T> {
+
+        /**
+         * Label of this node.
+         */
+        private final T label;
+
+        /**
+         * Left subtree, or null if empty.
+         */
+        private Node<T> left;
+
+        /**
+         * Right subtree, or null if empty.
+         */
+        private Node<T> right;
+
+        /**
+         * Height of the subtree rooted at this node.
+         */
+        private int height;
+
+        /**
+         * Constructor for a leaf.
+         *
+         * @param label
+         *            the label of the node
+         */
+        Node(T label) {
+            this.label = label;
+            this.height = 1;
+        }
+
+    }
+
+    /**
+     * Root of the tree, or null if {@code this} is empty.
+     */
+    private Node<T> root;
+
+    /**
+     * Number of elements in {@code this}.
+     */
+    private int size;
+
+    /**
+     * Returns the height of the tree rooted at {@code n}.
+     *
+     * @param n
+     *            the root of the tree, possibly null
+     * @return the height of the tree
+     * @ensures height = [height of the tree rooted at n]
+     */
+    private static int height(Node<?> n) {
+        int h = 0;
+        if (n != null) {
+            h = n.height;
+        }
+        return h;
+    }
+
+    /**
+     * Recomputes the height of {@code n} from the heights of its children.
+     *
+     * @param n
+     *            the node to update
+     * @updates n.height
+     * @requires n /= null and the heights of the children of n are correct
+     * @ensures n.height = 1 + max(height(n.left), height(n.right))
+     */
+    private static void updateHeight(Node<?> n) {
+        n.height = 1 + Math.max(height(n.left), height(n.right));
+    }
+
+    /**
+     * Rotates the tree rooted at {@code n} to the right and returns the new
+     * root.
+     *
+     * @param <T>
+     *            type of labels
+     * @param n
+     *            the root of the tree
+     * @return the new root
+     * @requires n /= null and n.left /= null
+     * @ensures [rotateRight is the root of a tree with the same labels, in
+     *          the same order, with n.left lifted to the root]
+     */
+    private static <T> Node<T> rotateRight(Node<T> n) {
+        Node<T> l = n.left;
+        n.left = l.right;
+        l.right = n;
+        updateHeight(n);
+        updateHeight(l);
+        return l;
+    }
+
+    /**
+     * Rotates the tree rooted at {@code n} to the left and returns the new
+     * root.
+     *
+     * @param <T>
+     *            type of labels
+     * @param n
+     *            the root of the tree
+     * @return the new root
+     * @requires n /= null and n.right /= null
+     * @ensures [rotateLeft is the root of a tree with the same labels, in the
+     *          same order, with n.right lifted to the root]
+     */
+    private static <T> Node<T> rotateLeft(Node<T> n) {
+        Node<T> r = n.right;
+        n.right = r.left;
+        r.left = n;
+        updateHeight(n);
+        updateHeight(r);
+        return r;
+    }
+
+    /**
+     * Restores the AVL property at {@code n}, whose subtrees are AVL trees
+     * with heights differing by at most 2, and returns the new root.
+     *
+     * @param <T>
+     *            type of labels
+     * @param n
+     *            the root of the tree
+     * @return the new root
+     * @requires <pre>
+     * n /= null  and  IS_AVL(n.left)  and  IS_AVL(n.right)  and
+     *  |height(n.left) - height(n.right)| <= 2
+     * </pre>
+     * @ensures IS_AVL(rebalance) and labels(rebalance) = labels(#n)
+     */
+    private static <T> Node<T> rebalance(Node<T> n) {
+        Node<T> result = n;
+        int balance = height(n.left) - height(n.right);
+        if (balance > 1) {
+            if (height(n.left.left) < height(n.left.right)) {
+                n.left = rotateLeft(n.left);
+            }
+            result = rotateRight(n);
+        } else if (balance < -1) {
+            if (height(n.right.right) < height(n.right.left)) {
+                n.right = rotateRight(n.right);
+            }
+            result = rotateLeft(n);
+        } else {
+            updateHeight(n);
+        }
+        return result;
+    }
+
+    /**
+     * Inserts {@code x} in the tree rooted at {@code n} and returns the new
+     * root.
+     *
+     * @param <T>
+     *            type of labels
+     * @param n
+     *            the root of the tree, possibly null
+     * @param x
+     *            the label to be inserted
+     * @return the new root
+     * @aliases reference {@code x}
+     * @requires IS_AVL(n) and x is not in labels(n)
+     * @ensures IS_AVL(insertInTree) and
+     *          labels(insertInTree) = labels(#n) union {x}
+     */
+    private static <T extends Comparable<T>> Node<T> insertInTree(Node<T> n,
+            T x) {
+        Node<T> result;
+        if (n == null) {
+            result = new Node<>(x);
+        } else {
+            if (x.compareTo(n.label) < 0) {
+                n.left = insertInTree(n.left, x);
+            } else {
+                n.right = insertInTree(n.right, x);
+            }
+            result = rebalance(n);
+        }
+        return result;
+    }
+
+    /**
+     * Removes the smallest (left-most) node in the tree rooted at {@code n}
+     * and returns the new root. The removed node is stored in
+     * {@code removed[0]}.
+     *
+     * @param <T>
+     *            type of labels
+     * @param n
+     *            the root of the tree
+     * @param removed
+     *            one-element array receiving the removed node
+     * @return the new root
+     * @updates removed
+     * @requires IS_AVL(n) and n /= null
+     * @ensures <pre>
+     * removed[0].label = [the smallest label in #n]  and
+     *  IS_AVL(removeSmallest)  and
+     *  labels(removeSmallest) = labels(#n) \ {removed[0].label}
+     * </pre>
+     */
+    private static <T> Node<T> removeSmallest(Node<T> n, Node<T>[] removed) {
+        Node<T> result;
+        if (n.left == null) {
+            removed[0] = n;
+            result = n.right;
+        } else {
+            n.left = removeSmallest(n.left, removed);
+            result = rebalance(n);
+        }
+        return result;
+    }
+
+    /**
+     * Finds label {@code x} in the tree rooted at {@code n}, removes it, and
+     * returns the new root. The removed label is stored in {@code removed[0]}.
+     *
+     * @param <T>
+     *            type of labels
+     * @param n
+     *            the root of the tree
+     * @param x
+     *            the label to be removed
+     * @param removed
+     *            one-element array receiving the removed label
+     * @return the new root
+     * @updates removed
+     * @requires IS_AVL(n) and x is in labels(n)
+     * @ensures <pre>
+     * removed[0] = x  and  IS_AVL(removeFromTree)  and
+     *  labels(removeFromTree) = labels(#n) \ {x}
+     * </pre>
+     */
+    private static <T extends Comparable<T>> Node<T> removeFromTree(
+            Node<T> n, T x, T[] removed) {
+        assert n != null : "Violation of: x is in labels(n)";
+
+        Node<T> result;
+        int c = x.compareTo(n.label);
+        if (c < 0) {
+            n.left = removeFromTree(n.left, x, removed);
+            result = rebalance(n);
+        } else if (c > 0) {
+            n.right = removeFromTree(n.right, x, removed);
+            result = rebalance(n);
+        } else {
+            removed[0] = n.label;
+            if (n.left == null) {
+                result = n.right;
+            } else if (n.right == null) {
+                result = n.left;
+            } else {
+                @SuppressWarnings("unchecked")
+                Node<T>[] successor = (Node<T>[]) new Node<?>[1];
+                Node<T> right = removeSmallest(n.right, successor);
+                result = successor[0];
+                result.left = n.left;
+                result.right = right;
+                result = rebalance(result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creator of initial representation.
+     */
+    private void createNewRep() {
+
+        this.root = null;
+        this.size = 0;
+
+    }
+
+    /*
+     * Constructors -----------------------------------------------------------
+     */
+
+    /**
+     * No-argument constructor.
+     */
+    public Set3b() {
+
+        this.createNewRep();
+
+    }
+
+    /*
+     * Standard methods -------------------------------------------------------
+     */
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public final Set<T> newInstance() {
+        try {
+            return this.getClass().getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(
+                    "Cannot construct object of type " + this.getClass());
+        }
+    }
+
+    @Override
+    public final void clear() {
+        this.createNewRep();
+    }
+
+    @Override
+    public final void transferFrom(Set<T> source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+        assert source instanceof Set3b<?> : ""
+                + "Violation of: source is of dynamic type Set3b<?>";
+        /*
+         * This cast cannot fail since the assert above would have stopped
+         * execution in that case: source must be of dynamic type Set3b<?>, and
+         * the ? must be T or the call would not have compiled.
+         */
+        Set3b<T> localSource = (Set3b<T>) source;
+        this.root = localSource.root;
+        this.size = localSource.size;
+        localSource.createNewRep();
+    }
+
+    /*
+     * Kernel methods ---------------------------------------------------------
+     */
+
+    @Override
+    public final void add(T x) {
+        assert x != null : "Violation of: x is not null";
+        assert !this.contains(x) : "Violation of: x is not in this";
+
+        this.root = insertInTree(this.root, x);
+        this.size++;
+
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public final T remove(T x) {
+        assert x != null : "Violation of: x is not null";
+        assert this.contains(x) : "Violation of: x is in this";
+
+        T[] removed = (T[]) new Comparable<?>[1];
+        this.root = removeFromTree(this.root, x, removed);
+        this.size--;
+
+        return removed[0];
+    }
+
+    @Override
+    public final T removeAny() {
+        assert this.size() > 0 : "Violation of: this /= empty_set";
+
+        @SuppressWarnings("unchecked")
+        Node<T>[] removed = (Node<T>[]) new Node<?>[1];
+        this.root = removeSmallest(this.root, removed);
+        this.size--;
+
+        return removed[0].label;
+    }
+
+    @Override
+    public final boolean contains(T x) {
+        assert x != null : "Violation of: x is not null";
+
+        Node<T> n = this.root;
+        int c = -1;
+        while (n != null && c != 0) {
+            c = x.compareTo(n.label);
+            if (c < 0) {
+                n = n.left;
+            } else if (c > 0) {
+                n = n.right;
+            }
+        }
+
+        return c == 0;
+    }
+
+    @Override
+    public final int size() {
+
+        return this.size;
+    }
+
+    @Override
+    public final Iterator<T> iterator() {
+        return new Set3bIterator();
+    }
+
+    /**
+     * Implementation of {@code Iterator} interface for {@code Set3b}. Walks
+     * the tree in order with an explicit stack, which never needs more than
+     * O(log n) entries because the tree is balanced.
+     */
+    private final class Set3bIterator implements Iterator<T> {
+
+        /**
+         * Nodes whose labels and right subtrees are still to be visited, with
+         * the next node on top.
+         */
+        private Node<T>[] stack;
+
+        /**
+         * Number of nodes in {@code stack}.
+         */
+        private int depth;
+
+        /**
+         * No-argument constructor.
+         */
+        @SuppressWarnings("unchecked")
+        Set3bIterator() {
+            this.stack = (Node<T>[]) new Node<?>[height(Set3b.this.root)];
+            this.depth = 0;
+            this.pushLeft(Set3b.this.root);
+        }
+
+        /**
+         * Pushes {@code n} and its chain of left children onto the stack.
+         *
+         * @param n
+         *            the top of the chain, possibly null
+         */
+        private void pushLeft(Node<T> n) {
+            Node<T> p = n;
+            while (p != null) {
+                this.stack[this.depth] = p;
+                this.depth++;
+                p = p.left;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.depth > 0;
+        }
+
+        @Override
+        public T next() {
+            assert this.hasNext() : "Violation of: ~this.unseen /= <>";
+            if (!this.hasNext()) {
+                /*
+                 * Exception is supposed to be thrown in this case, but with
+                 * assertion-checking enabled it cannot happen because of assert
+                 * above.
+                 */
+                throw new NoSuchElementException();
+            }
+            this.depth--;
+            Node<T> n = this.stack[this.depth];
+            this.stack[this.depth] = null;
+            this.pushLeft(n.right);
+            return n.label;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(
+                    "remove operation not supported");
+        }
+
+    }
+
+}
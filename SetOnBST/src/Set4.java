@@ -0,0 +1,695 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import components.set.Set;
+import components.set.SetSecondary;
+
+/**
+ * {@code Set} represented as a B+ tree of elements with implementations of
+ * primary methods. Every node keeps up to {@code MAX_KEYS} keys in an array
+ * and is searched by binary search, so a lookup touches only
+ * O(log n / log {@code MAX_KEYS}) nodes, each a few contiguous cache lines,
+ * instead of one scattered node per level as in {@code Set3a}. All elements
+ * live in the leaves, which are linked left to right, so the iterator scans
+ * them in increasing order without walking back up the tree.
+ *
+ * @param <T>
+ *            type of {@code Set} elements
+ * @mathdefinitions <pre>
+ * IS_B_PLUS_TREE(
+ *   n: node,
+ *   isRoot: boolean
+ *  ): boolean satisfies
+ *  [the first n.count keys of n are strictly increasing]  and
+ *  (isRoot  or  MIN_KEYS <= n.count)  and  n.count <= MAX_KEYS  and
+ *  [if n is a leaf, its keys are elements, and it is linked by next to
+ *   the leaf that follows it in order, if any]  and
+ *  [if n is an inner node, it has n.count + 1 children, all at the same
+ *   depth, each satisfying IS_B_PLUS_TREE(child, false); every element
+ *   under children[i] is smaller than keys[i], and every element under
+ *   children[i + 1] is at least keys[i]]  and
+ *  [if n is the root and an inner node, n.count > 0]
+ * </pre>
+ * @convention <pre>
+ * IS_B_PLUS_TREE($this.root, true)  and
+ * $this.first = [the left-most leaf of the tree rooted at $this.root]  and
+ * $this.size = [number of elements in the leaves of that tree]
+ * </pre>
+ * @correspondence this = [the elements in the leaves of the tree rooted at
+ *                 $this.root]
+ *
+ * @author Allen Zheng and Jared Koharik
+ *
+ */
+public class Set4<T extends Comparable<T>> extends SetSecondary<T> {
+
+    /*
+     * Private members --------------------------------------------------------
+     */
+
+    /**
+     * Largest number of keys in a node.
+     */
+    private static final int MAX_KEYS = 64;
+
+    /**
+     * Smallest number of keys in a node other than the root.
+     */
+    private static final int MIN_KEYS = MAX_KEYS / 2;
+
+    /**
+     * Node class for B+ trees. A leaf holds elements and is linked to the next
+     * leaf; an inner node holds separator keys and {@code count + 1} children.
+     * The arrays have room for one entry more than {@code MAX_KEYS} allows, so
+     * that a node can be overfilled by one and then split.
+     */
+    private static final class Node {
+
+        /**
+         * Keys of this node; only the first {@code count} are in use.
+         */
+        private final Object[] keys = new Object[MAX_KEYS + 1];
+
+        /**
+         * Children of this node, only the first {@code count + 1} of which are
+         * in use, or null if this is a leaf.
+         */
+        private final Node[] children;
+
+        /**
+         * Number of keys in use.
+         */
+        private int count;
+
+        /**
+         * Next leaf in order, or null if this is the last leaf or an inner
+         * node.
+         */
+        private Node next;
+
+        /**
+         * Constructor for an empty node.
+         *
+         * @param leaf
+         *            whether the node is a leaf
+         */
+        Node(boolean leaf) {
+            if (leaf) {
+                this.children = null;
+            } else {
+                this.children = new Node[MAX_KEYS + 2];
+            }
+        }
+
+        /**
+         * Reports whether this is a leaf.
+         *
+         * @return true iff this is a leaf
+         */
+        boolean isLeaf() {
+            return this.children == null;
+        }
+
+    }
+
+    /**
+     * Root of the tree.
+     */
+    private Node root;
+
+    /**
+     * Left-most leaf of the tree.
+     */
+    private Node first;
+
+    /**
+     * Number of elements in {@code this}.
+     */
+    private int size;
+
+    /**
+     * Returns the position of {@code x} among the first {@code count} keys of
+     * {@code keys} if it is there, and otherwise {@code -(p + 1)}, where
+     * {@code p} is the position at which it would be inserted.
+     *
+     * @param <T>
+     *            type of keys
+     * @param keys
+     *            the keys
+     * @param count
+     *            the number of keys in use
+     * @param x
+     *            the key to search for
+     * @return the position of x, or -(insertion point + 1)
+     * @requires [keys[0, count) is strictly increasing]
+     * @ensures <pre>
+     * if x is in keys[0, count) then keys[search] = x
+     *  else [keys[0, -(search + 1)) < x <= keys[-(search + 1), count)]
+     * </pre>
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends Comparable<T>> int search(Object[] keys,
+            int count, T x) {
+        int lo = 0;
+        int hi = count - 1;
+        int result = -1;
+        while (lo <= hi && result < 0) {
+            int mid = (lo + hi) >>> 1;
+            int c = ((T) keys[mid]).compareTo(x);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                result = mid;
+            }
+        }
+        if (result < 0) {
+            result = -(lo + 1);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the index of the child of {@code n} under which {@code x}
+     * belongs.
+     *
+     * @param <T>
+     *            type of keys
+     * @param n
+     *            the inner node
+     * @param x
+     *            the element
+     * @return the index of the child
+     * @requires IS_B_PLUS_TREE(n, true)
+     * @ensures <pre>
+     * 0 <= childIndex <= n.count  and
+     *  [every key of n.keys[0, childIndex) is <= x]  and
+     *  [every key of n.keys[childIndex, n.count) is > x]
+     * </pre>
+     */
+    private static <T extends Comparable<T>> int childIndex(Node n, T x) {
+        int p = search(n.keys, n.count, x);
+        if (p < 0) {
+            p = -(p + 1);
+        } else {
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * Inserts {@code x} at position {@code p} of the first {@code count}
+     * entries of {@code a}, shifting the later ones right.
+     *
+     * @param a
+     *            the array
+     * @param count
+     *            the number of entries in use
+     * @param p
+     *            the position
+     * @param x
+     *            the entry to insert
+     * @updates a
+     * @requires 0 <= p <= count < |a|
+     * @ensures a[0, count + 1) = #a[0, p) * <x> * #a[p, count)
+     */
+    private static void insertAt(Object[] a, int count, int p, Object x) {
+        System.arraycopy(a, p, a, p + 1, count - p);
+        a[p] = x;
+    }
+
+    /**
+     * Removes the entry at position {@code p} of the first {@code count}
+     * entries of {@code a}, shifting the later ones left and clearing the
+     * vacated slot.
+     *
+     * @param a
+     *            the array
+     * @param count
+     *            the number of entries in use
+     * @param p
+     *            the position
+     * @updates a
+     * @requires 0 <= p < count <= |a|
+     * @ensures <pre>
+     * a[0, count - 1) = #a[0, p) * #a[p + 1, count)  and  a[count - 1] = null
+     * </pre>
+     */
+    private static void removeAt(Object[] a, int count, int p) {
+        System.arraycopy(a, p + 1, a, p, count - p - 1);
+        a[count - 1] = null;
+    }
+
+    /**
+     * Inserts {@code x} in the tree rooted at {@code n}. If {@code n} overflows
+     * it is split in two: {@code n} keeps the smaller half, the new right
+     * sibling is returned, and the smallest element under the sibling is
+     * stored in {@code separator[0]}.
+     *
+     * @param <T>
+     *            type of keys
+     * @param n
+     *            the root of the tree
+     * @param x
+     *            the element to insert
+     * @param separator
+     *            one-element array receiving the separator if n is split
+     * @return the new right sibling of n, or null if n was not split
+     * @aliases reference {@code x}
+     * @updates n, separator
+     * @requires [n is the root of a B+ tree] and x is not in the tree
+     * @ensures <pre>
+     * [the elements under n and insertInTree are the elements under #n plus
+     *  x]  and  [if insertInTree /= null, separator[0] is the smallest element
+     *  under insertInTree, and all elements under n are smaller]
+     * </pre>
+     */
+    private static <T extends Comparable<T>> Node insertInTree(Node n, T x,
+            Object[] separator) {
+        Node sibling = null;
+        if (n.isLeaf()) {
+            int p = -(search(n.keys, n.count, x) + 1);
+            insertAt(n.keys, n.count, p, x);
+            n.count++;
+            if (n.count > MAX_KEYS) {
+                Node right = new Node(true);
+                int keep = n.count / 2;
+                right.count = n.count - keep;
+                System.arraycopy(n.keys, keep, right.keys, 0, right.count);
+                Arrays.fill(n.keys, keep, n.count, null);
+                n.count = keep;
+                right.next = n.next;
+                n.next = right;
+                separator[0] = right.keys[0];
+                sibling = right;
+            }
+        } else {
+            int i = childIndex(n, x);
+            Node grown = insertInTree(n.children[i], x, separator);
+            if (grown != null) {
+                insertAt(n.keys, n.count, i, separator[0]);
+                insertAt(n.children, n.count + 1, i + 1, grown);
+                n.count++;
+                if (n.count > MAX_KEYS) {
+                    /*
+                     * The middle key moves up; the keys on either side of it
+                     * and their children are divided between the two nodes
+                     */
+                    Node right = new Node(false);
+                    int mid = n.count / 2;
+                    separator[0] = n.keys[mid];
+                    right.count = n.count - mid - 1;
+                    System.arraycopy(n.keys, mid + 1, right.keys, 0,
+                            right.count);
+                    System.arraycopy(n.children, mid + 1, right.children,
+                            0, right.count + 1);
+                    Arrays.fill(n.keys, mid, n.count, null);
+                    Arrays.fill(n.children, mid + 1, n.count + 1, null);
+                    n.count = mid;
+                    sibling = right;
+                }
+            }
+        }
+        return sibling;
+    }
+
+    /**
+     * Restores the minimum occupancy of {@code parent.children[i]}, which has
+     * one key too few, by borrowing a key from a sibling that can spare one or
+     * else merging it with a sibling.
+     *
+     * @param parent
+     *            the parent of the underfull node
+     * @param i
+     *            the index of the underfull child
+     * @updates parent
+     * @requires <pre>
+     * parent.count > 0  and  parent.children[i].count = MIN_KEYS - 1  and
+     *  [every other node under parent satisfies IS_B_PLUS_TREE]
+     * </pre>
+     * @ensures <pre>
+     * [the elements under parent are unchanged]  and
+     *  [every child of parent satisfies IS_B_PLUS_TREE(child, false)]  and
+     *  parent.count >= #parent.count - 1
+     * </pre>
+     */
+    private static void fixUnderflow(Node parent, int i) {
+        Node left = null;
+        Node right = null;
+        if (i > 0) {
+            left = parent.children[i - 1];
+        }
+        if (i < parent.count) {
+            right = parent.children[i + 1];
+        }
+        if (left != null && left.count > MIN_KEYS) {
+            borrowFromLeft(parent, i);
+        } else if (right != null && right.count > MIN_KEYS) {
+            borrowFromRight(parent, i);
+        } else if (left != null) {
+            merge(parent, i - 1);
+        } else {
+            assert right != null : "Violation of: parent.count > 0";
+            merge(parent, i);
+        }
+    }
+
+    /**
+     * Moves the last key (and child) of {@code parent.children[i - 1]} to the
+     * front of {@code parent.children[i]}, through the separator between them.
+     *
+     * @param parent
+     *            the parent of the two nodes
+     * @param i
+     *            the index of the right node
+     * @updates parent
+     * @requires 0 < i <= parent.count and parent.children[i - 1].count > 0
+     * @ensures [the elements under parent are unchanged, and the separators
+     *          of parent still divide its children correctly]
+     */
+    private static void borrowFromLeft(Node parent, int i) {
+        Node child = parent.children[i];
+        Node left = parent.children[i - 1];
+        if (child.isLeaf()) {
+            insertAt(child.keys, child.count, 0, left.keys[left.count - 1]);
+            parent.keys[i - 1] = child.keys[0];
+        } else {
+            insertAt(child.keys, child.count, 0, parent.keys[i - 1]);
+            insertAt(child.children, child.count + 1, 0,
+                    left.children[left.count]);
+            left.children[left.count] = null;
+            parent.keys[i - 1] = left.keys[left.count - 1];
+        }
+        left.keys[left.count - 1] = null;
+        left.count--;
+        child.count++;
+    }
+
+    /**
+     * Moves the first key (and child) of {@code parent.children[i + 1]} to the
+     * end of {@code parent.children[i]}, through the separator between them.
+     *
+     * @param parent
+     *            the parent of the two nodes
+     * @param i
+     *            the index of the left node
+     * @updates parent
+     * @requires 0 <= i < parent.count and parent.children[i + 1].count > 1
+     * @ensures [the elements under parent are unchanged, and the separators
+     *          of parent still divide its children correctly]
+     */
+    private static void borrowFromRight(Node parent, int i) {
+        Node child = parent.children[i];
+        Node right = parent.children[i + 1];
+        if (child.isLeaf()) {
+            child.keys[child.count] = right.keys[0];
+            removeAt(right.keys, right.count, 0);
+            parent.keys[i] = right.keys[0];
+        } else {
+            child.keys[child.count] = parent.keys[i];
+            child.children[child.count + 1] = right.children[0];
+            parent.keys[i] = right.keys[0];
+            removeAt(right.keys, right.count, 0);
+            removeAt(right.children, right.count + 1, 0);
+        }
+        right.count--;
+        child.count++;
+    }
+
+    /**
+     * Merges {@code parent.children[i + 1]} into {@code parent.children[i]}
+     * and removes it, with the separator between them, from {@code parent}.
+     *
+     * @param parent
+     *            the parent of the two nodes
+     * @param i
+     *            the index of the left node
+     * @updates parent
+     * @requires <pre>
+     * 0 <= i < parent.count  and
+     *  [the two nodes together hold at most MAX_KEYS keys once merged]
+     * </pre>
+     * @ensures <pre>
+     * [the elements under parent are unchanged]  and
+     *  parent.count = #parent.count - 1
+     * </pre>
+     */
+    private static void merge(Node parent, int i) {
+        Node left = parent.children[i];
+        Node right = parent.children[i + 1];
+        if (left.isLeaf()) {
+            System.arraycopy(right.keys, 0, left.keys, left.count,
+                    right.count);
+            left.count += right.count;
+            left.next = right.next;
+        } else {
+            left.keys[left.count] = parent.keys[i];
+            System.arraycopy(right.keys, 0, left.keys, left.count + 1,
+                    right.count);
+            System.arraycopy(right.children, 0, left.children, left.count + 1,
+                    right.count + 1);
+            left.count += right.count + 1;
+        }
+        removeAt(parent.keys, parent.count, i);
+        removeAt(parent.children, parent.count + 1, i + 1);
+        parent.count--;
+    }
+
+    /**
+     * Removes {@code x} from the tree rooted at {@code n} and returns the
+     * removed element. Afterwards {@code n} may hold one key fewer than
+     * {@code MIN_KEYS}; its parent is responsible for fixing that.
+     *
+     * @param <T>
+     *            type of keys
+     * @param n
+     *            the root of the tree
+     * @param x
+     *            the element to remove
+     * @return the removed element
+     * @updates n
+     * @requires [n is the root of a B+ tree] and x is in the tree
+     * @ensures <pre>
+     * removeFromTree = x  and
+     *  [the elements under n are the elements under #n minus x]  and
+     *  n.count >= #n.count - 1
+     * </pre>
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends Comparable<T>> T removeFromTree(Node n, T x) {
+        T removed;
+        if (n.isLeaf()) {
+            int p = search(n.keys, n.count, x);
+            assert p >= 0 : "Violation of: x is in the tree";
+            removed = (T) n.keys[p];
+            removeAt(n.keys, n.count, p);
+            n.count--;
+        } else {
+            int i = childIndex(n, x);
+            removed = removeFromTree(n.children[i], x);
+            if (n.children[i].count < MIN_KEYS) {
+                fixUnderflow(n, i);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Creator of initial representation.
+     */
+    private void createNewRep() {
+
+        this.first = new Node(true);
+        this.root = this.first;
+        this.size = 0;
+
+    }
+
+    /*
+     * Constructors -----------------------------------------------------------
+     */
+
+    /**
+     * No-argument constructor.
+     */
+    public Set4() {
+
+        this.createNewRep();
+
+    }
+
+    /*
+     * Standard methods -------------------------------------------------------
+     */
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public final Set<T> newInstance() {
+        try {
+            return this.getClass().getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(
+                    "Cannot construct object of type " + this.getClass());
+        }
+    }
+
+    @Override
+    public final void clear() {
+        this.createNewRep();
+    }
+
+    @Override
+    public final void transferFrom(Set<T> source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+        assert source instanceof Set4<?> : ""
+                + "Violation of: source is of dynamic type Set4<?>";
+        /*
+         * This cast cannot fail since the assert above would have stopped
+         * execution in that case: source must be of dynamic type Set4<?>, and
+         * the ? must be T or the call would not have compiled.
+         */
+        Set4<T> localSource = (Set4<T>) source;
+        this.root = localSource.root;
+        this.first = localSource.first;
+        this.size = localSource.size;
+        localSource.createNewRep();
+    }
+
+    /*
+     * Kernel methods ---------------------------------------------------------
+     */
+
+    @Override
+    public final void add(T x) {
+        assert x != null : "Violation of: x is not null";
+        assert !this.contains(x) : "Violation of: x is not in this";
+
+        Object[] separator = new Object[1];
+        Node sibling = insertInTree(this.root, x, separator);
+        if (sibling != null) {
+            Node newRoot = new Node(false);
+            newRoot.keys[0] = separator[0];
+            newRoot.children[0] = this.root;
+            newRoot.children[1] = sibling;
+            newRoot.count = 1;
+            this.root = newRoot;
+        }
+        this.size++;
+
+    }
+
+    @Override
+    public final T remove(T x) {
+        assert x != null : "Violation of: x is not null";
+        assert this.contains(x) : "Violation of: x is in this";
+
+        T removed = removeFromTree(this.root, x);
+        if (this.root.count == 0 && !this.root.isLeaf()) {
+            this.root = this.root.children[0];
+        }
+        this.size--;
+
+        return removed;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public final T removeAny() {
+        assert this.size() > 0 : "Violation of: this /= empty_set";
+
+        return this.remove((T) this.first.keys[0]);
+    }
+
+    @Override
+    public final boolean contains(T x) {
+        assert x != null : "Violation of: x is not null";
+
+        Node n = this.root;
+        while (!n.isLeaf()) {
+            n = n.children[childIndex(n, x)];
+        }
+
+        return search(n.keys, n.count, x) >= 0;
+    }
+
+    @Override
+    public final int size() {
+
+        return this.size;
+    }
+
+    @Override
+    public final Iterator<T> iterator() {
+        return new Set4Iterator();
+    }
+
+    /**
+     * Implementation of {@code Iterator} interface for {@code Set4}. Scans the
+     * linked leaves from left to right.
+     */
+    private final class Set4Iterator implements Iterator<T> {
+
+        /**
+         * Node holding the next element, or null when all have been seen.
+         */
+        private Node leaf;
+
+        /**
+         * Position of the next element in {@code leaf}.
+         */
+        private int position;
+
+        /**
+         * No-argument constructor.
+         */
+        Set4Iterator() {
+            this.leaf = Set4.this.first;
+            this.position = 0;
+            this.skipExhausted();
+        }
+
+        /**
+         * Moves past leaves with no elements left to report.
+         */
+        private void skipExhausted() {
+            while (this.leaf != null && this.position == this.leaf.count) {
+                this.leaf = this.leaf.next;
+                this.position = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.leaf != null;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public T next() {
+            assert this.hasNext() : "Violation of: ~this.unseen /= <>";
+            if (!this.hasNext()) {
+                /*
+                 * Exception is supposed to be thrown in this case, but with
+                 * assertion-checking enabled it cannot happen because of assert
+                 * above.
+                 */
+                throw new NoSuchElementException();
+            }
+            T x = (T) this.leaf.keys[this.position];
+            this.position++;
+            this.skipExhausted();
+            return x;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(
+                    "remove operation not supported");
+        }
+
+    }
+
+}
@@ -1,3 +1,12 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.stream.StreamSupport;
+
+import org.junit.Test;
+
 import components.set.Set;
 import components.set.Set1L;
 
@@ -6,6 +15,18 @@ import components.set.Set1L;
  */
 public class Set3aTest extends SetTest {
 
+    /**
+     * Stack size, in bytes, of the thread that runs the stress tests. A
+     * recursive walk of a degenerate tree of {@code STRESS_ELEMENTS} nodes
+     * would overflow it many times over.
+     */
+    private static final long STRESS_STACK_BYTES = 1 << 16;
+
+    /**
+     * Number of elements in each stress test.
+     */
+    private static final int STRESS_ELEMENTS = 10_000;
+
     @Override
     protected final Set<String> constructorTest() {
         return new Set3a<String>();
@@ -16,4 +37,359 @@ public class Set3aTest extends SetTest {
         return new Set1L<String>();
     }
 
+    /**
+     * Creates and returns a {@code Set3a<Integer>} holding the multiples of 3
+     * from 0 to {@code 3 * (n - 1)}, added in a scrambled order.
+     *
+     * @param n
+     *            the number of elements
+     * @return the constructed set
+     * @requires n > 0
+     * @ensures multiplesOfThree = {0, 3, ..., 3 * (n - 1)}
+     */
+    private static Set3a<Integer> multiplesOfThree(int n) {
+        Set3a<Integer> s = new Set3a<>();
+        final int stride = 7919;
+        for (int i = 0; i < n; i++) {
+            s.add(3 * ((i * stride) % n));
+        }
+        return s;
+    }
+
+    /**
+     * Test rank and select, including after removals.
+     */
+    @Test
+    public final void testRankSelect() {
+        final int n = 1000;
+        Set3a<Integer> s = multiplesOfThree(n);
+        for (int k = 0; k < n; k++) {
+            assertEquals(3 * k, s.select(k).intValue());
+            assertEquals(k, s.rank(3 * k));
+            assertEquals(k + 1, s.rank(3 * k + 1));
+        }
+        assertEquals(0, s.rank(-1));
+        assertEquals(n, s.rank(3 * n));
+        for (int k = 0; k < n; k += 2) {
+            s.remove(3 * k);
+        }
+        s.removeAny();
+        for (int k = 0; k < s.size(); k++) {
+            assertEquals(3 * (2 * k + 3), s.select(k).intValue());
+        }
+    }
+
+    /**
+     * Test floor and ceiling, inside and outside the range of the set.
+     */
+    @Test
+    public final void testFloorCeiling() {
+        Set3a<Integer> s = multiplesOfThree(100);
+        assertEquals(30, s.floor(30).intValue());
+        assertEquals(30, s.floor(32).intValue());
+        assertEquals(33, s.ceiling(31).intValue());
+        assertEquals(33, s.ceiling(33).intValue());
+        assertEquals(null, s.floor(-1));
+        assertEquals(null, s.ceiling(298));
+        assertEquals(297, s.floor(1000).intValue());
+        assertEquals(0, s.ceiling(-5).intValue());
+    }
+
+    /**
+     * Test rangeCount and range, including empty and unbounded ranges.
+     */
+    @Test
+    public final void testRange() {
+        Set3a<Integer> s = multiplesOfThree(100);
+        assertEquals(4, s.rangeCount(10, 22));
+        assertEquals(0, s.rangeCount(10, 10));
+        assertEquals(100, s.rangeCount(-1, 1000));
+        Iterator<Integer> it = s.range(10, 22);
+        for (int x = 12; x < 22; x += 3) {
+            assertTrue(it.hasNext());
+            assertEquals(x, it.next().intValue());
+        }
+        assertTrue(!it.hasNext());
+        assertTrue(!s.range(298, 1000).hasNext());
+        int count = 0;
+        for (Iterator<Integer> all = s.range(-1, 1000); all.hasNext();) {
+            assertEquals(3 * count, all.next().intValue());
+            count++;
+        }
+        assertEquals(100, count);
+    }
+
+    /**
+     * Test that the iterator reports the elements in increasing order, also
+     * on a degenerate tree built from ascending input.
+     */
+    @Test
+    public final void testIteratorInOrder() {
+        final int n = STRESS_ELEMENTS;
+        Set3a<Integer> s = new Set3a<>();
+        for (int i = 0; i < n; i++) {
+            s.add(i);
+        }
+        int expected = 0;
+        for (Integer x : s) {
+            assertEquals(expected, x.intValue());
+            expected++;
+        }
+        assertEquals(n, expected);
+        Iterator<Integer> it = multiplesOfThree(100).iterator();
+        assertEquals(0, it.next().intValue());
+        assertEquals(3, it.next().intValue());
+    }
+
+    /**
+     * Test the spliterator's characteristics, splitting, and use by a
+     * parallel stream.
+     */
+    @Test
+    public final void testSpliterator() {
+        final int n = 10_000;
+        Set3a<Integer> s = multiplesOfThree(n);
+        Spliterator<Integer> whole = s.spliterator();
+        assertTrue(whole.hasCharacteristics(Spliterator.SORTED
+                | Spliterator.DISTINCT | Spliterator.SIZED));
+        assertEquals(null, whole.getComparator());
+        Spliterator<Integer> prefix = whole.trySplit();
+        assertEquals(n, prefix.estimateSize() + whole.estimateSize());
+        int[] last = {-1};
+        prefix.forEachRemaining(x -> {
+            assertTrue(x > last[0]);
+            last[0] = x;
+        });
+        whole.tryAdvance(x -> assertTrue(x > last[0]));
+        long sum = StreamSupport.stream(s.spliterator(), true)
+                .mapToLong(Integer::longValue).sum();
+        assertEquals(3L * n * (n - 1) / 2, sum);
+    }
+
+    /**
+     * Test union, intersect, and subtract, sequentially and in parallel.
+     */
+    @Test
+    public final void testBulkOperations() {
+        final int n = 40_000;
+        for (boolean parallel : new boolean[] {false, true}) {
+            Set3a<Integer> evens = new Set3a<>();
+            Set3a<Integer> threes = multiplesOfThree(n);
+            for (int i = 0; i < n; i++) {
+                evens.add(2 * ((i * 7919) % n));
+            }
+            Set3a<Integer> union = multiplesOfThree(n);
+            union.union(evens, parallel);
+            Set3a<Integer> common = multiplesOfThree(n);
+            common.intersect(evens, parallel);
+            Set3a<Integer> rest = multiplesOfThree(n);
+            rest.subtract(evens, parallel);
+            assertEquals(n, evens.size());
+            assertEquals(n, threes.size());
+            for (int x = 0; x < 3 * n; x++) {
+                boolean even = x % 2 == 0 && x < 2 * n;
+                boolean three = x % 3 == 0;
+                assertEquals(even || three, union.contains(x));
+                assertEquals(even && three, common.contains(x));
+                assertEquals(three && !even, rest.contains(x));
+            }
+            assertEquals(common.size(), common.rangeCount(0, 3 * n));
+            assertEquals(union.size() - 1, union.rank(union.select(
+                    union.size() - 1)));
+        }
+    }
+
+    /**
+     * Test add(Set) and remove(Set) between two {@code Set3a}s.
+     */
+    @Test
+    public final void testAddRemoveSet() {
+        Set<String> s = this.constructorTest();
+        Set<String> t = this.constructorTest();
+        s.add("a");
+        s.add("b");
+        s.add("c");
+        t.add("b");
+        t.add("d");
+        s.add(t);
+        assertEquals(4, s.size());
+        assertEquals(1, t.size());
+        assertTrue(t.contains("b"));
+        t.add("a");
+        t.add("z");
+        Set<String> removed = s.remove(t);
+        assertEquals(2, s.size());
+        assertTrue(s.contains("c") && s.contains("d"));
+        assertEquals(2, removed.size());
+        assertTrue(removed.contains("a") && removed.contains("b"));
+        assertEquals(3, t.size());
+    }
+
+    /**
+     * Test add(Set) and remove(Set) between {@code Set3a}s of very different
+     * and of similar sizes, which take the element-by-element and the merge
+     * paths respectively.
+     */
+    @Test
+    public final void testAddRemoveSetSizes() {
+        final int n = 2000;
+        for (int k : new int[] { 1, 3, n / 2, n }) {
+            Set3a<Integer> s = new Set3a<>();
+            Set3a<Integer> t = new Set3a<>();
+            Set<Integer> sExpected = new Set1L<>();
+            for (int i = 0; i < n; i++) {
+                s.add(2 * i);
+                sExpected.add(2 * i);
+            }
+            for (int i = 0; i < k; i++) {
+                t.add(3 * i);
+            }
+            s.add(t);
+            for (int i = 0; i < k; i++) {
+                if (i % 2 == 0 && 3 * i < 2 * n) {
+                    assertTrue(t.contains(3 * i));
+                } else {
+                    sExpected.add(3 * i);
+                    assertTrue(!t.contains(3 * i));
+                }
+            }
+            assertEquals(sExpected.size(), s.size());
+            for (Integer x : sExpected) {
+                assertTrue(s.contains(x));
+            }
+            for (int i = 0; i < k; i++) {
+                if (!t.contains(5 * i + 1)) {
+                    t.add(5 * i + 1);
+                }
+            }
+            Set<Integer> removed = s.remove(t);
+            for (Integer x : t) {
+                if (sExpected.contains(x)) {
+                    sExpected.remove(x);
+                    assertTrue(removed.contains(x));
+                } else {
+                    assertTrue(!removed.contains(x));
+                }
+            }
+            assertEquals(sExpected.size(), s.size());
+            for (Integer x : sExpected) {
+                assertTrue(s.contains(x));
+            }
+        }
+    }
+
+    /**
+     * Adds the elements of {@code order} to a new {@code Set3a}, in that order,
+     * and exercises every kernel method, the iterator, and the order-statistic
+     * methods on the result. Runs on a thread with a small stack so that any
+     * recursion proportional to the depth of the tree fails the test.
+     *
+     * @param order
+     *            the distinct elements, in the order to add them
+     * @requires [order is a permutation of 0 to |order| - 1]
+     */
+    private static void stress(final Integer[] order) {
+        final Throwable[] failure = new Throwable[1];
+        Thread worker = new Thread(null, () -> {
+            try {
+                final int n = order.length;
+                Set3a<Integer> s = new Set3a<>();
+                for (Integer x : order) {
+                    s.add(x);
+                }
+                assertEquals(n, s.size());
+                int expected = 0;
+                for (Integer x : s) {
+                    assertEquals(expected, x.intValue());
+                    expected++;
+                }
+                for (int x = 0; x < n; x++) {
+                    assertTrue(s.contains(x));
+                    assertEquals(x, s.rank(x));
+                    assertEquals(x, s.select(x).intValue());
+                }
+                assertTrue(!s.contains(n));
+                for (int i = 0; i < n / 2; i++) {
+                    assertEquals(order[i], s.remove(order[i]));
+                }
+                while (s.size() > 0) {
+                    s.removeAny();
+                }
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }, "stress", STRESS_STACK_BYTES);
+        worker.start();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        assertEquals(null, failure[0]);
+    }
+
+    /**
+     * Stress test with ascending input, which makes the tree a right-leaning
+     * list.
+     */
+    @Test
+    public final void testStressAscending() {
+        Integer[] order = new Integer[STRESS_ELEMENTS];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        stress(order);
+    }
+
+    /**
+     * Stress test with descending input, which makes the tree a left-leaning
+     * list.
+     */
+    @Test
+    public final void testStressDescending() {
+        Integer[] order = new Integer[STRESS_ELEMENTS];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = order.length - 1 - i;
+        }
+        stress(order);
+    }
+
+    /**
+     * Stress test with input alternating between the smallest and largest
+     * remaining elements, which makes the tree a zigzag path.
+     */
+    @Test
+    public final void testStressZigzag() {
+        Integer[] order = new Integer[STRESS_ELEMENTS];
+        int lo = 0;
+        int hi = order.length - 1;
+        for (int i = 0; i < order.length; i++) {
+            if (i % 2 == 0) {
+                order[i] = lo;
+                lo++;
+            } else {
+                order[i] = hi;
+                hi--;
+            }
+        }
+        stress(order);
+    }
+
+    /**
+     * Stress test with input ascending to the middle and then descending
+     * from the top, which makes the tree two long paths.
+     */
+    @Test
+    public final void testStressOrganPipe() {
+        Integer[] order = new Integer[STRESS_ELEMENTS];
+        int half = order.length / 2;
+        for (int i = 0; i < half; i++) {
+            order[i] = i;
+        }
+        for (int i = half; i < order.length; i++) {
+            order[i] = order.length - 1 - (i - half);
+        }
+        stress(order);
+    }
+
 }
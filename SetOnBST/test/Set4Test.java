@@ -0,0 +1,60 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import components.set.Set;
+import components.set.Set1L;
+
+/**
+ * Customized JUnit test fixture for {@code Set4}.
+ */
+public class Set4Test extends SetTest {
+
+    @Override
+    protected final Set<String> constructorTest() {
+        return new Set4<String>();
+    }
+
+    @Override
+    protected final Set<String> constructorRef() {
+        return new Set1L<String>();
+    }
+
+    /**
+     * Test enough elements to split and merge nodes on several levels: add in
+     * a scrambled order, check iteration order, remove every other element,
+     * and drain the rest with removeAny.
+     */
+    @Test
+    public final void testManyElements() {
+        final int n = 100_000;
+        final int stride = 7919;
+        Set4<Integer> s = new Set4<>();
+        for (int i = 0; i < n; i++) {
+            s.add((i * stride) % n);
+        }
+        assertEquals(n, s.size());
+        int expected = 0;
+        for (Integer x : s) {
+            assertEquals(expected, x.intValue());
+            expected++;
+        }
+        assertEquals(n, expected);
+        for (int i = 0; i < n; i += 2) {
+            assertEquals(i, s.remove(i).intValue());
+        }
+        assertEquals(n / 2, s.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(i % 2 == 1, s.contains(i));
+        }
+        int last = -1;
+        while (s.size() > 0) {
+            int x = s.removeAny();
+            assertTrue(x > last);
+            last = x;
+        }
+        assertTrue(!s.iterator().hasNext());
+    }
+
+}